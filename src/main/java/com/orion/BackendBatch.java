@@ -0,0 +1,53 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes collected locally and committed atomically in one round trip.
+ */
+public final class BackendBatch {
+    private final CollaborationBackend backend;
+    private final List<CollaborationBackend.Write> writes = new ArrayList<>();
+
+    BackendBatch(CollaborationBackend backend) {
+        this.backend = backend;
+    }
+
+    public BackendBatch set(BackendDocRef ref, Map<String, Object> data) {
+        return add(CollaborationBackend.Write.Type.SET, ref, data);
+    }
+
+    public BackendBatch merge(BackendDocRef ref, Map<String, Object> data) {
+        return add(CollaborationBackend.Write.Type.MERGE, ref, data);
+    }
+
+    public BackendBatch update(BackendDocRef ref, Map<String, Object> data) {
+        return add(CollaborationBackend.Write.Type.UPDATE, ref, data);
+    }
+
+    public BackendBatch create(BackendDocRef ref, Map<String, Object> data) {
+        return add(CollaborationBackend.Write.Type.CREATE, ref, data);
+    }
+
+    public BackendBatch delete(BackendDocRef ref) {
+        return add(CollaborationBackend.Write.Type.DELETE, ref, null);
+    }
+
+    /** Number of writes collected so far. */
+    public int size() {
+        return writes.size();
+    }
+
+    public ApiFuture<Void> commit() {
+        return backend.commit(new ArrayList<>(writes));
+    }
+
+    private BackendBatch add(CollaborationBackend.Write.Type type, BackendDocRef ref, Map<String, Object> data) {
+        writes.add(new CollaborationBackend.Write(type, ref.getPath(), data));
+        return this;
+    }
+}
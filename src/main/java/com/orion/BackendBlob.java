@@ -0,0 +1,43 @@
+package com.orion;
+
+import java.util.Arrays;
+
+/**
+ * Immutable bytes as stored in documents. Backends translate it to and from their own
+ * bytes type, so code above the {@link CollaborationBackend} does not depend on the
+ * Firestore client.
+ */
+public final class BackendBlob {
+    private final byte[] bytes;
+
+    private BackendBlob(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public static BackendBlob fromBytes(byte[] bytes) {
+        return new BackendBlob(bytes.clone());
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    public byte[] toBytes() {
+        return bytes.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BackendBlob && Arrays.equals(bytes, ((BackendBlob) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "BackendBlob(" + bytes.length + " bytes)";
+    }
+}
@@ -0,0 +1,54 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.Map;
+
+/**
+ * Reference to a collection, e.g. {@code projects} or {@code projects/abc/files}.
+ * Also a query for every document in it.
+ */
+public final class BackendCollectionRef extends BackendQuery {
+    private final String path;
+
+    BackendCollectionRef(CollaborationBackend backend, String path) {
+        super(backend, path);
+        this.path = path;
+    }
+
+    public String getId() {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /** The document this collection belongs to, or null for a top-level collection. */
+    public BackendDocRef getParent() {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? null : new BackendDocRef(backend, path.substring(0, slash));
+    }
+
+    public BackendDocRef document(String id) {
+        return new BackendDocRef(backend, path + "/" + id);
+    }
+
+    /** A new document with a random ID. */
+    public BackendDocRef document() {
+        return document(backend.newDocumentId());
+    }
+
+    /** Create a document with a random ID. */
+    public ApiFuture<BackendDocRef> add(Map<String, Object> data) {
+        BackendDocRef ref = document();
+        return ApiFutures.transform(ref.create(data), written -> ref, MoreExecutors.directExecutor());
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
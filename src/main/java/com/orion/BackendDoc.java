@@ -0,0 +1,158 @@
+package com.orion;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Snapshot of a document as read from the backend. Whole numbers are {@link Long},
+ * timestamps are {@link BackendTimestamp}, bytes are {@link BackendBlob}, and nested
+ * maps and lists are unmodifiable.
+ */
+public final class BackendDoc {
+    private final BackendDocRef reference;
+    private final Map<String, Object> data;
+
+    /**
+     * @param data The document's fields, or null if it does not exist
+     */
+    public BackendDoc(BackendDocRef reference, Map<String, Object> data) {
+        this.reference = reference;
+        this.data = data;
+    }
+
+    public String getId() {
+        return reference.getId();
+    }
+
+    public BackendDocRef getReference() {
+        return reference;
+    }
+
+    public boolean exists() {
+        return data != null;
+    }
+
+    /** All fields, or null if the document does not exist. */
+    public Map<String, Object> getData() {
+        return data != null ? Collections.unmodifiableMap(data) : null;
+    }
+
+    /**
+     * Value of a field; dotted names reach into nested maps.
+     */
+    @SuppressWarnings("unchecked")
+    public Object get(String field) {
+        if (data == null) {
+            return null;
+        }
+        if (field.indexOf('.') < 0 || data.containsKey(field)) {
+            return data.get(field);
+        }
+        Object value = data;
+        for (String part : field.split("\\.")) {
+            if (!(value instanceof Map)) {
+                return null;
+            }
+            value = ((Map<String, Object>) value).get(part);
+        }
+        return value;
+    }
+
+    public boolean contains(String field) {
+        return get(field) != null;
+    }
+
+    public String getString(String field) {
+        return (String) get(field);
+    }
+
+    public Long getLong(String field) {
+        Number value = (Number) get(field);
+        return value != null ? value.longValue() : null;
+    }
+
+    public Double getDouble(String field) {
+        Number value = (Number) get(field);
+        return value != null ? value.doubleValue() : null;
+    }
+
+    public Boolean getBoolean(String field) {
+        return (Boolean) get(field);
+    }
+
+    public BackendTimestamp getTimestamp(String field) {
+        Object value = get(field);
+        if (value instanceof Date) {
+            return BackendTimestamp.of((Date) value);
+        }
+        return (BackendTimestamp) value;
+    }
+
+    public Date getDate(String field) {
+        BackendTimestamp timestamp = getTimestamp(field);
+        return timestamp != null ? timestamp.toDate() : null;
+    }
+
+    /**
+     * Map the fields onto a bean through its public setters, the way Firestore's
+     * {@code toObject} does for the simple models in this app.
+     *
+     * @return The bean, or null if the document does not exist
+     */
+    public <T> T toObject(Class<T> type) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            T bean = type.getDeclaredConstructor().newInstance();
+            for (Method method : type.getMethods()) {
+                String name = method.getName();
+                if (!name.startsWith("set") || name.length() < 4 || method.getParameterCount() != 1) {
+                    continue;
+                }
+                String field = Character.toLowerCase(name.charAt(3)) + name.substring(4);
+                if (!data.containsKey(field)) {
+                    continue;
+                }
+                Object value = convert(data.get(field), method.getParameterTypes()[0]);
+                if (value != null || !method.getParameterTypes()[0].isPrimitive()) {
+                    method.invoke(bean, value);
+                }
+            }
+            return bean;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot map " + reference + " to " + type.getSimpleName(), e);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object convert(Object value, Class<?> target) {
+        if (value == null || target.isInstance(value)) {
+            return value;
+        }
+        if (value instanceof BackendTimestamp && target == Date.class) {
+            return ((BackendTimestamp) value).toDate();
+        }
+        if (value instanceof Number) {
+            Number number = (Number) value;
+            if (target == int.class || target == Integer.class) return number.intValue();
+            if (target == long.class || target == Long.class) return number.longValue();
+            if (target == double.class || target == Double.class) return number.doubleValue();
+            if (target == float.class || target == Float.class) return number.floatValue();
+        }
+        if (value instanceof String && target.isEnum()) {
+            return Enum.valueOf((Class<Enum>) target, (String) value);
+        }
+        if (target == String.class) {
+            return value.toString();
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return reference + (data != null ? " " + data : " (missing)");
+    }
+}
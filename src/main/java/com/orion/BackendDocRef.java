@@ -0,0 +1,102 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reference to a document at a slash-separated path, e.g. {@code projects/abc/files/main.java}.
+ */
+public final class BackendDocRef {
+    private final CollaborationBackend backend;
+    private final String path;
+
+    BackendDocRef(CollaborationBackend backend, String path) {
+        this.backend = backend;
+        this.path = path;
+    }
+
+    public String getId() {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public CollaborationBackend getBackend() {
+        return backend;
+    }
+
+    /** The collection holding this document. */
+    public BackendCollectionRef getParent() {
+        return new BackendCollectionRef(backend, path.substring(0, path.lastIndexOf('/')));
+    }
+
+    public BackendCollectionRef collection(String id) {
+        return new BackendCollectionRef(backend, path + "/" + id);
+    }
+
+    public ApiFuture<BackendDoc> get() {
+        return backend.get(path);
+    }
+
+    /** Replace the document. */
+    public ApiFuture<Void> set(Map<String, Object> data) {
+        return write(CollaborationBackend.Write.Type.SET, data);
+    }
+
+    /** Merge fields into the document, creating it if needed. */
+    public ApiFuture<Void> merge(Map<String, Object> data) {
+        return write(CollaborationBackend.Write.Type.MERGE, data);
+    }
+
+    /** Update fields of an existing document; fails with NOT_FOUND if it does not exist. */
+    public ApiFuture<Void> update(Map<String, Object> data) {
+        return write(CollaborationBackend.Write.Type.UPDATE, data);
+    }
+
+    /** Update fields given as alternating names and values. */
+    public ApiFuture<Void> update(String field, Object value, Object... moreFieldsAndValues) {
+        Map<String, Object> data = new HashMap<>();
+        data.put(field, value);
+        for (int i = 0; i + 1 < moreFieldsAndValues.length; i += 2) {
+            data.put((String) moreFieldsAndValues[i], moreFieldsAndValues[i + 1]);
+        }
+        return update(data);
+    }
+
+    /** Create the document; fails with ALREADY_EXISTS if it exists. */
+    public ApiFuture<Void> create(Map<String, Object> data) {
+        return write(CollaborationBackend.Write.Type.CREATE, data);
+    }
+
+    public ApiFuture<Void> delete() {
+        return write(CollaborationBackend.Write.Type.DELETE, null);
+    }
+
+    public CollaborationBackend.Registration addSnapshotListener(CollaborationBackend.DocumentListener listener) {
+        return backend.listenDocument(path, listener);
+    }
+
+    private ApiFuture<Void> write(CollaborationBackend.Write.Type type, Map<String, Object> data) {
+        return backend.commit(List.of(new CollaborationBackend.Write(type, path, data)));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BackendDocRef && ((BackendDocRef) o).path.equals(path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,39 @@
+package com.orion;
+
+/**
+ * A failed backend operation, tagged with a gRPC-style status code name
+ * such as {@code NOT_FOUND} or {@code ALREADY_EXISTS}.
+ */
+public class BackendException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final String code;
+
+    public BackendException(String code, String message) {
+        super(code + ": " + message);
+        this.code = code;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public BackendException(String code, String message, Throwable cause) {
+        super(code + ": " + message, cause);
+        this.code = code;
+    }
+
+    /**
+     * Status code name of a backend failure, looking through wrapping exceptions.
+     *
+     * @return The code, or null if the failure carries none
+     */
+    public static String codeOf(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof BackendException) {
+                return ((BackendException) t).code;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,188 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable query over the documents of one collection: equality, array-contains and
+ * in filters, an optional ordering, an optional limit and an optional field selection.
+ * Without an ordering, results come back in document ID order.
+ */
+public class BackendQuery {
+    public enum Direction { ASCENDING, DESCENDING }
+
+    protected final CollaborationBackend backend;
+    private final String collectionPath;
+    private final List<Filter> filters;
+    private final String orderField;
+    private final Direction direction;
+    private final int limit;
+    private final List<String> selectedFields;
+
+    BackendQuery(CollaborationBackend backend, String collectionPath) {
+        this(backend, collectionPath, List.of(), null, Direction.ASCENDING, 0, List.of());
+    }
+
+    private BackendQuery(CollaborationBackend backend, String collectionPath, List<Filter> filters,
+                         String orderField, Direction direction, int limit, List<String> selectedFields) {
+        this.backend = backend;
+        this.collectionPath = collectionPath;
+        this.filters = filters;
+        this.orderField = orderField;
+        this.direction = direction;
+        this.limit = limit;
+        this.selectedFields = selectedFields;
+    }
+
+    public BackendQuery whereEqualTo(String field, Object value) {
+        return withFilter(new Filter(field, Filter.Op.EQUAL, value));
+    }
+
+    public BackendQuery whereArrayContains(String field, Object value) {
+        return withFilter(new Filter(field, Filter.Op.ARRAY_CONTAINS, value));
+    }
+
+    public BackendQuery whereIn(String field, List<?> values) {
+        return withFilter(new Filter(field, Filter.Op.IN, values));
+    }
+
+    public BackendQuery orderBy(String field) {
+        return orderBy(field, Direction.ASCENDING);
+    }
+
+    public BackendQuery orderBy(String field, Direction direction) {
+        return new BackendQuery(backend, collectionPath, filters, field, direction, limit, selectedFields);
+    }
+
+    public BackendQuery limit(int limit) {
+        return new BackendQuery(backend, collectionPath, filters, orderField, direction, limit, selectedFields);
+    }
+
+    /**
+     * Only return these fields of each result, so large fields the caller does not
+     * need are never downloaded or decoded.
+     */
+    public BackendQuery select(String... fields) {
+        return new BackendQuery(backend, collectionPath, filters, orderField, direction, limit, List.of(fields));
+    }
+
+    public ApiFuture<BackendQuerySnapshot> get() {
+        return backend.query(this);
+    }
+
+    public CollaborationBackend.Registration addSnapshotListener(CollaborationBackend.SnapshotListener listener) {
+        return backend.listen(this, listener);
+    }
+
+    public String getCollectionPath() {
+        return collectionPath;
+    }
+
+    public List<Filter> getFilters() {
+        return filters;
+    }
+
+    /** Field to order by, or null for document ID order. */
+    public String getOrderField() {
+        return orderField;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
+    /** Maximum number of results, or 0 for no limit. */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** Fields to return, or empty for whole documents. */
+    public List<String> getSelectedFields() {
+        return selectedFields;
+    }
+
+    private BackendQuery withFilter(Filter filter) {
+        List<Filter> combined = new ArrayList<>(filters);
+        combined.add(filter);
+        return new BackendQuery(backend, collectionPath, Collections.unmodifiableList(combined),
+                orderField, direction, limit, selectedFields);
+    }
+
+    /**
+     * Sort documents into this query's order: by the ordering field, then by ID.
+     */
+    void sort(List<BackendDoc> docs) {
+        Comparator<BackendDoc> byId = Comparator.comparing(BackendDoc::getId);
+        Comparator<BackendDoc> order = orderField == null ? byId
+                : Comparator.<BackendDoc, Object>comparing(doc -> doc.get(orderField),
+                        BackendQuery::compareValues).thenComparing(byId);
+        docs.sort(direction == Direction.DESCENDING ? order.reversed() : order);
+    }
+
+    /** Firestore's cross-type order: null, booleans, numbers, timestamps, strings, then the rest. */
+    static int compareValues(Object a, Object b) {
+        int rankA = rank(a);
+        int rankB = rank(b);
+        if (rankA != rankB) {
+            return Integer.compare(rankA, rankB);
+        }
+        if (a instanceof Boolean) {
+            return Boolean.compare((Boolean) a, (Boolean) b);
+        }
+        if (a instanceof Number) {
+            if (a instanceof Long && b instanceof Long) {
+                return Long.compare((Long) a, (Long) b);
+            }
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (a instanceof BackendTimestamp) {
+            return ((BackendTimestamp) a).compareTo((BackendTimestamp) b);
+        }
+        if (a instanceof String) {
+            return ((String) a).compareTo((String) b);
+        }
+        return 0;
+    }
+
+    private static int rank(Object value) {
+        if (value == null) return 0;
+        if (value instanceof Boolean) return 1;
+        if (value instanceof Number) return 2;
+        if (value instanceof BackendTimestamp) return 3;
+        if (value instanceof String) return 4;
+        return 5;
+    }
+
+    /**
+     * One field condition. Field names may be dotted paths into nested maps.
+     */
+    public static final class Filter {
+        public enum Op { EQUAL, ARRAY_CONTAINS, IN }
+
+        private final String field;
+        private final Op op;
+        private final Object value;
+
+        Filter(String field, Op op, Object value) {
+            this.field = field;
+            this.op = op;
+            this.value = value;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public Op getOp() {
+            return op;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+    }
+}
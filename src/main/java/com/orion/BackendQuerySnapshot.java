@@ -0,0 +1,72 @@
+package com.orion;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Result of a query or one listener event: the matching documents and, for listener
+ * events, the documents that changed since the previous event.
+ */
+public final class BackendQuerySnapshot {
+    private final Supplier<List<BackendDoc>> documents;
+    private final List<Change> changes;
+    private List<BackendDoc> resolved;
+
+    public BackendQuerySnapshot(List<BackendDoc> documents, List<Change> changes) {
+        this.resolved = documents;
+        this.documents = () -> documents;
+        this.changes = changes;
+    }
+
+    /**
+     * Snapshot whose document list is only built if someone asks for it;
+     * listeners that only look at changes never pay for it.
+     */
+    BackendQuerySnapshot(Supplier<List<BackendDoc>> documents, List<Change> changes) {
+        this.documents = documents;
+        this.changes = changes;
+    }
+
+    public synchronized List<BackendDoc> getDocuments() {
+        if (resolved == null) {
+            resolved = documents.get();
+        }
+        return resolved;
+    }
+
+    public List<Change> getDocumentChanges() {
+        return changes;
+    }
+
+    public int size() {
+        return getDocuments().size();
+    }
+
+    public boolean isEmpty() {
+        return getDocuments().isEmpty();
+    }
+
+    /**
+     * A document that entered, changed in, or left the query's results.
+     */
+    public static final class Change {
+        public enum Type { ADDED, MODIFIED, REMOVED }
+
+        private final Type type;
+        private final BackendDoc document;
+
+        public Change(Type type, BackendDoc document) {
+            this.type = type;
+            this.document = document;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /** The new state, or the last state before removal. */
+        public BackendDoc getDocument() {
+            return document;
+        }
+    }
+}
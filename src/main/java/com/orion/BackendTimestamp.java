@@ -0,0 +1,78 @@
+package com.orion;
+
+import java.util.Date;
+
+/**
+ * A point in time as stored in documents, with nanosecond precision.
+ * Backends translate it to and from their own timestamp type, so code above the
+ * {@link CollaborationBackend} does not depend on the Firestore client.
+ */
+public final class BackendTimestamp implements Comparable<BackendTimestamp> {
+    private final long seconds;
+    private final int nanos;
+
+    private BackendTimestamp(long seconds, int nanos) {
+        this.seconds = seconds;
+        this.nanos = nanos;
+    }
+
+    public static BackendTimestamp now() {
+        return ofTimeMillis(System.currentTimeMillis());
+    }
+
+    public static BackendTimestamp of(Date date) {
+        return ofTimeMillis(date.getTime());
+    }
+
+    public static BackendTimestamp ofTimeMillis(long millis) {
+        return new BackendTimestamp(Math.floorDiv(millis, 1000), Math.floorMod(millis, 1000) * 1_000_000);
+    }
+
+    public static BackendTimestamp ofTimeSecondsAndNanos(long seconds, int nanos) {
+        if (nanos < 0 || nanos >= 1_000_000_000) {
+            throw new IllegalArgumentException("Nanos out of range: " + nanos);
+        }
+        return new BackendTimestamp(seconds, nanos);
+    }
+
+    public long getSeconds() {
+        return seconds;
+    }
+
+    public int getNanos() {
+        return nanos;
+    }
+
+    public long toMillis() {
+        return seconds * 1000 + nanos / 1_000_000;
+    }
+
+    public Date toDate() {
+        return new Date(toMillis());
+    }
+
+    @Override
+    public int compareTo(BackendTimestamp other) {
+        int bySeconds = Long.compare(seconds, other.seconds);
+        return bySeconds != 0 ? bySeconds : Integer.compare(nanos, other.nanos);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof BackendTimestamp)) {
+            return false;
+        }
+        BackendTimestamp other = (BackendTimestamp) o;
+        return seconds == other.seconds && nanos == other.nanos;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(seconds) * 31 + nanos;
+    }
+
+    @Override
+    public String toString() {
+        return java.time.Instant.ofEpochSecond(seconds, nanos).toString();
+    }
+}
@@ -0,0 +1,23 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+
+import java.util.Map;
+
+/**
+ * Reads and writes inside {@link CollaborationBackend#runTransaction}.
+ * All reads must happen before the first write; writes apply when the function returns.
+ */
+public interface BackendTransaction {
+    ApiFuture<BackendDoc> get(BackendDocRef ref);
+
+    BackendTransaction set(BackendDocRef ref, Map<String, Object> data);
+
+    BackendTransaction merge(BackendDocRef ref, Map<String, Object> data);
+
+    BackendTransaction update(BackendDocRef ref, Map<String, Object> data);
+
+    BackendTransaction create(BackendDocRef ref, Map<String, Object> data);
+
+    BackendTransaction delete(BackendDocRef ref);
+}
@@ -0,0 +1,48 @@
+package com.orion;
+
+/**
+ * Write sentinels resolved by the backend when a write is applied:
+ * server timestamps, numeric increments and field deletes.
+ */
+public final class BackendValue {
+    public enum Type { SERVER_TIMESTAMP, INCREMENT, DELETE }
+
+    private static final BackendValue SERVER_TIMESTAMP = new BackendValue(Type.SERVER_TIMESTAMP, null);
+    private static final BackendValue DELETE = new BackendValue(Type.DELETE, null);
+
+    private final Type type;
+    private final Number operand;
+
+    private BackendValue(Type type, Number operand) {
+        this.type = type;
+        this.operand = operand;
+    }
+
+    /** The commit time on the backend. */
+    public static BackendValue serverTimestamp() {
+        return SERVER_TIMESTAMP;
+    }
+
+    /** Add to the current numeric value, treating a missing field as zero. */
+    public static BackendValue increment(long amount) {
+        return new BackendValue(Type.INCREMENT, amount);
+    }
+
+    /** Remove the field; only valid in merges and updates. */
+    public static BackendValue delete() {
+        return DELETE;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Number getOperand() {
+        return operand;
+    }
+
+    @Override
+    public String toString() {
+        return type == Type.INCREMENT ? "increment(" + operand + ")" : type.toString();
+    }
+}
@@ -0,0 +1,316 @@
+package com.orion;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Column-oriented, read-only copy of a project's change history for analytics.
+ * Each change is a row spread over primitive arrays: timestamps as epoch millis,
+ * users, files and change types as dictionary codes, and line counts as ints.
+ * Aggregations scan the arrays directly and split large scans across cores.
+ */
+public class ChangeHistoryColumns {
+    // Below this many rows a sequential scan beats the fork/join overhead
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    private static final int CHUNK_SIZE = 1 << 14;
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    /** History document fields the columns are built from; the delta is never needed. */
+    static final String[] FIELDS = {"userId", "username", "filePath", "changeType", "linesAdded", "linesRemoved", "timestamp"};
+
+    private final int size;
+    private final long[] timestamps;
+    private final int[] userCodes;
+    private final int[] fileCodes;
+    private final int[] typeCodes;
+    private final int[] linesAdded;
+    private final int[] linesRemoved;
+
+    private final String[] userIds;
+    private final String[] usernames;
+    private final String[] filePaths;
+    private final ChangeHistory.ChangeType[] types = ChangeHistory.ChangeType.values();
+
+    private ChangeHistoryColumns(int size, long[] timestamps, int[] userCodes, int[] fileCodes, int[] typeCodes,
+                                 int[] linesAdded, int[] linesRemoved,
+                                 String[] userIds, String[] usernames, String[] filePaths) {
+        this.size = size;
+        this.timestamps = timestamps;
+        this.userCodes = userCodes;
+        this.fileCodes = fileCodes;
+        this.typeCodes = typeCodes;
+        this.linesAdded = linesAdded;
+        this.linesRemoved = linesRemoved;
+        this.userIds = userIds;
+        this.usernames = usernames;
+        this.filePaths = filePaths;
+    }
+
+    /**
+     * Build the columns straight from change history documents, without decoding them
+     * into ChangeHistory objects. Entries without a timestamp get 0.
+     */
+    public static ChangeHistoryColumns from(List<BackendDoc> docs) {
+        int n = docs.size();
+        long[] timestamps = new long[n];
+        int[] userCodes = new int[n];
+        int[] fileCodes = new int[n];
+        int[] typeCodes = new int[n];
+        int[] added = new int[n];
+        int[] removed = new int[n];
+
+        Map<String, Integer> userDictionary = new HashMap<>();
+        Map<String, Integer> fileDictionary = new HashMap<>();
+        List<String> userIds = new ArrayList<>();
+        List<String> usernames = new ArrayList<>();
+        List<String> filePaths = new ArrayList<>();
+
+        for (int i = 0; i < n; i++) {
+            BackendDoc doc = docs.get(i);
+
+            BackendTimestamp timestamp = doc.getTimestamp("timestamp");
+            timestamps[i] = timestamp != null ? timestamp.toDate().getTime() : 0L;
+
+            String userId = doc.getString("userId") != null ? doc.getString("userId") : "";
+            Integer userCode = userDictionary.get(userId);
+            if (userCode == null) {
+                userCode = userIds.size();
+                userDictionary.put(userId, userCode);
+                userIds.add(userId);
+                usernames.add(doc.getString("username"));
+            }
+            userCodes[i] = userCode;
+
+            String filePath = doc.getString("filePath") != null ? doc.getString("filePath") : "";
+            Integer fileCode = fileDictionary.get(filePath);
+            if (fileCode == null) {
+                fileCode = filePaths.size();
+                fileDictionary.put(filePath, fileCode);
+                filePaths.add(filePath);
+            }
+            fileCodes[i] = fileCode;
+
+            String changeType = doc.getString("changeType");
+            typeCodes[i] = changeType != null ? ChangeHistory.ChangeType.valueOf(changeType).ordinal() : -1;
+            Long linesAdded = doc.getLong("linesAdded");
+            Long linesRemoved = doc.getLong("linesRemoved");
+            added[i] = linesAdded != null ? linesAdded.intValue() : 0;
+            removed[i] = linesRemoved != null ? linesRemoved.intValue() : 0;
+        }
+
+        return new ChangeHistoryColumns(n, timestamps, userCodes, fileCodes, typeCodes, added, removed,
+                userIds.toArray(new String[0]), usernames.toArray(new String[0]), filePaths.toArray(new String[0]));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int distinctUsers() {
+        return distinct(userCodes, userIds.length);
+    }
+
+    public int distinctFiles() {
+        return distinct(fileCodes, filePaths.length);
+    }
+
+    public long totalLinesAdded() {
+        return sum(linesAdded);
+    }
+
+    public long totalLinesRemoved() {
+        return sum(linesRemoved);
+    }
+
+    /**
+     * Per-user totals, keyed by user ID.
+     */
+    public Map<String, Contribution> contributionsByUser() {
+        long[][] totals = groupBy(userCodes, userIds.length);
+        Map<String, Contribution> result = new LinkedHashMap<>();
+        for (int u = 0; u < userIds.length; u++) {
+            result.put(userIds[u], new Contribution(usernames[u], totals[0][u], totals[1][u], totals[2][u]));
+        }
+        return result;
+    }
+
+    /**
+     * Per-file totals, keyed by file path.
+     */
+    public Map<String, Contribution> contributionsByFile() {
+        long[][] totals = groupBy(fileCodes, filePaths.length);
+        Map<String, Contribution> result = new LinkedHashMap<>();
+        for (int f = 0; f < filePaths.length; f++) {
+            result.put(filePaths[f], new Contribution(filePaths[f], totals[0][f], totals[1][f], totals[2][f]));
+        }
+        return result;
+    }
+
+    /**
+     * Number of changes of each type.
+     */
+    public Map<ChangeHistory.ChangeType, Long> countByType() {
+        long[] counts = new long[types.length];
+        for (int i = 0; i < size; i++) {
+            int type = typeCodes[i];
+            if (type >= 0) {
+                counts[type]++;
+            }
+        }
+        Map<ChangeHistory.ChangeType, Long> result = new LinkedHashMap<>();
+        for (ChangeHistory.ChangeType type : types) {
+            result.put(type, counts[type.ordinal()]);
+        }
+        return result;
+    }
+
+    /**
+     * Per-day totals in the given time zone, ordered by day.
+     * Days are cut using the zone's current UTC offset.
+     */
+    public Map<LocalDate, Contribution> contributionsByDay(ZoneId zone) {
+        // Bucket by UTC day first so the scan is pure arithmetic, then shift into the zone
+        long offsetMs = zone.getRules().getOffset(java.time.Instant.now()).getTotalSeconds() * 1000L;
+        long minDay = Long.MAX_VALUE;
+        long maxDay = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            if (timestamps[i] == 0L) {
+                continue;
+            }
+            long day = Math.floorDiv(timestamps[i] + offsetMs, DAY_MS);
+            minDay = Math.min(minDay, day);
+            maxDay = Math.max(maxDay, day);
+        }
+        if (minDay == Long.MAX_VALUE) {
+            return new TreeMap<>();
+        }
+
+        int buckets = (int) (maxDay - minDay + 1);
+        int[] dayCodes = new int[size];
+        for (int i = 0; i < size; i++) {
+            // Rows without a timestamp get a negative code and are skipped by the group-by
+            dayCodes[i] = timestamps[i] == 0L ? -1 : (int) (Math.floorDiv(timestamps[i] + offsetMs, DAY_MS) - minDay);
+        }
+
+        long[][] totals = groupBy(dayCodes, buckets);
+        Map<LocalDate, Contribution> result = new TreeMap<>();
+        for (int d = 0; d < buckets; d++) {
+            if (totals[0][d] > 0) {
+                LocalDate date = LocalDate.ofEpochDay(minDay + d);
+                result.put(date, new Contribution(date.toString(), totals[0][d], totals[1][d], totals[2][d]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Group rows by a dictionary-coded column, returning change counts, lines added
+     * and lines removed per code. Large inputs are split into chunks that are summed
+     * in parallel into private arrays and merged afterwards.
+     */
+    private long[][] groupBy(int[] codes, int cardinality) {
+        if (size < PARALLEL_THRESHOLD) {
+            long[][] totals = new long[3][cardinality];
+            accumulate(codes, 0, size, totals);
+            return totals;
+        }
+
+        int chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        return IntStream.range(0, chunks).parallel()
+                .mapToObj(c -> {
+                    long[][] partial = new long[3][cardinality];
+                    accumulate(codes, c * CHUNK_SIZE, Math.min(size, (c + 1) * CHUNK_SIZE), partial);
+                    return partial;
+                })
+                .reduce((a, b) -> {
+                    for (int k = 0; k < 3; k++) {
+                        for (int j = 0; j < cardinality; j++) {
+                            a[k][j] += b[k][j];
+                        }
+                    }
+                    return a;
+                })
+                .orElseGet(() -> new long[3][cardinality]);
+    }
+
+    private void accumulate(int[] codes, int from, int to, long[][] totals) {
+        long[] counts = totals[0];
+        long[] added = totals[1];
+        long[] removed = totals[2];
+        for (int i = from; i < to; i++) {
+            int code = codes[i];
+            if (code < 0) {
+                continue;
+            }
+            counts[code]++;
+            added[code] += linesAdded[i];
+            removed[code] += linesRemoved[i];
+        }
+    }
+
+    private int distinct(int[] codes, int cardinality) {
+        BitSet seen = new BitSet(cardinality);
+        for (int i = 0; i < size; i++) {
+            seen.set(codes[i]);
+        }
+        return seen.cardinality();
+    }
+
+    private long sum(int[] column) {
+        if (size < PARALLEL_THRESHOLD) {
+            long total = 0;
+            for (int i = 0; i < size; i++) {
+                total += column[i];
+            }
+            return total;
+        }
+        return Arrays.stream(column, 0, size).parallel().asLongStream().sum();
+    }
+
+    /**
+     * Aggregated activity for one group (a user, a file or a day).
+     */
+    public static class Contribution {
+        private final String label;
+        private final long changes;
+        private final long linesAdded;
+        private final long linesRemoved;
+
+        public Contribution(String label, long changes, long linesAdded, long linesRemoved) {
+            this.label = label;
+            this.changes = changes;
+            this.linesAdded = linesAdded;
+            this.linesRemoved = linesRemoved;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public long getChanges() {
+            return changes;
+        }
+
+        public long getLinesAdded() {
+            return linesAdded;
+        }
+
+        public long getLinesRemoved() {
+            return linesRemoved;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d changes +%d -%d", label, changes, linesAdded, linesRemoved);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.orion;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Squashes bursts of consecutive saves into a single change history entry.
+ * Saves by the same user to the same file within a quiet window belong to one burst.
+ * The burst keeps one history document ID, and every save rewrites that document
+ * with a delta composed from the content before the first save to the latest content.
+ */
+public class ChangeHistoryCompactor {
+    private static final long DEFAULT_QUIET_WINDOW_MS = 30_000;
+    private static final long DEFAULT_MAX_BURST_MS = 5 * 60_000;
+
+    private final long quietWindowMs;
+    private final long maxBurstMs;
+
+    // Open bursts keyed by project, user and file; guarded by "this"
+    private final Map<String, Burst> bursts = new HashMap<>();
+
+    public ChangeHistoryCompactor() {
+        this(DEFAULT_QUIET_WINDOW_MS, DEFAULT_MAX_BURST_MS);
+    }
+
+    public ChangeHistoryCompactor(long quietWindowMs, long maxBurstMs) {
+        this.quietWindowMs = quietWindowMs;
+        this.maxBurstMs = maxBurstMs;
+    }
+
+    /**
+     * Record a save and return the history entry to write for it.
+     * The composed delta spans from the state before the burst to the latest state. If the
+     * previous content is not what this burst last saved, someone else changed the file in
+     * between, so the burst is closed and a new one opens from the previous content.
+     *
+     * @param newChangeId Supplies a fresh history document ID when a new burst opens
+     */
+    public synchronized Entry recordSave(String projectId, String filePath, String userId, String username,
+                                         String previousContent, String newContent, Supplier<String> newChangeId) {
+        String key = projectId + "|" + userId + "|" + filePath;
+        long now = System.currentTimeMillis();
+        Burst burst = bursts.get(key);
+
+        // Close the burst after a quiet period, and cap its length so long sessions still leave a trail
+        if (burst != null && (now - burst.lastSaveAt >= quietWindowMs || now - burst.firstSaveAt >= maxBurstMs
+                || !burst.lastContent.equals(previousContent != null ? previousContent : ""))) {
+            bursts.remove(key);
+            burst = null;
+        }
+
+        if (burst == null) {
+            burst = new Burst(newChangeId.get(), previousContent, now);
+            bursts.put(key, burst);
+        }
+
+        burst.lastSaveAt = now;
+        burst.lastContent = newContent;
+        burst.saveCount++;
+
+        DiffUtils.DiffResult diffResult = DiffUtils.computeDiff(burst.baseContent, newContent);
+        ChangeHistory change = new ChangeHistory(
+            projectId,
+            filePath,
+            userId,
+            username,
+            burst.baseContent.isEmpty() ? ChangeHistory.ChangeType.CREATE : ChangeHistory.ChangeType.MODIFY,
+            diffResult.getDiff(),
+            diffResult.getLinesAdded(),
+            diffResult.getLinesRemoved()
+        );
+        change.setChangeId(burst.changeId);
+
+        if (burst.saveCount > 1) {
+            System.out.println("Compacting save " + burst.saveCount + " of " + filePath + " into change " + burst.changeId);
+        }
+
+        return new Entry(key, change, burst.saveCount, !burst.committed, diffResult.hasChanges());
+    }
+
+    /**
+     * Note that the entry's write reached the server, so later saves in the burst
+     * rewrite an existing document instead of creating one.
+     */
+    public synchronized void markCommitted(Entry entry) {
+        Burst burst = bursts.get(entry.key);
+        if (burst != null && burst.changeId.equals(entry.change.getChangeId())) {
+            burst.committed = entry.hasChanges;
+        }
+    }
+
+    /**
+     * Close every open burst, e.g. when leaving a project.
+     */
+    public synchronized void closeAll() {
+        bursts.clear();
+    }
+
+    /**
+     * The history entry to write for one save.
+     */
+    public static class Entry {
+        private final String key;
+        private final ChangeHistory change;
+        private final int saveCount;
+        private final boolean created;
+        private final boolean hasChanges;
+
+        Entry(String key, ChangeHistory change, int saveCount, boolean created, boolean hasChanges) {
+            this.key = key;
+            this.change = change;
+            this.saveCount = saveCount;
+            this.created = created;
+            this.hasChanges = hasChanges;
+        }
+
+        /** The composed change; its change ID is the burst's history document ID. */
+        public ChangeHistory getChange() {
+            return change;
+        }
+
+        /** Number of saves squashed into this entry so far. */
+        public int getSaveCount() {
+            return saveCount;
+        }
+
+        /** True if the history document does not exist on the server yet. */
+        public boolean isCreated() {
+            return created;
+        }
+
+        /** False if the burst ended where it started and the entry should be removed. */
+        public boolean hasChanges() {
+            return hasChanges;
+        }
+    }
+
+    /**
+     * An open run of saves for one user and file.
+     */
+    private static class Burst {
+        final String changeId;
+        final String baseContent;
+        final long firstSaveAt;
+        long lastSaveAt;
+        String lastContent;
+        int saveCount;
+        boolean committed;
+
+        Burst(String changeId, String baseContent, long firstSaveAt) {
+            this.changeId = changeId;
+            this.baseContent = baseContent != null ? baseContent : "";
+            this.lastContent = this.baseContent;
+            this.firstSaveAt = firstSaveAt;
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.orion;
 
-import com.google.cloud.firestore.*;
 import javafx.application.Platform;
 
 import java.util.*;
@@ -8,19 +7,23 @@ import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 
 /**
- * Service for managing and retrieving change history from Firestore.
+ * Service for managing and retrieving change history from the collaboration backend.
  * Provides access to project change logs for owners.
  */
 public class ChangeHistoryService {
     private static final String PROJECTS_COLLECTION = "projects";
     private static final String HISTORY_SUBCOLLECTION = "changeHistory";
     
-    private final Firestore firestore;
+    private final CollaborationBackend backend;
     private final ProjectService projectService;
     
     public ChangeHistoryService() {
-        this.firestore = FirebaseService.getInstance().getFirestore();
-        this.projectService = new ProjectService();
+        this(FirebaseService.getInstance().getBackend());
+    }
+
+    public ChangeHistoryService(CollaborationBackend backend) {
+        this.backend = backend;
+        this.projectService = new ProjectService(backend);
     }
     
     /**
@@ -30,17 +33,17 @@ public class ChangeHistoryService {
      * @return List of change history entries, sorted by timestamp (most recent first)
      */
     public List<ChangeHistory> getProjectChangeHistory(String projectId) throws ExecutionException, InterruptedException {
-        CollectionReference historyRef = firestore.collection(PROJECTS_COLLECTION)
+        BackendCollectionRef historyRef = backend.collection(PROJECTS_COLLECTION)
                 .document(projectId)
                 .collection(HISTORY_SUBCOLLECTION);
         
         // Query ordered by timestamp descending
-        Query query = historyRef.orderBy("timestamp", Query.Direction.DESCENDING).limit(1000);
+        BackendQuery query = historyRef.orderBy("timestamp", BackendQuery.Direction.DESCENDING).limit(1000);
         
-        List<QueryDocumentSnapshot> documents = query.get().get().getDocuments();
+        List<BackendDoc> documents = query.get().get().getDocuments();
         List<ChangeHistory> changes = new ArrayList<>();
         
-        for (QueryDocumentSnapshot doc : documents) {
+        for (BackendDoc doc : documents) {
             ChangeHistory change = documentToChangeHistory(doc);
             changes.add(change);
         }
@@ -57,17 +60,17 @@ public class ChangeHistoryService {
      */
     public List<ChangeHistory> getFileChangeHistory(String projectId, String filePath) 
             throws ExecutionException, InterruptedException {
-        CollectionReference historyRef = firestore.collection(PROJECTS_COLLECTION)
+        BackendCollectionRef historyRef = backend.collection(PROJECTS_COLLECTION)
                 .document(projectId)
                 .collection(HISTORY_SUBCOLLECTION);
         
-        Query query = historyRef.whereEqualTo("filePath", filePath)
-                .orderBy("timestamp", Query.Direction.DESCENDING);
+        BackendQuery query = historyRef.whereEqualTo("filePath", filePath)
+                .orderBy("timestamp", BackendQuery.Direction.DESCENDING);
         
-        List<QueryDocumentSnapshot> documents = query.get().get().getDocuments();
+        List<BackendDoc> documents = query.get().get().getDocuments();
         List<ChangeHistory> changes = new ArrayList<>();
         
-        for (QueryDocumentSnapshot doc : documents) {
+        for (BackendDoc doc : documents) {
             ChangeHistory change = documentToChangeHistory(doc);
             changes.add(change);
         }
@@ -84,17 +87,17 @@ public class ChangeHistoryService {
      */
     public List<ChangeHistory> getUserChangeHistory(String projectId, String userId) 
             throws ExecutionException, InterruptedException {
-        CollectionReference historyRef = firestore.collection(PROJECTS_COLLECTION)
+        BackendCollectionRef historyRef = backend.collection(PROJECTS_COLLECTION)
                 .document(projectId)
                 .collection(HISTORY_SUBCOLLECTION);
         
-        Query query = historyRef.whereEqualTo("userId", userId)
-                .orderBy("timestamp", Query.Direction.DESCENDING);
+        BackendQuery query = historyRef.whereEqualTo("userId", userId)
+                .orderBy("timestamp", BackendQuery.Direction.DESCENDING);
         
-        List<QueryDocumentSnapshot> documents = query.get().get().getDocuments();
+        List<BackendDoc> documents = query.get().get().getDocuments();
         List<ChangeHistory> changes = new ArrayList<>();
         
-        for (QueryDocumentSnapshot doc : documents) {
+        for (BackendDoc doc : documents) {
             ChangeHistory change = documentToChangeHistory(doc);
             changes.add(change);
         }
@@ -107,15 +110,15 @@ public class ChangeHistoryService {
      * 
      * @param projectId The project ID
      * @param onHistoryUpdate Callback when new changes are detected
-     * @return ListenerRegistration for cleanup
+     * @return Registration for cleanup
      */
-    public ListenerRegistration listenToChangeHistory(String projectId, 
+    public CollaborationBackend.Registration listenToChangeHistory(String projectId, 
             Consumer<List<ChangeHistory>> onHistoryUpdate) {
-        CollectionReference historyRef = firestore.collection(PROJECTS_COLLECTION)
+        BackendCollectionRef historyRef = backend.collection(PROJECTS_COLLECTION)
                 .document(projectId)
                 .collection(HISTORY_SUBCOLLECTION);
         
-        Query query = historyRef.orderBy("timestamp", Query.Direction.DESCENDING).limit(100);
+        BackendQuery query = historyRef.orderBy("timestamp", BackendQuery.Direction.DESCENDING).limit(100);
         
         return query.addSnapshotListener((snapshot, error) -> {
             if (error != null) {
@@ -125,7 +128,7 @@ public class ChangeHistoryService {
             
             if (snapshot != null) {
                 List<ChangeHistory> changes = new ArrayList<>();
-                for (QueryDocumentSnapshot doc : snapshot.getDocuments()) {
+                for (BackendDoc doc : snapshot.getDocuments()) {
                     ChangeHistory change = documentToChangeHistory(doc);
                     changes.add(change);
                 }
@@ -143,31 +146,35 @@ public class ChangeHistoryService {
      */
     public Map<String, Object> getProjectStatistics(String projectId) 
             throws ExecutionException, InterruptedException {
-        List<ChangeHistory> allChanges = getProjectChangeHistory(projectId);
+        ChangeHistoryColumns columns = getProjectHistoryColumns(projectId);
         
         Map<String, Object> stats = new HashMap<>();
-        stats.put("totalChanges", allChanges.size());
-        
-        Set<String> uniqueUsers = new HashSet<>();
-        Set<String> uniqueFiles = new HashSet<>();
-        int totalLinesAdded = 0;
-        int totalLinesRemoved = 0;
-        
-        for (ChangeHistory change : allChanges) {
-            uniqueUsers.add(change.getUserId());
-            uniqueFiles.add(change.getFilePath());
-            totalLinesAdded += change.getLinesAdded();
-            totalLinesRemoved += change.getLinesRemoved();
-        }
-        
-        stats.put("contributors", uniqueUsers.size());
-        stats.put("filesModified", uniqueFiles.size());
-        stats.put("linesAdded", totalLinesAdded);
-        stats.put("linesRemoved", totalLinesRemoved);
+        stats.put("totalChanges", columns.size());
+        stats.put("contributors", columns.distinctUsers());
+        stats.put("filesModified", columns.distinctFiles());
+        stats.put("linesAdded", columns.totalLinesAdded());
+        stats.put("linesRemoved", columns.totalLinesRemoved());
         
         return stats;
     }
     
+    /**
+     * Load a project's whole change history into columnar form for aggregations.
+     * Only the fields the columns use are fetched, so deltas are never downloaded.
+     * 
+     * @param projectId The project ID
+     * @return Columnar view of every change
+     */
+    public ChangeHistoryColumns getProjectHistoryColumns(String projectId) 
+            throws ExecutionException, InterruptedException {
+        BackendQuery query = backend.collection(PROJECTS_COLLECTION)
+                .document(projectId)
+                .collection(HISTORY_SUBCOLLECTION)
+                .select(ChangeHistoryColumns.FIELDS);
+        
+        return ChangeHistoryColumns.from(query.get().get().getDocuments());
+    }
+    
     /**
      * Check if user is project owner.
      * 
@@ -186,16 +193,16 @@ public class ChangeHistoryService {
     }
     
     /**
-     * Convert Firestore document to ChangeHistory object.
+     * Convert a history document to a ChangeHistory object.
      */
-    private ChangeHistory documentToChangeHistory(QueryDocumentSnapshot doc) {
+    private ChangeHistory documentToChangeHistory(BackendDoc doc) {
         ChangeHistory change = new ChangeHistory();
         change.setChangeId(doc.getId());
         change.setProjectId(doc.getString("projectId"));
         change.setFilePath(doc.getString("filePath"));
         change.setUserId(doc.getString("userId"));
         change.setUsername(doc.getString("username"));
-        change.setDelta(doc.getString("delta"));
+        change.setDelta(PayloadCodec.get(doc, "delta"));
         
         String changeTypeStr = doc.getString("changeType");
         if (changeTypeStr != null) {
@@ -207,7 +214,7 @@ public class ChangeHistoryService {
         change.setLinesAdded(linesAdded != null ? linesAdded.intValue() : 0);
         change.setLinesRemoved(linesRemoved != null ? linesRemoved.intValue() : 0);
         
-        com.google.cloud.Timestamp timestamp = doc.getTimestamp("timestamp");
+        BackendTimestamp timestamp = doc.getTimestamp("timestamp");
         if (timestamp != null) {
             change.setTimestamp(timestamp.toDate());
         }
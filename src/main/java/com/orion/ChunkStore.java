@@ -0,0 +1,229 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores file contents in a project's {@code chunks} subcollection.
+ * Small files stay inline in the file document's {@code content} field. Larger files
+ * are split with {@link ContentChunker}; each chunk is stored once under its hash and
+ * the file document only holds the manifest ({@code chunks}, {@code size},
+ * {@code contentHash}). Saves upload only chunks the server does not have: chunks this
+ * client has not seen are first looked up in one read.
+ */
+public class ChunkStore {
+    public static final int INLINE_LIMIT = 64 * 1024;
+
+    private static final String CHUNKS_SUBCOLLECTION = "chunks";
+    private static final int CHUNKS_PER_BATCH = 64; // Keeps each upload well under the request size limit
+    private static final int MAX_CACHED_CHUNKS = 512;
+
+    private final CollaborationBackend backend;
+
+    // "projectId/hash" of chunks known to exist on the server
+    private final Set<String> storedChunks = ConcurrentHashMap.newKeySet();
+
+    // Recently used chunk texts by hash
+    private final Map<String, String> chunkCache = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_CACHED_CHUNKS;
+                }
+            });
+
+    public ChunkStore(CollaborationBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Put the content into the file document fields, inline or as a manifest, and upload
+     * any chunks the server does not have yet. Chunks not known to this client are looked
+     * up first, since another client may have stored them. The fields must be written with merge.
+     *
+     * @return Completes once every chunk referenced by the manifest is stored
+     */
+    public ApiFuture<Void> writeContent(BackendDocRef projectDoc, String content, Map<String, Object> fileData) {
+        fileData.put("contentHash", ContentChunker.hash(content));
+
+        if (content.length() <= INLINE_LIMIT) {
+            PayloadCodec.put(fileData, "content", content, true);
+            fileData.put("chunks", BackendValue.delete());
+            fileData.put("size", BackendValue.delete());
+            return ApiFutures.immediateFuture(null);
+        }
+
+        List<String> chunks = ContentChunker.split(content);
+        List<String> hashes = new ArrayList<>(chunks.size());
+        Map<String, String> missing = new LinkedHashMap<>();
+        for (String chunk : chunks) {
+            String hash = ContentChunker.hash(chunk);
+            hashes.add(hash);
+            if (!storedChunks.contains(projectDoc.getId() + "/" + hash)) {
+                missing.put(hash, chunk);
+            }
+        }
+
+        fileData.put("content", BackendValue.delete());
+        fileData.put("contentCodec", BackendValue.delete());
+        fileData.put("chunks", hashes);
+        fileData.put("size", content.length());
+
+        if (missing.isEmpty()) {
+            return ApiFutures.immediateFuture(null);
+        }
+
+        BackendCollectionRef chunksRef = projectDoc.collection(CHUNKS_SUBCOLLECTION);
+        List<String> paths = new ArrayList<>(missing.size());
+        for (String hash : missing.keySet()) {
+            paths.add(chunksRef.document(hash).getPath());
+        }
+        return ApiFutures.transformAsync(backend.getAll(paths), snapshots -> {
+            for (BackendDoc snapshot : snapshots) {
+                if (snapshot.exists()) {
+                    // Stored by another client; chunks never change once written
+                    missing.remove(snapshot.getId());
+                    storedChunks.add(projectDoc.getId() + "/" + snapshot.getId());
+                }
+            }
+            return upload(projectDoc, missing, chunks.size());
+        }, MoreExecutors.directExecutor());
+    }
+
+    private ApiFuture<Void> upload(BackendDocRef projectDoc, Map<String, String> missing, int total) {
+        if (missing.isEmpty()) {
+            return ApiFutures.immediateFuture(null);
+        }
+
+        System.out.println("Uploading " + missing.size() + " of " + total + " chunks");
+
+        // Chunks are immutable and addressed by hash, so writing them ahead of the manifest is safe
+        BackendCollectionRef chunksRef = projectDoc.collection(CHUNKS_SUBCOLLECTION);
+        List<ApiFuture<Void>> commits = new ArrayList<>();
+        BackendBatch batch = backend.batch();
+        int inBatch = 0;
+        for (Map.Entry<String, String> chunk : missing.entrySet()) {
+            Map<String, Object> chunkData = new HashMap<>();
+            PayloadCodec.put(chunkData, "data", chunk.getValue(), false);
+            batch.set(chunksRef.document(chunk.getKey()), chunkData);
+            if (++inBatch == CHUNKS_PER_BATCH) {
+                commits.add(batch.commit());
+                batch = backend.batch();
+                inBatch = 0;
+            }
+        }
+        if (inBatch > 0) {
+            commits.add(batch.commit());
+        }
+
+        return ApiFutures.transform(ApiFutures.allAsList(commits), results -> {
+            for (Map.Entry<String, String> chunk : missing.entrySet()) {
+                storedChunks.add(projectDoc.getId() + "/" + chunk.getKey());
+                chunkCache.put(chunk.getKey(), chunk.getValue());
+            }
+            return null;
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Read the content of a file document: the inline field, or the manifest's chunks.
+     * Chunks missing from the local cache are fetched in one parallel lookup.
+     *
+     * @return The content, or null if the document has neither
+     */
+    public ApiFuture<String> readContent(BackendDoc fileDoc) {
+        String inline;
+        try {
+            inline = PayloadCodec.get(fileDoc, "content");
+        } catch (IllegalStateException e) {
+            return ApiFutures.immediateFailedFuture(e);
+        }
+        Object manifest = fileDoc.get("chunks");
+        if (inline != null || !(manifest instanceof List)) {
+            return ApiFutures.immediateFuture(inline);
+        }
+
+        List<String> hashes = new ArrayList<>();
+        for (Object hash : (List<?>) manifest) {
+            hashes.add((String) hash);
+        }
+
+        BackendDocRef projectDoc = fileDoc.getReference().getParent().getParent();
+        BackendCollectionRef chunksRef = projectDoc.collection(CHUNKS_SUBCOLLECTION);
+
+        // Take what the cache has now, so later evictions cannot pull chunks out from under us
+        Map<String, String> texts = new HashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+        for (String hash : hashes) {
+            String cached = chunkCache.get(hash);
+            if (cached != null) {
+                texts.put(hash, cached);
+            } else {
+                missing.add(hash);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            try {
+                return ApiFutures.immediateFuture(assemble(fileDoc, hashes, texts));
+            } catch (IllegalStateException e) {
+                return ApiFutures.immediateFailedFuture(e);
+            }
+        }
+
+        List<String> paths = new ArrayList<>();
+        for (String hash : missing) {
+            paths.add(chunksRef.document(hash).getPath());
+        }
+        return ApiFutures.transform(backend.getAll(paths), snapshots -> {
+            for (BackendDoc snapshot : snapshots) {
+                String data = PayloadCodec.get(snapshot, "data");
+                if (data == null) {
+                    throw new IllegalStateException("Missing chunk " + snapshot.getId());
+                }
+                texts.put(snapshot.getId(), data);
+                chunkCache.put(snapshot.getId(), data);
+                storedChunks.add(projectDoc.getId() + "/" + snapshot.getId());
+            }
+            return assemble(fileDoc, hashes, texts);
+        }, MoreExecutors.directExecutor());
+    }
+
+    private String assemble(BackendDoc fileDoc, List<String> hashes, Map<String, String> texts) {
+        Long size = fileDoc.getLong("size");
+        StringBuilder sb = new StringBuilder(size != null ? size.intValue() : 0);
+        for (String hash : hashes) {
+            String chunk = texts.get(hash);
+            if (chunk == null) {
+                throw new IllegalStateException("Missing chunk " + hash);
+            }
+            sb.append(chunk);
+        }
+
+        String content = sb.toString();
+        String expected = fileDoc.getString("contentHash");
+        if (expected != null && !expected.equals(ContentChunker.hash(content))) {
+            throw new IllegalStateException("Content hash mismatch for " + fileDoc.getId());
+        }
+        return content;
+    }
+
+    /**
+     * Forget cached chunks, e.g. when leaving a project.
+     */
+    public void clear() {
+        storedChunks.clear();
+        chunkCache.clear();
+    }
+}
@@ -0,0 +1,539 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One replica's connection to a file's shared co-editing state: a base snapshot of the
+ * sequence CRDT in the project's {@code coeditBases} collection, plus the batches of
+ * operations written since, in the file's {@code ops} subcollection.
+ *
+ * Local operations are batched per frame and sent one batch at a time, so every replica
+ * receives them in order; a batch that fails is kept and sent again. Once enough batches
+ * pile up, a replica with nothing unsent writes its CRDT as the new base and deletes the
+ * batches it covers, so opening a file replays a bounded log. Large bases are chunked
+ * like file contents. A replica that sees someone else's new base rebuilds from it, since
+ * the batches that base covers may have been deleted before it received them.
+ *
+ * All state is confined to the owner executor (the JavaFX thread in the editor).
+ */
+class CoEditingLog {
+    static final String OPS_SUBCOLLECTION = "ops";
+    static final String BASES_SUBCOLLECTION = "coeditBases";
+    /** Where the base text used to live, inline on the file document. */
+    static final String LEGACY_BASE_FIELD = "coeditBase";
+
+    private static final long FRAME_MS = 16;
+    private static final int COMPACT_AFTER_BATCHES = 500;
+    private static final int DELETES_PER_BATCH = 400;
+    private static final long RETRY_MIN_MS = 500;
+    private static final long RETRY_MAX_MS = 30_000;
+    private static final Set<String> PERMANENT_ERRORS = Set.of(
+            "PERMISSION_DENIED", "INVALID_ARGUMENT", "FAILED_PRECONDITION", "OUT_OF_RANGE");
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "coedit-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Told about the shared state, on the owner executor.
+     */
+    interface Listener {
+        /** The replica holds the base and every batch written so far; its text is {@link #getText()}. */
+        void onReady();
+
+        /**
+         * The text changed by these edits: other replicas' batches were applied, or the
+         * replica was rebuilt from a newer base (then no batches are given).
+         */
+        void onRemote(List<TextEdit> edits, List<BackendDoc> batches);
+    }
+
+    private final CollaborationBackend backend;
+    private final BackendDocRef fileDoc;
+    private final BackendDocRef baseDoc;
+    private final BackendDocRef projectDoc;
+    private final String filePath;
+    private final String site;
+    private final String userId;
+    private final ChunkStore chunkStore;
+    private final Executor owner;
+
+    // Confined to the owner executor
+    private Listener listener;
+    private SequenceCrdt crdt;
+    private boolean closed = false;
+    private boolean rebuilding = false;
+    private long rebuildDelayMs = RETRY_MIN_MS;
+    private final List<BackendDoc> buffered = new ArrayList<>(); // Batches received while rebuilding
+    private final Set<String> applied = new HashSet<>();        // Batch IDs reflected in the CRDT
+    private long generation = -1;                                 // Base generation the CRDT was built from
+    private long latestGeneration = -1;                           // Newest base generation seen
+    private boolean compacting = false;
+    private final List<SequenceCrdt.Op> unsent = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private Map<String, Object> inFlight;
+    private BackendDocRef inFlightRef;
+    private long retryDelayMs = RETRY_MIN_MS;
+
+    private CollaborationBackend.Registration opsListener;
+    private CollaborationBackend.Registration baseListener;
+
+    CoEditingLog(BackendDocRef fileDoc, String filePath, String site, String userId,
+                 ChunkStore chunkStore, Executor owner) {
+        this.backend = fileDoc.getBackend();
+        this.fileDoc = fileDoc;
+        this.baseDoc = baseRef(fileDoc);
+        this.projectDoc = fileDoc.getParent().getParent();
+        this.filePath = filePath;
+        this.site = site;
+        this.userId = userId;
+        this.chunkStore = chunkStore;
+        this.owner = owner;
+    }
+
+    /** The base document of a file document's co-editing state. */
+    static BackendDocRef baseRef(BackendDocRef fileDoc) {
+        return fileDoc.getParent().getParent().collection(BASES_SUBCOLLECTION).document(fileDoc.getId());
+    }
+
+    /**
+     * Start following the shared state. The first replica to open the file seeds the
+     * base with its text. Must be called on the owner executor.
+     */
+    void open(String localText, Listener listener) {
+        this.listener = listener;
+
+        opsListener = fileDoc.collection(OPS_SUBCOLLECTION).addSnapshotListener((snapshot, error) -> {
+            if (error != null) {
+                System.err.println("Error listening to co-editing ops: " + error.getMessage());
+                return;
+            }
+            if (snapshot == null) {
+                return;
+            }
+            List<BackendDoc> batches = new ArrayList<>();
+            for (BackendQuerySnapshot.Change change : snapshot.getDocumentChanges()) {
+                if (change.getType() == BackendQuerySnapshot.Change.Type.ADDED) {
+                    batches.add(change.getDocument());
+                }
+            }
+            owner.execute(() -> receive(batches));
+        });
+
+        baseListener = baseDoc.addSnapshotListener((snapshot, error) -> {
+            if (error == null && snapshot != null && snapshot.exists()) {
+                Long baseGeneration = snapshot.getLong("generation");
+                owner.execute(() -> onBase(baseGeneration));
+            }
+        });
+
+        rebuild(localText);
+    }
+
+    private void receive(List<BackendDoc> batches) {
+        if (closed) {
+            return;
+        }
+        if (crdt == null || rebuilding) {
+            buffered.addAll(batches);
+            return;
+        }
+        apply(batches);
+    }
+
+    private void onBase(Long baseGeneration) {
+        if (baseGeneration != null) {
+            latestGeneration = Math.max(latestGeneration, baseGeneration);
+        }
+        catchUp();
+    }
+
+    /** Rebuild if another replica wrote a newer base than the one the CRDT has. */
+    private void catchUp() {
+        if (closed || crdt == null || rebuilding || compacting || latestGeneration <= generation) {
+            return;
+        }
+        System.out.println("Rebuilding co-editing state of " + filePath + " from base " + latestGeneration);
+        rebuild(null);
+    }
+
+    /**
+     * Build the CRDT from the current base and log. The log is read before the base:
+     * a batch deleted before that read was covered by a base written before it.
+     *
+     * @param localText Text to seed a missing base with, or null to require one
+     */
+    private void rebuild(String localText) {
+        rebuilding = true;
+        ApiFuture<BackendQuerySnapshot> log = fileDoc.collection(OPS_SUBCOLLECTION).get();
+        ApiFuture<BackendDoc> base = ApiFutures.transformAsync(log, ignored -> baseDoc.get(),
+                MoreExecutors.directExecutor());
+        ApiFuture<BackendDoc> existing = ApiFutures.transformAsync(base, doc -> {
+            if (doc.exists()) {
+                return ApiFutures.immediateFuture(doc);
+            }
+            if (localText == null) {
+                return ApiFutures.immediateFailedFuture(new IllegalStateException("Co-editing base is missing"));
+            }
+            return createBase(localText);
+        }, MoreExecutors.directExecutor());
+        ApiFuture<String> encoded = ApiFutures.transformAsync(existing, chunkStore::readContent,
+                MoreExecutors.directExecutor());
+
+        encoded.addListener(() -> {
+            try {
+                String snapshot = encoded.get();
+                Long baseGeneration = existing.get().getLong("generation");
+                List<BackendDoc> batches = log.get().getDocuments();
+                owner.execute(() -> finishRebuild(snapshot, baseGeneration != null ? baseGeneration : 0, batches));
+            } catch (Exception e) {
+                System.err.println("Failed to load co-editing state for " + filePath + ", retrying in "
+                        + rebuildDelayMs + " ms: " + e.getMessage());
+                long delay = rebuildDelayMs;
+                rebuildDelayMs = Math.min(RETRY_MAX_MS, rebuildDelayMs * 2);
+                timer.schedule(() -> owner.execute(() -> {
+                    if (!closed) {
+                        rebuild(localText);
+                    }
+                }), delay, TimeUnit.MILLISECONDS);
+            }
+        }, Runnable::run);
+    }
+
+    private void finishRebuild(String snapshot, long baseGeneration, List<BackendDoc> batches) {
+        if (closed) {
+            return;
+        }
+        SequenceCrdt rebuilt = SequenceCrdt.decode(site, snapshot);
+
+        // Everything in the log, ours included, then what we have not delivered yet
+        List<BackendDoc> all = new ArrayList<>(batches);
+        all.addAll(buffered);
+        buffered.clear();
+        applied.clear();
+        List<SequenceCrdt.Op> ops = new ArrayList<>();
+        for (BackendDoc batch : all) {
+            if (applied.add(batch.getId())) {
+                ops.addAll(decodeOps(batch.get("ops")));
+            }
+        }
+        if (inFlight != null) {
+            ops.addAll(decodeOps(inFlight.get("ops")));
+        }
+        ops.addAll(unsent);
+        rebuilt.applyRemote(ops);
+
+        String before = crdt != null ? crdt.getText() : null;
+        crdt = rebuilt;
+        generation = baseGeneration;
+        rebuilding = false;
+        rebuildDelayMs = RETRY_MIN_MS;
+
+        if (before == null) {
+            listener.onReady();
+        } else {
+            listener.onRemote(DiffUtils.computeEdits(before, crdt.getText()), List.of());
+        }
+        catchUp();
+        maybeCompact();
+    }
+
+    /**
+     * Write the first base, unless another replica got there first. A base text kept on
+     * the file document by earlier versions wins over the local text.
+     */
+    private ApiFuture<BackendDoc> createBase(String localText) {
+        ApiFuture<BackendDoc> file = fileDoc.get();
+        ApiFuture<Boolean> created = ApiFutures.transformAsync(file, snapshot -> {
+            String legacy = snapshot.exists() ? PayloadCodec.get(snapshot, LEGACY_BASE_FIELD) : null;
+            String text = legacy != null ? legacy : localText;
+
+            Map<String, Object> data = new HashMap<>();
+            data.put("path", filePath);
+            data.put("generation", 0L);
+            data.put("updatedAt", BackendValue.serverTimestamp());
+            ApiFuture<Void> stored = chunkStore.writeContent(projectDoc, new SequenceCrdt(site, text).encode(), data);
+
+            return ApiFutures.transformAsync(stored, ignored -> backend.runTransaction(transaction -> {
+                if (transaction.get(baseDoc).get().exists()) {
+                    return false;
+                }
+                transaction.merge(baseDoc, data);
+                if (legacy != null) {
+                    Map<String, Object> cleared = new HashMap<>();
+                    cleared.put(LEGACY_BASE_FIELD, BackendValue.delete());
+                    cleared.put(LEGACY_BASE_FIELD + "Codec", BackendValue.delete());
+                    transaction.merge(fileDoc, cleared);
+                }
+                return true;
+            }), MoreExecutors.directExecutor());
+        }, MoreExecutors.directExecutor());
+        return ApiFutures.transformAsync(created, ignored -> baseDoc.get(), MoreExecutors.directExecutor());
+    }
+
+    private void apply(List<BackendDoc> batches) {
+        List<SequenceCrdt.Op> remoteOps = new ArrayList<>();
+        List<BackendDoc> remote = new ArrayList<>();
+        for (BackendDoc batch : batches) {
+            if (!applied.add(batch.getId())) {
+                continue;
+            }
+            // Our own operations are usually in the CRDT already, and applying them again is
+            // harmless; after a rebuild that read the log before they landed, they are not
+            remoteOps.addAll(decodeOps(batch.get("ops")));
+            if (!site.equals(batch.getString("site"))) {
+                remote.add(batch);
+            }
+        }
+
+        if (!remoteOps.isEmpty()) {
+            List<TextEdit> edits = crdt.applyRemote(remoteOps);
+            if (!edits.isEmpty() || !remote.isEmpty()) {
+                listener.onRemote(edits, remote);
+            }
+        }
+        maybeCompact();
+    }
+
+    /**
+     * Current text of the replica. Only valid once {@link Listener#onReady()} was called.
+     */
+    String getText() {
+        return crdt.getText();
+    }
+
+    /**
+     * Remote operations the replica still waits on dependencies for.
+     */
+    int getWaitingCount() {
+        return crdt.getWaitingCount();
+    }
+
+    /**
+     * Apply a local edit of the text and queue its operations. They go out with the next
+     * frame's batch, after any batch still in flight. Must be called on the owner executor.
+     *
+     * @return The operations the edit produced
+     */
+    List<SequenceCrdt.Op> edit(int position, int removedLength, String inserted) {
+        List<SequenceCrdt.Op> ops = crdt.localEdit(position, removedLength, inserted);
+        if (!ops.isEmpty()) {
+            send(ops);
+        }
+        return ops;
+    }
+
+    private void send(List<SequenceCrdt.Op> ops) {
+        unsent.addAll(ops);
+        if (!flushScheduled && inFlight == null) {
+            flushScheduled = true;
+            timer.schedule(() -> owner.execute(() -> {
+                flushScheduled = false;
+                if (inFlight == null) {
+                    sendNext();
+                }
+            }), FRAME_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sendNext() {
+        if (unsent.isEmpty()) {
+            return;
+        }
+        Map<String, Object> batch = new HashMap<>();
+        batch.put("site", site);
+        batch.put("userId", userId);
+        batch.put("ops", encodeOps(unsent));
+        batch.put("createdAt", BackendValue.serverTimestamp());
+        batch.put("sync", SyncMetrics.getInstance().stamp(
+                SyncMetrics.getInstance().nextSyncId(), System.currentTimeMillis(), userId));
+        unsent.clear();
+
+        // The ID is fixed up front, so a retry after a lost acknowledgement rewrites the same batch
+        inFlight = batch;
+        inFlightRef = fileDoc.collection(OPS_SUBCOLLECTION).document();
+        write();
+    }
+
+    private void write() {
+        long started = System.nanoTime();
+        ApiFuture<Void> future = inFlightRef.set(inFlight);
+        future.addListener(() -> {
+            try {
+                future.get();
+                SyncMetrics.getInstance().recordSince(SyncMetrics.COEDIT_SERVER_ACK, started);
+                owner.execute(() -> {
+                    inFlight = null;
+                    inFlightRef = null;
+                    retryDelayMs = RETRY_MIN_MS;
+                    sendNext(); // Whatever was typed during the round trip
+                    maybeCompact();
+                });
+            } catch (Exception e) {
+                owner.execute(() -> retry(e));
+            }
+        }, Runnable::run);
+    }
+
+    private void retry(Exception e) {
+        String code = BackendException.codeOf(e);
+        if (code != null && PERMANENT_ERRORS.contains(code)) {
+            System.err.println("Dropping co-editing ops for " + filePath + ": " + code);
+            inFlight = null;
+            inFlightRef = null;
+            unsent.clear();
+            return;
+        }
+        System.err.println("Failed to send co-editing ops for " + filePath + ", retrying in "
+                + retryDelayMs + " ms: " + e.getMessage());
+        long delay = retryDelayMs;
+        retryDelayMs = Math.min(RETRY_MAX_MS, retryDelayMs * 2);
+        timer.schedule(() -> owner.execute(this::write), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fold the batches this replica has applied into a new base, if enough have piled up.
+     * Only a replica built from the current base, with nothing unsent and no operations
+     * waiting for dependencies, does this.
+     */
+    private void maybeCompact() {
+        if (closed || compacting || rebuilding || crdt == null || applied.size() < COMPACT_AFTER_BATCHES
+                || inFlight != null || !unsent.isEmpty() || crdt.getWaitingCount() > 0) {
+            return;
+        }
+        compacting = true;
+        long from = generation;
+        List<String> covered = new ArrayList<>(applied);
+
+        Map<String, Object> data = new HashMap<>();
+        data.put("path", filePath);
+        data.put("generation", from + 1);
+        data.put("updatedAt", BackendValue.serverTimestamp());
+        ApiFuture<Void> stored = chunkStore.writeContent(projectDoc, crdt.encode(), data);
+
+        ApiFuture<Boolean> rebased = ApiFutures.transformAsync(stored, ignored -> backend.runTransaction(transaction -> {
+            Long current = transaction.get(baseDoc).get().getLong("generation");
+            if (current == null || current != from) {
+                return false; // Another replica rebased first
+            }
+            transaction.merge(baseDoc, data);
+            return true;
+        }), MoreExecutors.directExecutor());
+
+        rebased.addListener(() -> {
+            boolean ok;
+            try {
+                ok = rebased.get();
+            } catch (Exception e) {
+                System.err.println("Failed to compact co-editing ops for " + filePath + ": " + e.getMessage());
+                ok = false;
+            }
+            if (ok) {
+                deleteBatches(covered);
+                System.out.println("Compacted " + covered.size() + " co-editing batches of " + filePath);
+            }
+            boolean rebasedHere = ok;
+            owner.execute(() -> {
+                compacting = false;
+                if (rebasedHere && generation == from) {
+                    generation = from + 1;
+                    covered.forEach(applied::remove);
+                } else if (!rebasedHere) {
+                    latestGeneration = Math.max(latestGeneration, from + 1); // Someone else's base is newer
+                }
+                catchUp();
+            });
+        }, Runnable::run);
+    }
+
+    private void deleteBatches(List<String> ids) {
+        BackendCollectionRef ops = fileDoc.collection(OPS_SUBCOLLECTION);
+        for (int from = 0; from < ids.size(); from += DELETES_PER_BATCH) {
+            BackendBatch batch = backend.batch();
+            for (String id : ids.subList(from, Math.min(ids.size(), from + DELETES_PER_BATCH))) {
+                batch.delete(ops.document(id));
+            }
+            // Batches left behind by a failure are replayed harmlessly and covered by the next base
+            ApiFuture<Void> commit = batch.commit();
+            commit.addListener(() -> {
+                try {
+                    commit.get();
+                } catch (Exception e) {
+                    System.err.println("Failed to delete compacted ops of " + filePath + ": " + e.getMessage());
+                }
+            }, Runnable::run);
+        }
+    }
+
+    /**
+     * Stop following the shared state. Local operations not yet acknowledged are still
+     * sent. Must be called on the owner executor.
+     */
+    void close() {
+        closed = true;
+        if (inFlight == null) {
+            sendNext();
+        }
+        if (opsListener != null) {
+            opsListener.remove();
+            opsListener = null;
+        }
+        if (baseListener != null) {
+            baseListener.remove();
+            baseListener = null;
+        }
+    }
+
+    static List<Map<String, Object>> encodeOps(List<SequenceCrdt.Op> ops) {
+        List<Map<String, Object>> encoded = new ArrayList<>(ops.size());
+        for (SequenceCrdt.Op op : ops) {
+            Map<String, Object> data = new HashMap<>();
+            data.put("c", op.getId().getCounter());
+            data.put("s", op.getId().getSite());
+            if (op.getType() == SequenceCrdt.Op.Type.INSERT) {
+                data.put("t", "i");
+                data.put("ac", op.getAfter().getCounter());
+                data.put("as", op.getAfter().getSite());
+                data.put("x", op.getText());
+            } else {
+                data.put("t", "d");
+            }
+            encoded.add(data);
+        }
+        return encoded;
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<SequenceCrdt.Op> decodeOps(Object raw) {
+        List<SequenceCrdt.Op> ops = new ArrayList<>();
+        if (!(raw instanceof List)) {
+            return ops;
+        }
+        for (Object item : (List<Object>) raw) {
+            Map<String, Object> data = (Map<String, Object>) item;
+            SequenceCrdt.Id id = new SequenceCrdt.Id(((Number) data.get("c")).longValue(), (String) data.get("s"));
+            if ("i".equals(data.get("t"))) {
+                SequenceCrdt.Id after = new SequenceCrdt.Id(((Number) data.get("ac")).longValue(), (String) data.get("as"));
+                ops.add(SequenceCrdt.Op.insert(id, after, (String) data.get("x")));
+            } else {
+                ops.add(SequenceCrdt.Op.delete(id));
+            }
+        }
+        return ops;
+    }
+}
@@ -0,0 +1,151 @@
+package com.orion;
+
+import javafx.application.Platform;
+import org.fxmisc.richtext.CodeArea;
+import org.fxmisc.richtext.model.PlainTextChange;
+import org.reactfx.Subscription;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Real-time character-level co-editing of one file.
+ * Local edits in the code area become sequence CRDT operations, sent through the file's
+ * {@link CoEditingLog}. Operations from other sessions are merged into the CRDT and
+ * applied to the code area as targeted edits.
+ *
+ * All CRDT and editor access happens on the JavaFX thread.
+ */
+public class CoEditingSession {
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String filePath;
+    private final CodeArea codeArea;
+    private final Predicate<String> keepLocalText;
+    private final CoEditingLog log;
+    private final String site;
+
+    private Subscription textChanges;
+    private boolean attached = false;
+    private boolean applyingRemote = false;
+    private boolean active = true;
+
+    /**
+     * @param keepLocalText Asked with the file path when the editor differs from the shared
+     *                      text on joining; true keeps the editor's text and shares it as edits
+     */
+    CoEditingSession(BackendDocRef fileDoc, String filePath, String userId, CodeArea codeArea,
+                     ChunkStore chunkStore, Predicate<String> keepLocalText) {
+        this.filePath = filePath;
+        this.codeArea = codeArea;
+        this.keepLocalText = keepLocalText;
+        // One site per session, so a reopened file replays its earlier sessions' operations
+        this.site = userId + "-" + Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+        this.log = new CoEditingLog(fileDoc, filePath, site, userId, chunkStore, Platform::runLater);
+    }
+
+    /**
+     * Load the shared state, then start streaming operations.
+     * Must be called on the JavaFX thread.
+     */
+    void start() {
+        log.open(codeArea.getText(), new CoEditingLog.Listener() {
+            @Override
+            public void onReady() {
+                if (active) {
+                    attach();
+                }
+            }
+
+            @Override
+            public void onRemote(List<TextEdit> edits, List<BackendDoc> batches) {
+                applyRemote(edits, batches);
+            }
+        });
+    }
+
+    /**
+     * Bring the editor and the shared state together, then start capturing edits.
+     */
+    private void attach() {
+        // Ask before replacing anything: the editor may hold unsaved or on-disk changes
+        boolean keepLocal = !codeArea.getText().equals(log.getText()) && keepLocalText.test(filePath);
+        if (!active) {
+            return; // Stopped while the question was open
+        }
+        // Remote edits may have landed while the question was open, so diff against the text now
+        if (keepLocal) {
+            // Share the editor's text as edits on top of the shared state
+            for (TextEdit edit : DiffUtils.computeEdits(log.getText(), codeArea.getText())) {
+                log.edit(edit.getPosition(), edit.getRemovedLength(), edit.getInserted());
+            }
+        } else {
+            applyingRemote = true;
+            try {
+                TextEdit.applyTo(codeArea, DiffUtils.computeEdits(codeArea.getText(), log.getText()));
+            } finally {
+                applyingRemote = false;
+            }
+        }
+        textChanges = codeArea.plainTextChanges().subscribe(this::onLocalChange);
+        attached = true;
+        System.out.println("Co-editing " + filePath + " as " + site);
+    }
+
+    private void applyRemote(List<TextEdit> edits, List<BackendDoc> batches) {
+        // Before attaching, the editor is brought to the CRDT's text in one go
+        if (!active || !attached || edits.isEmpty()) {
+            return;
+        }
+        applyingRemote = true;
+        try {
+            TextEdit.applyTo(codeArea, edits);
+        } finally {
+            applyingRemote = false;
+        }
+        for (BackendDoc batch : batches) {
+            SyncMetrics.getInstance().recordApplied(SyncMetrics.COEDIT_REMOTE_APPLY, batch);
+        }
+    }
+
+    private void onLocalChange(PlainTextChange change) {
+        if (applyingRemote || !active) {
+            return;
+        }
+
+        // Whole-text replacements still only produce operations for the part that changed
+        TextEdit edit = TextEdit.between(change.getRemoved(), change.getInserted());
+        if (edit == null) {
+            return;
+        }
+
+        log.edit(change.getPosition() + edit.getPosition(), edit.getRemovedLength(), edit.getInserted());
+    }
+
+    /**
+     * Detach from the editor and the shared state. Operations not yet acknowledged
+     * are still sent. Must be called on the JavaFX thread.
+     */
+    public void stop() {
+        if (!active) {
+            return;
+        }
+        active = false;
+        if (textChanges != null) {
+            textChanges.unsubscribe();
+            textChanges = null;
+        }
+        log.close();
+        System.out.println("Stopped co-editing " + filePath);
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+}
@@ -0,0 +1,150 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Document store behind the collaboration services.
+ * Mirrors the parts of Firestore the app uses: documents addressed by slash-separated
+ * paths, collection queries, snapshot listeners with per-document changes, atomic
+ * batches, transactions and write sentinels ({@link BackendValue}).
+ * {@link FirestoreBackend} talks to Firebase; {@link InMemoryBackend} keeps everything
+ * in process for local runs and benchmarks.
+ *
+ * Implementations only provide the primitive operations below; the reference,
+ * query and batch classes build the fluent API on top of them.
+ */
+public interface CollaborationBackend {
+
+    /**
+     * Read one document. Missing documents come back with {@code exists() == false}.
+     */
+    ApiFuture<BackendDoc> get(String path);
+
+    /**
+     * Read several documents in one round trip, in the order given.
+     */
+    ApiFuture<List<BackendDoc>> getAll(List<String> paths);
+
+    /**
+     * Run a query once.
+     */
+    ApiFuture<BackendQuerySnapshot> query(BackendQuery query);
+
+    /**
+     * Apply writes atomically: either all of them take effect or none does.
+     */
+    ApiFuture<Void> commit(List<Write> writes);
+
+    /**
+     * Listen to a query. The first event holds every matching document as ADDED,
+     * later events hold the documents that changed. Events for one listener arrive in order.
+     */
+    Registration listen(BackendQuery query, SnapshotListener listener);
+
+    /**
+     * Listen to one document. The first event holds its current state.
+     */
+    Registration listenDocument(String path, DocumentListener listener);
+
+    /**
+     * Run reads and writes as one transaction. The function may be run more than once.
+     */
+    <T> ApiFuture<T> runTransaction(TransactionFunction<T> function);
+
+    /**
+     * Release connections and threads.
+     */
+    void close();
+
+    default BackendCollectionRef collection(String path) {
+        return new BackendCollectionRef(this, path);
+    }
+
+    default BackendDocRef document(String path) {
+        return new BackendDocRef(this, path);
+    }
+
+    default BackendBatch batch() {
+        return new BackendBatch(this);
+    }
+
+    /**
+     * Random 20-character document ID, the same shape Firestore generates.
+     */
+    default String newDocumentId() {
+        return Ids.next();
+    }
+
+    /**
+     * One write in a batch or transaction.
+     */
+    final class Write {
+        public enum Type { SET, MERGE, UPDATE, CREATE, DELETE }
+
+        private final Type type;
+        private final String path;
+        private final Map<String, Object> data;
+
+        public Write(Type type, String path, Map<String, Object> data) {
+            this.type = type;
+            this.path = path;
+            this.data = data;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /** Fields to write; keys of UPDATE writes may be dotted field paths. Null for DELETE. */
+        public Map<String, Object> getData() {
+            return data;
+        }
+    }
+
+    @FunctionalInterface
+    interface SnapshotListener {
+        void onEvent(BackendQuerySnapshot snapshot, Exception error);
+    }
+
+    @FunctionalInterface
+    interface DocumentListener {
+        void onEvent(BackendDoc snapshot, Exception error);
+    }
+
+    @FunctionalInterface
+    interface TransactionFunction<T> {
+        T apply(BackendTransaction transaction) throws Exception;
+    }
+
+    /**
+     * Handle for stopping a listener.
+     */
+    @FunctionalInterface
+    interface Registration {
+        void remove();
+    }
+
+    final class Ids {
+        private static final String CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+        private static final SecureRandom random = new SecureRandom();
+
+        private Ids() {
+        }
+
+        static String next() {
+            StringBuilder sb = new StringBuilder(20);
+            for (int i = 0; i < 20; i++) {
+                sb.append(CHARS.charAt(random.nextInt(CHARS.length())));
+            }
+            return sb.toString();
+        }
+    }
+}
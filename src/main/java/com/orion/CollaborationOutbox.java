@@ -0,0 +1,419 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable queue of collaboration writes, kept in the {@code outbox} table of the local database.
+ * Writes are stored first and sent by a background thread in batches, so saving never waits
+ * for the network. Failed sends are retried with exponential backoff. While an entry waits,
+ * newer writes for the same target replace it, so only the latest presence state and one
+ * save per file are ever sent after an outage.
+ *
+ * Each outbox only sees the rows of its client, so several collaborators sharing one
+ * local database (as in the load test) keep separate queues. The editor has one client,
+ * {@link #DEFAULT_CLIENT}.
+ */
+public class CollaborationOutbox {
+    public static final String KIND_FILE = "file";
+    public static final String KIND_PRESENCE = "presence";
+    public static final String DEFAULT_CLIENT = "";
+
+    private static final int BATCH_SIZE = 20;
+    private static final long BASE_BACKOFF_MS = 1_000;
+    private static final long MAX_BACKOFF_MS = 60_000;
+    private static final long IDLE_WAIT_MS = 30_000;
+    private static final long SEND_TIMEOUT_SECONDS = 60;
+
+    // Errors that will not go away by retrying; such entries are dropped
+    private static final Set<String> PERMANENT_ERRORS = Set.of(
+            "NOT_FOUND", "PERMISSION_DENIED", "INVALID_ARGUMENT", "FAILED_PRECONDITION", "OUT_OF_RANGE");
+
+    // Errors that say nothing about the entries themselves; a batch failing with one backs off as a whole
+    private static final Set<String> TRANSIENT_ERRORS = Set.of(
+            "UNAVAILABLE", "DEADLINE_EXCEEDED", "RESOURCE_EXHAUSTED", "ABORTED", "CANCELLED");
+
+    // Oldest undelivered row of each target of the client
+    private static final String HEADS = "SELECT MIN(id) AS id FROM outbox WHERE client = ? GROUP BY project_id, kind, target";
+
+    /**
+     * Delivers entries to the server. Entries passed together should be committed atomically.
+     * A lone entry that fails with {@code ALREADY_EXISTS} counts as delivered, so the sender
+     * must treat that failure as a commit of its earlier attempt.
+     */
+    public interface Sender {
+        ApiFuture<?> send(List<Entry> entries);
+    }
+
+    private final Sender sender;
+    private final String client;
+
+    // Guarded by "this"
+    private final Set<Long> inFlight = new HashSet<>();
+    private final Map<Long, List<SettableApiFuture<Void>>> waiters = new HashMap<>();
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public CollaborationOutbox(Sender sender) {
+        this(sender, DEFAULT_CLIENT);
+    }
+
+    /**
+     * @param client Key of the rows this outbox queues and sends
+     */
+    public CollaborationOutbox(Sender sender, String client) {
+        this.sender = sender;
+        this.client = client;
+        this.thread = new Thread(this::run, "outbox-sender");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Store a write for sending.
+     *
+     * @param compact Replace an entry for the same target that has not been sent yet
+     * @return Completes when the write (or the entry it was merged into) reaches the server
+     */
+    public ApiFuture<Void> enqueue(String projectId, String kind, String target, JsonObject payload, boolean compact) {
+        SettableApiFuture<Void> delivered = SettableApiFuture.create();
+
+        synchronized (this) {
+            try {
+                Long id = compact ? mergeWaiting(projectId, kind, target) : null;
+                if (id != null) {
+                    // A fresh key: an earlier attempt of this row may already have landed
+                    String sql = "UPDATE outbox SET payload = ?, idempotency_key = ? WHERE id = ?";
+                    try (PreparedStatement pstmt = DatabaseManager.getConnection().prepareStatement(sql)) {
+                        pstmt.setString(1, payload.toString());
+                        pstmt.setString(2, UUID.randomUUID().toString());
+                        pstmt.setLong(3, id);
+                        pstmt.executeUpdate();
+                    }
+                } else {
+                    String sql = "INSERT INTO outbox (idempotency_key, client, project_id, kind, target, payload, attempts, "
+                            + "next_attempt_at) VALUES (?, ?, ?, ?, ?, ?, 0, ?)";
+                    try (PreparedStatement pstmt = DatabaseManager.getConnection().prepareStatement(
+                            sql, PreparedStatement.RETURN_GENERATED_KEYS)) {
+                        pstmt.setString(1, UUID.randomUUID().toString());
+                        pstmt.setString(2, client);
+                        pstmt.setString(3, projectId);
+                        pstmt.setString(4, kind);
+                        pstmt.setString(5, target);
+                        pstmt.setString(6, payload.toString());
+                        pstmt.setLong(7, System.currentTimeMillis());
+                        pstmt.executeUpdate();
+                        ResultSet keys = pstmt.getGeneratedKeys();
+                        keys.next();
+                        id = keys.getLong(1);
+                    }
+                }
+                waiters.computeIfAbsent(id, k -> new ArrayList<>()).add(delivered);
+                notifyAll();
+            } catch (SQLException e) {
+                System.err.println("Failed to queue " + kind + " write: " + e.getMessage());
+                delivered.setException(e);
+            }
+        }
+
+        return delivered;
+    }
+
+    /**
+     * True if a write for the target is queued or being sent.
+     */
+    public synchronized boolean hasPending(String projectId, String kind, String target) {
+        String sql = "SELECT 1 FROM outbox WHERE client = ? AND project_id = ? AND kind = ? AND target = ? LIMIT 1";
+        try (PreparedStatement pstmt = DatabaseManager.getConnection().prepareStatement(sql)) {
+            pstmt.setString(1, client);
+            pstmt.setString(2, projectId);
+            pstmt.setString(3, kind);
+            pstmt.setString(4, target);
+            return pstmt.executeQuery().next();
+        } catch (SQLException e) {
+            System.err.println("Failed to read outbox: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Number of writes not yet delivered.
+     */
+    public synchronized int getPendingCount() {
+        try (PreparedStatement pstmt = DatabaseManager.getConnection().prepareStatement(
+                "SELECT COUNT(*) FROM outbox WHERE client = ?")) {
+            pstmt.setString(1, client);
+            ResultSet rs = pstmt.executeQuery();
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            System.err.println("Failed to read outbox: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Stop the sender. Queued writes stay in the database and are sent on the next start.
+     */
+    public void shutdown() {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Collapse the target's entries that are not being sent into the newest one.
+     *
+     * @return The surviving entry, or null if there is none
+     */
+    private Long mergeWaiting(String projectId, String kind, String target) throws SQLException {
+        List<Long> waiting = new ArrayList<>();
+        String sql = "SELECT id FROM outbox WHERE client = ? AND project_id = ? AND kind = ? AND target = ? ORDER BY id DESC";
+        try (PreparedStatement pstmt = DatabaseManager.getConnection().prepareStatement(sql)) {
+            pstmt.setString(1, client);
+            pstmt.setString(2, projectId);
+            pstmt.setString(3, kind);
+            pstmt.setString(4, target);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                long id = rs.getLong("id");
+                if (!inFlight.contains(id)) {
+                    waiting.add(id);
+                }
+            }
+        }
+        if (waiting.isEmpty()) {
+            return null;
+        }
+
+        // Older entries are superseded by the write being merged in; their callers wait on the survivor
+        Long survivor = waiting.get(0);
+        for (Long older : waiting.subList(1, waiting.size())) {
+            deleteRow(older);
+            List<SettableApiFuture<Void>> moved = waiters.remove(older);
+            if (moved != null) {
+                waiters.computeIfAbsent(survivor, k -> new ArrayList<>()).addAll(moved);
+            }
+        }
+        return survivor;
+    }
+
+    private void run() {
+        while (running) {
+            List<Entry> due;
+            synchronized (this) {
+                try {
+                    due = loadDue();
+                    if (due.isEmpty()) {
+                        wait(Math.max(1, Math.min(IDLE_WAIT_MS, nextAttemptAt() - System.currentTimeMillis())));
+                        continue;
+                    }
+                    due.forEach(entry -> inFlight.add(entry.id));
+                } catch (SQLException e) {
+                    System.err.println("Failed to read outbox: " + e.getMessage());
+                    sleepQuietly(IDLE_WAIT_MS);
+                    continue;
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            try {
+                sender.send(due).get(SEND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                due.forEach(this::delivered);
+            } catch (Exception e) {
+                String code = BackendException.codeOf(e);
+                if (due.size() > 1 && code != null && !TRANSIENT_ERRORS.contains(code)) {
+                    // One bad entry fails the whole batch; find it by sending them one at a time
+                    for (Entry entry : due) {
+                        sendAlone(entry);
+                    }
+                } else {
+                    // Timeouts and outages would fail each entry alike, so back off them all
+                    due.forEach(entry -> failed(entry, e));
+                }
+            }
+        }
+    }
+
+    private void sendAlone(Entry entry) {
+        try {
+            sender.send(List.of(entry)).get(SEND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            delivered(entry);
+        } catch (Exception e) {
+            failed(entry, e);
+        }
+    }
+
+    /**
+     * Oldest entry of each target, if it is due. A target whose oldest entry is backing off
+     * sends nothing, so a newer write can never land before an older one it replaces.
+     */
+    private List<Entry> loadDue() throws SQLException {
+        List<Entry> due = new ArrayList<>();
+        String sql = "SELECT o.* FROM outbox o JOIN (" + HEADS + ") h ON o.id = h.id "
+                + "WHERE o.next_attempt_at <= ? ORDER BY o.id LIMIT ?";
+        try (PreparedStatement pstmt = DatabaseManager.getConnection().prepareStatement(sql)) {
+            pstmt.setString(1, client);
+            pstmt.setLong(2, System.currentTimeMillis());
+            pstmt.setInt(3, BATCH_SIZE);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                due.add(new Entry(
+                        rs.getLong("id"),
+                        rs.getString("idempotency_key"),
+                        rs.getString("project_id"),
+                        rs.getString("kind"),
+                        rs.getString("target"),
+                        JsonParser.parseString(rs.getString("payload")).getAsJsonObject(),
+                        rs.getInt("attempts")));
+            }
+        }
+        return due;
+    }
+
+    /**
+     * When the next target's oldest entry becomes due; newer entries wait behind it.
+     */
+    private long nextAttemptAt() throws SQLException {
+        String sql = "SELECT MIN(o.next_attempt_at) FROM outbox o JOIN (" + HEADS + ") h ON o.id = h.id";
+        try (PreparedStatement pstmt = DatabaseManager.getConnection().prepareStatement(sql)) {
+            pstmt.setString(1, client);
+            ResultSet rs = pstmt.executeQuery();
+            long next = rs.next() ? rs.getLong(1) : 0;
+            return rs.wasNull() ? Long.MAX_VALUE : next;
+        }
+    }
+
+    private synchronized void delivered(Entry entry) {
+        deleteRow(entry.id);
+        inFlight.remove(entry.id);
+        List<SettableApiFuture<Void>> done = waiters.remove(entry.id);
+        if (done != null) {
+            done.forEach(future -> future.set(null));
+        }
+    }
+
+    private synchronized void failed(Entry entry, Exception e) {
+        String code = BackendException.codeOf(e);
+
+        if ("ALREADY_EXISTS".equals(code)) {
+            // The idempotency receipt exists: an earlier attempt landed but its reply was lost
+            System.out.println("Outbox entry " + entry.idempotencyKey + " was already applied");
+            delivered(entry);
+            return;
+        }
+
+        inFlight.remove(entry.id);
+
+        if (code != null && PERMANENT_ERRORS.contains(code)) {
+            System.err.println("Dropping " + entry.kind + " write for " + entry.target + ": " + code);
+            deleteRow(entry.id);
+            List<SettableApiFuture<Void>> dropped = waiters.remove(entry.id);
+            if (dropped != null) {
+                dropped.forEach(future -> future.setException(e));
+            }
+            return;
+        }
+
+        int attempts = entry.attempts + 1;
+        long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempts - 1, 16));
+        long jitter = ThreadLocalRandom.current().nextLong(backoff / 4 + 1);
+        System.err.println("Sending " + entry.kind + " write for " + entry.target + " failed (attempt " + attempts
+                + "), retrying in " + (backoff + jitter) + " ms: " + e.getMessage());
+
+        String sql = "UPDATE outbox SET attempts = ?, next_attempt_at = ? WHERE id = ?";
+        try (PreparedStatement pstmt = DatabaseManager.getConnection().prepareStatement(sql)) {
+            pstmt.setInt(1, attempts);
+            pstmt.setLong(2, System.currentTimeMillis() + backoff + jitter);
+            pstmt.setLong(3, entry.id);
+            pstmt.executeUpdate();
+        } catch (SQLException ex) {
+            System.err.println("Failed to reschedule outbox entry: " + ex.getMessage());
+        }
+    }
+
+    private void deleteRow(long id) {
+        try (PreparedStatement pstmt = DatabaseManager.getConnection().prepareStatement("DELETE FROM outbox WHERE id = ?")) {
+            pstmt.setLong(1, id);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("Failed to remove outbox entry: " + e.getMessage());
+        }
+    }
+
+    private static void sleepQuietly(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A queued write.
+     */
+    public static class Entry {
+        private final long id;
+        private final String idempotencyKey;
+        private final String projectId;
+        private final String kind;
+        private final String target;
+        private final JsonObject payload;
+        private final int attempts;
+
+        Entry(long id, String idempotencyKey, String projectId, String kind, String target,
+              JsonObject payload, int attempts) {
+            this.id = id;
+            this.idempotencyKey = idempotencyKey;
+            this.projectId = projectId;
+            this.kind = kind;
+            this.target = target;
+            this.payload = payload;
+            this.attempts = attempts;
+        }
+
+        /** Unique per version of the entry, so a write can be recognized if it is sent twice. */
+        public String getIdempotencyKey() {
+            return idempotencyKey;
+        }
+
+        public String getProjectId() {
+            return projectId;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        /** File path for saves, user ID for presence. */
+        public String getTarget() {
+            return target;
+        }
+
+        public JsonObject getPayload() {
+            return payload;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+}
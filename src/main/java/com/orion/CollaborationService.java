@@ -1,39 +1,125 @@
 package com.orion;
 
-import com.google.cloud.firestore.*;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.JsonObject;
 import javafx.application.Platform;
+import org.fxmisc.richtext.CodeArea;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
- * Service for real-time collaboration features using Firestore listeners.
+ * Service for real-time collaboration features using backend snapshot listeners.
  * Handles file synchronization, user presence tracking, and cursor position sharing.
  */
 public class CollaborationService {
     private static final String PROJECTS_COLLECTION = "projects";
     private static final String FILES_SUBCOLLECTION = "files";
     private static final String MEMBERS_SUBCOLLECTION = "members";
+    private static final String HISTORY_SUBCOLLECTION = "changeHistory";
+    private static final String TYPING_SUBCOLLECTION = "typing";
+    private static final String RECEIPTS_SUBCOLLECTION = "outboxReceipts";
+    private static final int RECEIPT_DELETES_PER_BATCH = 100;
+    private static final int FILE_PATHS_PER_LISTENER = 30; // Values allowed in one whereIn filter
     
-    private final Firestore firestore;
+    // Typing indicators: heartbeat interval, how long one heartbeat lasts, and when a leftover doc is deleted
+    private static final long TYPING_HEARTBEAT_MS = 3_000;
+    private static final long TYPING_TTL_MS = 6_000;
+    private static final long TYPING_STALE_MS = 10 * 60_000;
+    
+    private final CollaborationBackend backend;
     private final ProjectService projectService;
+    private final String client; // Whose rows of the local database this service uses
     
     // Active listeners for cleanup
-    private final Map<String, ListenerRegistration> fileListeners = new ConcurrentHashMap<>();
-    private final Map<String, ListenerRegistration> memberListeners = new ConcurrentHashMap<>();
+    private final List<FileListener> fileListeners = new ArrayList<>(); // Shared by open files, each watching a few paths; guarded by "this"
+    private final Map<String, CollaborationBackend.Registration> memberListeners = new ConcurrentHashMap<>();
+    private final Map<String, CoEditingSession> coEditingSessions = new ConcurrentHashMap<>();
     
     // Current project context
     private String currentProjectId;
     private String currentUserId;
     
+    // Per-file callbacks fed by the files listeners, keyed by file document ID
+    private final Map<String, Consumer<FileChange>> fileCallbacks = new ConcurrentHashMap<>();
+    
+    // Latest snapshot of every file document, so late subscribers get the current content
+    private final Map<String, BackendDoc> latestFileDocs = new ConcurrentHashMap<>();
+    
+    // Sync ID of the last save seen per file document
+    private final Map<String, String> appliedSyncIds = new ConcurrentHashMap<>();
+    
+    // Versions seen per file document and what its editor buffer is based on
+    private final Map<String, FileVersions> fileVersions = new ConcurrentHashMap<>();
+    
     // Cache of current file contents for diff computation
     private final Map<String, String> fileContentCache = new ConcurrentHashMap<>();
+    
+    // Local queue that delivers saves and presence, surviving restarts and outages
+    private final CollaborationOutbox outbox;
+    
+    // Receipts of saves known to have landed, by path; deleted along with the next outbox batch
+    private final Map<String, BackendDocRef> settledReceipts = new ConcurrentHashMap<>();
+    
+    // Chunked storage for file contents too large to keep inline
+    private final ChunkStore chunkStore;
+    
+    // Squashes bursts of saves into one history entry per file
+    private final ChangeHistoryCompactor historyCompactor;
+    
+    // Coalesces caret moves into a few presence writes per second
+    private final PresencePublisher presencePublisher;
+    
+    // Last typing heartbeat sent; guarded by "this"
+    private String typingSentFile;
+    private long typingSentAt;
+    
+    // Re-emits typing indicators when the next one runs out
+    private final ScheduledExecutorService typingExpiry;
+    private volatile Map<String, BackendDoc> activeTypingDocs; // State of the current typing listener
 
     public CollaborationService() {
-        this.firestore = FirebaseService.getInstance().getFirestore();
-        this.projectService = new ProjectService();
+        this(FirebaseService.getInstance().getBackend());
+    }
+
+    public CollaborationService(CollaborationBackend backend) {
+        this(backend, CollaborationOutbox.DEFAULT_CLIENT);
+    }
+
+    /**
+     * A service with its own outbox and file baselines in the local database, for running
+     * several collaborators in one process.
+     */
+    CollaborationService(CollaborationBackend backend, String client) {
+        this.backend = backend;
+        this.client = client;
+        this.projectService = new ProjectService(backend);
+        this.historyCompactor = new ChangeHistoryCompactor();
+        this.chunkStore = new ChunkStore(backend);
+        this.outbox = new CollaborationOutbox(this::sendOutbox, client);
+        this.presencePublisher = new PresencePublisher(this::publishPresence);
+        this.typingExpiry = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "typing-expiry");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     /**
@@ -45,150 +131,484 @@ public class CollaborationService {
         this.currentUserId = userId;
         
         // Set user as online
-        projectService.updateMemberPresence(projectId, userId, true, null, 0);
+        presencePublisher.reset();
+        queuePresence(projectId, userId, true, null, 0, 0);
         
         System.out.println("Collaboration initialized for project: " + projectId);
     }
 
     /**
      * Listen for file content changes in the project.
+     * Open files share listeners on the project's files subcollection, each filtered to a
+     * group of paths and dispatching to the callbacks by path. Subscribing to a path already
+     * being watched and unsubscribing only touch the in-memory callback table; a new path
+     * restarts one group's listener.
      * 
      * @param filePath Relative file path in the project
-     * @param onFileChange Callback when file content changes
+     * @param onFileChange Callback when another collaborator saves new content
      */
-    public void listenToFile(String filePath, Consumer<String> onFileChange) {
+    public void listenToFile(String filePath, Consumer<FileChange> onFileChange) {
         if (currentProjectId == null) {
             System.err.println("Project not initialized. Call initializeProject() first.");
             return;
         }
         
-        // Remove existing listener if any
-        stopListeningToFile(filePath);
+        String docId = sanitizeFilePath(filePath);
+        fileCallbacks.put(docId, onFileChange);
+        // A new subscriber has not been handed anything yet
+        versionsOf(docId).resetHandled();
+        
+        if (!watchPath(filePath)) {
+            // A listener already delivered this file; replay its latest state
+            BackendDoc latest = latestFileDocs.get(docId);
+            if (latest != null) {
+                dispatchFileChange(latest, false);
+            }
+        }
+        
+        System.out.println("Listening to file: " + filePath);
+    }
+
+    /**
+     * Add a path to a files listener with room for it, or to a new one. The listener is
+     * restarted with the path added and paths nobody listens to any more dropped.
+     *
+     * @return false if the path was already being watched
+     */
+    private synchronized boolean watchPath(String filePath) {
+        FileListener reuse = null;
+        for (FileListener listener : fileListeners) {
+            if (listener.paths.contains(filePath)) {
+                return false;
+            }
+            if (reuse == null && (listener.paths.size() < FILE_PATHS_PER_LISTENER
+                    || listener.paths.stream().anyMatch(path -> !fileCallbacks.containsKey(sanitizeFilePath(path))))) {
+                reuse = listener;
+            }
+        }
         
-        DocumentReference fileDoc = firestore.collection(PROJECTS_COLLECTION)
+        List<String> paths = new ArrayList<>();
+        if (reuse != null) {
+            reuse.registration.remove();
+            fileListeners.remove(reuse);
+            for (String path : reuse.paths) {
+                if (fileCallbacks.containsKey(sanitizeFilePath(path))) {
+                    paths.add(path);
+                } else {
+                    latestFileDocs.remove(sanitizeFilePath(path));
+                }
+            }
+        }
+        paths.add(filePath);
+        fileListeners.add(startFilesListener(paths));
+        return true;
+    }
+
+    private FileListener startFilesListener(List<String> paths) {
+        BackendQuery query = backend.collection(PROJECTS_COLLECTION)
                 .document(currentProjectId)
                 .collection(FILES_SUBCOLLECTION)
-                .document(sanitizeFilePath(filePath));
+                .whereIn("path", paths);
         
-        ListenerRegistration listener = fileDoc.addSnapshotListener((snapshot, error) -> {
+        AtomicBoolean initialSnapshot = new AtomicBoolean(true);
+        CollaborationBackend.Registration registration = query.addSnapshotListener((snapshot, error) -> {
             if (error != null) {
                 System.err.println("Error listening to file changes: " + error.getMessage());
                 return;
             }
             
-            if (snapshot != null && snapshot.exists()) {
-                String content = snapshot.getString("content");
-                String lastModifiedBy = snapshot.getString("lastModifiedBy");
-                
-                // Don't apply changes made by the current user to avoid infinite loops
-                if (!currentUserId.equals(lastModifiedBy) && content != null) {
-                    Platform.runLater(() -> onFileChange.accept(content));
+            if (snapshot == null) {
+                return;
+            }
+            
+            // The first snapshot holds saves from before we listened, which say nothing about latency
+            boolean live = !initialSnapshot.getAndSet(false);
+            for (BackendQuerySnapshot.Change change : snapshot.getDocumentChanges()) {
+                BackendDoc doc = change.getDocument();
+                if (change.getType() == BackendQuerySnapshot.Change.Type.REMOVED) {
+                    latestFileDocs.remove(doc.getId());
+                    continue;
                 }
+                latestFileDocs.put(doc.getId(), doc);
+                versionsOf(doc.getId()).see(doc);
+                // Other writes to a file document carry its last save's stamp along; measure each save once
+                String syncId = doc.getString("sync.id");
+                boolean newSave = syncId != null && !syncId.equals(appliedSyncIds.put(doc.getId(), syncId));
+                dispatchFileChange(doc, live && newSave);
             }
         });
+        return new FileListener(paths, registration);
+    }
+
+    private void dispatchFileChange(BackendDoc doc, boolean measure) {
+        Consumer<FileChange> onFileChange = fileCallbacks.get(doc.getId());
+        if (onFileChange == null) {
+            return;
+        }
         
-        fileListeners.put(filePath, listener);
-        System.out.println("Listening to file: " + filePath);
+        // Don't apply changes made by the current user to avoid infinite loops
+        String lastModifiedBy = doc.getString("lastModifiedBy");
+        if (currentUserId == null || currentUserId.equals(lastModifiedBy)) {
+            return;
+        }
+        
+        // Versions already handed over, writes that were not saves (the co-editing base),
+        // and content the buffer already has are skipped before any chunk is fetched
+        FileVersions versions = versionsOf(doc.getId());
+        Boolean concurrent = versions.check(doc);
+        if (concurrent == null) {
+            return;
+        }
+        
+        // Large files arrive as a manifest; their chunks may need fetching first
+        ApiFuture<String> contentFuture = chunkStore.readContent(doc);
+        contentFuture.addListener(() -> {
+            try {
+                String content = contentFuture.get();
+                // Skip versions that were superseded while their chunks were loading. A version
+                // whose chunks failed to load stays unhandled, so the next delivery of it is not skipped.
+                if (content != null && latestFileDocs.get(doc.getId()) == doc && versions.markHandled(doc)) {
+                    FileChange change = new FileChange(content, lastModifiedBy, concurrent);
+                    Platform.runLater(() -> {
+                        onFileChange.accept(change);
+                        if (measure) {
+                            SyncMetrics.getInstance().recordApplied(SyncMetrics.SAVE_REMOTE_APPLY, doc);
+                        }
+                    });
+                }
+            } catch (Exception e) {
+                System.err.println("Error reading file " + doc.getString("path") + ": " + e.getMessage());
+            }
+        }, Runnable::run);
     }
 
     /**
      * Stop listening to file changes.
      */
     public void stopListeningToFile(String filePath) {
-        ListenerRegistration listener = fileListeners.remove(filePath);
-        if (listener != null) {
-            listener.remove();
+        // The path stays in its listener's filter until a new path takes its place
+        if (fileCallbacks.remove(sanitizeFilePath(filePath)) != null) {
             System.out.println("Stopped listening to file: " + filePath);
         }
     }
 
     /**
-     * Update file content in Firestore using delta-based approach.
+     * Start real-time co-editing of a file shown in the given code area.
+     * Replaces any previous co-editing session for the same file.
+     * Must be called on the JavaFX thread.
+     * 
+     * @param filePath Relative file path in the project
+     * @param codeArea Editor currently showing the file
+     * @param keepLocalText Asked when the editor differs from the shared text on joining;
+     *                      true keeps the editor's text, false takes the shared one
+     * @return The session, or null if no project is active
+     */
+    public CoEditingSession startCoEditing(String filePath, CodeArea codeArea, Predicate<String> keepLocalText) {
+        if (currentProjectId == null || currentUserId == null) {
+            System.err.println("Project not initialized. Call initializeProject() first.");
+            return null;
+        }
+        
+        stopCoEditing(filePath);
+        
+        BackendDocRef fileDoc = backend.collection(PROJECTS_COLLECTION)
+                .document(currentProjectId)
+                .collection(FILES_SUBCOLLECTION)
+                .document(sanitizeFilePath(filePath));
+        
+        CoEditingSession session = new CoEditingSession(fileDoc, filePath, currentUserId, codeArea,
+                chunkStore, keepLocalText);
+        coEditingSessions.put(filePath, session);
+        session.start();
+        return session;
+    }
+    
+    /**
+     * Stop co-editing a file. Must be called on the JavaFX thread.
+     */
+    public void stopCoEditing(String filePath) {
+        CoEditingSession session = coEditingSessions.remove(filePath);
+        if (session != null) {
+            session.stop();
+        }
+    }
+    
+    /**
+     * Check whether a file is currently being co-edited in real time.
+     */
+    public boolean isCoEditing(String filePath) {
+        CoEditingSession session = coEditingSessions.get(filePath);
+        return session != null && session.isActive();
+    }
+
+    /**
+     * Update file content in the backend using delta-based approach.
      * Only stores the changes (diff) instead of full content.
+     * The save is queued in the local outbox and returns at once; it is sent in the
+     * background and retried until it reaches the server.
      * 
      * @param filePath Relative file path
      * @param newContent New file content
      * @param username Username of the person making the change
+     * @return Completes when the save reaches the server, so callers can show sync status
      */
-    public void updateFileContent(String filePath, String newContent, String username) {
+    public ApiFuture<Void> updateFileContent(String filePath, String newContent, String username) {
         if (currentProjectId == null || currentUserId == null) {
             System.err.println("Project not initialized.");
-            return;
+            return ApiFutures.immediateFailedFuture(new IllegalStateException("Project not initialized."));
+        }
+        
+        String projectId = currentProjectId;
+        
+        // Only queue if there are actual changes since the last synced state,
+        // or an earlier queued save still has to be replaced
+        String oldContent = DatabaseManager.getFileSnapshot(snapshotKey(projectId), filePath);
+        if (newContent.equals(oldContent != null ? oldContent : "")
+                && !outbox.hasPending(projectId, CollaborationOutbox.KIND_FILE, filePath)) {
+            System.out.println("No changes detected for file: " + filePath);
+            return ApiFutures.immediateFuture(null);
+        }
+        
+        // Update in-memory cache for real-time sync
+        fileContentCache.put(filePath, newContent);
+        VersionVector basedOn = versionsOf(sanitizeFilePath(filePath)).saved(currentUserId, newContent);
+        
+        long started = System.nanoTime();
+        JsonObject payload = new JsonObject();
+        payload.addProperty("userId", currentUserId);
+        payload.addProperty("username", username);
+        payload.addProperty("content", newContent);
+        payload.addProperty("basedOn", basedOn.encode());
+        payload.addProperty("syncId", SyncMetrics.getInstance().nextSyncId());
+        payload.addProperty("sentAt", System.currentTimeMillis());
+        
+        // Saves queued while offline collapse into one, diffed against the last synced state when sent
+        ApiFuture<Void> delivered = outbox.enqueue(projectId, CollaborationOutbox.KIND_FILE, filePath, payload, true);
+        SyncMetrics.getInstance().recordSince(SyncMetrics.SAVE_LOCAL_COMMIT, started);
+        delivered.addListener(() -> {
+            try {
+                delivered.get();
+                SyncMetrics.getInstance().recordSince(SyncMetrics.SAVE_SERVER_ACK, started);
+            } catch (Exception e) {
+                // Reported by the caller
+            }
+        }, Runnable::run);
+        return delivered;
+    }
+
+    /**
+     * Send queued outbox entries as one atomic batch.
+     */
+    private ApiFuture<Void> sendOutbox(List<CollaborationOutbox.Entry> entries) {
+        BackendBatch batch = backend.batch();
+        List<ApiFuture<Void>> chunkUploads = new ArrayList<>();
+        List<Runnable> onCommitted = new ArrayList<>();
+        
+        for (CollaborationOutbox.Entry entry : entries) {
+            if (CollaborationOutbox.KIND_FILE.equals(entry.getKind())) {
+                addFileSave(batch, entry, chunkUploads, onCommitted);
+            } else if (CollaborationOutbox.KIND_PRESENCE.equals(entry.getKind())) {
+                addPresence(batch, entry);
+            }
         }
         
-        // Get previous content from SQLite (last saved state)
-        String oldContent = DatabaseManager.getFileSnapshot(currentProjectId, filePath);
+        // Receipts of earlier saves are no longer needed: those entries will never be resent
+        List<String> pruned = new ArrayList<>();
+        for (Map.Entry<String, BackendDocRef> receipt : settledReceipts.entrySet()) {
+            if (pruned.size() == RECEIPT_DELETES_PER_BATCH) {
+                break;
+            }
+            batch.delete(receipt.getValue());
+            pruned.add(receipt.getKey());
+        }
+        
+        // The batch only goes out once every chunk its manifests reference is stored
+        ApiFuture<Void> commit = ApiFutures.transformAsync(
+                ApiFutures.allAsList(chunkUploads), stored -> batch.commit(), MoreExecutors.directExecutor());
+        commit.addListener(() -> {
+            try {
+                commit.get();
+                pruned.forEach(settledReceipts::remove);
+                onCommitted.forEach(Runnable::run);
+            } catch (Exception e) {
+                // A lone entry whose receipt exists landed on an earlier attempt whose reply was lost;
+                // the outbox treats it as delivered. Anything else is reported and retried there.
+                if (entries.size() == 1 && "ALREADY_EXISTS".equals(BackendException.codeOf(e))) {
+                    onCommitted.forEach(Runnable::run);
+                }
+            }
+        }, Runnable::run);
+        
+        return commit;
+    }
+
+    private void addFileSave(BackendBatch batch, CollaborationOutbox.Entry entry,
+                             List<ApiFuture<Void>> chunkUploads, List<Runnable> onCommitted) {
+        String projectId = entry.getProjectId();
+        String filePath = entry.getTarget();
+        String userId = entry.getPayload().get("userId").getAsString();
+        String username = entry.getPayload().get("username").getAsString();
+        String newContent = entry.getPayload().get("content").getAsString();
+        
+        // Get previous content from SQLite (last synced state)
+        String oldContent = DatabaseManager.getFileSnapshot(snapshotKey(projectId), filePath);
         if (oldContent == null) {
             oldContent = "";
         }
         
-        // Compute diff between last saved state and new content
+        // Compute diff between last synced state and new content
         DiffUtils.DiffResult diffResult = DiffUtils.computeDiff(oldContent, newContent);
-        
-        // Only save if there are actual changes
         if (!diffResult.hasChanges()) {
-            System.out.println("No changes detected for file: " + filePath);
+            System.out.println("No changes to sync for file: " + filePath);
             return;
         }
         
         System.out.println("Changes detected: +" + diffResult.getLinesAdded() + " -" + diffResult.getLinesRemoved());
         
-        // Save new content to SQLite as the new baseline
-        DatabaseManager.saveFileSnapshot(currentProjectId, filePath, newContent);
-        
-        // Update in-memory cache for real-time sync
-        fileContentCache.put(filePath, newContent);
+        BackendDocRef projectDoc = backend.collection(PROJECTS_COLLECTION).document(projectId);
+        BackendCollectionRef historyRef = projectDoc.collection(HISTORY_SUBCOLLECTION);
         
-        // Save ONLY the delta/changes to Firebase history
-        ChangeHistory change = new ChangeHistory(
-            currentProjectId, 
-            filePath, 
-            currentUserId, 
-            username,
-            oldContent.isEmpty() ? ChangeHistory.ChangeType.CREATE : ChangeHistory.ChangeType.MODIFY,
-            diffResult.getDiff(),
-            diffResult.getLinesAdded(),
-            diffResult.getLinesRemoved()
-        );
+        // Save ONLY the delta/changes to Firebase history. Consecutive saves of the same
+        // file rewrite one history entry holding the composed delta.
+        ChangeHistoryCompactor.Entry history = historyCompactor.recordSave(
+                projectId, filePath, userId, username, oldContent, newContent,
+                () -> historyRef.document().getId());
+        BackendDocRef historyDoc = historyRef.document(history.getChange().getChangeId());
         
-        saveChangeHistory(change);
+        if (history.hasChanges()) {
+            batch.set(historyDoc, buildHistoryData(history.getChange(), history.getSaveCount()));
+        } else if (!history.isCreated()) {
+            // The burst is back where it started; drop its entry
+            batch.delete(historyDoc);
+        }
         
         // For real-time sync, update the file document with latest content
         // (needed for new collaborators to get the current state)
-        DocumentReference fileDoc = firestore.collection(PROJECTS_COLLECTION)
-                .document(currentProjectId)
-                .collection(FILES_SUBCOLLECTION)
+        BackendDocRef fileDoc = projectDoc.collection(FILES_SUBCOLLECTION)
                 .document(sanitizeFilePath(filePath));
         
         Map<String, Object> fileData = new HashMap<>();
         fileData.put("path", filePath);
-        fileData.put("content", newContent); // Current state for sync
-        fileData.put("lastModifiedBy", currentUserId);
-        fileData.put("lastModifiedAt", FieldValue.serverTimestamp());
+        fileData.put("lastModifiedBy", userId);
+        fileData.put("lastModifiedAt", BackendValue.serverTimestamp());
+        fileData.put("saveCount", BackendValue.increment(1));
+        addVersion(fileData, userId, entry.getPayload().has("basedOn")
+                ? VersionVector.decode(entry.getPayload().get("basedOn").getAsString()) : null);
+        if (entry.getPayload().has("syncId")) {
+            // Lets collaborators measure how long the save took to reach them
+            fileData.put("sync", SyncMetrics.getInstance().stamp(entry.getPayload().get("syncId").getAsString(),
+                    entry.getPayload().get("sentAt").getAsLong(), userId));
+        }
         
-        fileDoc.set(fileData, SetOptions.merge());
+        // Current state for sync: inline for small files, a chunk manifest for large ones
+        chunkUploads.add(chunkStore.writeContent(projectDoc, newContent, fileData));
+        batch.merge(fileDoc, fileData);
+        WorkspaceManifest.recordSave(batch, projectDoc, filePath, (String) fileData.get("contentHash"));
+        
+        // The increments above must apply once: a resend whose first attempt landed fails here
+        BackendDocRef receipt = projectDoc.collection(RECEIPTS_SUBCOLLECTION).document(entry.getIdempotencyKey());
+        batch.create(receipt, Map.of("createdAt", BackendValue.serverTimestamp()));
+        
+        onCommitted.add(() -> {
+            // Only advance the SQLite baseline once the server has the change,
+            // so a retry diffs against the last synced state
+            DatabaseManager.saveFileSnapshot(snapshotKey(projectId), filePath, newContent);
+            historyCompactor.markCommitted(history);
+            settledReceipts.put(receipt.getPath(), receipt);
+        });
+    }
+
+    private void addPresence(BackendBatch batch, CollaborationOutbox.Entry entry) {
+        JsonObject payload = entry.getPayload();
+        BackendDocRef memberDoc = backend.collection(PROJECTS_COLLECTION)
+                .document(entry.getProjectId())
+                .collection(MEMBERS_SUBCOLLECTION)
+                .document(entry.getTarget());
+        
+        Map<String, Object> updates = new HashMap<>();
+        updates.put("isOnline", payload.get("isOnline").getAsBoolean());
+        updates.put("currentFile", payload.get("currentFile").isJsonNull() ? null : payload.get("currentFile").getAsString());
+        updates.put("cursorPosition", payload.get("cursorPosition").getAsInt());
+        if (payload.has("selectionAnchor")) {
+            updates.put("selectionAnchor", payload.get("selectionAnchor").getAsInt());
+        }
+        batch.update(memberDoc, updates);
+    }
+
+    /**
+     * Queue a presence update; only the latest one per user is kept while offline.
+     */
+    private void queuePresence(String projectId, String userId, boolean isOnline, String currentFile,
+                               int cursorPosition, int selectionAnchor) {
+        JsonObject payload = new JsonObject();
+        payload.addProperty("isOnline", isOnline);
+        payload.addProperty("currentFile", currentFile);
+        payload.addProperty("cursorPosition", cursorPosition);
+        payload.addProperty("selectionAnchor", selectionAnchor);
+        outbox.enqueue(projectId, CollaborationOutbox.KIND_PRESENCE, userId, payload, true);
     }
     
     /**
-     * Save change history to Firestore.
+     * Build the document fields for a change history entry.
      */
-    private void saveChangeHistory(ChangeHistory change) {
-        CollectionReference historyRef = firestore.collection(PROJECTS_COLLECTION)
-                .document(currentProjectId)
-                .collection("changeHistory");
-        
+    private Map<String, Object> buildHistoryData(ChangeHistory change, int saveCount) {
         Map<String, Object> historyData = new HashMap<>();
         historyData.put("projectId", change.getProjectId());
         historyData.put("filePath", change.getFilePath());
         historyData.put("userId", change.getUserId());
         historyData.put("username", change.getUsername());
-        historyData.put("timestamp", FieldValue.serverTimestamp());
+        historyData.put("timestamp", BackendValue.serverTimestamp());
         historyData.put("changeType", change.getChangeType().toString());
-        historyData.put("delta", change.getDelta());
+        PayloadCodec.put(historyData, "delta", change.getDelta(), false);
         historyData.put("linesAdded", change.getLinesAdded());
         historyData.put("linesRemoved", change.getLinesRemoved());
-        
-        historyRef.add(historyData);
+        historyData.put("saveCount", saveCount);
+        return historyData;
+    }
+    
+    /**
+     * Bring the workspace folder in line with the project's files: download what changed
+     * remotely, queue uploads of what changed here, and report files changed on both sides.
+     * Blocks; call from a background thread after {@link #initializeProject}.
+     * 
+     * @param isOpen Whether a file is open in the editor, so the sync leaves it alone
+     */
+    public WorkspaceSync.Result syncWorkspace(File workspace, String username, Predicate<String> isOpen)
+            throws IOException, ExecutionException, InterruptedException {
+        String projectId = currentProjectId;
+        if (projectId == null) {
+            throw new IllegalStateException("Project not initialized.");
+        }
+        BackendCollectionRef filesRef = backend.collection(PROJECTS_COLLECTION)
+                .document(projectId)
+                .collection(FILES_SUBCOLLECTION);
+        return new WorkspaceSync(backend, chunkStore, projectId, workspace,
+                path -> filesRef.document(sanitizeFilePath(path)),
+                (path, content) -> updateFileContent(path, content, username), isOpen).run();
+    }
+    
+    /**
+     * Upload the files of the project's workspace folder, e.g. right after creating the
+     * project. Blocks; call from a background thread after {@link #initializeProject}.
+     */
+    public WorkspaceImporter.Status importWorkspace(File workspace, WorkspaceImporter.Progress progress)
+            throws IOException, ExecutionException, InterruptedException {
+        String projectId = currentProjectId;
+        if (projectId == null) {
+            throw new IllegalStateException("Project not initialized.");
+        }
+        BackendCollectionRef filesRef = backend.collection(PROJECTS_COLLECTION)
+                .document(projectId)
+                .collection(FILES_SUBCOLLECTION);
+        return new WorkspaceImporter(backend, chunkStore, projectId, currentUserId, workspace,
+                path -> filesRef.document(sanitizeFilePath(path))).run(progress);
+    }
+    
+    /**
+     * Project key of this client's file baselines in the local database.
+     */
+    private String snapshotKey(String projectId) {
+        return client.equals(CollaborationOutbox.DEFAULT_CLIENT) ? projectId : projectId + "@" + client;
     }
     
     /**
@@ -196,16 +616,20 @@ public class CollaborationService {
      */
     public void loadFileIntoCache(String filePath, String content) {
         fileContentCache.put(filePath, content);
-        // Also save to SQLite as baseline
-        if (currentProjectId != null) {
-            DatabaseManager.saveFileSnapshot(currentProjectId, filePath, content);
+        versionsOf(sanitizeFilePath(filePath)).loaded(content);
+        // Also save to SQLite as baseline, unless a queued save will still be diffed
+        // against the current one when it is sent
+        if (currentProjectId != null
+                && !outbox.hasPending(currentProjectId, CollaborationOutbox.KIND_FILE, filePath)) {
+            DatabaseManager.saveFileSnapshot(snapshotKey(currentProjectId), filePath, content);
         }
     }
 
     /**
      * Listen for presence updates (who's online, what they're editing).
      * 
-     * @param onPresenceChange Callback with list of online members
+     * @param onPresenceChange Callback with an immutable view of the members, run on the
+     *                         JavaFX thread at most once per pulse however many changes arrive
      */
     public void listenToPresence(Consumer<Map<String, ProjectMember>> onPresenceChange) {
         if (currentProjectId == null) {
@@ -213,113 +637,236 @@ public class CollaborationService {
             return;
         }
         
-        CollectionReference membersRef = firestore.collection(PROJECTS_COLLECTION)
+        // Replace an earlier presence listener instead of stacking a second one
+        CollaborationBackend.Registration previous = memberListeners.remove("presence");
+        if (previous != null) {
+            previous.remove();
+        }
+        
+        BackendCollectionRef membersRef = backend.collection(PROJECTS_COLLECTION)
                 .document(currentProjectId)
                 .collection(MEMBERS_SUBCOLLECTION);
         
-        ListenerRegistration listener = membersRef.addSnapshotListener((snapshot, error) -> {
+        // Live member table, patched from document changes instead of rebuilt per snapshot
+        Map<String, ProjectMember> liveMembers = new HashMap<>();
+        AtomicBoolean notifyPending = new AtomicBoolean(false);
+        
+        // While listening, member lookups are answered from this listener instead of reads
+        ProjectCache cache = ProjectCache.of(backend);
+        String membersKey = ProjectCache.membersKey(currentProjectId);
+        AtomicBoolean listening = new AtomicBoolean(true);
+        
+        CollaborationBackend.Registration listener = membersRef.addSnapshotListener((snapshot, error) -> {
             if (error != null) {
                 System.err.println("Error listening to presence: " + error.getMessage());
+                cache.release(membersKey);
                 return;
             }
             
-            if (snapshot != null) {
-                Map<String, ProjectMember> members = new HashMap<>();
-                
-                for (DocumentSnapshot doc : snapshot.getDocuments()) {
-                    ProjectMember member = new ProjectMember();
-                    member.setUserId(doc.getString("userId"));
-                    member.setUsername(doc.getString("username"));
-                    member.setRole(ProjectMember.Role.valueOf(doc.getString("role")));
-                    member.setOnline(doc.getBoolean("isOnline"));
-                    member.setCurrentFile(doc.getString("currentFile"));
-                    Long cursorPos = doc.getLong("cursorPosition");
-                    member.setCursorPosition(cursorPos != null ? cursorPos.intValue() : 0);
-                    
-                    members.put(member.getUserId(), member);
+            if (snapshot == null || snapshot.getDocumentChanges().isEmpty()) {
+                return;
+            }
+            if (listening.get()) {
+                cache.putLive(membersKey, snapshot.getDocuments());
+            }
+            
+            synchronized (liveMembers) {
+                for (BackendQuerySnapshot.Change change : snapshot.getDocumentChanges()) {
+                    BackendDoc doc = change.getDocument();
+                    if (change.getType() == BackendQuerySnapshot.Change.Type.REMOVED) {
+                        liveMembers.remove(doc.getId());
+                    } else {
+                        liveMembers.put(doc.getId(), projectService.documentToMember(doc));
+                    }
                 }
-                
-                Platform.runLater(() -> onPresenceChange.accept(members));
+            }
+            
+            // At most one pending UI update; it picks up every change made before it runs
+            if (notifyPending.compareAndSet(false, true)) {
+                Platform.runLater(() -> {
+                    notifyPending.set(false);
+                    Map<String, ProjectMember> view;
+                    synchronized (liveMembers) {
+                        view = Map.copyOf(liveMembers);
+                    }
+                    onPresenceChange.accept(view);
+                });
             }
         });
         
-        memberListeners.put("presence", listener);
+        memberListeners.put("presence", () -> {
+            listening.set(false); // Events already queued must not refill the cache
+            listener.remove();
+            cache.release(membersKey);
+        });
         System.out.println("Listening to member presence updates");
     }
 
     /**
-     * Update current user's file and cursor position.
+     * Update current user's file, cursor position and selection.
+     * Cheap to call on every caret move: only the latest state is kept and
+     * written at most a few times per second.
+     * 
+     * @param selectionAnchor Other end of the selection; the cursor position if nothing is selected
      */
-    public void updateMyPresence(String currentFile, int cursorPosition) {
+    public void updateMyPresence(String currentFile, int cursorPosition, int selectionAnchor) {
         if (currentProjectId == null || currentUserId == null) {
             return;
         }
         
-        projectService.updateMemberPresence(currentProjectId, currentUserId, 
-                true, currentFile, cursorPosition);
+        presencePublisher.update(currentFile, cursorPosition, selectionAnchor);
+    }
+
+    private void publishPresence(String currentFile, int cursorPosition, int selectionAnchor) {
+        String projectId = currentProjectId;
+        String userId = currentUserId;
+        if (projectId == null || userId == null) {
+            return; // Left the project while the update was pending
+        }
+        
+        queuePresence(projectId, userId, true, currentFile, cursorPosition, selectionAnchor);
     }
 
     /**
      * Broadcast that the user is typing (for showing typing indicators).
+     * Sends a "typing until" heartbeat at most every few seconds while typing continues;
+     * stopping sends nothing, the indicator simply runs out.
      */
     public void broadcastTyping(String filePath, boolean isTyping) {
         if (currentProjectId == null || currentUserId == null) {
             return;
         }
         
-        DocumentReference typingDoc = firestore.collection(PROJECTS_COLLECTION)
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (!isTyping) {
+                typingSentFile = null; // Typing again later heartbeats right away
+                return;
+            }
+            if (filePath != null && filePath.equals(typingSentFile) && now - typingSentAt < TYPING_HEARTBEAT_MS) {
+                return; // The last heartbeat still covers this keystroke
+            }
+            typingSentFile = filePath;
+            typingSentAt = now;
+        }
+        
+        BackendDocRef typingDoc = backend.collection(PROJECTS_COLLECTION)
                 .document(currentProjectId)
-                .collection("typing")
+                .collection(TYPING_SUBCOLLECTION)
                 .document(currentUserId);
         
-        if (isTyping) {
-            Map<String, Object> typingData = new HashMap<>();
-            typingData.put("userId", currentUserId);
-            typingData.put("filePath", filePath);
-            typingData.put("timestamp", FieldValue.serverTimestamp());
-            typingDoc.set(typingData);
-        } else {
-            typingDoc.delete();
-        }
+        Map<String, Object> typingData = new HashMap<>();
+        typingData.put("userId", currentUserId);
+        typingData.put("filePath", filePath);
+        typingData.put("typingUntil", now + TYPING_TTL_MS);
+        typingData.put("timestamp", BackendValue.serverTimestamp());
+        typingDoc.set(typingData);
     }
 
     /**
      * Listen for typing indicators from other users.
+     * One listener serves the whole project. Entries past their "typing until" time are
+     * dropped on the reader's side, and the callback runs again when the next one expires.
+     * 
+     * @param onTypingChange Callback with user ID to file path of users currently typing
      */
     public void listenToTyping(Consumer<Map<String, String>> onTypingChange) {
         if (currentProjectId == null) {
             return;
         }
         
-        CollectionReference typingRef = firestore.collection(PROJECTS_COLLECTION)
+        CollaborationBackend.Registration previous = memberListeners.remove("typing");
+        if (previous != null) {
+            previous.remove();
+        }
+        
+        BackendCollectionRef typingRef = backend.collection(PROJECTS_COLLECTION)
                 .document(currentProjectId)
-                .collection("typing");
+                .collection(TYPING_SUBCOLLECTION);
         
-        ListenerRegistration listener = typingRef.addSnapshotListener((snapshot, error) -> {
+        // Latest typing doc per user, patched from document changes
+        Map<String, BackendDoc> typingDocs = new ConcurrentHashMap<>();
+        Set<String> cleanedUp = ConcurrentHashMap.newKeySet();
+        AtomicReference<ScheduledFuture<?>> expiry = new AtomicReference<>(); // Next expiry of this listener
+        activeTypingDocs = typingDocs;
+        
+        CollaborationBackend.Registration listener = typingRef.addSnapshotListener((snapshot, error) -> {
             if (error != null) {
                 System.err.println("Error listening to typing: " + error.getMessage());
                 return;
             }
             
             if (snapshot != null) {
-                Map<String, String> typingUsers = new HashMap<>();
-                
-                for (DocumentSnapshot doc : snapshot.getDocuments()) {
-                    String userId = doc.getString("userId");
-                    String filePath = doc.getString("filePath");
-                    
-                    if (!currentUserId.equals(userId)) {
-                        typingUsers.put(userId, filePath);
+                for (BackendQuerySnapshot.Change change : snapshot.getDocumentChanges()) {
+                    BackendDoc doc = change.getDocument();
+                    if (change.getType() == BackendQuerySnapshot.Change.Type.REMOVED) {
+                        typingDocs.remove(doc.getId());
+                    } else {
+                        typingDocs.put(doc.getId(), doc);
                     }
                 }
-                
-                Platform.runLater(() -> onTypingChange.accept(typingUsers));
+                emitTyping(typingDocs, cleanedUp, expiry, onTypingChange);
             }
         });
         
         memberListeners.put("typing", listener);
     }
 
+    private void emitTyping(Map<String, BackendDoc> typingDocs, Set<String> cleanedUp,
+                            AtomicReference<ScheduledFuture<?>> expiry,
+                            Consumer<Map<String, String>> onTypingChange) {
+        String myUserId = currentUserId;
+        if (myUserId == null) {
+            return; // Left the project
+        }
+        
+        long now = System.currentTimeMillis();
+        long nextExpiry = Long.MAX_VALUE;
+        Map<String, String> typingUsers = new HashMap<>();
+        
+        for (BackendDoc doc : typingDocs.values()) {
+            long until = typingUntil(doc);
+            if (until > now) {
+                String userId = doc.getString("userId");
+                if (!myUserId.equals(userId)) {
+                    typingUsers.put(userId, doc.getString("filePath"));
+                    nextExpiry = Math.min(nextExpiry, until);
+                }
+            } else if (now - until > TYPING_STALE_MS && cleanedUp.add(doc.getId())) {
+                // Left behind by a client that went away; any reader may tidy it up
+                doc.getReference().delete();
+            }
+        }
+        
+        Platform.runLater(() -> onTypingChange.accept(typingUsers));
+        
+        // One pending expiry per listener: each emit replaces the one scheduled before it
+        ScheduledFuture<?> next = null;
+        if (nextExpiry != Long.MAX_VALUE) {
+            next = typingExpiry.schedule(() -> {
+                if (typingDocs == activeTypingDocs) {
+                    emitTyping(typingDocs, cleanedUp, expiry, onTypingChange);
+                }
+            }, nextExpiry - now, TimeUnit.MILLISECONDS);
+        }
+        ScheduledFuture<?> replaced = expiry.getAndSet(next);
+        if (replaced != null) {
+            replaced.cancel(false);
+        }
+    }
+
+    /**
+     * When a typing doc runs out; docs written before heartbeats fall back to their timestamp.
+     */
+    private static long typingUntil(BackendDoc doc) {
+        Long until = doc.getLong("typingUntil");
+        if (until != null) {
+            return until;
+        }
+        BackendTimestamp timestamp = doc.getTimestamp("timestamp");
+        return timestamp != null ? timestamp.toDate().getTime() + TYPING_TTL_MS : 0L;
+    }
+
     /**
      * Set user as offline when leaving the project.
      */
@@ -327,24 +874,47 @@ public class CollaborationService {
         if (currentProjectId != null && currentUserId != null) {
             System.out.println("Leaving project: " + currentProjectId);
             
-            // Set user as offline
-            try {
-                projectService.updateMemberPresence(currentProjectId, currentUserId, 
-                        false, null, 0);
-            } catch (Exception e) {
-                System.err.println("Error updating presence: " + e.getMessage());
+            // Later saves start new history entries
+            historyCompactor.closeAll();
+            
+            // Set user as offline, dropping any presence update still pending
+            presencePublisher.reset();
+            synchronized (this) {
+                typingSentFile = null;
             }
+            activeTypingDocs = null;
+            queuePresence(currentProjectId, currentUserId, false, null, 0, 0);
             
-            // Remove all file listeners
-            System.out.println("Removing " + fileListeners.size() + " file listeners...");
-            fileListeners.values().forEach(listener -> {
+            // Stop real-time co-editing
+            coEditingSessions.values().forEach(session -> {
                 try {
-                    listener.remove();
+                    if (Platform.isFxApplicationThread()) {
+                        session.stop();
+                    } else {
+                        Platform.runLater(session::stop);
+                    }
                 } catch (Exception e) {
-                    System.err.println("Error removing file listener: " + e.getMessage());
+                    System.err.println("Error stopping co-editing session: " + e.getMessage());
                 }
             });
-            fileListeners.clear();
+            coEditingSessions.clear();
+            
+            // Remove all file listeners
+            synchronized (this) {
+                System.out.println("Removing " + fileListeners.size() + " file listeners...");
+                fileListeners.forEach(listener -> {
+                    try {
+                        listener.registration.remove();
+                    } catch (Exception e) {
+                        System.err.println("Error removing file listener: " + e.getMessage());
+                    }
+                });
+                fileListeners.clear();
+            }
+            fileCallbacks.clear();
+            latestFileDocs.clear();
+            fileVersions.clear();
+            chunkStore.clear();
             
             // Remove all member listeners
             System.out.println("Removing " + memberListeners.size() + " member listeners...");
@@ -372,17 +942,160 @@ public class CollaborationService {
     public void shutdown() {
         System.out.println("Shutting down CollaborationService...");
         leaveProject();
+        presencePublisher.shutdown();
+        typingExpiry.shutdownNow();
+        outbox.shutdown();
         System.out.println("CollaborationService shutdown complete");
     }
 
+    /**
+     * Add the version fields of a save to a file document: the document's version, a
+     * save more by the author in its version vector, and the vector the author had seen.
+     * 
+     * @param basedOn Vector the save was made on, or null if not known
+     */
+    static void addVersion(Map<String, Object> fileData, String userId, VersionVector basedOn) {
+        fileData.put("version", BackendValue.increment(1));
+        fileData.put("versions", Map.of(userId, BackendValue.increment(1)));
+        fileData.put("basedOn", basedOn != null ? basedOn.encode() : BackendValue.delete());
+    }
+    
+    private FileVersions versionsOf(String docId) {
+        return fileVersions.computeIfAbsent(docId, id -> new FileVersions());
+    }
+    
+    /**
+     * A save of an open file by another collaborator.
+     */
+    public static final class FileChange {
+        private final String content;
+        private final String modifiedBy;
+        private final boolean concurrent;
+        
+        FileChange(String content, String modifiedBy, boolean concurrent) {
+            this.content = content;
+            this.modifiedBy = modifiedBy;
+            this.concurrent = concurrent;
+        }
+        
+        public String getContent() {
+            return content;
+        }
+        
+        public String getModifiedBy() {
+            return modifiedBy;
+        }
+        
+        /**
+         * Whether the save was made without a save the local buffer is based on,
+         * so taking it would drop changes; otherwise it builds on the buffer's base.
+         */
+        public boolean isConcurrent() {
+            return concurrent;
+        }
+    }
+    
+    /**
+     * Version state of one file: every save seen so far, the last version handed to
+     * the editor, and the content hash and vector the editor's buffer is based on.
+     */
+    /**
+     * A listener on the files subcollection and the paths it is filtered to.
+     */
+    private static final class FileListener {
+        final List<String> paths;
+        final CollaborationBackend.Registration registration;
+
+        FileListener(List<String> paths, CollaborationBackend.Registration registration) {
+            this.paths = paths;
+            this.registration = registration;
+        }
+    }
+
+    private static final class FileVersions {
+        private VersionVector seen = VersionVector.EMPTY;
+        private long handledVersion;
+        private String baseHash;
+        private VersionVector baseVersions = VersionVector.EMPTY;
+        
+        synchronized void see(BackendDoc doc) {
+            seen = seen.merge(VersionVector.of(doc.get("versions")));
+        }
+        
+        synchronized void resetHandled() {
+            handledVersion = 0;
+        }
+        
+        /** The buffer now holds content read from the file document or disk. */
+        synchronized void loaded(String content) {
+            baseHash = ContentChunker.hash(content);
+            baseVersions = seen;
+        }
+        
+        /**
+         * The buffer was saved; its save counts as seen once sent.
+         * 
+         * @return Vector the save is based on
+         */
+        synchronized VersionVector saved(String userId, String content) {
+            baseHash = ContentChunker.hash(content);
+            baseVersions = seen.increment(userId);
+            return seen;
+        }
+        
+        /**
+         * Decide in O(1) whether a snapshot of the file has anything new for the buffer.
+         * The version counts as handled only once {@link #markHandled} is called.
+         * 
+         * @return Null if not, otherwise whether it is a concurrent save
+         */
+        synchronized Boolean check(BackendDoc doc) {
+            Long version = doc.getLong("version");
+            if (version != null && version <= handledVersion) {
+                return null;
+            }
+            String contentHash = doc.getString("contentHash");
+            if (contentHash != null && contentHash.equals(baseHash)) {
+                return null;
+            }
+            // Saves from before version vectors have no basis to compare
+            String basedOn = doc.getString("basedOn");
+            return basedOn != null && !VersionVector.decode(basedOn).dominates(baseVersions);
+        }
+        
+        /**
+         * The snapshot's content was loaded and is being handed over.
+         * 
+         * @return false if it or a later version was handed over already
+         */
+        synchronized boolean markHandled(BackendDoc doc) {
+            Long version = doc.getLong("version");
+            if (version == null) {
+                return true;
+            }
+            if (version <= handledVersion) {
+                return false;
+            }
+            handledVersion = version;
+            return true;
+        }
+    }
+    
     /**
      * Sanitize file path for use as Firestore document ID.
      * Firestore document IDs cannot contain certain characters like '/', '\', etc.
      */
-    private String sanitizeFilePath(String filePath) {
+    static String sanitizeFilePath(String filePath) {
         return filePath.replace("/", "_").replace("\\", "_").replace(":", "_");
     }
 
+    /**
+     * Number of saves and presence updates not yet delivered.
+     */
+    public int getPendingWrites() {
+        return outbox.getPendingCount();
+    }
+
     // Getters
     public String getCurrentProjectId() {
         return currentProjectId;
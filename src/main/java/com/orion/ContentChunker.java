@@ -0,0 +1,73 @@
+package com.orion;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Content-defined chunking for file contents.
+ * Chunk boundaries come from a rolling (gear) hash over the text rather than fixed
+ * offsets, so an edit only changes the chunks around it and every other chunk keeps
+ * its hash from one save to the next.
+ */
+public class ContentChunker {
+    public static final int MIN_CHUNK = 2 * 1024;
+    public static final int MAX_CHUNK = 32 * 1024;
+
+    // Cut when the low 13 bits of the hash are zero: about 8K characters per chunk on average
+    private static final long BOUNDARY_MASK = (1L << 13) - 1;
+
+    // Fixed seed, so every client finds the same boundaries
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x4f72696f6eL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Split text into chunks. Concatenating the chunks gives back the text.
+     */
+    public static List<String> split(String text) {
+        List<String> chunks = new ArrayList<>();
+        int start = 0;
+        long hash = 0;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            hash = (hash << 1) + GEAR[(c ^ (c >>> 8)) & 0xFF];
+
+            int length = i + 1 - start;
+            boolean boundary = length >= MAX_CHUNK || (length >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0);
+
+            // Never separate a surrogate pair; chunks are stored as standalone strings
+            if (boundary && !Character.isHighSurrogate(c)) {
+                chunks.add(text.substring(start, i + 1));
+                start = i + 1;
+                hash = 0;
+            }
+        }
+
+        if (start < text.length()) {
+            chunks.add(text.substring(start));
+        }
+        return chunks;
+    }
+
+    /**
+     * SHA-256 of the text's UTF-8 bytes as lowercase hex.
+     */
+    public static String hash(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
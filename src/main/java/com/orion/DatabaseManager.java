@@ -2,6 +2,8 @@ package com.orion;
 
 import java.io.File;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 
 public class DatabaseManager {
     private static final String DB_DIR = System.getProperty("user.home") + File.separator + ".orion";
@@ -63,10 +65,47 @@ public class DatabaseManager {
             )
         """;
 
+        // Collaboration writes waiting to reach Firestore
+        String createOutboxTable = """
+            CREATE TABLE IF NOT EXISTS outbox (
+                id INTEGER PRIMARY KEY AUTOINCREMENT,
+                idempotency_key TEXT UNIQUE NOT NULL,
+                client TEXT NOT NULL DEFAULT '',
+                project_id TEXT NOT NULL,
+                kind TEXT NOT NULL,
+                target TEXT NOT NULL,
+                payload TEXT NOT NULL,
+                attempts INTEGER DEFAULT 0,
+                next_attempt_at INTEGER DEFAULT 0,
+                created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+            )
+        """;
+
+        // Workspace imports not finished yet, resumed when the project is next opened
+        String createWorkspaceImportsTable = """
+            CREATE TABLE IF NOT EXISTS workspace_imports (
+                project_id TEXT PRIMARY KEY,
+                workspace TEXT NOT NULL,
+                started_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+            )
+        """;
+
         try (Statement stmt = connection.createStatement()) {
             stmt.execute(createUsersTable);
             stmt.execute(createUserSessionsTable);
             stmt.execute(createFileSnapshotsTable);
+            stmt.execute(createOutboxTable);
+            stmt.execute(createWorkspaceImportsTable);
+            
+            // Add client column to the outbox if it doesn't exist (for existing databases)
+            try {
+                stmt.execute("ALTER TABLE outbox ADD COLUMN client TEXT NOT NULL DEFAULT ''");
+                System.out.println("Added client column to outbox table");
+            } catch (SQLException e) {
+                // Column already exists, ignore
+            }
+            stmt.execute("DROP INDEX IF EXISTS idx_outbox_target");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_outbox_client_target ON outbox(client, project_id, kind, target)");
             
             // Add current_project_id column if it doesn't exist (for existing databases)
             try {
@@ -134,4 +173,59 @@ public class DatabaseManager {
         }
         return null;
     }
+    
+    /**
+     * Forget the last saved content of a file, e.g. after it was deleted
+     */
+    public static void deleteFileSnapshot(String projectId, String filePath) {
+        String sql = "DELETE FROM file_snapshots WHERE project_id = ? AND file_path = ?";
+        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
+            pstmt.setString(1, projectId);
+            pstmt.setString(2, filePath);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("Failed to delete file snapshot: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Record that a workspace import has started, so it can be resumed if it does not finish
+     */
+    public static void startWorkspaceImport(String projectId, String workspace) {
+        String sql = "INSERT OR REPLACE INTO workspace_imports (project_id, workspace, started_at) VALUES (?, ?, CURRENT_TIMESTAMP)";
+        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
+            pstmt.setString(1, projectId);
+            pstmt.setString(2, workspace);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("Failed to record workspace import: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Workspace folder of an unfinished import of the project, or null if there is none
+     */
+    public static String getPendingWorkspaceImport(String projectId) {
+        String sql = "SELECT workspace FROM workspace_imports WHERE project_id = ?";
+        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
+            pstmt.setString(1, projectId);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return rs.getString("workspace");
+            }
+        } catch (SQLException e) {
+            System.err.println("Failed to get workspace import: " + e.getMessage());
+        }
+        return null;
+    }
+    
+    public static void finishWorkspaceImport(String projectId) {
+        String sql = "DELETE FROM workspace_imports WHERE project_id = ?";
+        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
+            pstmt.setString(1, projectId);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("Failed to finish workspace import: " + e.getMessage());
+        }
+    }
 }
@@ -8,6 +8,8 @@ import java.util.List;
  * Implements a simple line-based diff algorithm.
  */
 public class DiffUtils {
+    // Upper bound on the line alignment table used by computeEdits (about 16 MB)
+    private static final long MAX_LCS_CELLS = 4_000_000L;
     
     /**
      * Compute the difference between old and new content.
@@ -97,6 +99,112 @@ public class DiffUtils {
         return String.join("\n", resultLines);
     }
     
+    /**
+     * Compute the targeted edits that turn old text into new text.
+     * Changed line blocks are found with a line-level LCS and each block is trimmed
+     * to its changed characters, so unchanged text between blocks is left alone.
+     * Edits are returned from the end of the text to the start, so each one's
+     * position is valid both in the original text and after the edits before it.
+     * 
+     * @param oldContent Current text
+     * @param newContent Target text
+     * @return Edits to apply in order; empty if the texts are equal
+     */
+    public static List<TextEdit> computeEdits(String oldContent, String newContent) {
+        List<TextEdit> edits = new ArrayList<>();
+        if (oldContent.equals(newContent)) {
+            return edits;
+        }
+        
+        List<String> oldLines = splitKeepingNewlines(oldContent);
+        List<String> newLines = splitKeepingNewlines(newContent);
+        
+        // Skip identical leading and trailing lines
+        int prefix = 0;
+        while (prefix < oldLines.size() && prefix < newLines.size()
+                && oldLines.get(prefix).equals(newLines.get(prefix))) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < oldLines.size() - prefix && suffix < newLines.size() - prefix
+                && oldLines.get(oldLines.size() - 1 - suffix).equals(newLines.get(newLines.size() - 1 - suffix))) {
+            suffix++;
+        }
+        
+        int[] oldOffsets = lineOffsets(oldLines);
+        int n = oldLines.size() - prefix - suffix;
+        int m = newLines.size() - prefix - suffix;
+        
+        if ((long) n * m > MAX_LCS_CELLS) {
+            // Too large to align line by line; fall back to one trimmed range
+            edits.add(TextEdit.between(oldContent, newContent));
+            return edits;
+        }
+        
+        // lcs[i][j] = LCS length of old middle lines from i and new middle lines from j
+        int[][] lcs = new int[n + 1][m + 1];
+        for (int i = n - 1; i >= 0; i--) {
+            for (int j = m - 1; j >= 0; j--) {
+                lcs[i][j] = oldLines.get(prefix + i).equals(newLines.get(prefix + j))
+                        ? lcs[i + 1][j + 1] + 1
+                        : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            }
+        }
+        
+        // Walk the alignment and emit one edit per run of unmatched lines
+        int i = 0;
+        int j = 0;
+        while (i < n || j < m) {
+            if (i < n && j < m && oldLines.get(prefix + i).equals(newLines.get(prefix + j))) {
+                i++;
+                j++;
+                continue;
+            }
+            int oldStart = i;
+            int newStart = j;
+            while ((i < n || j < m)
+                    && !(i < n && j < m && oldLines.get(prefix + i).equals(newLines.get(prefix + j)))) {
+                if (j >= m || (i < n && lcs[i + 1][j] >= lcs[i][j + 1])) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            
+            int start = oldOffsets[prefix + oldStart];
+            String removed = oldContent.substring(start, oldOffsets[prefix + i]);
+            String inserted = String.join("", newLines.subList(prefix + newStart, prefix + j));
+            TextEdit hunk = TextEdit.between(removed, inserted);
+            if (hunk != null) {
+                edits.add(0, new TextEdit(start + hunk.getPosition(), hunk.getRemovedLength(), hunk.getInserted()));
+            }
+        }
+        
+        return edits;
+    }
+    
+    private static List<String> splitKeepingNewlines(String text) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        int newline;
+        while ((newline = text.indexOf('\n', start)) >= 0) {
+            lines.add(text.substring(start, newline + 1));
+            start = newline + 1;
+        }
+        if (start < text.length()) {
+            lines.add(text.substring(start));
+        }
+        return lines;
+    }
+    
+    private static int[] lineOffsets(List<String> lines) {
+        int[] offsets = new int[lines.size() + 1];
+        for (int k = 0; k < lines.size(); k++) {
+            offsets[k + 1] = offsets[k] + lines.get(k).length();
+        }
+        return offsets;
+    }
+    
     /**
      * Class to hold diff computation results.
      */
@@ -18,6 +18,7 @@ import java.io.InputStream;
 public class FirebaseService {
     private static FirebaseService instance;
     private Firestore firestore;
+    private CollaborationBackend backend;
     private FirebaseAuth auth;
     private boolean initialized = false;
     private String webApiKey; // For password verification
@@ -100,6 +101,18 @@ public class FirebaseService {
         return firestore;
     }
 
+    /**
+     * Get the collaboration backend on top of Firestore, with writes kept within quota
+     * and billed operations counted.
+     * @return CollaborationBackend instance
+     */
+    public synchronized CollaborationBackend getBackend() {
+        if (backend == null) {
+            backend = new RateLimitedBackend(new MeteredBackend(new FirestoreBackend(getFirestore())));
+        }
+        return backend;
+    }
+
     /**
      * Get Firebase Authentication instance.
      * @return FirebaseAuth instance
@@ -137,6 +150,7 @@ public class FirebaseService {
                 if (firestore != null) {
                     firestore.close();
                 }
+                backend = null;
                 initialized = false;
                 System.out.println("Firebase connection closed successfully.");
             } catch (Exception e) {
@@ -0,0 +1,302 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiException;
+import com.google.cloud.firestore.*;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link CollaborationBackend} on top of a Firestore client.
+ * Paths, sentinels, timestamps, blobs and snapshots are translated one-to-one, and failures become
+ * {@link BackendException}s carrying their status code; the client itself is owned and closed by
+ * {@link FirebaseService}.
+ */
+public class FirestoreBackend implements CollaborationBackend {
+    private final Firestore firestore;
+
+    public FirestoreBackend(Firestore firestore) {
+        this.firestore = firestore;
+    }
+
+    @Override
+    public ApiFuture<BackendDoc> get(String path) {
+        return translated(ApiFutures.transform(firestore.document(path).get(), this::toDoc,
+                MoreExecutors.directExecutor()));
+    }
+
+    @Override
+    public ApiFuture<List<BackendDoc>> getAll(List<String> paths) {
+        if (paths.isEmpty()) {
+            return ApiFutures.immediateFuture(List.of());
+        }
+        DocumentReference[] refs = paths.stream().map(firestore::document).toArray(DocumentReference[]::new);
+        return translated(ApiFutures.transform(firestore.getAll(refs), snapshots -> {
+            List<BackendDoc> docs = new ArrayList<>(snapshots.size());
+            for (DocumentSnapshot snapshot : snapshots) {
+                docs.add(toDoc(snapshot));
+            }
+            return docs;
+        }, MoreExecutors.directExecutor()));
+    }
+
+    @Override
+    public ApiFuture<BackendQuerySnapshot> query(BackendQuery query) {
+        return translated(ApiFutures.transform(toQuery(query).get(),
+                snapshot -> new BackendQuerySnapshot(() -> toDocs(snapshot), List.of()),
+                MoreExecutors.directExecutor()));
+    }
+
+    @Override
+    public ApiFuture<Void> commit(List<Write> writes) {
+        WriteBatch batch = firestore.batch();
+        for (Write write : writes) {
+            DocumentReference ref = firestore.document(write.getPath());
+            switch (write.getType()) {
+                case SET:
+                    batch.set(ref, toFirestore(write.getData()));
+                    break;
+                case MERGE:
+                    batch.set(ref, toFirestore(write.getData()), SetOptions.merge());
+                    break;
+                case UPDATE:
+                    batch.update(ref, toFirestore(write.getData()));
+                    break;
+                case CREATE:
+                    batch.create(ref, toFirestore(write.getData()));
+                    break;
+                case DELETE:
+                    batch.delete(ref);
+                    break;
+            }
+        }
+        return translated(ApiFutures.transform(batch.commit(), results -> null, MoreExecutors.directExecutor()));
+    }
+
+    @Override
+    public Registration listen(BackendQuery query, SnapshotListener listener) {
+        ListenerRegistration registration = toQuery(query).addSnapshotListener((snapshot, error) -> {
+            if (error != null || snapshot == null) {
+                listener.onEvent(null, translate(error));
+                return;
+            }
+            List<BackendQuerySnapshot.Change> changes = new ArrayList<>();
+            for (DocumentChange change : snapshot.getDocumentChanges()) {
+                changes.add(new BackendQuerySnapshot.Change(
+                        BackendQuerySnapshot.Change.Type.valueOf(change.getType().name()),
+                        toDoc(change.getDocument())));
+            }
+            listener.onEvent(new BackendQuerySnapshot(() -> toDocs(snapshot), changes), null);
+        });
+        return registration::remove;
+    }
+
+    @Override
+    public Registration listenDocument(String path, DocumentListener listener) {
+        ListenerRegistration registration = firestore.document(path).addSnapshotListener((snapshot, error) -> {
+            if (error != null || snapshot == null) {
+                listener.onEvent(null, translate(error));
+            } else {
+                listener.onEvent(toDoc(snapshot), null);
+            }
+        });
+        return registration::remove;
+    }
+
+    @Override
+    public <T> ApiFuture<T> runTransaction(TransactionFunction<T> function) {
+        return translated(firestore.runTransaction(transaction -> function.apply(new BackendTransaction() {
+            @Override
+            public ApiFuture<BackendDoc> get(BackendDocRef ref) {
+                return ApiFutures.transform(transaction.get(firestore.document(ref.getPath())),
+                        FirestoreBackend.this::toDoc, MoreExecutors.directExecutor());
+            }
+
+            @Override
+            public BackendTransaction set(BackendDocRef ref, Map<String, Object> data) {
+                transaction.set(firestore.document(ref.getPath()), toFirestore(data));
+                return this;
+            }
+
+            @Override
+            public BackendTransaction merge(BackendDocRef ref, Map<String, Object> data) {
+                transaction.set(firestore.document(ref.getPath()), toFirestore(data), SetOptions.merge());
+                return this;
+            }
+
+            @Override
+            public BackendTransaction update(BackendDocRef ref, Map<String, Object> data) {
+                transaction.update(firestore.document(ref.getPath()), toFirestore(data));
+                return this;
+            }
+
+            @Override
+            public BackendTransaction create(BackendDocRef ref, Map<String, Object> data) {
+                transaction.create(firestore.document(ref.getPath()), toFirestore(data));
+                return this;
+            }
+
+            @Override
+            public BackendTransaction delete(BackendDocRef ref) {
+                transaction.delete(firestore.document(ref.getPath()));
+                return this;
+            }
+        })));
+    }
+
+    @Override
+    public void close() {
+        // FirebaseService closes the client on shutdown
+    }
+
+    private static <T> ApiFuture<T> translated(ApiFuture<T> future) {
+        return ApiFutures.catchingAsync(future, Exception.class,
+                e -> ApiFutures.immediateFailedFuture(translate(e)), MoreExecutors.directExecutor());
+    }
+
+    /**
+     * A Firestore or gRPC failure as a {@link BackendException} with its status code; anything
+     * else is returned unchanged.
+     */
+    static Exception translate(Exception error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof BackendException) {
+                return error;
+            }
+            String code = null;
+            if (t instanceof FirestoreException && ((FirestoreException) t).getStatus() != null) {
+                code = ((FirestoreException) t).getStatus().getCode().name();
+            } else if (t instanceof ApiException) {
+                code = ((ApiException) t).getStatusCode().getCode().name();
+            }
+            if (code != null) {
+                return new BackendException(code, t.getMessage(), error);
+            }
+        }
+        return error;
+    }
+
+    private Query toQuery(BackendQuery query) {
+        Query result = firestore.collection(query.getCollectionPath());
+        for (BackendQuery.Filter filter : query.getFilters()) {
+            Object value = toFirestoreValue(filter.getValue());
+            switch (filter.getOp()) {
+                case EQUAL:
+                    result = result.whereEqualTo(filter.getField(), value);
+                    break;
+                case ARRAY_CONTAINS:
+                    result = result.whereArrayContains(filter.getField(), value);
+                    break;
+                case IN:
+                    result = result.whereIn(filter.getField(), (List<?>) value);
+                    break;
+            }
+        }
+        if (query.getOrderField() != null) {
+            result = result.orderBy(query.getOrderField(),
+                    query.getDirection() == BackendQuery.Direction.DESCENDING
+                            ? Query.Direction.DESCENDING : Query.Direction.ASCENDING);
+        }
+        if (query.getLimit() > 0) {
+            result = result.limit(query.getLimit());
+        }
+        if (!query.getSelectedFields().isEmpty()) {
+            result = result.select(query.getSelectedFields().toArray(new String[0]));
+        }
+        return result;
+    }
+
+    private List<BackendDoc> toDocs(QuerySnapshot snapshot) {
+        List<BackendDoc> docs = new ArrayList<>(snapshot.size());
+        for (QueryDocumentSnapshot doc : snapshot.getDocuments()) {
+            docs.add(toDoc(doc));
+        }
+        return docs;
+    }
+
+    @SuppressWarnings("unchecked")
+    private BackendDoc toDoc(DocumentSnapshot snapshot) {
+        Map<String, Object> data = null;
+        if (snapshot.exists()) {
+            data = (Map<String, Object>) fromFirestoreValue(snapshot.getData());
+        }
+        return new BackendDoc(document(snapshot.getReference().getPath()), data);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> toFirestore(Map<String, Object> data) {
+        return (Map<String, Object>) toFirestoreValue(data);
+    }
+
+    private Object toFirestoreValue(Object value) {
+        if (value instanceof BackendValue) {
+            BackendValue sentinel = (BackendValue) value;
+            switch (sentinel.getType()) {
+                case SERVER_TIMESTAMP:
+                    return FieldValue.serverTimestamp();
+                case INCREMENT:
+                    return FieldValue.increment(sentinel.getOperand().longValue());
+                default:
+                    return FieldValue.delete();
+            }
+        }
+        if (value instanceof BackendDocRef) {
+            return firestore.document(((BackendDocRef) value).getPath());
+        }
+        if (value instanceof BackendTimestamp) {
+            BackendTimestamp timestamp = (BackendTimestamp) value;
+            return com.google.cloud.Timestamp.ofTimeSecondsAndNanos(timestamp.getSeconds(), timestamp.getNanos());
+        }
+        if (value instanceof BackendBlob) {
+            return Blob.fromBytes(((BackendBlob) value).toBytes());
+        }
+        if (value instanceof Map) {
+            Map<String, Object> converted = new HashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                converted.put((String) entry.getKey(), toFirestoreValue(entry.getValue()));
+            }
+            return converted;
+        }
+        if (value instanceof List) {
+            List<Object> converted = new ArrayList<>();
+            for (Object item : (List<?>) value) {
+                converted.add(toFirestoreValue(item));
+            }
+            return converted;
+        }
+        return value;
+    }
+
+    private Object fromFirestoreValue(Object value) {
+        if (value instanceof DocumentReference) {
+            return document(((DocumentReference) value).getPath());
+        }
+        if (value instanceof com.google.cloud.Timestamp) {
+            com.google.cloud.Timestamp timestamp = (com.google.cloud.Timestamp) value;
+            return BackendTimestamp.ofTimeSecondsAndNanos(timestamp.getSeconds(), timestamp.getNanos());
+        }
+        if (value instanceof Blob) {
+            return BackendBlob.fromBytes(((Blob) value).toBytes());
+        }
+        if (value instanceof Map) {
+            Map<String, Object> converted = new HashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                converted.put((String) entry.getKey(), fromFirestoreValue(entry.getValue()));
+            }
+            return converted;
+        }
+        if (value instanceof List) {
+            List<Object> converted = new ArrayList<>();
+            for (Object item : (List<?>) value) {
+                converted.add(fromFirestoreValue(item));
+            }
+            return converted;
+        }
+        return value;
+    }
+}
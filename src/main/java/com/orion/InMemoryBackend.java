@@ -0,0 +1,663 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CollaborationBackend} that keeps every document in memory.
+ * Follows Firestore's semantics for the operations the app uses — atomic commits,
+ * create/update preconditions, merges, dotted update paths, sentinels, query ordering
+ * and incremental listener events — so collaboration can run and be measured without
+ * a Firebase project. An optional latency is added to every round trip and event to
+ * approximate a remote server.
+ */
+public class InMemoryBackend implements CollaborationBackend {
+    // collection path -> document ID -> immutable fields
+    private final Map<String, TreeMap<String, Map<String, Object>>> collections = new HashMap<>();
+    private final List<QueryWatch> queryWatches = new ArrayList<>();
+    private final List<DocumentWatch> documentWatches = new ArrayList<>();
+    private final Object lock = new Object();
+
+    private final long latencyMillis;
+    private final ScheduledExecutorService delays;
+    private final ExecutorService events;      // Listener events, in commit order
+    private final ExecutorService completions; // Future callbacks, off the caller's thread
+
+    public InMemoryBackend() {
+        this(0);
+    }
+
+    /**
+     * @param latencyMillis Delay added to each operation's result and each listener event
+     */
+    public InMemoryBackend(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        this.delays = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "in-memory-backend-delay"));
+        this.events = Executors.newSingleThreadExecutor(r -> daemon(r, "in-memory-backend-events"));
+        this.completions = Executors.newCachedThreadPool(r -> daemon(r, "in-memory-backend"));
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    @Override
+    public ApiFuture<BackendDoc> get(String path) {
+        BackendDoc doc;
+        synchronized (lock) {
+            doc = snapshot(path);
+        }
+        return complete(doc);
+    }
+
+    @Override
+    public ApiFuture<List<BackendDoc>> getAll(List<String> paths) {
+        List<BackendDoc> docs = new ArrayList<>(paths.size());
+        synchronized (lock) {
+            for (String path : paths) {
+                docs.add(snapshot(path));
+            }
+        }
+        return complete(docs);
+    }
+
+    @Override
+    public ApiFuture<BackendQuerySnapshot> query(BackendQuery query) {
+        List<BackendDoc> docs;
+        synchronized (lock) {
+            docs = run(query);
+        }
+        if (!query.getSelectedFields().isEmpty()) {
+            docs.replaceAll(doc -> select(doc, query.getSelectedFields()));
+        }
+        return complete(new BackendQuerySnapshot(docs, List.of()));
+    }
+
+    @Override
+    public ApiFuture<Void> commit(List<Write> writes) {
+        try {
+            synchronized (lock) {
+                apply(writes);
+            }
+            return complete(null);
+        } catch (BackendException e) {
+            return fail(e);
+        }
+    }
+
+    @Override
+    public <T> ApiFuture<T> runTransaction(TransactionFunction<T> function) {
+        // Holding the lock for the whole function makes every transaction serializable
+        synchronized (lock) {
+            List<Write> writes = new ArrayList<>();
+            BackendTransaction transaction = new BackendTransaction() {
+                @Override
+                public ApiFuture<BackendDoc> get(BackendDocRef ref) {
+                    if (!writes.isEmpty()) {
+                        throw new IllegalStateException("Transaction reads must come before writes");
+                    }
+                    SettableApiFuture<BackendDoc> future = SettableApiFuture.create();
+                    future.set(snapshot(ref.getPath()));
+                    return future;
+                }
+
+                @Override
+                public BackendTransaction set(BackendDocRef ref, Map<String, Object> data) {
+                    return add(Write.Type.SET, ref, data);
+                }
+
+                @Override
+                public BackendTransaction merge(BackendDocRef ref, Map<String, Object> data) {
+                    return add(Write.Type.MERGE, ref, data);
+                }
+
+                @Override
+                public BackendTransaction update(BackendDocRef ref, Map<String, Object> data) {
+                    return add(Write.Type.UPDATE, ref, data);
+                }
+
+                @Override
+                public BackendTransaction create(BackendDocRef ref, Map<String, Object> data) {
+                    return add(Write.Type.CREATE, ref, data);
+                }
+
+                @Override
+                public BackendTransaction delete(BackendDocRef ref) {
+                    return add(Write.Type.DELETE, ref, null);
+                }
+
+                private BackendTransaction add(Write.Type type, BackendDocRef ref, Map<String, Object> data) {
+                    writes.add(new Write(type, ref.getPath(), data));
+                    return this;
+                }
+            };
+
+            try {
+                T result = function.apply(transaction);
+                apply(writes);
+                return complete(result);
+            } catch (Exception e) {
+                return fail(e);
+            }
+        }
+    }
+
+    @Override
+    public Registration listen(BackendQuery query, SnapshotListener listener) {
+        QueryWatch watch = new QueryWatch(query, listener);
+        synchronized (lock) {
+            List<BackendDoc> docs = run(query);
+            List<BackendQuerySnapshot.Change> changes = new ArrayList<>();
+            for (BackendDoc doc : docs) {
+                watch.results.put(doc.getId(), doc);
+                changes.add(new BackendQuerySnapshot.Change(BackendQuerySnapshot.Change.Type.ADDED, doc));
+            }
+            queryWatches.add(watch);
+            deliver(watch, new BackendQuerySnapshot(docs, changes));
+        }
+        return () -> {
+            synchronized (lock) {
+                watch.active = false;
+                queryWatches.remove(watch);
+            }
+        };
+    }
+
+    @Override
+    public Registration listenDocument(String path, DocumentListener listener) {
+        DocumentWatch watch = new DocumentWatch(path, listener);
+        synchronized (lock) {
+            documentWatches.add(watch);
+            deliver(watch, snapshot(path));
+        }
+        return () -> {
+            synchronized (lock) {
+                watch.active = false;
+                documentWatches.remove(watch);
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            queryWatches.forEach(watch -> watch.active = false);
+            documentWatches.forEach(watch -> watch.active = false);
+            queryWatches.clear();
+            documentWatches.clear();
+        }
+        delays.shutdownNow();
+        events.shutdownNow();
+        completions.shutdownNow();
+    }
+
+    /**
+     * Number of documents stored, across all collections.
+     */
+    public int getDocumentCount() {
+        synchronized (lock) {
+            return collections.values().stream().mapToInt(Map::size).sum();
+        }
+    }
+
+    // ---- Writes ----
+
+    /**
+     * Validate and apply writes as one unit, then queue listener events. Caller holds the lock.
+     */
+    private void apply(List<Write> writes) {
+        BackendTimestamp now = BackendTimestamp.now();
+
+        // Stage every write first so a failing precondition leaves nothing applied
+        Map<String, Map<String, Object>> staged = new LinkedHashMap<>();
+        for (Write write : writes) {
+            String path = write.getPath();
+            Map<String, Object> current = staged.containsKey(path) ? staged.get(path) : read(path);
+            staged.put(path, applyWrite(write, current, now));
+        }
+
+        Map<String, Map<String, Object>> before = new HashMap<>();
+        for (Map.Entry<String, Map<String, Object>> entry : staged.entrySet()) {
+            String path = entry.getKey();
+            before.put(path, read(path));
+            TreeMap<String, Map<String, Object>> collection =
+                    collections.computeIfAbsent(parentPath(path), key -> new TreeMap<>());
+            if (entry.getValue() == null) {
+                collection.remove(idOf(path));
+            } else {
+                collection.put(idOf(path), entry.getValue());
+            }
+        }
+
+        notifyWatches(staged, before);
+    }
+
+    private Map<String, Object> applyWrite(Write write, Map<String, Object> current, BackendTimestamp now) {
+        String path = write.getPath();
+        checkPath(path);
+        switch (write.getType()) {
+            case CREATE:
+                if (current != null) {
+                    throw new BackendException("ALREADY_EXISTS", "Document already exists: " + path);
+                }
+                return freeze(resolve(write.getData(), null, now));
+            case SET:
+                return freeze(resolve(write.getData(), null, now));
+            case MERGE: {
+                Map<String, Object> merged = current != null ? new LinkedHashMap<>(current) : new LinkedHashMap<>();
+                mergeInto(merged, write.getData(), now);
+                return freeze(merged);
+            }
+            case UPDATE: {
+                if (current == null) {
+                    throw new BackendException("NOT_FOUND", "No document to update: " + path);
+                }
+                Map<String, Object> updated = new LinkedHashMap<>(current);
+                for (Map.Entry<String, Object> field : write.getData().entrySet()) {
+                    setPath(updated, field.getKey().split("\\."), 0, field.getValue(), now);
+                }
+                return freeze(updated);
+            }
+            default:
+                return null;
+        }
+    }
+
+    /** Deep-merge {@code data} into {@code target}, like a set with merge. */
+    @SuppressWarnings("unchecked")
+    private void mergeInto(Map<String, Object> target, Map<String, Object> data, BackendTimestamp now) {
+        for (Map.Entry<String, Object> field : data.entrySet()) {
+            Object value = field.getValue();
+            Object existing = target.get(field.getKey());
+            if (value instanceof Map) {
+                Map<String, Object> nested = existing instanceof Map
+                        ? new LinkedHashMap<>((Map<String, Object>) existing) : new LinkedHashMap<>();
+                mergeInto(nested, (Map<String, Object>) value, now);
+                target.put(field.getKey(), nested);
+            } else {
+                putResolved(target, field.getKey(), value, existing, now);
+            }
+        }
+    }
+
+    /** Set a dotted field path, creating intermediate maps, like an update. */
+    @SuppressWarnings("unchecked")
+    private void setPath(Map<String, Object> target, String[] parts, int index, Object value, BackendTimestamp now) {
+        String key = parts[index];
+        if (index == parts.length - 1) {
+            putResolved(target, key, value, target.get(key), now);
+            return;
+        }
+        Object existing = target.get(key);
+        Map<String, Object> nested = existing instanceof Map
+                ? new LinkedHashMap<>((Map<String, Object>) existing) : new LinkedHashMap<>();
+        setPath(nested, parts, index + 1, value, now);
+        target.put(key, nested);
+    }
+
+    private void putResolved(Map<String, Object> target, String key, Object value, Object existing, BackendTimestamp now) {
+        if (value instanceof BackendValue && ((BackendValue) value).getType() == BackendValue.Type.DELETE) {
+            target.remove(key);
+        } else {
+            target.put(key, resolveValue(value, existing, now));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> resolve(Map<String, Object> data, Map<String, Object> current, BackendTimestamp now) {
+        Map<String, Object> resolved = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> field : data.entrySet()) {
+            Object existing = current != null ? current.get(field.getKey()) : null;
+            putResolved(resolved, field.getKey(), field.getValue(), existing, now);
+        }
+        return resolved;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object resolveValue(Object value, Object existing, BackendTimestamp now) {
+        if (value instanceof BackendValue) {
+            BackendValue sentinel = (BackendValue) value;
+            if (sentinel.getType() == BackendValue.Type.SERVER_TIMESTAMP) {
+                return now;
+            }
+            if (sentinel.getType() == BackendValue.Type.INCREMENT) {
+                Number operand = sentinel.getOperand();
+                if (existing instanceof Double || existing instanceof Float) {
+                    return ((Number) existing).doubleValue() + operand.doubleValue();
+                }
+                long base = existing instanceof Number ? ((Number) existing).longValue() : 0L;
+                return base + operand.longValue();
+            }
+            throw new BackendException("INVALID_ARGUMENT", "Field delete is only allowed in merges and updates");
+        }
+        if (value instanceof Map) {
+            return resolve((Map<String, Object>) value, null, now);
+        }
+        if (value instanceof List) {
+            List<Object> items = new ArrayList<>();
+            for (Object item : (List<?>) value) {
+                if (item instanceof BackendValue) {
+                    throw new BackendException("INVALID_ARGUMENT", "Sentinels are not allowed inside arrays");
+                }
+                items.add(resolveValue(item, null, now));
+            }
+            return items;
+        }
+        return value;
+    }
+
+    /**
+     * Immutable copy with values normalized to the types Firestore hands back.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> freeze(Map<String, Object> data) {
+        Map<String, Object> frozen = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> field : data.entrySet()) {
+            frozen.put(field.getKey(), freezeValue(field.getValue()));
+        }
+        return Collections.unmodifiableMap(frozen);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object freezeValue(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean || value instanceof Long
+                || value instanceof Double || value instanceof BackendTimestamp || value instanceof BackendBlob
+                || value instanceof BackendDocRef) {
+            return value;
+        }
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Float) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Date) {
+            return BackendTimestamp.of((Date) value);
+        }
+        if (value instanceof Enum) {
+            return ((Enum<?>) value).name();
+        }
+        if (value instanceof Map) {
+            return freeze((Map<String, Object>) value);
+        }
+        if (value instanceof List) {
+            List<Object> items = new ArrayList<>();
+            for (Object item : (List<?>) value) {
+                items.add(freezeValue(item));
+            }
+            return Collections.unmodifiableList(items);
+        }
+        throw new BackendException("INVALID_ARGUMENT", "Unsupported value type " + value.getClass().getName());
+    }
+
+    // ---- Reads and queries ----
+
+    private Map<String, Object> read(String path) {
+        TreeMap<String, Map<String, Object>> collection = collections.get(parentPath(path));
+        return collection != null ? collection.get(idOf(path)) : null;
+    }
+
+    private BackendDoc snapshot(String path) {
+        return new BackendDoc(document(path), read(path));
+    }
+
+    private List<BackendDoc> run(BackendQuery query) {
+        TreeMap<String, Map<String, Object>> collection = collections.get(query.getCollectionPath());
+        List<BackendDoc> docs = new ArrayList<>();
+        if (collection == null) {
+            return docs;
+        }
+        for (Map.Entry<String, Map<String, Object>> entry : collection.entrySet()) {
+            if (matches(query, entry.getValue())) {
+                docs.add(new BackendDoc(document(query.getCollectionPath() + "/" + entry.getKey()), entry.getValue()));
+            }
+        }
+        query.sort(docs);
+        if (query.getLimit() > 0 && docs.size() > query.getLimit()) {
+            return new ArrayList<>(docs.subList(0, query.getLimit()));
+        }
+        return docs;
+    }
+
+    /** The document with only the selected top-level fields. */
+    private static BackendDoc select(BackendDoc doc, List<String> fields) {
+        Map<String, Object> selected = new HashMap<>();
+        for (String field : fields) {
+            String top = field.contains(".") ? field.substring(0, field.indexOf('.')) : field;
+            if (doc.getData().containsKey(top)) {
+                selected.put(top, doc.getData().get(top));
+            }
+        }
+        return new BackendDoc(doc.getReference(), selected);
+    }
+
+    private static boolean matches(BackendQuery query, Map<String, Object> data) {
+        if (data == null) {
+            return false;
+        }
+        BackendDoc doc = new BackendDoc(null, data);
+        if (query.getOrderField() != null && doc.get(query.getOrderField()) == null) {
+            return false; // Firestore leaves out documents without the ordering field
+        }
+        for (BackendQuery.Filter filter : query.getFilters()) {
+            Object value = doc.get(filter.getField());
+            Object expected = freezeValue(filter.getValue());
+            switch (filter.getOp()) {
+                case EQUAL:
+                    if (!valuesEqual(value, expected)) return false;
+                    break;
+                case ARRAY_CONTAINS:
+                    if (!(value instanceof List) || ((List<?>) value).stream().noneMatch(v -> valuesEqual(v, expected))) {
+                        return false;
+                    }
+                    break;
+                case IN:
+                    if (((List<?>) expected).stream().noneMatch(v -> valuesEqual(value, v))) return false;
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private static boolean valuesEqual(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return BackendQuery.compareValues(a, b) == 0;
+        }
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // ---- Listeners ----
+
+    /**
+     * Queue events for the watches affected by a commit. Caller holds the lock,
+     * which keeps events in commit order.
+     */
+    private void notifyWatches(Map<String, Map<String, Object>> after, Map<String, Map<String, Object>> before) {
+        for (QueryWatch watch : queryWatches) {
+            String collectionPath = watch.query.getCollectionPath();
+            boolean touched = after.keySet().stream().anyMatch(path -> parentPath(path).equals(collectionPath));
+            if (!touched) {
+                continue;
+            }
+
+            List<BackendQuerySnapshot.Change> changes = new ArrayList<>();
+            if (watch.query.getLimit() > 0) {
+                // A limit can pull documents in and out that were not written; diff the whole result
+                Map<String, BackendDoc> results = new LinkedHashMap<>();
+                for (BackendDoc doc : run(watch.query)) {
+                    results.put(doc.getId(), doc);
+                }
+                for (BackendDoc old : watch.results.values()) {
+                    if (!results.containsKey(old.getId())) {
+                        changes.add(new BackendQuerySnapshot.Change(BackendQuerySnapshot.Change.Type.REMOVED, old));
+                    }
+                }
+                for (BackendDoc doc : results.values()) {
+                    BackendDoc old = watch.results.get(doc.getId());
+                    if (old == null) {
+                        changes.add(new BackendQuerySnapshot.Change(BackendQuerySnapshot.Change.Type.ADDED, doc));
+                    } else if (!old.getData().equals(doc.getData())) {
+                        changes.add(new BackendQuerySnapshot.Change(BackendQuerySnapshot.Change.Type.MODIFIED, doc));
+                    }
+                }
+                watch.results.clear();
+                watch.results.putAll(results);
+            } else {
+                for (Map.Entry<String, Map<String, Object>> entry : after.entrySet()) {
+                    String path = entry.getKey();
+                    if (!parentPath(path).equals(collectionPath)) {
+                        continue;
+                    }
+                    String id = idOf(path);
+                    BackendDoc old = watch.results.get(id);
+                    BackendDoc doc = new BackendDoc(document(path), entry.getValue());
+                    boolean matches = matches(watch.query, entry.getValue());
+                    if (matches && old == null) {
+                        watch.results.put(id, doc);
+                        changes.add(new BackendQuerySnapshot.Change(BackendQuerySnapshot.Change.Type.ADDED, doc));
+                    } else if (matches && !entry.getValue().equals(before.get(path))) {
+                        watch.results.put(id, doc);
+                        changes.add(new BackendQuerySnapshot.Change(BackendQuerySnapshot.Change.Type.MODIFIED, doc));
+                    } else if (!matches && old != null) {
+                        watch.results.remove(id);
+                        changes.add(new BackendQuerySnapshot.Change(BackendQuerySnapshot.Change.Type.REMOVED, old));
+                    }
+                }
+            }
+
+            if (!changes.isEmpty()) {
+                // Listeners that only read the changes never pay for sorting the results
+                BackendQuery query = watch.query;
+                List<BackendDoc> docs = new ArrayList<>(watch.results.values());
+                deliver(watch, new BackendQuerySnapshot(() -> {
+                    if (query.getLimit() == 0) {
+                        query.sort(docs);
+                    }
+                    return docs;
+                }, changes));
+            }
+        }
+
+        for (DocumentWatch watch : documentWatches) {
+            if (after.containsKey(watch.path)) {
+                Map<String, Object> data = after.get(watch.path);
+                if (data == null ? before.get(watch.path) != null : !data.equals(before.get(watch.path))) {
+                    deliver(watch, new BackendDoc(document(watch.path), data));
+                }
+            }
+        }
+    }
+
+    private void deliver(QueryWatch watch, BackendQuerySnapshot snapshot) {
+        dispatch(() -> {
+            if (watch.active) {
+                try {
+                    watch.listener.onEvent(snapshot, null);
+                } catch (RuntimeException e) {
+                    System.err.println("Listener failed on " + watch.query.getCollectionPath() + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void deliver(DocumentWatch watch, BackendDoc doc) {
+        dispatch(() -> {
+            if (watch.active) {
+                try {
+                    watch.listener.onEvent(doc, null);
+                } catch (RuntimeException e) {
+                    System.err.println("Listener failed on " + watch.path + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void dispatch(Runnable event) {
+        if (latencyMillis > 0) {
+            // The delay thread is FIFO for equal delays, so events keep their order
+            delays.schedule(() -> events.execute(event), latencyMillis, TimeUnit.MILLISECONDS);
+        } else {
+            events.execute(event);
+        }
+    }
+
+    private <T> ApiFuture<T> complete(T value) {
+        SettableApiFuture<T> future = SettableApiFuture.create();
+        if (latencyMillis > 0) {
+            delays.schedule(() -> completions.execute(() -> future.set(value)), latencyMillis, TimeUnit.MILLISECONDS);
+        } else {
+            completions.execute(() -> future.set(value));
+        }
+        return future;
+    }
+
+    private <T> ApiFuture<T> fail(Throwable error) {
+        SettableApiFuture<T> future = SettableApiFuture.create();
+        if (latencyMillis > 0) {
+            delays.schedule(() -> completions.execute(() -> future.setException(error)), latencyMillis, TimeUnit.MILLISECONDS);
+        } else {
+            completions.execute(() -> future.setException(error));
+        }
+        return future;
+    }
+
+    // ---- Paths ----
+
+    private static void checkPath(String path) {
+        String[] segments = path.split("/", -1);
+        if (segments.length % 2 != 0) {
+            throw new BackendException("INVALID_ARGUMENT", "Not a document path: " + path);
+        }
+        for (String segment : segments) {
+            if (segment.isEmpty()) {
+                throw new BackendException("INVALID_ARGUMENT", "Empty path segment in " + path);
+            }
+        }
+    }
+
+    private static String parentPath(String path) {
+        return path.substring(0, path.lastIndexOf('/'));
+    }
+
+    private static String idOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static final class QueryWatch {
+        final BackendQuery query;
+        final SnapshotListener listener;
+        final Map<String, BackendDoc> results = new LinkedHashMap<>();
+        volatile boolean active = true;
+
+        QueryWatch(BackendQuery query, SnapshotListener listener) {
+            this.query = query;
+            this.listener = listener;
+        }
+    }
+
+    private static final class DocumentWatch {
+        final String path;
+        final DocumentListener listener;
+        volatile boolean active = true;
+
+        DocumentWatch(String path, DocumentListener listener) {
+            this.path = path;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link CollaborationBackend} served by a {@link LanRelayServer} on another machine.
+ * Requests are queued and a writer thread sends everything queued so far in one
+ * flush. At most {@link #MAX_QUEUED_BYTES} may wait to be sent; callers beyond that
+ * block until the socket catches up. If the connection drops, outstanding requests
+ * fail with UNAVAILABLE and listeners receive an error. The connection is only usable
+ * once the relay has accepted the session code.
+ */
+public class LanRelayClient implements CollaborationBackend {
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final int MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_TRANSACTION_ATTEMPTS = 5;
+
+    private final String address;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final LinkedBlockingQueue<ByteBuffer> outbound = new LinkedBlockingQueue<>();
+    private final Semaphore queuedBytes = new Semaphore(MAX_QUEUED_BYTES);
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final Map<Integer, Pending<?>> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, Watch> watches = new ConcurrentHashMap<>();
+    private final ExecutorService events;      // Listener events, in arrival order
+    private final ExecutorService completions; // Future callbacks, off the reader thread
+    private volatile boolean closed = false;
+
+    /**
+     * Connect to a relay and present the session code.
+     *
+     * @param host Host name or address of the machine running the relay
+     * @param port Relay port, usually {@link RelayProtocol#DEFAULT_PORT}
+     * @param sessionCode Code shown by the host when it started the session
+     * @throws IOException If the relay cannot be reached or rejects the code
+     */
+    public LanRelayClient(String host, int port, String sessionCode) throws IOException {
+        this.address = host + ":" + port;
+        this.socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+
+        this.events = Executors.newSingleThreadExecutor(r -> daemon(r, "lan-relay-events"));
+        this.completions = Executors.newCachedThreadPool(r -> daemon(r, "lan-relay-client"));
+        daemon(this::writeLoop, "lan-relay-writer").start();
+        daemon(this::readLoop, "lan-relay-reader").start();
+
+        try {
+            request(RelayProtocol.HELLO, out -> RelayProtocol.writeString(out, sessionCode), in -> null)
+                    .get(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            close();
+            if ("PERMISSION_DENIED".equals(BackendException.codeOf(e))) {
+                throw new IOException("The LAN session code was not accepted");
+            }
+            throw new IOException("LAN relay did not accept the connection: " + e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            close();
+            throw new IOException("LAN relay at " + address + " did not answer");
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to the LAN relay");
+        }
+        System.out.println("Connected to LAN relay at " + address);
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public boolean isConnected() {
+        return !closed;
+    }
+
+    // ---- Operations ----
+
+    @Override
+    public ApiFuture<BackendDoc> get(String path) {
+        return request(RelayProtocol.GET, out -> RelayProtocol.writeString(out, path),
+                in -> RelayProtocol.readDoc(in, this));
+    }
+
+    @Override
+    public ApiFuture<List<BackendDoc>> getAll(List<String> paths) {
+        return request(RelayProtocol.GET_ALL, out -> {
+            out.writeInt(paths.size());
+            for (String path : paths) {
+                RelayProtocol.writeString(out, path);
+            }
+        }, in -> RelayProtocol.readDocs(in, this));
+    }
+
+    @Override
+    public ApiFuture<BackendQuerySnapshot> query(BackendQuery query) {
+        return request(RelayProtocol.QUERY, out -> RelayProtocol.writeQuery(out, query),
+                in -> RelayProtocol.readSnapshot(in, this));
+    }
+
+    @Override
+    public ApiFuture<Void> commit(List<Write> writes) {
+        return request(RelayProtocol.COMMIT, out -> RelayProtocol.writeWrites(out, writes), in -> null);
+    }
+
+    @Override
+    public Registration listen(BackendQuery query, SnapshotListener listener) {
+        int id = nextId.getAndIncrement();
+        Watch watch = new Watch(query, listener, null);
+        watches.put(id, watch);
+        send(RelayProtocol.LISTEN, id, out -> RelayProtocol.writeQuery(out, query));
+        return () -> unlisten(id);
+    }
+
+    @Override
+    public Registration listenDocument(String path, DocumentListener listener) {
+        int id = nextId.getAndIncrement();
+        Watch watch = new Watch(null, null, listener);
+        watches.put(id, watch);
+        send(RelayProtocol.LISTEN_DOC, id, out -> RelayProtocol.writeString(out, path));
+        return () -> unlisten(id);
+    }
+
+    /**
+     * Optimistic transaction: reads go to the relay as they happen, and the writes are
+     * sent with the documents they were based on. The relay applies them only if none
+     * of those documents changed meanwhile; otherwise the function runs again.
+     */
+    @Override
+    public <T> ApiFuture<T> runTransaction(TransactionFunction<T> function) {
+        SettableApiFuture<T> result = SettableApiFuture.create();
+        completions.execute(() -> {
+            Exception last = null;
+            for (int attempt = 0; attempt < MAX_TRANSACTION_ATTEMPTS; attempt++) {
+                RelayTransaction transaction = new RelayTransaction();
+                try {
+                    T value = function.apply(transaction);
+                    request(RelayProtocol.TXN_COMMIT, out -> {
+                        out.writeInt(transaction.reads.size());
+                        for (BackendDoc doc : transaction.reads.values()) {
+                            RelayProtocol.writeDoc(out, doc);
+                        }
+                        RelayProtocol.writeWrites(out, transaction.writes);
+                    }, in -> null).get();
+                    result.set(value);
+                    return;
+                } catch (ExecutionException e) {
+                    last = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    if (!"ABORTED".equals(BackendException.codeOf(e))) {
+                        break;
+                    }
+                } catch (Exception e) {
+                    last = e;
+                    break;
+                }
+            }
+            result.setException(last);
+        });
+        return result;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        failAll(new BackendException("UNAVAILABLE", "LAN relay connection closed"));
+        events.shutdown();
+        completions.shutdown();
+    }
+
+    // ---- Plumbing ----
+
+    private interface Encoder {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private interface Decoder<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private static final class Pending<T> {
+        final SettableApiFuture<T> future = SettableApiFuture.create();
+        final Decoder<T> decoder;
+
+        Pending(Decoder<T> decoder) {
+            this.decoder = decoder;
+        }
+    }
+
+    private static final class Watch {
+        final BackendQuery query;
+        final SnapshotListener queryListener;
+        final DocumentListener documentListener;
+        final Map<String, BackendDoc> results = new LinkedHashMap<>(); // Query results, kept by the reader thread
+        volatile boolean active = true;
+
+        Watch(BackendQuery query, SnapshotListener queryListener, DocumentListener documentListener) {
+            this.query = query;
+            this.queryListener = queryListener;
+            this.documentListener = documentListener;
+        }
+
+        /**
+         * Apply an event's changes to the results and build the listener's snapshot.
+         */
+        BackendQuerySnapshot apply(List<BackendQuerySnapshot.Change> changes) {
+            for (BackendQuerySnapshot.Change change : changes) {
+                BackendDoc doc = change.getDocument();
+                if (change.getType() == BackendQuerySnapshot.Change.Type.REMOVED) {
+                    results.remove(doc.getId());
+                } else {
+                    results.put(doc.getId(), doc);
+                }
+            }
+            List<BackendDoc> docs = new ArrayList<>(results.values());
+            return new BackendQuerySnapshot(() -> {
+                query.sort(docs);
+                return docs;
+            }, changes);
+        }
+    }
+
+    private <T> ApiFuture<T> request(byte type, Encoder body, Decoder<T> decoder) {
+        int id = nextId.getAndIncrement();
+        Pending<T> request = new Pending<>(decoder);
+        pending.put(id, request);
+        try {
+            send(type, id, body);
+        } catch (RuntimeException e) {
+            pending.remove(id);
+            request.future.setException(e);
+        }
+        if (closed && pending.remove(id) != null) {
+            // The connection dropped after failAll had already run
+            request.future.setException(new BackendException("UNAVAILABLE", "Lost connection to the LAN relay"));
+        }
+        return request.future;
+    }
+
+    private void unlisten(int id) {
+        Watch watch = watches.remove(id);
+        if (watch != null) {
+            watch.active = false;
+            if (!closed) {
+                send(RelayProtocol.UNLISTEN, id, out -> { });
+            }
+        }
+    }
+
+    private void send(byte type, int id, Encoder body) {
+        if (closed) {
+            throw new BackendException("UNAVAILABLE", "Not connected to the LAN relay at " + address);
+        }
+        ByteBuffer frame;
+        try {
+            RelayProtocol.FrameWriter writer = new RelayProtocol.FrameWriter(type, id);
+            body.write(writer.out);
+            frame = writer.toBuffer();
+        } catch (IOException e) {
+            throw new BackendException("INVALID_ARGUMENT", e.getMessage());
+        }
+
+        // Backpressure: wait while too much is already waiting for the socket
+        int permits = Math.min(frame.remaining(), MAX_QUEUED_BYTES);
+        queuedBytes.acquireUninterruptibly(permits);
+        outbound.add(frame);
+    }
+
+    private void writeLoop() {
+        List<ByteBuffer> batch = new ArrayList<>();
+        try {
+            while (!closed) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch);
+                for (ByteBuffer frame : batch) {
+                    out.write(frame.array(), 0, frame.limit());
+                }
+                out.flush(); // One flush for everything that queued up meanwhile
+                for (ByteBuffer frame : batch) {
+                    queuedBytes.release(Math.min(frame.limit(), MAX_QUEUED_BYTES));
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (!closed) {
+                int length = in.readInt();
+                if (length < RelayProtocol.HEADER - 4 || length > RelayProtocol.MAX_FRAME) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                dispatch(new RelayProtocol.Frame(payload));
+            }
+        } catch (EOFException e) {
+            connectionLost(new IOException("Relay closed the connection"));
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void dispatch(RelayProtocol.Frame frame) throws IOException {
+        switch (frame.type) {
+            case RelayProtocol.RESULT: {
+                Pending request = pending.remove(frame.id);
+                if (request != null) {
+                    Object value = request.decoder.read(frame.in);
+                    completions.execute(() -> request.future.set(value));
+                }
+                break;
+            }
+            case RelayProtocol.ERROR: {
+                BackendException error = new BackendException(
+                        RelayProtocol.readString(frame.in), RelayProtocol.readString(frame.in));
+                Pending<?> request = pending.remove(frame.id);
+                if (request != null) {
+                    completions.execute(() -> request.future.setException(error));
+                } else {
+                    Watch watch = watches.get(frame.id);
+                    if (watch != null) {
+                        deliver(watch, null, null, error);
+                    }
+                }
+                break;
+            }
+            case RelayProtocol.EVENT: {
+                Watch watch = watches.get(frame.id);
+                if (watch != null) {
+                    deliver(watch, watch.apply(RelayProtocol.readChanges(frame.in, this)), null, null);
+                }
+                break;
+            }
+            case RelayProtocol.DOC_EVENT: {
+                Watch watch = watches.get(frame.id);
+                if (watch != null) {
+                    deliver(watch, null, RelayProtocol.readDoc(frame.in, this), null);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown frame type " + frame.type);
+        }
+    }
+
+    private void deliver(Watch watch, BackendQuerySnapshot snapshot, BackendDoc doc, Exception error) {
+        events.execute(() -> {
+            if (!watch.active) {
+                return;
+            }
+            try {
+                if (watch.queryListener != null) {
+                    watch.queryListener.onEvent(snapshot, error);
+                } else {
+                    watch.documentListener.onEvent(doc, error);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("LAN relay listener failed: " + e.getMessage());
+            }
+        });
+    }
+
+    private void connectionLost(IOException cause) {
+        if (closed) {
+            return;
+        }
+        System.err.println("Lost connection to LAN relay at " + address + ": " + cause.getMessage());
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already broken
+        }
+        failAll(new BackendException("UNAVAILABLE", "Lost connection to the LAN relay: " + cause.getMessage()));
+    }
+
+    private void failAll(BackendException error) {
+        for (Integer id : new ArrayList<>(pending.keySet())) {
+            Pending<?> request = pending.remove(id);
+            if (request != null) {
+                completions.execute(() -> request.future.setException(error));
+            }
+        }
+        for (Watch watch : watches.values()) {
+            deliver(watch, null, null, error);
+        }
+        watches.clear();
+        outbound.clear();
+    }
+
+    /**
+     * Reads go straight to the relay; writes are collected for the final commit.
+     */
+    private final class RelayTransaction implements BackendTransaction {
+        final Map<String, BackendDoc> reads = new LinkedHashMap<>();
+        final List<Write> writes = new ArrayList<>();
+
+        @Override
+        public ApiFuture<BackendDoc> get(BackendDocRef ref) {
+            if (!writes.isEmpty()) {
+                throw new IllegalStateException("Transaction reads must come before writes");
+            }
+            SettableApiFuture<BackendDoc> future = SettableApiFuture.create();
+            try {
+                BackendDoc doc = LanRelayClient.this.get(ref.getPath()).get();
+                reads.put(ref.getPath(), doc);
+                future.set(doc);
+            } catch (ExecutionException e) {
+                future.setException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.setException(e);
+            }
+            return future;
+        }
+
+        @Override
+        public BackendTransaction set(BackendDocRef ref, Map<String, Object> data) {
+            return add(Write.Type.SET, ref, data);
+        }
+
+        @Override
+        public BackendTransaction merge(BackendDocRef ref, Map<String, Object> data) {
+            return add(Write.Type.MERGE, ref, data);
+        }
+
+        @Override
+        public BackendTransaction update(BackendDocRef ref, Map<String, Object> data) {
+            return add(Write.Type.UPDATE, ref, data);
+        }
+
+        @Override
+        public BackendTransaction create(BackendDocRef ref, Map<String, Object> data) {
+            return add(Write.Type.CREATE, ref, data);
+        }
+
+        @Override
+        public BackendTransaction delete(BackendDocRef ref) {
+            return add(Write.Type.DELETE, ref, null);
+        }
+
+        private BackendTransaction add(Write.Type type, BackendDocRef ref, Map<String, Object> data) {
+            writes.add(new Write(type, ref.getPath(), data));
+            return this;
+        }
+    }
+}
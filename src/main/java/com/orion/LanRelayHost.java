@@ -0,0 +1,288 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * A LAN collaboration session hosted by this instance for one project.
+ * File sync, presence and typing for the session live in an in-process store that
+ * this instance uses directly and serves to peers through a {@link LanRelayServer}.
+ * Project membership stays upstream: member documents are copied in when the session
+ * starts and kept in step as people join or leave, so presence updates have a
+ * document to land on.
+ *
+ * Saves are durable upstream too: every commit to the project's files, chunks, history
+ * and workspace tree is replayed on the upstream backend, in order, once the session
+ * store has applied it. Presence, typing and the co-editing log stay in the session.
+ * Peers need the session code and only reach this project's documents.
+ */
+public class LanRelayHost {
+    private static final String MEMBERS_SUBCOLLECTION = "members";
+    private static final Set<String> FORWARDED_SUBCOLLECTIONS = Set.of(
+            "files", "chunks", "changeHistory", WorkspaceManifest.TREE_SUBCOLLECTION);
+    private static final String CODE_CHARS = "ABCDEFGHJKLMNPQRSTUVWXYZ23456789"; // No look-alikes
+    private static final int CODE_LENGTH = 8;
+    private static final long FORWARD_RETRY_MIN_MS = 1_000;
+    private static final long FORWARD_RETRY_MAX_MS = 30_000;
+    private static final int FORWARD_ATTEMPTS = 8;
+    private static final Set<String> PERMANENT_ERRORS = Set.of(
+            "NOT_FOUND", "PERMISSION_DENIED", "INVALID_ARGUMENT", "FAILED_PRECONDITION", "OUT_OF_RANGE", "ALREADY_EXISTS");
+
+    private final InMemoryBackend store = new InMemoryBackend();
+    private final CollaborationBackend upstream;
+    private final String projectPath;
+    private final String sessionCode;
+    private final CollaborationBackend session = new SessionBackend();
+    private final ThreadPoolExecutor forwarder; // Upstream commits, one at a time in commit order
+    private final LanRelayServer server;
+    private final CollaborationBackend.Registration membersMirror;
+
+    /**
+     * @param upstream Backend holding the project's members, normally Firestore
+     * @param port Port to serve on
+     */
+    public LanRelayHost(CollaborationBackend upstream, String projectId, int port)
+            throws IOException, ExecutionException, InterruptedException {
+        this.upstream = upstream;
+        this.projectPath = "projects/" + projectId;
+        this.sessionCode = newSessionCode();
+        this.forwarder = (ThreadPoolExecutor) Executors.newFixedThreadPool(1, r -> {
+            Thread t = new Thread(r, "lan-relay-upstream");
+            t.setDaemon(true);
+            return t;
+        });
+        String membersPath = projectPath + "/" + MEMBERS_SUBCOLLECTION;
+
+        // Seed before serving, so nobody's first presence update finds no member doc
+        BackendBatch seed = store.batch();
+        for (BackendDoc member : upstream.collection(membersPath).get().get().getDocuments()) {
+            seed.set(store.document(member.getReference().getPath()), offline(member));
+        }
+        seed.commit().get();
+
+        this.membersMirror = upstream.collection(membersPath).addSnapshotListener((snapshot, error) -> {
+            if (error != null) {
+                System.err.println("Error mirroring members into LAN session: " + error.getMessage());
+                return;
+            }
+            for (BackendQuerySnapshot.Change change : snapshot.getDocumentChanges()) {
+                BackendDoc member = change.getDocument();
+                BackendDocRef local = store.document(member.getReference().getPath());
+                switch (change.getType()) {
+                    case ADDED:
+                        local.create(offline(member)); // Already seeded members keep their session presence
+                        break;
+                    case MODIFIED: {
+                        Map<String, Object> identity = new HashMap<>();
+                        identity.put("username", member.getString("username"));
+                        identity.put("role", member.getString("role"));
+                        local.merge(identity);
+                        break;
+                    }
+                    case REMOVED:
+                        local.delete();
+                        break;
+                }
+            }
+        });
+
+        this.server = new LanRelayServer(session, port, sessionCode, projectPath);
+    }
+
+    private static String newSessionCode() {
+        SecureRandom random = new SecureRandom();
+        StringBuilder code = new StringBuilder(CODE_LENGTH);
+        for (int i = 0; i < CODE_LENGTH; i++) {
+            code.append(CODE_CHARS.charAt(random.nextInt(CODE_CHARS.length())));
+        }
+        return code.toString();
+    }
+
+    private static Map<String, Object> offline(BackendDoc member) {
+        Map<String, Object> data = new HashMap<>(member.getData());
+        data.put("isOnline", false);
+        data.put("currentFile", null);
+        data.put("cursorPosition", 0);
+        return data;
+    }
+
+    /** The session store; the hosting instance collaborates through it directly. */
+    public CollaborationBackend getStore() {
+        return session;
+    }
+
+    /** Code peers must enter to join. */
+    public String getSessionCode() {
+        return sessionCode;
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    public int getPeerCount() {
+        return server.getPeerCount();
+    }
+
+    /**
+     * End the session: disconnect peers and drop the session store. Saves still being
+     * forwarded upstream keep going in the background.
+     */
+    public void close() {
+        server.close();
+        membersMirror.remove();
+        int pending = forwarder.getQueue().size() + forwarder.getActiveCount();
+        if (pending > 0) {
+            System.out.println("Still forwarding " + pending + " LAN session commit(s) upstream");
+        }
+        forwarder.shutdown();
+        store.close();
+    }
+
+    /**
+     * The writes of a session commit that must also reach the upstream backend.
+     */
+    private List<CollaborationBackend.Write> forwarded(List<CollaborationBackend.Write> writes) {
+        List<CollaborationBackend.Write> durable = new ArrayList<>();
+        String prefix = projectPath + "/";
+        for (CollaborationBackend.Write write : writes) {
+            String path = write.getPath();
+            if (!path.startsWith(prefix)) {
+                continue;
+            }
+            int slash = path.indexOf('/', prefix.length());
+            if (slash > 0 && FORWARDED_SUBCOLLECTIONS.contains(path.substring(prefix.length(), slash))) {
+                durable.add(write);
+            }
+        }
+        return durable;
+    }
+
+    private void forward(List<CollaborationBackend.Write> writes) {
+        long delay = FORWARD_RETRY_MIN_MS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                upstream.commit(writes).get();
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                String code = BackendException.codeOf(e);
+                if ((code != null && PERMANENT_ERRORS.contains(code)) || attempt == FORWARD_ATTEMPTS) {
+                    System.err.println("Dropping LAN session commit of " + writes.size()
+                            + " write(s) upstream: " + e.getCause().getMessage());
+                    return;
+                }
+                System.err.println("Forwarding LAN session commit upstream failed, retrying in "
+                        + delay + " ms: " + e.getCause().getMessage());
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            delay = Math.min(FORWARD_RETRY_MAX_MS, delay * 2);
+        }
+    }
+
+    /**
+     * The session store as used by this instance and its peers: commits are applied
+     * locally and their durable writes queued for upstream. Transactions (co-editing
+     * bases) stay local.
+     */
+    private final class SessionBackend implements CollaborationBackend {
+        @Override
+        public ApiFuture<BackendDoc> get(String path) {
+            return store.get(path);
+        }
+
+        @Override
+        public ApiFuture<List<BackendDoc>> getAll(List<String> paths) {
+            return store.getAll(paths);
+        }
+
+        @Override
+        public ApiFuture<BackendQuerySnapshot> query(BackendQuery query) {
+            return store.query(query);
+        }
+
+        @Override
+        public ApiFuture<Void> commit(List<Write> writes) {
+            ApiFuture<Void> applied = store.commit(writes);
+            List<Write> durable = forwarded(writes);
+            if (durable.isEmpty()) {
+                return applied;
+            }
+            return ApiFutures.transform(applied, done -> {
+                try {
+                    forwarder.execute(() -> forward(durable));
+                } catch (RejectedExecutionException e) {
+                    System.err.println("LAN session closed; not forwarding " + durable.size() + " write(s) upstream");
+                }
+                return done;
+            }, MoreExecutors.directExecutor());
+        }
+
+        @Override
+        public Registration listen(BackendQuery query, SnapshotListener listener) {
+            return store.listen(query, listener);
+        }
+
+        @Override
+        public Registration listenDocument(String path, DocumentListener listener) {
+            return store.listenDocument(path, listener);
+        }
+
+        @Override
+        public <T> ApiFuture<T> runTransaction(TransactionFunction<T> function) {
+            return store.runTransaction(function);
+        }
+
+        @Override
+        public void close() {
+            store.close();
+        }
+    }
+
+    /**
+     * IPv4 addresses peers on the local network can use to reach this machine.
+     */
+    public static List<String> localAddresses() {
+        List<String> addresses = new ArrayList<>();
+        try {
+            for (NetworkInterface nic : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!nic.isUp() || nic.isLoopback() || nic.isVirtual()) {
+                    continue;
+                }
+                for (InetAddress address : Collections.list(nic.getInetAddresses())) {
+                    if (address instanceof Inet4Address && address.isSiteLocalAddress()) {
+                        addresses.add(address.getHostAddress());
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            System.err.println("Could not list network interfaces: " + e.getMessage());
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,541 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves a {@link CollaborationBackend} to {@link LanRelayClient}s on the local network.
+ * One selector thread does all socket I/O. Responses and listener events are queued
+ * per peer and written with gathering writes, so everything produced between two
+ * selector wakeups leaves in one system call. A peer whose queue passes
+ * {@link #HIGH_WATER} is not read from until it drains below {@link #LOW_WATER};
+ * one that falls {@link #MAX_OUTBOUND} behind is disconnected.
+ *
+ * Only peers on the local network may connect, and each must open with a HELLO holding
+ * the session code before anything else is answered. Peers only reach documents under
+ * the served scope, normally one project.
+ */
+public class LanRelayServer {
+    private static final int HIGH_WATER = 1024 * 1024;
+    private static final int LOW_WATER = 256 * 1024;
+    private static final long MAX_OUTBOUND = 64L * 1024 * 1024;
+    private static final int MAX_GATHER = 64; // Buffers per gathering write
+    private static final int READ_BUFFER = 64 * 1024;
+
+    private final CollaborationBackend backend;
+    private final byte[] sessionCode;
+    private final String scope;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Set<Peer> peers = ConcurrentHashMap.newKeySet();
+    private final Queue<Peer> flushQueue = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Bind and start serving.
+     *
+     * @param port Port to listen on, or 0 for any free port
+     * @param sessionCode Code peers must present in their HELLO
+     * @param scope Path of the document peers may reach, with everything below it
+     */
+    public LanRelayServer(CollaborationBackend backend, int port, String sessionCode, String scope) throws IOException {
+        this.backend = backend;
+        this.sessionCode = sessionCode.getBytes(StandardCharsets.UTF_8);
+        this.scope = scope;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        thread = new Thread(this::run, "lan-relay");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("LAN relay listening on port " + getPort());
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public int getPeerCount() {
+        return peers.size();
+    }
+
+    /**
+     * Disconnect every peer and stop listening.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Tear down on the selector thread, which owns the selector's key sets.
+     */
+    private void shutdown() {
+        for (Peer peer : new ArrayList<>(peers)) {
+            disconnect(peer, null);
+        }
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing LAN relay: " + e.getMessage());
+        }
+        System.out.println("LAN relay stopped");
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+                Peer pending;
+                while ((pending = flushQueue.poll()) != null) {
+                    pending.flushScheduled.set(false);
+                    flush(pending);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Peer peer = (Peer) key.attachment();
+                    if (key.isReadable()) {
+                        read(peer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(peer);
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("LAN relay error: " + e.getMessage());
+                }
+            }
+        }
+        shutdown();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        InetAddress remote = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        if (!isLocalNetwork(remote)) {
+            System.out.println("LAN relay refused connection from " + remote.getHostAddress());
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Peer peer = new Peer(channel);
+        peer.key = channel.register(selector, SelectionKey.OP_READ, peer);
+        peers.add(peer);
+        System.out.println("LAN relay peer connected: " + channel.getRemoteAddress());
+    }
+
+    private static boolean isLocalNetwork(InetAddress address) {
+        if (address.isLoopbackAddress() || address.isSiteLocalAddress() || address.isLinkLocalAddress()) {
+            return true;
+        }
+        // IPv6 unique local addresses, fc00::/7
+        return address instanceof Inet6Address && (address.getAddress()[0] & 0xfe) == 0xfc;
+    }
+
+    // ---- Reading ----
+
+    private void read(Peer peer) {
+        try {
+            int n = peer.channel.read(peer.in);
+            if (n < 0) {
+                disconnect(peer, null);
+                return;
+            }
+
+            peer.in.flip();
+            while (peer.in.remaining() >= 4) {
+                int length = peer.in.getInt(peer.in.position());
+                if (length < RelayProtocol.HEADER - 4 || length > RelayProtocol.MAX_FRAME) {
+                    disconnect(peer, "bad frame length " + length);
+                    return;
+                }
+                if (peer.in.remaining() < 4 + length) {
+                    if (peer.in.capacity() < 4 + length) {
+                        // Grow to fit this frame; the rest of it is still on the wire
+                        ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                        larger.put(peer.in);
+                        peer.in = larger;
+                        return;
+                    }
+                    break;
+                }
+                peer.in.getInt();
+                byte[] payload = new byte[length];
+                peer.in.get(payload);
+                if (peer.rejected) {
+                    continue; // Waiting for the rejection to go out
+                }
+                RelayProtocol.Frame frame = new RelayProtocol.Frame(payload);
+                try {
+                    handle(peer, frame);
+                } catch (BackendException e) {
+                    sendError(peer, frame.id, e);
+                }
+            }
+            peer.in.compact();
+        } catch (IOException | RuntimeException e) {
+            disconnect(peer, e.getMessage());
+        }
+    }
+
+    private void handle(Peer peer, RelayProtocol.Frame frame) throws IOException {
+        DataInputStream in = frame.in;
+        int id = frame.id;
+        if (!peer.authenticated) {
+            hello(peer, frame);
+            return;
+        }
+        switch (frame.type) {
+            case RelayProtocol.GET:
+                respond(peer, id, backend.get(checkPath(RelayProtocol.readString(in))),
+                        (out, doc) -> RelayProtocol.writeDoc(out, doc));
+                break;
+            case RelayProtocol.GET_ALL: {
+                int size = in.readInt();
+                List<String> paths = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    paths.add(checkPath(RelayProtocol.readString(in)));
+                }
+                respond(peer, id, backend.getAll(paths), RelayProtocol::writeDocs);
+                break;
+            }
+            case RelayProtocol.QUERY:
+                respond(peer, id, backend.query(checkQuery(RelayProtocol.readQuery(in, backend))),
+                        RelayProtocol::writeSnapshot);
+                break;
+            case RelayProtocol.COMMIT:
+                respond(peer, id, backend.commit(checkWrites(RelayProtocol.readWrites(in, backend))),
+                        (out, done) -> { });
+                break;
+            case RelayProtocol.LISTEN: {
+                BackendQuery query = checkQuery(RelayProtocol.readQuery(in, backend));
+                peer.listeners.put(id, backend.listen(query, (snapshot, error) -> {
+                    if (error != null) {
+                        sendError(peer, id, error);
+                    } else {
+                        send(peer, RelayProtocol.EVENT, id,
+                                out -> RelayProtocol.writeChanges(out, snapshot.getDocumentChanges()));
+                    }
+                }));
+                break;
+            }
+            case RelayProtocol.LISTEN_DOC:
+                peer.listeners.put(id, backend.listenDocument(checkPath(RelayProtocol.readString(in)), (doc, error) -> {
+                    if (error != null) {
+                        sendError(peer, id, error);
+                    } else {
+                        send(peer, RelayProtocol.DOC_EVENT, id, out -> RelayProtocol.writeDoc(out, doc));
+                    }
+                }));
+                break;
+            case RelayProtocol.UNLISTEN: {
+                CollaborationBackend.Registration registration = peer.listeners.remove(id);
+                if (registration != null) {
+                    registration.remove();
+                }
+                break;
+            }
+            case RelayProtocol.TXN_COMMIT:
+                respond(peer, id, commitTransaction(in), (out, done) -> { });
+                break;
+            case RelayProtocol.HELLO:
+                respond(peer, id, ApiFutures.immediateFuture(null), (out, done) -> { });
+                break;
+            default:
+                throw new IOException("Unknown frame type " + frame.type);
+        }
+    }
+
+    /**
+     * The first frame of a connection must present the session code; anything else
+     * gets PERMISSION_DENIED and the connection is closed once that has been sent.
+     */
+    private void hello(Peer peer, RelayProtocol.Frame frame) throws IOException {
+        String code = frame.type == RelayProtocol.HELLO ? RelayProtocol.readString(frame.in) : "";
+        if (frame.type == RelayProtocol.HELLO
+                && MessageDigest.isEqual(sessionCode, code.getBytes(StandardCharsets.UTF_8))) {
+            peer.authenticated = true;
+            send(peer, RelayProtocol.RESULT, frame.id, out -> { });
+            return;
+        }
+        System.out.println("LAN relay rejected peer " + peer.channel.getRemoteAddress() + ": wrong session code");
+        peer.rejected = true;
+        sendError(peer, frame.id, new BackendException("PERMISSION_DENIED", "Wrong LAN session code"));
+    }
+
+    private String checkPath(String path) {
+        if (!path.equals(scope) && !path.startsWith(scope + "/")) {
+            throw new BackendException("PERMISSION_DENIED", "Outside this LAN session: " + path);
+        }
+        return path;
+    }
+
+    private BackendQuery checkQuery(BackendQuery query) {
+        checkPath(query.getCollectionPath());
+        return query;
+    }
+
+    private List<CollaborationBackend.Write> checkWrites(List<CollaborationBackend.Write> writes) {
+        for (CollaborationBackend.Write write : writes) {
+            checkPath(write.getPath());
+        }
+        return writes;
+    }
+
+    /**
+     * Apply a client transaction if every document it read is still as it saw it;
+     * otherwise fail with ABORTED so the client runs its function again.
+     */
+    private ApiFuture<Void> commitTransaction(DataInputStream in) throws IOException {
+        int reads = in.readInt();
+        List<BackendDoc> seen = new ArrayList<>(reads);
+        for (int i = 0; i < reads; i++) {
+            BackendDoc doc = RelayProtocol.readDoc(in, backend);
+            checkPath(doc.getReference().getPath());
+            seen.add(doc);
+        }
+        List<CollaborationBackend.Write> writes = checkWrites(RelayProtocol.readWrites(in, backend));
+
+        return backend.runTransaction(transaction -> {
+            for (BackendDoc expected : seen) {
+                BackendDoc current = transaction.get(expected.getReference()).get();
+                if (!Objects.equals(current.getData(), expected.getData())) {
+                    throw new BackendException("ABORTED", "Document changed during transaction: " + expected.getReference());
+                }
+            }
+            for (CollaborationBackend.Write write : writes) {
+                BackendDocRef ref = backend.document(write.getPath());
+                switch (write.getType()) {
+                    case SET:
+                        transaction.set(ref, write.getData());
+                        break;
+                    case MERGE:
+                        transaction.merge(ref, write.getData());
+                        break;
+                    case UPDATE:
+                        transaction.update(ref, write.getData());
+                        break;
+                    case CREATE:
+                        transaction.create(ref, write.getData());
+                        break;
+                    case DELETE:
+                        transaction.delete(ref);
+                        break;
+                }
+            }
+            return null;
+        });
+    }
+
+    // ---- Writing ----
+
+    private interface Body<T> {
+        void write(DataOutputStream out, T value) throws IOException;
+    }
+
+    private interface FrameBody {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private <T> void respond(Peer peer, int id, ApiFuture<T> future, Body<T> body) {
+        future.addListener(() -> {
+            T value;
+            try {
+                value = future.get();
+            } catch (ExecutionException e) {
+                sendError(peer, id, e.getCause());
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            send(peer, RelayProtocol.RESULT, id, out -> body.write(out, value));
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void sendError(Peer peer, int id, Throwable error) {
+        String code = BackendException.codeOf(error);
+        String message = error.getMessage() != null ? error.getMessage() : error.toString();
+        if (code != null && message.startsWith(code + ": ")) {
+            message = message.substring(code.length() + 2);
+        }
+        String text = message;
+        send(peer, RelayProtocol.ERROR, id, out -> {
+            RelayProtocol.writeString(out, code != null ? code : "UNKNOWN");
+            RelayProtocol.writeString(out, text);
+        });
+    }
+
+    /**
+     * Queue a frame for a peer. Safe from any thread; the selector thread writes it.
+     */
+    private void send(Peer peer, byte type, int id, FrameBody body) {
+        ByteBuffer frame;
+        try {
+            RelayProtocol.FrameWriter writer = new RelayProtocol.FrameWriter(type, id);
+            body.write(writer.out);
+            frame = writer.toBuffer();
+        } catch (IOException | RuntimeException e) {
+            if (type != RelayProtocol.ERROR) {
+                sendError(peer, id, e);
+            }
+            return;
+        }
+
+        boolean overflow;
+        synchronized (peer) {
+            if (peer.closed) {
+                return;
+            }
+            peer.out.add(frame);
+            peer.outBytes += frame.remaining();
+            overflow = peer.outBytes > MAX_OUTBOUND;
+        }
+        if (overflow) {
+            disconnect(peer, "fell too far behind");
+            return;
+        }
+        if (peer.flushScheduled.compareAndSet(false, true)) {
+            flushQueue.add(peer);
+            selector.wakeup();
+        }
+    }
+
+    private void flush(Peer peer) {
+        if (!peer.key.isValid()) {
+            return;
+        }
+        try {
+            long queued;
+            synchronized (peer) {
+                while (!peer.out.isEmpty()) {
+                    ByteBuffer[] batch = peer.out.stream().limit(MAX_GATHER).toArray(ByteBuffer[]::new);
+                    long written = peer.channel.write(batch);
+                    peer.outBytes -= written;
+                    while (!peer.out.isEmpty() && !peer.out.peek().hasRemaining()) {
+                        peer.out.poll();
+                    }
+                    if (written == 0) {
+                        break; // Socket buffer full; wait for OP_WRITE
+                    }
+                }
+                queued = peer.outBytes;
+            }
+
+            int ops = SelectionKey.OP_READ;
+            if (queued > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (queued > HIGH_WATER) {
+                peer.readPaused = true;
+            } else if (queued < LOW_WATER) {
+                peer.readPaused = false;
+            }
+            if (peer.readPaused) {
+                ops &= ~SelectionKey.OP_READ;
+            }
+            if (peer.rejected && queued == 0) {
+                disconnect(peer, "rejected");
+                return;
+            }
+            peer.key.interestOps(ops);
+        } catch (IOException e) {
+            disconnect(peer, e.getMessage());
+        }
+    }
+
+    private void disconnect(Peer peer, String reason) {
+        synchronized (peer) {
+            if (peer.closed) {
+                return;
+            }
+            peer.closed = true;
+            peer.out.clear();
+        }
+        peers.remove(peer);
+        for (CollaborationBackend.Registration registration : peer.listeners.values()) {
+            registration.remove();
+        }
+        peer.listeners.clear();
+        try {
+            if (peer.key != null) {
+                peer.key.cancel();
+            }
+            peer.channel.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+        System.out.println("LAN relay peer disconnected" + (reason != null ? ": " + reason : ""));
+    }
+
+    private static final class Peer {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        long outBytes;                 // Guarded by this
+        boolean closed;                // Guarded by this
+        boolean readPaused;            // Selector thread only
+        boolean authenticated;         // Selector thread only
+        boolean rejected;              // Selector thread only; closed once its error is sent
+        final AtomicBoolean flushScheduled = new AtomicBoolean();
+        final Map<Integer, CollaborationBackend.Registration> listeners = new ConcurrentHashMap<>();
+
+        Peer(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
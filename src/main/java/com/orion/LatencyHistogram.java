@@ -0,0 +1,112 @@
+package com.orion;
+
+import java.util.Arrays;
+
+/**
+ * Latency histogram with log-linear buckets, in the style of HdrHistogram.
+ * Each power of two is split into 16 linear sub-buckets, so any recorded value is
+ * reported within about 6% using a fixed 4 KB of counts, whatever the range.
+ * Values are microseconds, from 0 to about 19 hours; larger values land in the top bucket.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 32;                      // Exact below this
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int MAX_SHIFT = 32;                        // Top bucket starts at 2^36 us
+    private static final int BUCKETS = SUB_BUCKETS + MAX_SHIFT * HALF;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    public synchronized void record(long micros) {
+        long value = Math.max(0, micros);
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add every sample of another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        LatencyHistogram copy = other.copy(); // Never hold both locks
+        synchronized (this) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += copy.counts[i];
+            }
+            count += copy.count;
+            sum += copy.sum;
+            max = Math.max(max, copy.max);
+        }
+    }
+
+    public synchronized LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        System.arraycopy(counts, 0, copy.counts, 0, BUCKETS);
+        copy.count = count;
+        copy.sum = sum;
+        copy.max = max;
+        return copy;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Smallest value that at least {@code percentile} percent of the samples do not exceed,
+     * as the upper end of its bucket (never above the largest sample).
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 4; // Keep the top five bits
+        if (shift > MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        int mantissa = (int) (value >>> shift);                  // In [16, 32)
+        return SUB_BUCKETS + (shift - 1) * HALF + (mantissa - HALF);
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long mantissa = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,442 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the backend bills for: document reads, writes, deletes and documents
+ * delivered to listeners, plus an estimate of the bytes moved, per feature and project.
+ * The feature comes from the collection a document lives in (see {@link #featureOf}),
+ * so every service is covered without tagging its call sites.
+ *
+ * Counts are shown in the sync diagnostics and appended to
+ * {@code ~/.orion/backend-usage.csv} every few minutes and on exit.
+ */
+public class MeteredBackend implements CollaborationBackend {
+    private static final String PROJECTS_COLLECTION = "projects";
+    private static final String NO_PROJECT = "-";
+    private static final long EXPORT_INTERVAL_MINUTES = 5;
+    private static final Path EXPORT_FILE = Path.of(
+            System.getProperty("user.home"), ".orion", "backend-usage.csv");
+
+    private static final List<MeteredBackend> instances = new ArrayList<>();
+
+    /** Counts for one feature in one project. */
+    public static final class Usage {
+        private final String feature;
+        private final String projectId;
+        private final LongAdder reads = new LongAdder();
+        private final LongAdder writes = new LongAdder();
+        private final LongAdder deletes = new LongAdder();
+        private final LongAdder deliveries = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+
+        Usage(String feature, String projectId) {
+            this.feature = feature;
+            this.projectId = projectId;
+        }
+
+        public String getFeature() {
+            return feature;
+        }
+
+        /** Project ID, or "-" for documents outside any project. */
+        public String getProjectId() {
+            return projectId;
+        }
+
+        public long getReads() {
+            return reads.sum();
+        }
+
+        public long getWrites() {
+            return writes.sum();
+        }
+
+        public long getDeletes() {
+            return deletes.sum();
+        }
+
+        /** Documents delivered to snapshot listeners. */
+        public long getDeliveries() {
+            return deliveries.sum();
+        }
+
+        /** Estimated document bytes read, written and delivered. */
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        long total() {
+            return getReads() + getWrites() + getDeletes() + getDeliveries();
+        }
+    }
+
+    private final CollaborationBackend delegate;
+    private final Map<String, Usage> usage = new ConcurrentSkipListMap<>(); // Sorted for display
+    private final Map<String, Long> exportedTotals = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService exporter;
+
+    public MeteredBackend(CollaborationBackend delegate) {
+        this.delegate = delegate;
+        this.exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "backend-usage-export");
+            t.setDaemon(true);
+            return t;
+        });
+        exporter.scheduleAtFixedRate(this::exportIfChanged,
+                EXPORT_INTERVAL_MINUTES, EXPORT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        synchronized (instances) {
+            instances.add(this);
+        }
+    }
+
+    /**
+     * Feature a document belongs to, from the collection it is in.
+     */
+    static String featureOf(String documentPath) {
+        String[] segments = documentPath.split("/");
+        String collection = segments.length >= 2 ? segments[segments.length - 2] : segments[0];
+        switch (collection) {
+            case "members":
+            case "typing":
+                return "presence";
+            case "changeHistory":
+                return "history";
+            case "pendingProjects":
+                return "pending projects";
+            case "notifications":
+                return "notifications";
+            case "files":
+            case "ops":
+            case CoEditingLog.BASES_SUBCOLLECTION:
+            case "chunks":
+            case WorkspaceManifest.TREE_SUBCOLLECTION:
+            case "outboxReceipts":
+                return "files";
+            case PROJECTS_COLLECTION:
+            case "codes":
+                return "projects";
+            default:
+                return collection;
+        }
+    }
+
+    private static String projectOf(String path) {
+        String[] segments = path.split("/");
+        return segments.length >= 2 && segments[0].equals(PROJECTS_COLLECTION) ? segments[1] : NO_PROJECT;
+    }
+
+    private Usage usageOf(String path) {
+        String feature = featureOf(path);
+        String projectId = projectOf(path);
+        return usage.computeIfAbsent(feature + "\t" + projectId, key -> new Usage(feature, projectId));
+    }
+
+    private void countRead(BackendDoc doc) {
+        Usage counts = usageOf(doc.getReference().getPath());
+        counts.reads.increment();
+        counts.bytes.add(sizeOf(doc));
+    }
+
+    private void countDelivery(BackendDoc doc) {
+        Usage counts = usageOf(doc.getReference().getPath());
+        counts.deliveries.increment();
+        counts.bytes.add(sizeOf(doc));
+    }
+
+    private void countWrite(Write write) {
+        Usage counts = usageOf(write.getPath());
+        if (write.getType() == Write.Type.DELETE) {
+            counts.deletes.increment();
+        } else {
+            counts.writes.increment();
+            counts.bytes.add(write.getPath().length() + 16 + sizeOf(write.getData()));
+        }
+    }
+
+    /**
+     * Estimated stored size of a document, following Firestore's rules: the name,
+     * each field's name and value, and 32 bytes of overhead.
+     */
+    static long sizeOf(BackendDoc doc) {
+        return doc.getReference().getPath().length() + 16 + (doc.exists() ? sizeOf(doc.getData()) + 32 : 0);
+    }
+
+    private static long sizeOf(Object value) {
+        if (value == null || value instanceof Boolean) {
+            return 1;
+        }
+        if (value instanceof String) {
+            return ((String) value).getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        if (value instanceof BackendBlob) {
+            return ((BackendBlob) value).length();
+        }
+        if (value instanceof Map) {
+            long size = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += sizeOf(String.valueOf(entry.getKey())) + sizeOf(entry.getValue());
+            }
+            return size;
+        }
+        if (value instanceof Collection) {
+            long size = 0;
+            for (Object element : (Collection<?>) value) {
+                size += sizeOf(element);
+            }
+            return size;
+        }
+        // Numbers, timestamps and sentinels such as increments
+        return value instanceof BackendTimestamp || value instanceof Number || value instanceof BackendValue ? 8 : 16;
+    }
+
+    @Override
+    public ApiFuture<BackendDoc> get(String path) {
+        return ApiFutures.transform(delegate.get(path), doc -> {
+            countRead(doc);
+            return doc;
+        }, MoreExecutors.directExecutor());
+    }
+
+    @Override
+    public ApiFuture<List<BackendDoc>> getAll(List<String> paths) {
+        return ApiFutures.transform(delegate.getAll(paths), docs -> {
+            docs.forEach(this::countRead);
+            return docs;
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * A query is billed per result, and at least one read even when nothing matches.
+     */
+    @Override
+    public ApiFuture<BackendQuerySnapshot> query(BackendQuery query) {
+        return ApiFutures.transform(delegate.query(query), snapshot -> {
+            List<BackendDoc> documents = snapshot.getDocuments();
+            documents.forEach(this::countRead);
+            if (documents.isEmpty()) {
+                usageOf(query.getCollectionPath() + "/-").reads.increment();
+            }
+            return snapshot;
+        }, MoreExecutors.directExecutor());
+    }
+
+    @Override
+    public ApiFuture<Void> commit(List<Write> writes) {
+        ApiFuture<Void> committed = delegate.commit(writes);
+        ApiFutures.transform(committed, done -> {
+            writes.forEach(this::countWrite);
+            return done;
+        }, MoreExecutors.directExecutor());
+        return committed;
+    }
+
+    @Override
+    public Registration listen(BackendQuery query, SnapshotListener listener) {
+        return delegate.listen(query, (snapshot, error) -> {
+            if (snapshot != null) {
+                for (BackendQuerySnapshot.Change change : snapshot.getDocumentChanges()) {
+                    countDelivery(change.getDocument());
+                }
+            }
+            listener.onEvent(snapshot, error);
+        });
+    }
+
+    @Override
+    public Registration listenDocument(String path, DocumentListener listener) {
+        return delegate.listenDocument(path, (snapshot, error) -> {
+            if (snapshot != null) {
+                countDelivery(snapshot);
+            }
+            listener.onEvent(snapshot, error);
+        });
+    }
+
+    /**
+     * Reads are counted on every attempt; writes only for the attempt that commits.
+     */
+    @Override
+    public <T> ApiFuture<T> runTransaction(TransactionFunction<T> function) {
+        List<List<Write>> attempts = new ArrayList<>();
+        ApiFuture<T> result = delegate.runTransaction(transaction -> {
+            MeteredTransaction metered = new MeteredTransaction(transaction);
+            synchronized (attempts) {
+                attempts.add(metered.writes);
+            }
+            return function.apply(metered);
+        });
+        ApiFutures.transform(result, value -> {
+            synchronized (attempts) {
+                if (!attempts.isEmpty()) {
+                    attempts.get(attempts.size() - 1).forEach(this::countWrite);
+                }
+            }
+            return value;
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    private final class MeteredTransaction implements BackendTransaction {
+        private final BackendTransaction transaction;
+        private final List<Write> writes = new ArrayList<>();
+
+        MeteredTransaction(BackendTransaction transaction) {
+            this.transaction = transaction;
+        }
+
+        @Override
+        public ApiFuture<BackendDoc> get(BackendDocRef ref) {
+            return ApiFutures.transform(transaction.get(ref), doc -> {
+                countRead(doc);
+                return doc;
+            }, MoreExecutors.directExecutor());
+        }
+
+        @Override
+        public BackendTransaction set(BackendDocRef ref, Map<String, Object> data) {
+            writes.add(new Write(Write.Type.SET, ref.getPath(), data));
+            transaction.set(ref, data);
+            return this;
+        }
+
+        @Override
+        public BackendTransaction merge(BackendDocRef ref, Map<String, Object> data) {
+            writes.add(new Write(Write.Type.MERGE, ref.getPath(), data));
+            transaction.merge(ref, data);
+            return this;
+        }
+
+        @Override
+        public BackendTransaction update(BackendDocRef ref, Map<String, Object> data) {
+            writes.add(new Write(Write.Type.UPDATE, ref.getPath(), data));
+            transaction.update(ref, data);
+            return this;
+        }
+
+        @Override
+        public BackendTransaction create(BackendDocRef ref, Map<String, Object> data) {
+            writes.add(new Write(Write.Type.CREATE, ref.getPath(), data));
+            transaction.create(ref, data);
+            return this;
+        }
+
+        @Override
+        public BackendTransaction delete(BackendDocRef ref) {
+            writes.add(new Write(Write.Type.DELETE, ref.getPath(), null));
+            transaction.delete(ref);
+            return this;
+        }
+    }
+
+    @Override
+    public String newDocumentId() {
+        return delegate.newDocumentId();
+    }
+
+    @Override
+    public void close() {
+        exporter.shutdownNow();
+        exportIfChanged();
+        synchronized (instances) {
+            instances.remove(this);
+        }
+        delegate.close();
+    }
+
+    /**
+     * Counts so far, most used first.
+     */
+    public List<Usage> getUsage() {
+        List<Usage> rows = new ArrayList<>(usage.values());
+        rows.sort((a, b) -> Long.compare(b.total(), a.total()));
+        return rows;
+    }
+
+    /**
+     * Text table of the counts, for the diagnostics panel.
+     */
+    public String formatTable() {
+        StringBuilder table = new StringBuilder(String.format(Locale.ROOT, "%-18s %-22s %8s %8s %8s %10s %10s%n",
+                "Feature", "Project", "Reads", "Writes", "Deletes", "Delivered", "KB"));
+        for (Usage row : getUsage()) {
+            table.append(String.format(Locale.ROOT, "%-18s %-22s %8d %8d %8d %10d %10.1f%n",
+                    row.getFeature(), row.getProjectId(), row.getReads(), row.getWrites(), row.getDeletes(),
+                    row.getDeliveries(), row.getBytes() / 1024.0));
+        }
+        return table.toString();
+    }
+
+    /** {@link #formatTable()} for every metered backend in use. */
+    public static String describeAll() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (instances) {
+            for (MeteredBackend instance : instances) {
+                sb.append(instance.formatTable());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Append the running counts to the usage file if they changed since the last time.
+     */
+    public synchronized void exportIfChanged() {
+        List<Usage> changed = new ArrayList<>();
+        for (Map.Entry<String, Usage> entry : usage.entrySet()) {
+            if (entry.getValue().total() != exportedTotals.getOrDefault(entry.getKey(), 0L)) {
+                changed.add(entry.getValue());
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        try {
+            Files.createDirectories(EXPORT_FILE.getParent());
+            StringBuilder lines = new StringBuilder();
+            if (!Files.exists(EXPORT_FILE)) {
+                lines.append("timestamp,feature,project,reads,writes,deletes,deliveries,bytes\n");
+            }
+            String now = Instant.now().toString();
+            for (Usage row : changed) {
+                lines.append(String.format(Locale.ROOT, "%s,%s,%s,%d,%d,%d,%d,%d%n", now, row.getFeature(),
+                        row.getProjectId(), row.getReads(), row.getWrites(), row.getDeletes(),
+                        row.getDeliveries(), row.getBytes()));
+                exportedTotals.put(row.getFeature() + "\t" + row.getProjectId(), row.total());
+            }
+            Files.writeString(EXPORT_FILE, lines, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Failed to export backend usage: " + e.getMessage());
+        }
+    }
+
+    /** {@link #exportIfChanged()} for every metered backend in use; called on exit. */
+    public static void exportAll() {
+        synchronized (instances) {
+            for (MeteredBackend instance : instances) {
+                instance.exportIfChanged();
+            }
+        }
+    }
+}
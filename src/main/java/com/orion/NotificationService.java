@@ -1,7 +1,6 @@
 package com.orion;
 
 import com.google.api.core.ApiFuture;
-import com.google.cloud.firestore.*;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -12,11 +11,15 @@ import java.util.concurrent.CompletableFuture;
  * Creates notification documents in Firestore that the Android app listens to.
  */
 public class NotificationService {
-    private final Firestore firestore;
+    private final CollaborationBackend backend;
     private static final String NOTIFICATIONS_COLLECTION = "notifications";
     
     public NotificationService() {
-        this.firestore = FirebaseService.getInstance().getFirestore();
+        this(FirebaseService.getInstance().getBackend());
+    }
+
+    public NotificationService(CollaborationBackend backend) {
+        this.backend = backend;
     }
     
     /**
@@ -50,15 +53,15 @@ public class NotificationService {
             notification.put("developerName", developerName);
             notification.put("githubRepoLink", githubRepoLink);
             notification.put("read", false);
-            notification.put("timestamp", FieldValue.serverTimestamp());
-            notification.put("createdAt", FieldValue.serverTimestamp());
+            notification.put("timestamp", BackendValue.serverTimestamp());
+            notification.put("createdAt", BackendValue.serverTimestamp());
             
-            // Add to Firestore
-            ApiFuture<DocumentReference> addFuture = firestore.collection(NOTIFICATIONS_COLLECTION).add(notification);
+            // Add to the backend
+            ApiFuture<BackendDocRef> addFuture = backend.collection(NOTIFICATIONS_COLLECTION).add(notification);
             
             addFuture.addListener(() -> {
                 try {
-                    DocumentReference docRef = addFuture.get();
+                    BackendDocRef docRef = addFuture.get();
                     System.out.println("Notification created with ID: " + docRef.getId());
                     future.complete(null);
                 } catch (Exception e) {
@@ -105,15 +108,15 @@ public class NotificationService {
                 notification.put("rejectionReason", rejectionReason);
             }
             notification.put("read", false);
-            notification.put("timestamp", FieldValue.serverTimestamp());
-            notification.put("createdAt", FieldValue.serverTimestamp());
+            notification.put("timestamp", BackendValue.serverTimestamp());
+            notification.put("createdAt", BackendValue.serverTimestamp());
             
-            // Add to Firestore
-            ApiFuture<DocumentReference> addFuture = firestore.collection(NOTIFICATIONS_COLLECTION).add(notification);
+            // Add to the backend
+            ApiFuture<BackendDocRef> addFuture = backend.collection(NOTIFICATIONS_COLLECTION).add(notification);
             
             addFuture.addListener(() -> {
                 try {
-                    DocumentReference docRef = addFuture.get();
+                    BackendDocRef docRef = addFuture.get();
                     System.out.println("Rejection notification created with ID: " + docRef.getId());
                     future.complete(null);
                 } catch (Exception e) {
@@ -155,15 +158,15 @@ public class NotificationService {
             notification.put("projectId", projectId);
             notification.put("projectTitle", projectTitle);
             notification.put("read", false);
-            notification.put("timestamp", FieldValue.serverTimestamp());
-            notification.put("createdAt", FieldValue.serverTimestamp());
+            notification.put("timestamp", BackendValue.serverTimestamp());
+            notification.put("createdAt", BackendValue.serverTimestamp());
             
-            // Add to Firestore
-            ApiFuture<DocumentReference> addFuture = firestore.collection(NOTIFICATIONS_COLLECTION).add(notification);
+            // Add to the backend
+            ApiFuture<BackendDocRef> addFuture = backend.collection(NOTIFICATIONS_COLLECTION).add(notification);
             
             addFuture.addListener(() -> {
                 try {
-                    DocumentReference docRef = addFuture.get();
+                    BackendDocRef docRef = addFuture.get();
                     System.out.println("Acceptance notification created with ID: " + docRef.getId());
                     future.complete(null);
                 } catch (Exception e) {
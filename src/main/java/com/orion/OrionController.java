@@ -1,5 +1,6 @@
 package com.orion;
 
+import com.google.api.core.ApiFuture;
 import com.kodedu.terminalfx.TerminalBuilder;
 import com.kodedu.terminalfx.TerminalTab;
 import com.kodedu.terminalfx.config.TerminalConfig;
@@ -26,6 +27,7 @@ import javafx.scene.layout.VBox;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Region;
 import javafx.scene.layout.Priority;
+import javafx.scene.layout.StackPane;
 import javafx.geometry.Pos;
 import javafx.scene.text.Text;
 import javafx.scene.text.TextFlow;
@@ -33,10 +35,15 @@ import javafx.scene.text.TextFlow;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Map;
 import java.util.List;
 import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import javafx.collections.*;
 
 public class OrionController {
@@ -55,7 +62,10 @@ public class OrionController {
     private File currentFolder;
     private ObservableList<String> openFiles = FXCollections.observableArrayList();
     private Map<String, String> fileContents = new HashMap<>();
-    private Map<String, File> fileObjects = new HashMap<>();
+    private Map<String, File> fileObjects = new ConcurrentHashMap<>(); // Also read by the workspace sync
+    private long editVersion; // Bumped on every change to the editor's text
+    private long cleanEditVersion; // Edit version when the editor last held the file as loaded or saved; -1 if never
+    private Set<String> unsavedFiles = new HashSet<>(); // Open files not shown whose buffers have unsaved edits
     
     private AutoComplete autoComplete;
     private Popup autocompletePopup;
@@ -73,14 +83,20 @@ public class OrionController {
     private ProjectService projectService;
     private CollaborationService collaborationService;
     private Project currentProject;
-    private Map<String, ProjectMember> onlineMembers = new HashMap<>();
+    private Map<String, ProjectMember> onlineMembers = Map.of(); // Immutable view from the presence listener
     private Label collaborationStatusLabel;
     private boolean collaborationEnabled = false;
     private String pendingRemoteContent = null; // Stores remote changes awaiting reload
+    private CoEditingSession coEditingSession; // Real-time session for the file in the editor
+    private String presenceFilePath = null; // Synced file whose caret is shared as presence
+    private RemoteCursorOverlay remoteCursors; // Collaborators' carets in the synced file
+    private LanRelayHost lanRelayHost; // LAN session this instance hosts, if any
+    private LanRelayClient lanRelayClient; // LAN session this instance joined, if any
+    private Stage diagnosticsStage; // Open sync diagnostics window, if any
     
     // Pending Projects from mobile app
     private PendingProjectService pendingProjectService;
-    private com.google.cloud.firestore.ListenerRegistration pendingProjectsListener;
+    private CollaborationBackend.Registration pendingProjectsListener;
     
     // Terminal
     private TerminalTab terminal;
@@ -120,9 +136,20 @@ public class OrionController {
         
         // Apply syntax highlighting on every text change
         codeArea.textProperty().addListener((obs, oldText, newText) -> {
+            editVersion++;
             applySyntaxHighlighting();
         });
         
+        // Share the caret and selection of the synced file; the collaboration service throttles the writes
+        codeArea.caretPositionProperty().addListener((obs, oldPos, newPos) -> publishCaret());
+        codeArea.anchorProperty().addListener((obs, oldPos, newPos) -> publishCaret());
+        
+        // Collaborators' carets go on a layer above the editor, away from its text and styles
+        remoteCursors = new RemoteCursorOverlay(codeArea);
+        StackPane editorStack = new StackPane();
+        splitPane.getItems().set(splitPane.getItems().indexOf(codeArea), editorStack);
+        editorStack.getChildren().addAll(codeArea, remoteCursors);
+        
         // Initialize TerminalFX
         if (terminalPane != null) {
             initializeTerminal();
@@ -284,6 +311,9 @@ public class OrionController {
                 System.err.println("Error closing collaboration: " + e.getMessage());
             }
         }
+        closeLanSession();
+        SyncMetrics.getInstance().exportIfChanged();
+        MeteredBackend.exportAll();
         
         System.out.println("OrionController cleanup complete");
     }
@@ -377,6 +407,11 @@ public class OrionController {
                         setupPresenceListener();
                         statusLabel.setText("Restored project: " + project.getName());
                         System.out.println("Project restored: " + project.getName());
+                        
+                        File projectFolder = new File(project.getWorkspacePath());
+                        if (projectFolder.isDirectory()) {
+                            syncProjectWorkspace(projectFolder);
+                        }
                     });
                 } else {
                     System.out.println("Could not restore project - not found or not a member");
@@ -404,7 +439,9 @@ public class OrionController {
 
     @FXML
     public void handleNew() {
+        stopCoEditing();
         codeArea.clear();
+        markBufferClean();
         currentFile = null;
         statusLabel.setText("New File");
         stage.setTitle("Orion Code Editor - Untitled");
@@ -457,7 +494,10 @@ public class OrionController {
                 openFiles.add(fileName);
             }
             // Display content
+            stopCoEditing();
             codeArea.replaceText(content);
+            markBufferClean();
+            unsavedFiles.remove(fileName);
             currentFile = file;
             statusLabel.setText("Opened: " + fileName);
             stage.setTitle("Orion Code Editor - " + fileName);
@@ -536,13 +576,24 @@ public class OrionController {
     private void saveToFile(File file) {
         try {
             Files.writeString(file.toPath(), codeArea.getText());
+            markBufferClean();
             statusLabel.setText("Saved: " + file.getName());
             
             // Sync to Firestore if collaboration is enabled
             if (collaborationService != null && currentProject != null) {
                 String relativePath = getRelativePath(currentProject.getWorkspacePath(), file.getAbsolutePath());
-                collaborationService.updateFileContent(relativePath, codeArea.getText(), username != null ? username : "Unknown");
-                statusLabel.setText("Saved & synced: " + file.getName());
+                statusLabel.setText("Saved, syncing: " + file.getName());
+                ApiFuture<Void> sync = collaborationService.updateFileContent(
+                        relativePath, codeArea.getText(), username != null ? username : "Unknown");
+                sync.addListener(() -> {
+                    try {
+                        sync.get();
+                        Platform.runLater(() -> statusLabel.setText("Saved & synced: " + file.getName()));
+                    } catch (Exception e) {
+                        String reason = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+                        Platform.runLater(() -> statusLabel.setText("Saved locally, sync failed: " + reason));
+                    }
+                }, Runnable::run);
             }
             
             // Refresh file tree to show new file
@@ -569,10 +620,13 @@ public class OrionController {
             openFiles.remove(fileName);
             fileContents.remove(fileName);
             fileObjects.remove(fileName);
+            unsavedFiles.remove(fileName);
         }
         
         // Clear the editor
+        stopCoEditing();
         codeArea.clear();
+        markBufferClean();
         currentFile = null;
         statusLabel.setText("Closed: " + fileName);
         stage.setTitle("Orion Code Editor - Untitled");
@@ -709,16 +763,30 @@ public class OrionController {
         // Save current file content before switching
         if (currentFile != null) {
             fileContents.put(currentFile.getName(), codeArea.getText());
+            if (hasUnsavedEdits()) {
+                unsavedFiles.add(currentFile.getName());
+            }
         }
         
         // Load selected file
         if (fileContents.containsKey(fileName)) {
             String content = fileContents.get(fileName);
+            stopCoEditing();
             codeArea.replaceText(content);
+            if (unsavedFiles.remove(fileName)) {
+                cleanEditVersion = -1; // Still differs from the file until saved
+            } else {
+                markBufferClean();
+            }
             currentFile = fileObjects.get(fileName);
             statusLabel.setText("Switched to: " + fileName);
             stage.setTitle("Orion Code Editor - " + fileName);
             applySyntaxHighlighting();
+            
+            // Resume real-time co-editing for the file now in the editor
+            if (collaborationEnabled && currentProject != null && currentFile != null) {
+                startCoEditing(currentFile);
+            }
         }
     }
     
@@ -824,13 +892,9 @@ public class OrionController {
     
     private void insertCompletion(String completion) {
         int caretPos = codeArea.getCaretPosition();
-        String text = codeArea.getText();
-        
-        // Remove the partial word and insert completion
-        String before = text.substring(0, autocompleteStartPos);
-        String after = text.substring(caretPos);
         
-        codeArea.replaceText(before + completion + after);
+        // Replace only the partial word so collaborators receive a small edit
+        codeArea.replaceText(autocompleteStartPos, caretPos, completion);
         codeArea.moveTo(autocompleteStartPos + completion.length());
     }
     
@@ -988,6 +1052,17 @@ public class OrionController {
         
         String userId = String.valueOf(currentUser.getId());
         
+        // Finish any deletion that was cut short, without holding up the list
+        Thread resume = new Thread(() -> {
+            try {
+                projectService.resumeInterruptedDeletions(userId);
+            } catch (Exception e) {
+                System.err.println("Failed to resume project deletion: " + e.getMessage());
+            }
+        }, "project-deletion-resume");
+        resume.setDaemon(true);
+        resume.start();
+        
         // Get all projects for this user
         new Thread(() -> {
             try {
@@ -1048,7 +1123,9 @@ public class OrionController {
                                         // Delete project in background thread
                                         new Thread(() -> {
                                             try {
-                                                projectService.deleteProject(project.getId());
+                                                projectService.deleteProject(project.getId(), (deleted, path) ->
+                                                        Platform.runLater(() -> statusLabel.setText(
+                                                                "Deleting \"" + project.getName() + "\": " + deleted + " documents removed")));
                                                 
                                                 Platform.runLater(() -> {
                                                     // If we're deleting the current project, clear it
@@ -1136,12 +1213,70 @@ public class OrionController {
             currentFolder = projectFolder;
             loadFolderIntoTree(projectFolder);
             updateTerminalDirectory(projectFolder);
+            syncProjectWorkspace(projectFolder);
         }
         
         statusLabel.setText("Opened project: " + project.getName() + " (" + project.getCode() + ")");
         stage.setTitle("Orion Code Editor - " + project.getName());
     }
     
+    /**
+     * Bring the project folder in line with the project's files in the background.
+     */
+    private void syncProjectWorkspace(File projectFolder) {
+        String pendingImport = DatabaseManager.getPendingWorkspaceImport(currentProject.getId());
+        if (pendingImport != null && Path.of(pendingImport).equals(projectFolder.toPath().toAbsolutePath().normalize())) {
+            importProjectWorkspace(projectFolder); // Finish an import that was cut short first
+            return;
+        }
+        
+        CollaborationService service = collaborationService;
+        String syncUser = username != null ? username : "Unknown";
+        String workspacePath = currentProject.getWorkspacePath();
+        Thread sync = new Thread(() -> {
+            try {
+                WorkspaceSync.Result result = service.syncWorkspace(projectFolder, syncUser,
+                        path -> fileObjects.values().stream().anyMatch(
+                                file -> getRelativePath(workspacePath, file.getAbsolutePath()).equals(path)));
+                Platform.runLater(() -> {
+                    statusLabel.setText(result.toString());
+                    if (result.getDownloaded() > 0 || result.getDeleted() > 0) {
+                        refreshFileTree();
+                    }
+                    if (!result.getConflicts().isEmpty()) {
+                        showAlert("Sync Conflicts", "These files changed here and were changed or deleted in the project "
+                                + "since the last sync, and were left as they are:\n\n" + String.join("\n", result.getConflicts()));
+                    }
+                });
+            } catch (Exception e) {
+                System.err.println("Workspace sync failed: " + e.getMessage());
+                Platform.runLater(() -> statusLabel.setText("Workspace sync failed: " + e.getMessage()));
+            }
+        }, "workspace-sync");
+        sync.setDaemon(true);
+        sync.start();
+    }
+    
+    /**
+     * Upload the project folder's files in the background, showing progress in the status bar.
+     */
+    private void importProjectWorkspace(File projectFolder) {
+        CollaborationService service = collaborationService;
+        Thread importer = new Thread(() -> {
+            try {
+                WorkspaceImporter.Status result = service.importWorkspace(projectFolder,
+                        status -> Platform.runLater(() -> statusLabel.setText(status.toString())));
+                Platform.runLater(() -> statusLabel.setText(result.toString()));
+            } catch (Exception e) {
+                e.printStackTrace();
+                Platform.runLater(() -> statusLabel.setText(
+                        "Import stopped, it will resume when the project is next opened: " + e.getMessage()));
+            }
+        }, "workspace-import-runner");
+        importer.setDaemon(true);
+        importer.start();
+    }
+    
     /**
      * Leave the current project.
      */
@@ -1167,7 +1302,13 @@ public class OrionController {
                 String projectName = currentProject.getName();
                 
                 // Leave project in collaboration service
+                stopCoEditing();
                 collaborationService.leaveProject();
+                if (lanRelayHost != null || lanRelayClient != null) {
+                    collaborationService.shutdown();
+                    collaborationService = new CollaborationService();
+                    closeLanSession();
+                }
                 
                 // Clear project from session
                 User currentUser = UserSession.getInstance().getCurrentUser();
@@ -1176,7 +1317,9 @@ public class OrionController {
                 }
                 
                 currentProject = null;
-                onlineMembers.clear();
+                presenceFilePath = null;
+                onlineMembers = Map.of();
+                remoteCursors.clear();
                 
                 statusLabel.setText("Left project: " + projectName);
                 stage.setTitle("Orion Code Editor - " + (username != null ? username : "Untitled"));
@@ -1239,6 +1382,9 @@ public class OrionController {
                 
                 statusLabel.setText("Project created: " + projectName);
                 
+                // Upload the existing files so collaborators who join find them
+                importProjectWorkspace(currentFolder);
+                
             } catch (Exception e) {
                 e.printStackTrace();
                 showAlert("Error", "Failed to create project: " + e.getMessage());
@@ -1302,6 +1448,7 @@ public class OrionController {
                     currentFolder = projectFolder;
                     loadFolderIntoTree(projectFolder);
                     updateTerminalDirectory(projectFolder);
+                    syncProjectWorkspace(projectFolder);
                 }
                 
                 showAlert("Success", "Joined project: " + project.getName());
@@ -1314,6 +1461,153 @@ public class OrionController {
         });
     }
     
+    /**
+     * Host a LAN session for the current project: file sync, presence and typing go
+     * through this machine instead of Firestore.
+     */
+    @FXML
+    public void handleHostLanSession() {
+        if (!checkLanSessionAllowed()) {
+            return;
+        }
+        
+        TextInputDialog dialog = new TextInputDialog(String.valueOf(RelayProtocol.DEFAULT_PORT));
+        dialog.setTitle("Host LAN Session");
+        dialog.setHeaderText("Collaborators on this network will sync through this machine");
+        dialog.setContentText("Port:");
+        
+        dialog.showAndWait().ifPresent(portText -> {
+            try {
+                int port = Integer.parseInt(portText.trim());
+                lanRelayHost = new LanRelayHost(FirebaseService.getInstance().getBackend(), currentProject.getId(), port);
+                switchCollaborationBackend(lanRelayHost.getStore());
+                
+                List<String> addresses = LanRelayHost.localAddresses();
+                String where = addresses.isEmpty() ? "this machine's address"
+                        : String.join(" or ", addresses);
+                showAlert("LAN Session Started", "Collaborators can join with Collaborate > Join LAN Session using:\n\n"
+                        + where + ":" + lanRelayHost.getPort() + "\n\nSession code: " + lanRelayHost.getSessionCode());
+                statusLabel.setText("Hosting LAN session on port " + lanRelayHost.getPort());
+            } catch (NumberFormatException e) {
+                showAlert("Invalid Port", "Please enter a port number.");
+            } catch (Exception e) {
+                e.printStackTrace();
+                closeLanSession();
+                showAlert("Error", "Failed to start LAN session: " + e.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Join a LAN session hosted by a collaborator on the same network.
+     */
+    @FXML
+    public void handleJoinLanSession() {
+        if (!checkLanSessionAllowed()) {
+            return;
+        }
+        
+        TextInputDialog dialog = new TextInputDialog();
+        dialog.setTitle("Join LAN Session");
+        dialog.setHeaderText("Sync through a collaborator's machine on this network");
+        dialog.setContentText("Host address (e.g., 192.168.1.20:" + RelayProtocol.DEFAULT_PORT + "):");
+        
+        dialog.showAndWait().ifPresent(address -> {
+            try {
+                String host = address.trim();
+                int port = RelayProtocol.DEFAULT_PORT;
+                int colon = host.lastIndexOf(':');
+                if (colon > 0) {
+                    port = Integer.parseInt(host.substring(colon + 1));
+                    host = host.substring(0, colon);
+                }
+                
+                TextInputDialog codeDialog = new TextInputDialog();
+                codeDialog.setTitle("Join LAN Session");
+                codeDialog.setHeaderText("Enter the session code shown on the host's machine");
+                codeDialog.setContentText("Session code:");
+                Optional<String> code = codeDialog.showAndWait();
+                if (code.isEmpty()) {
+                    return;
+                }
+                
+                lanRelayClient = new LanRelayClient(host, port, code.get().trim().toUpperCase());
+                switchCollaborationBackend(lanRelayClient);
+                statusLabel.setText("Joined LAN session at " + lanRelayClient.getAddress());
+            } catch (NumberFormatException e) {
+                showAlert("Invalid Address", "Please enter an address like 192.168.1.20:" + RelayProtocol.DEFAULT_PORT);
+            } catch (Exception e) {
+                e.printStackTrace();
+                closeLanSession();
+                showAlert("Error", "Failed to join LAN session: " + e.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Leave or stop the LAN session and go back to syncing through Firestore.
+     */
+    @FXML
+    public void handleStopLanSession() {
+        if (lanRelayHost == null && lanRelayClient == null) {
+            showAlert("No LAN Session", "You are not in a LAN session.");
+            return;
+        }
+        
+        switchCollaborationBackend(null);
+        closeLanSession();
+        statusLabel.setText("LAN session ended; syncing through Firestore");
+    }
+    
+    private boolean checkLanSessionAllowed() {
+        if (!collaborationEnabled) {
+            showAlert("Collaboration Unavailable", "Firebase is not configured.");
+            return false;
+        }
+        if (currentProject == null) {
+            showAlert("No Active Project", "Open or join a project first.");
+            return false;
+        }
+        if (lanRelayHost != null || lanRelayClient != null) {
+            showAlert("LAN Session Active", "Stop the current LAN session first.");
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Move the current project's collaboration onto another backend, or back to Firestore
+     * when null, and resume syncing the open file through it.
+     */
+    private void switchCollaborationBackend(CollaborationBackend backend) {
+        User currentUser = UserSession.getInstance().getCurrentUser();
+        
+        stopCoEditing();
+        collaborationService.shutdown();
+        collaborationService = backend != null ? new CollaborationService(backend) : new CollaborationService();
+        
+        if (currentProject != null && currentUser != null) {
+            collaborationService.initializeProject(currentProject.getId(), String.valueOf(currentUser.getId()));
+            setupPresenceListener();
+            if (currentFile != null) {
+                String relativePath = getRelativePath(currentProject.getWorkspacePath(), currentFile.getAbsolutePath());
+                collaborationService.loadFileIntoCache(relativePath, codeArea.getText());
+                enableFileSync(currentFile);
+            }
+        }
+    }
+    
+    private void closeLanSession() {
+        if (lanRelayHost != null) {
+            lanRelayHost.close();
+            lanRelayHost = null;
+        }
+        if (lanRelayClient != null) {
+            lanRelayClient.close();
+            lanRelayClient = null;
+        }
+    }
+    
     /**
      * Display the shareable project code.
      */
@@ -1351,9 +1645,35 @@ public class OrionController {
         collaborationService.listenToPresence(members -> {
             onlineMembers = members;
             updateCollaboratorStatus();
+            updateRemoteCursors();
         });
     }
     
+    private void publishCaret() {
+        if (currentProject != null && presenceFilePath != null) {
+            collaborationService.updateMyPresence(presenceFilePath, codeArea.getCaretPosition(), codeArea.getAnchor());
+        }
+    }
+    
+    /**
+     * Show the carets of collaborators who have the synced file open.
+     */
+    private void updateRemoteCursors() {
+        String myId = collaborationService.getCurrentUserId();
+        Set<String> shown = new HashSet<>();
+        if (presenceFilePath != null) {
+            for (ProjectMember member : onlineMembers.values()) {
+                if (member.isOnline() && presenceFilePath.equals(member.getCurrentFile())
+                        && member.getUserId() != null && !member.getUserId().equals(myId)) {
+                    remoteCursors.show(member.getUserId(), member.getUsername(),
+                            member.getCursorPosition(), member.getSelectionAnchor());
+                    shown.add(member.getUserId());
+                }
+            }
+        }
+        remoteCursors.retainOnly(shown);
+    }
+    
     /**
      * Update status label to show online collaborators.
      */
@@ -1383,56 +1703,135 @@ public class OrionController {
         
         String relativePath = getRelativePath(currentProject.getWorkspacePath(), file.getAbsolutePath());
         
+        // Edits are merged live while the file is co-edited; saves from others need no prompt
+        startCoEditing(file);
+        
         // Listen for remote changes - show notification instead of auto-applying
-        collaborationService.listenToFile(relativePath, newContent -> {
-            if (!codeArea.getText().equals(newContent)) {
-                pendingRemoteContent = newContent;
-                
-                // Show notification that file was updated by someone else
-                Platform.runLater(() -> {
-                    Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
-                    alert.setTitle("File Updated");
+        collaborationService.listenToFile(relativePath, change -> {
+            if (collaborationService.isCoEditing(relativePath)) {
+                return;
+            }
+            String newContent = change.getContent();
+            
+            // A save made on top of this buffer's version, with nothing unsaved here, is just an update.
+            // Content equal to the clean buffer was already skipped by the service.
+            if (!change.isConcurrent() && !hasUnsavedEdits()) {
+                TextEdit.applyTo(codeArea, DiffUtils.computeEdits(codeArea.getText(), newContent));
+                markBufferClean();
+                try {
+                    Files.writeString(file.toPath(), newContent);
+                    collaborationService.loadFileIntoCache(relativePath, newContent);
+                    statusLabel.setText("Updated: " + file.getName());
+                } catch (IOException e) {
+                    System.err.println("Error writing updated file: " + e.getMessage());
+                }
+                return;
+            }
+            
+            // The length check keeps the comparison off the common path
+            if (codeArea.getLength() == newContent.length() && codeArea.getText().equals(newContent)) {
+                // Already has it; it is now the version to compare against
+                collaborationService.loadFileIntoCache(relativePath, newContent);
+                markBufferClean();
+                return;
+            }
+            
+            pendingRemoteContent = newContent;
+            
+            // Show notification that file was updated by someone else
+            Platform.runLater(() -> {
+                Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
+                alert.setTitle("File Updated");
+                if (change.isConcurrent()) {
+                    alert.setHeaderText("Another collaborator saved this file without your latest save");
+                    alert.setContentText("Do you want to reload their version? Your changes will be lost.");
+                } else {
                     alert.setHeaderText("This file was modified by another collaborator");
                     alert.setContentText("Do you want to reload the file? Your unsaved changes will be lost.");
-                    
-                    ButtonType reloadBtn = new ButtonType("Reload");
-                    ButtonType ignoreBtn = new ButtonType("Keep My Version", ButtonBar.ButtonData.CANCEL_CLOSE);
-                    alert.getButtonTypes().setAll(reloadBtn, ignoreBtn);
-                    
-                    alert.showAndWait().ifPresent(response -> {
-                        if (response == reloadBtn) {
-                            // Apply remote changes
-                            int caretPos = codeArea.getCaretPosition();
-                            codeArea.replaceText(newContent);
-                            if (caretPos <= newContent.length()) {
-                                codeArea.moveTo(caretPos);
-                            }
-                            
-                            // Write to disk
-                            try {
-                                Files.writeString(file.toPath(), newContent);
-                                statusLabel.setText("Reloaded: " + file.getName());
-                                pendingRemoteContent = null;
-                            } catch (IOException e) {
-                                System.err.println("Error writing reloaded file: " + e.getMessage());
-                            }
-                        } else {
-                            statusLabel.setText("Ignored remote changes - save to override");
+                }
+                
+                ButtonType reloadBtn = new ButtonType("Reload");
+                ButtonType ignoreBtn = new ButtonType("Keep My Version", ButtonBar.ButtonData.CANCEL_CLOSE);
+                alert.getButtonTypes().setAll(reloadBtn, ignoreBtn);
+                
+                alert.showAndWait().ifPresent(response -> {
+                    if (response == reloadBtn) {
+                        // Apply remote changes as targeted edits so undo history,
+                        // scroll position, caret and selection survive the reload
+                        TextEdit.applyTo(codeArea, DiffUtils.computeEdits(codeArea.getText(), newContent));
+                        markBufferClean();
+                        
+                        // Write to disk
+                        try {
+                            Files.writeString(file.toPath(), newContent);
+                            collaborationService.loadFileIntoCache(relativePath, newContent);
+                            statusLabel.setText("Reloaded: " + file.getName());
+                            pendingRemoteContent = null;
+                        } catch (IOException e) {
+                            System.err.println("Error writing reloaded file: " + e.getMessage());
                         }
-                    });
+                    } else {
+                        statusLabel.setText("Ignored remote changes - save to override");
+                    }
                 });
-            }
+            });
         });
         
-        // Track cursor position and update presence in real-time
-        codeArea.caretPositionProperty().addListener((obs, oldPos, newPos) -> {
-            if (currentProject != null) {
-                collaborationService.updateMyPresence(relativePath, newPos.intValue());
-            }
-        });
+        // Caret moves in this file are now shared as presence
+        presenceFilePath = relativePath;
+        remoteCursors.clear(); // Positions from the previous file mean nothing here
+        updateRemoteCursors();
         
         // Update presence when file is opened
-        collaborationService.updateMyPresence(relativePath, codeArea.getCaretPosition());
+        publishCaret();
+    }
+    
+    /**
+     * Start real-time co-editing of the file shown in the editor.
+     */
+    private void startCoEditing(File file) {
+        stopCoEditing();
+        String relativePath = getRelativePath(currentProject.getWorkspacePath(), file.getAbsolutePath());
+        coEditingSession = collaborationService.startCoEditing(relativePath, codeArea, this::confirmKeepLocalText);
+    }
+    
+    /**
+     * Ask whether to keep the editor's text when it differs from the file's live shared text.
+     */
+    private boolean confirmKeepLocalText(String relativePath) {
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
+        alert.setTitle("Live Edits");
+        alert.setHeaderText("Collaborators are editing " + relativePath);
+        alert.setContentText("The shared version differs from the one in your editor. "
+                + "Use the shared version, or keep yours and send your changes to everyone?");
+        
+        ButtonType sharedBtn = new ButtonType("Use Shared Version");
+        ButtonType keepBtn = new ButtonType("Keep My Version", ButtonBar.ButtonData.CANCEL_CLOSE);
+        alert.getButtonTypes().setAll(sharedBtn, keepBtn);
+        
+        return alert.showAndWait().orElse(sharedBtn) == keepBtn;
+    }
+    
+    /**
+     * Stop co-editing before the editor switches to other content.
+     */
+    private void stopCoEditing() {
+        if (coEditingSession != null) {
+            collaborationService.stopCoEditing(coEditingSession.getFilePath());
+            coEditingSession = null;
+        }
+    }
+    
+    /**
+     * Whether the editor's text changed since the file was last loaded or saved; O(1).
+     */
+    private boolean hasUnsavedEdits() {
+        return editVersion != cleanEditVersion;
+    }
+    
+    /** The editor now holds the file as loaded or saved. */
+    private void markBufferClean() {
+        cleanEditVersion = editVersion;
     }
     
     /**
@@ -1570,6 +1969,68 @@ public class OrionController {
         }
     }
     
+    private static String diagnosticsText() {
+        return SyncMetrics.getInstance().formatTable() + "\n" + ProjectCache.describeAll()
+                + RateLimitedBackend.describeAll() + "\n" + MeteredBackend.describeAll();
+    }
+    
+    /**
+     * Show sync latency diagnostics: how long saves and co-editing batches take to be
+     * queued, acknowledged and applied by collaborators, how often the project cache
+     * saves a read, and what each feature reads and writes. Refreshes every second.
+     */
+    @FXML
+    public void handleViewSyncDiagnostics() {
+        if (diagnosticsStage != null) {
+            diagnosticsStage.toFront();
+            return;
+        }
+        
+        TextArea table = new TextArea();
+        table.setEditable(false);
+        table.setStyle("-fx-font-family: 'monospace'; -fx-font-size: 12px;");
+        VBox.setVgrow(table, Priority.ALWAYS);
+        
+        Label exportLabel = new Label();
+        exportLabel.setStyle("-fx-font-size: 11px; -fx-text-fill: #666;");
+        Button exportButton = new Button("Export");
+        exportButton.setOnAction(e -> {
+            try {
+                exportLabel.setText("Exported to " + SyncMetrics.getInstance().export());
+            } catch (IOException ex) {
+                exportLabel.setText("Export failed: " + ex.getMessage());
+            }
+        });
+        Button resetButton = new Button("Reset");
+        resetButton.setOnAction(e -> {
+            SyncMetrics.getInstance().reset();
+            table.setText(diagnosticsText());
+        });
+        Region spacer = new Region();
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        HBox buttons = new HBox(10, exportLabel, spacer, resetButton, exportButton);
+        buttons.setAlignment(Pos.CENTER_LEFT);
+        
+        VBox content = new VBox(10, table, buttons);
+        content.setPadding(new Insets(10));
+        
+        javafx.animation.Timeline refresh = new javafx.animation.Timeline(new javafx.animation.KeyFrame(
+                javafx.util.Duration.seconds(1), e -> table.setText(diagnosticsText())));
+        refresh.setCycleCount(javafx.animation.Animation.INDEFINITE);
+        table.setText(diagnosticsText());
+        
+        diagnosticsStage = new Stage();
+        diagnosticsStage.setTitle("Sync Diagnostics");
+        diagnosticsStage.initOwner(stage);
+        diagnosticsStage.setScene(new Scene(content, 820, 420));
+        diagnosticsStage.setOnHidden(e -> {
+            refresh.stop();
+            diagnosticsStage = null;
+        });
+        refresh.play();
+        diagnosticsStage.show();
+    }
+    
     // ==================== PENDING PROJECTS METHODS ====================
     
     /**
@@ -0,0 +1,105 @@
+package com.orion;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Transparent compression of large text fields in backend documents.
+ * Text above a threshold is deflated and stored as a {@link BackendBlob} in the same field,
+ * with a {@code <field>Codec} tag naming the codec. Plain string fields, including
+ * those written before compression existed, are read back unchanged.
+ */
+public class PayloadCodec {
+    public static final int COMPRESS_THRESHOLD = 1024;
+    public static final String DEFLATE = "deflate";
+
+    private static final String CODEC_SUFFIX = "Codec";
+
+    /**
+     * Put a text field into document data, compressed if that makes it smaller.
+     *
+     * @param merge True if the data is written with merge, so a stale codec tag must be cleared
+     */
+    public static void put(Map<String, Object> data, String field, String value, boolean merge) {
+        if (value != null && value.length() >= COMPRESS_THRESHOLD) {
+            byte[] raw = value.getBytes(StandardCharsets.UTF_8);
+            byte[] compressed = deflate(raw);
+            if (compressed.length < raw.length) {
+                data.put(field, BackendBlob.fromBytes(compressed));
+                data.put(field + CODEC_SUFFIX, DEFLATE);
+                return;
+            }
+        }
+
+        data.put(field, value);
+        if (merge) {
+            data.put(field + CODEC_SUFFIX, BackendValue.delete());
+        }
+    }
+
+    /**
+     * Read a text field written by {@link #put} or as a plain string.
+     *
+     * @return The text, or null if the field is missing
+     */
+    public static String get(BackendDoc doc, String field) {
+        Object value = doc.get(field);
+        if (value == null || value instanceof String) {
+            return (String) value;
+        }
+        if (!(value instanceof BackendBlob)) {
+            throw new IllegalStateException("Unexpected type for " + field + ": " + value.getClass().getSimpleName());
+        }
+
+        String codec = doc.getString(field + CODEC_SUFFIX);
+        byte[] bytes = ((BackendBlob) value).toBytes();
+        if (DEFLATE.equals(codec)) {
+            return new String(inflate(bytes), StandardCharsets.UTF_8);
+        }
+        if (codec == null) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        throw new IllegalStateException("Unknown codec for " + field + ": " + codec);
+    }
+
+    static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] inflate(byte[] compressed) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated compressed payload");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
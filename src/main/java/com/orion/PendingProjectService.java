@@ -1,6 +1,5 @@
 package com.orion;
 
-import com.google.cloud.firestore.*;
 import com.google.api.core.ApiFuture;
 
 import java.util.ArrayList;
@@ -9,16 +8,20 @@ import java.util.concurrent.CompletableFuture;
 
 /**
  * Service for managing pending projects from mobile app.
- * Handles querying and updating pending projects in Firestore.
+ * Handles querying and updating pending projects in the collaboration backend.
  */
 public class PendingProjectService {
-    private final Firestore firestore;
+    private final CollaborationBackend backend;
     private final NotificationService notificationService;
     private static final String COLLECTION_NAME = "pendingProjects";
     
     public PendingProjectService() {
-        this.firestore = FirebaseService.getInstance().getFirestore();
-        this.notificationService = new NotificationService();
+        this(FirebaseService.getInstance().getBackend());
+    }
+
+    public PendingProjectService(CollaborationBackend backend) {
+        this.backend = backend;
+        this.notificationService = new NotificationService(backend);
     }
     
     /**
@@ -32,16 +35,16 @@ public class PendingProjectService {
         
         try {
             // Simple query - filter completed projects in memory to avoid index requirement
-            ApiFuture<QuerySnapshot> query = firestore.collection(COLLECTION_NAME)
+            ApiFuture<BackendQuerySnapshot> query = backend.collection(COLLECTION_NAME)
                 .whereEqualTo("developerId", developerId)
                 .get();
                 
             query.addListener(() -> {
                 try {
-                    QuerySnapshot querySnapshot = query.get();
+                    BackendQuerySnapshot querySnapshot = query.get();
                     List<PendingProject> projects = new ArrayList<>();
                     
-                    for (DocumentSnapshot doc : querySnapshot.getDocuments()) {
+                    for (BackendDoc doc : querySnapshot.getDocuments()) {
                         PendingProject project = doc.toObject(PendingProject.class);
                         if (project != null && !"COMPLETED".equals(project.getStatus())) {
                             project.setId(doc.getId());
@@ -79,10 +82,10 @@ public class PendingProjectService {
         CompletableFuture<Void> future = new CompletableFuture<>();
         
         try {
-            DocumentReference docRef = firestore.collection(COLLECTION_NAME).document(projectId);
-            ApiFuture<WriteResult> updateFuture = docRef.update(
+            BackendDocRef docRef = backend.collection(COLLECTION_NAME).document(projectId);
+            ApiFuture<Void> updateFuture = docRef.update(
                 "status", newStatus,
-                "updatedAt", FieldValue.serverTimestamp()
+                "updatedAt", BackendValue.serverTimestamp()
             );
             
             updateFuture.addListener(() -> {
@@ -134,12 +137,12 @@ public class PendingProjectService {
         
         try {
             // First, get the project details to find the author
-            DocumentReference docRef = firestore.collection(COLLECTION_NAME).document(projectId);
-            ApiFuture<DocumentSnapshot> getFuture = docRef.get();
+            BackendDocRef docRef = backend.collection(COLLECTION_NAME).document(projectId);
+            ApiFuture<BackendDoc> getFuture = docRef.get();
             
             getFuture.addListener(() -> {
                 try {
-                    DocumentSnapshot projectDoc = getFuture.get();
+                    BackendDoc projectDoc = getFuture.get();
                     if (!projectDoc.exists()) {
                         future.completeExceptionally(new Exception("Project not found"));
                         return;
@@ -152,12 +155,12 @@ public class PendingProjectService {
                     }
                     
                     // Update project status and GitHub link
-                    ApiFuture<WriteResult> updateFuture = docRef.update(
+                    ApiFuture<Void> updateFuture = docRef.update(
                         "status", "SUBMITTED_FOR_REVIEW",
                         "statusEnum", "SUBMITTED_FOR_REVIEW",
                         "githubRepoLink", githubRepoLink,
-                        "submittedAt", FieldValue.serverTimestamp(),
-                        "updatedAt", FieldValue.serverTimestamp()
+                        "submittedAt", BackendValue.serverTimestamp(),
+                        "updatedAt", BackendValue.serverTimestamp()
                     );
                     
                     updateFuture.addListener(() -> {
@@ -212,14 +215,14 @@ public class PendingProjectService {
      * 
      * @param developerId The ID of the developer
      * @param listener Listener to handle updates
-     * @return ListenerRegistration to stop listening
+     * @return Registration to stop listening
      */
-    public ListenerRegistration listenToPendingProjects(String developerId, 
+    public CollaborationBackend.Registration listenToPendingProjects(String developerId, 
                                                         PendingProjectsListener listener) {
-        System.out.println("Starting Firestore listener for developerId: " + developerId);
+        System.out.println("Starting pending projects listener for developerId: " + developerId);
         System.out.println("Collection: " + COLLECTION_NAME);
         
-        return firestore.collection(COLLECTION_NAME)
+        return backend.collection(COLLECTION_NAME)
             .whereEqualTo("developerId", developerId)
             .addSnapshotListener((snapshot, error) -> {
                 if (error != null) {
@@ -233,7 +236,7 @@ public class PendingProjectService {
                     System.out.println("Received snapshot with " + snapshot.size() + " documents");
                     List<PendingProject> projects = new ArrayList<>();
                     
-                    for (DocumentSnapshot doc : snapshot.getDocuments()) {
+                    for (BackendDoc doc : snapshot.getDocuments()) {
                         System.out.println("Document ID: " + doc.getId());
                         System.out.println("  Data: " + doc.getData());
                         
@@ -0,0 +1,127 @@
+package com.orion;
+
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate-limited publisher for the current user's presence (open file, caret and selection).
+ * Keeps only the latest state and sends at most a fixed number of updates per second.
+ * The first change after a quiet period goes out immediately (leading edge), changes
+ * during the cool-down are coalesced into one trailing update, and a state equal to
+ * the last one sent is skipped.
+ */
+public class PresencePublisher {
+    private static final int DEFAULT_MAX_UPDATES_PER_SECOND = 4;
+
+    /**
+     * Receives presence states that should be written.
+     */
+    public interface Sink {
+        void publish(String currentFile, int cursorPosition, int selectionAnchor);
+    }
+
+    private final Sink sink;
+    private final long minIntervalMs;
+    private final ScheduledExecutorService scheduler;
+
+    // Guarded by "this"
+    private String latestFile;
+    private int latestCursor;
+    private int latestAnchor;
+    private boolean hasLatest = false;
+    private String sentFile;
+    private int sentCursor = -1;
+    private int sentAnchor = -1;
+    private long lastSentAt = 0;
+    private ScheduledFuture<?> trailing;
+
+    public PresencePublisher(Sink sink) {
+        this(sink, DEFAULT_MAX_UPDATES_PER_SECOND);
+    }
+
+    public PresencePublisher(Sink sink, int maxUpdatesPerSecond) {
+        this.sink = sink;
+        this.minIntervalMs = 1000L / Math.max(1, maxUpdatesPerSecond);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence-publisher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Record the latest presence state. Cheap enough to call on every caret move.
+     *
+     * @param selectionAnchor Other end of the selection; the caret position if nothing is selected
+     */
+    public synchronized void update(String currentFile, int cursorPosition, int selectionAnchor) {
+        latestFile = currentFile;
+        latestCursor = cursorPosition;
+        latestAnchor = selectionAnchor;
+        hasLatest = true;
+
+        if (trailing != null) {
+            return; // A trailing flush is already scheduled and will pick up this state
+        }
+
+        long wait = lastSentAt + minIntervalMs - System.currentTimeMillis();
+        if (wait <= 0) {
+            send();
+        } else {
+            trailing = scheduler.schedule(this::flushTrailing, wait, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Forget what was last sent, e.g. after presence was reset elsewhere,
+     * so the next update is written even if it repeats the old state.
+     */
+    public synchronized void reset() {
+        if (trailing != null) {
+            trailing.cancel(false);
+            trailing = null;
+        }
+        hasLatest = false;
+        sentFile = null;
+        sentCursor = -1;
+        sentAnchor = -1;
+    }
+
+    /**
+     * Drop pending updates and stop the background timer.
+     */
+    public synchronized void shutdown() {
+        reset();
+        scheduler.shutdownNow();
+    }
+
+    private synchronized void flushTrailing() {
+        trailing = null;
+        send();
+    }
+
+    private void send() {
+        if (!hasLatest) {
+            return;
+        }
+        hasLatest = false;
+
+        if (Objects.equals(latestFile, sentFile) && latestCursor == sentCursor && latestAnchor == sentAnchor) {
+            return;
+        }
+
+        sentFile = latestFile;
+        sentCursor = latestCursor;
+        sentAnchor = latestAnchor;
+        lastSentAt = System.currentTimeMillis();
+
+        try {
+            sink.publish(sentFile, sentCursor, sentAnchor);
+        } catch (Exception e) {
+            System.err.println("Error publishing presence: " + e.getMessage());
+        }
+    }
+}
@@ -17,6 +17,7 @@ public class Project {
     private String workspacePath;   // Root folder path of the project
     private Date createdAt;         // Project creation timestamp
     private Date updatedAt;         // Last update timestamp
+    private boolean deleting;       // Deletion started and not finished yet
 
     public Project() {
         // Default constructor required for Firestore
@@ -97,6 +98,14 @@ public class Project {
         return ownerId != null && ownerId.equals(userId);
     }
 
+    public boolean isDeleting() {
+        return deleting;
+    }
+
+    public void setDeleting(boolean deleting) {
+        this.deleting = deleting;
+    }
+
     public String getWorkspacePath() {
         return workspacePath;
     }
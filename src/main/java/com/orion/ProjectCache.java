@@ -0,0 +1,172 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of project and member documents, one per backend so every service
+ * on that backend shares it.
+ * Entries expire after a per-kind TTL, and writes made through {@link ProjectService}
+ * invalidate what they touch. Concurrent loads of the same key share one read. Entries
+ * fed by an active snapshot listener stay fresh without a TTL until it is removed.
+ * Missing documents are not cached, so something created elsewhere shows up at once.
+ */
+public class ProjectCache {
+    static final long PROJECT_TTL_MS = 5 * 60_000;
+    static final long MEMBERS_TTL_MS = 30_000;
+    static final long USER_PROJECTS_TTL_MS = 60_000;
+    static final long CODE_TTL_MS = 60 * 60_000; // Share codes never change
+
+    private static final Map<CollaborationBackend, ProjectCache> caches = new WeakHashMap<>();
+
+    /**
+     * Loads a value on a miss.
+     */
+    public interface Loader<V> {
+        ApiFuture<V> load();
+    }
+
+    private static final class Entry {
+        final CompletableFuture<Object> value = new CompletableFuture<>();
+        volatile long expiresAt = Long.MAX_VALUE; // Never expires while loading or kept live
+
+        boolean isUsable(long now) {
+            return !value.isDone() || (!value.isCompletedExceptionally() && expiresAt > now);
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public static ProjectCache of(CollaborationBackend backend) {
+        synchronized (caches) {
+            return caches.computeIfAbsent(backend, b -> new ProjectCache());
+        }
+    }
+
+    static String projectKey(String projectId) {
+        return "projects/" + projectId;
+    }
+
+    static String membersKey(String projectId) {
+        return "projects/" + projectId + "/members";
+    }
+
+    static String userProjectsKey(String userId) {
+        return "memberIds:" + userId;
+    }
+
+    static String codeKey(String code) {
+        return "code:" + code;
+    }
+
+    /**
+     * Cached value for the key, loading it if missing or expired.
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V get(String key, long ttlMs, Loader<V> loader) throws ExecutionException, InterruptedException {
+        return (V) getAsync(key, ttlMs, loader).get();
+    }
+
+    private CompletableFuture<Object> getAsync(String key, long ttlMs, Loader<?> loader) {
+        long now = System.currentTimeMillis();
+        Entry fresh = new Entry();
+        Entry entry = entries.compute(key, (k, current) -> current != null && current.isUsable(now) ? current : fresh);
+        if (entry != fresh) {
+            (entry.value.isDone() ? hits : coalesced).increment();
+            return entry.value;
+        }
+
+        misses.increment();
+        ApiFuture<?> load;
+        try {
+            load = loader.load();
+        } catch (RuntimeException e) {
+            // Callers coalesced onto this entry would otherwise wait forever
+            entries.remove(key, fresh);
+            fresh.value.completeExceptionally(e);
+            return fresh.value;
+        }
+        load.addListener(() -> {
+            try {
+                Object value = load.get();
+                fresh.expiresAt = System.currentTimeMillis() + ttlMs;
+                if (value == null) {
+                    entries.remove(key, fresh);
+                }
+                fresh.value.complete(value);
+            } catch (ExecutionException e) {
+                entries.remove(key, fresh);
+                fresh.value.completeExceptionally(e.getCause());
+            } catch (InterruptedException e) {
+                entries.remove(key, fresh);
+                fresh.value.completeExceptionally(e);
+            }
+        }, Runnable::run);
+        return fresh.value;
+    }
+
+    /**
+     * Store a value kept current by a snapshot listener; it does not expire until
+     * {@link #release(String)} is called when the listener goes away.
+     */
+    public void putLive(String key, Object value) {
+        Entry entry = new Entry();
+        entry.value.complete(value);
+        entries.put(key, entry);
+    }
+
+    /**
+     * Stop treating a listener-fed entry as current.
+     */
+    public void release(String key) {
+        invalidate(key);
+    }
+
+    public void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    public void invalidatePrefix(String prefix) {
+        entries.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Share of lookups answered without a read of their own, including those that
+     * joined a read already in flight.
+     */
+    public double getHitRate() {
+        long served = hits.sum() + coalesced.sum();
+        long total = served + misses.sum();
+        return total == 0 ? 0 : (double) served / total;
+    }
+
+    /**
+     * Hit statistics of every cache, for the diagnostics panel.
+     */
+    public static String describeAll() {
+        long hitCount = 0, coalescedCount = 0, missCount = 0, size = 0;
+        synchronized (caches) {
+            for (ProjectCache cache : caches.values()) {
+                hitCount += cache.hits.sum();
+                coalescedCount += cache.coalesced.sum();
+                missCount += cache.misses.sum();
+                size += cache.entries.size();
+            }
+        }
+        long total = hitCount + coalescedCount + missCount;
+        return String.format(Locale.ROOT,
+                "Project cache: %d lookups, %d hits, %d joined a load, %d reads, hit rate %.1f%%, %d entries%n",
+                total, hitCount, coalescedCount, missCount,
+                total == 0 ? 0.0 : 100.0 * (hitCount + coalescedCount) / total, size);
+    }
+}
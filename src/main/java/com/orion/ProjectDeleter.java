@@ -0,0 +1,186 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Deletes everything stored under a project document.
+ * The backend cannot list subcollections, so the ones to visit are the ones this app
+ * writes (see {@link #PROJECT_TREE}). Each collection is read a page at a time and deleted
+ * in batches; nested subcollections go before the documents that hold them, so an
+ * interrupted run leaves every remaining document reachable and running it again
+ * carries on where it stopped. Collections are worked on concurrently, with at most
+ * {@link #MAX_IN_FLIGHT} reads and commits outstanding at once.
+ */
+public class ProjectDeleter {
+    static final int BATCH_SIZE = 500; // Most writes Firestore accepts in one batch
+    static final int MAX_IN_FLIGHT = 4;
+    private static final int PAGE_SIZE = BATCH_SIZE * MAX_IN_FLIGHT;
+
+    /** Subcollections under a project; members go last so an unfinished delete still shows who had access. */
+    static final Node PROJECT_TREE = new Node()
+            .child("files", new Node().child(CoEditingLog.OPS_SUBCOLLECTION, new Node()))
+            .child(CoEditingLog.BASES_SUBCOLLECTION, new Node())
+            .child("changeHistory", new Node())
+            .child("chunks", new Node())
+            .child(WorkspaceManifest.TREE_SUBCOLLECTION, new Node())
+            .child("typing", new Node())
+            .child("outboxReceipts", new Node())
+            .child("members", new Node());
+
+    /**
+     * Told after every committed batch, on a backend thread.
+     */
+    public interface Progress {
+        void onProgress(long deletedDocuments, String collectionPath);
+    }
+
+    /** A collection's known subcollections, by name. */
+    static final class Node {
+        private final Map<String, Node> children = new LinkedHashMap<>();
+
+        Node child(String name, Node node) {
+            children.put(name, node);
+            return this;
+        }
+    }
+
+    private final CollaborationBackend backend;
+    private final Progress progress;
+    private final AtomicLong deleted = new AtomicLong();
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int inFlight;
+
+    public ProjectDeleter(CollaborationBackend backend, Progress progress) {
+        this.backend = backend;
+        this.progress = progress;
+    }
+
+    /**
+     * Delete every document in the project's subcollections, leaving the project document itself.
+     *
+     * @return Number of documents deleted
+     */
+    public long deleteSubcollections(BackendDocRef projectDoc) throws ExecutionException, InterruptedException {
+        deleteChildren(projectDoc, PROJECT_TREE).get();
+        return deleted.get();
+    }
+
+    private CompletableFuture<Void> deleteChildren(BackendDocRef doc, Node node) {
+        List<CompletableFuture<Void>> collections = new ArrayList<>();
+        for (Map.Entry<String, Node> child : node.children.entrySet()) {
+            collections.add(deleteCollection(doc.collection(child.getKey()), child.getValue()));
+        }
+        return CompletableFuture.allOf(collections.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Delete one page, then read the next; without query cursors, the next page is simply
+     * whatever is left.
+     */
+    private CompletableFuture<Void> deleteCollection(BackendCollectionRef collection, Node node) {
+        return request(() -> collection.limit(PAGE_SIZE).get()).thenCompose(snapshot -> {
+            List<BackendDoc> documents = snapshot.getDocuments();
+            if (documents.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            List<CompletableFuture<Void>> nested = new ArrayList<>();
+            if (!node.children.isEmpty()) {
+                for (BackendDoc doc : documents) {
+                    nested.add(deleteChildren(doc.getReference(), node));
+                }
+            }
+
+            return CompletableFuture.allOf(nested.toArray(new CompletableFuture<?>[0]))
+                    .thenCompose(done -> deleteDocuments(collection, documents))
+                    .thenCompose(done -> documents.size() < PAGE_SIZE
+                            ? CompletableFuture.completedFuture(null)
+                            : deleteCollection(collection, node));
+        });
+    }
+
+    private CompletableFuture<Void> deleteDocuments(BackendCollectionRef collection, List<BackendDoc> documents) {
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        for (int start = 0; start < documents.size(); start += BATCH_SIZE) {
+            List<BackendDoc> slice = documents.subList(start, Math.min(documents.size(), start + BATCH_SIZE));
+            BackendBatch batch = backend.batch();
+            for (BackendDoc doc : slice) {
+                batch.delete(doc.getReference());
+            }
+            commits.add(request(batch::commit).thenRun(() -> {
+                long total = deleted.addAndGet(slice.size());
+                if (progress != null) {
+                    progress.onProgress(total, collection.getPath());
+                }
+            }));
+        }
+        return CompletableFuture.allOf(commits.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Start the call now if fewer than {@link #MAX_IN_FLIGHT} are outstanding, otherwise
+     * once one of them finishes.
+     */
+    private <T> CompletableFuture<T> request(Supplier<ApiFuture<T>> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable start = () -> {
+            ApiFuture<T> future;
+            try {
+                future = call.get();
+            } catch (RuntimeException e) {
+                finished();
+                result.completeExceptionally(e);
+                return;
+            }
+            ApiFutures.addCallback(future, new ApiFutureCallback<T>() {
+                @Override
+                public void onSuccess(T value) {
+                    finished();
+                    result.complete(value);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    finished();
+                    result.completeExceptionally(t);
+                }
+            }, MoreExecutors.directExecutor());
+        };
+
+        synchronized (waiting) {
+            if (inFlight >= MAX_IN_FLIGHT) {
+                waiting.add(start);
+                return result;
+            }
+            inFlight++;
+        }
+        start.run();
+        return result;
+    }
+
+    private void finished() {
+        Runnable next;
+        synchronized (waiting) {
+            next = waiting.poll();
+            if (next == null) {
+                inFlight--;
+                return;
+            }
+        }
+        next.run(); // Takes over the finished call's slot
+    }
+}
@@ -20,6 +20,7 @@ public class ProjectMember {
     private boolean isOnline;       // Current online status
     private String currentFile;     // Currently opened file path
     private int cursorPosition;     // Current cursor position in the file
+    private int selectionAnchor;    // Other end of the selection; the cursor position if none
 
     public ProjectMember() {
         // Default constructor required for Firestore
@@ -92,6 +93,14 @@ public class ProjectMember {
         this.cursorPosition = cursorPosition;
     }
 
+    public int getSelectionAnchor() {
+        return selectionAnchor;
+    }
+
+    public void setSelectionAnchor(int selectionAnchor) {
+        this.selectionAnchor = selectionAnchor;
+    }
+
     // Permission checks
     public boolean canEdit() {
         return role == Role.OWNER || role == Role.EDITOR;
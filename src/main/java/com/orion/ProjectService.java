@@ -1,7 +1,8 @@
 package com.orion;
 
 import com.google.api.core.ApiFuture;
-import com.google.cloud.firestore.*;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
 import javafx.application.Platform;
 
 import java.security.SecureRandom;
@@ -9,59 +10,49 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 
 /**
- * Service for managing collaborative projects in Firestore.
+ * Service for managing collaborative projects in the collaboration backend.
  * Handles project creation, joining, member management, and unique code generation.
  */
 public class ProjectService {
     private static final String PROJECTS_COLLECTION = "projects";
     private static final String MEMBERS_SUBCOLLECTION = "members";
+    private static final String CODES_COLLECTION = "codes"; // codes/{code} -> projectId; owns each share code
     private static final String CODE_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
     private static final int CODE_LENGTH = 6;
+    private static final int MAX_CODE_ATTEMPTS = 10;
     private static final SecureRandom random = new SecureRandom();
+    
+    // Deletions running in this process, by project ID; a second request waits for the first
+    private static final Map<String, CompletableFuture<Void>> deletions = new ConcurrentHashMap<>();
 
-    private final Firestore firestore;
+    private final CollaborationBackend backend;
+    private final ProjectCache cache;
 
     public ProjectService() {
-        this.firestore = FirebaseService.getInstance().getFirestore();
+        this(FirebaseService.getInstance().getBackend());
     }
 
-    /**
-     * Generate a unique 6-character alphanumeric code for project sharing.
-     * Format: ABC-123 (with hyphen for readability)
-     */
-    public String generateUniqueCode() throws ExecutionException, InterruptedException {
-        String code;
-        boolean isUnique;
-        
-        do {
-            // Generate random 6-character code
-            StringBuilder sb = new StringBuilder(CODE_LENGTH);
-            for (int i = 0; i < CODE_LENGTH; i++) {
-                sb.append(CODE_CHARS.charAt(random.nextInt(CODE_CHARS.length())));
-            }
-            // Format as ABC-123
-            code = sb.substring(0, 3) + "-" + sb.substring(3);
-            
-            // Check if code already exists
-            isUnique = !codeExists(code);
-        } while (!isUnique);
-        
-        return code;
+    public ProjectService(CollaborationBackend backend) {
+        this.backend = backend;
+        this.cache = ProjectCache.of(backend);
     }
 
     /**
-     * Check if a project code already exists in Firestore.
+     * Generate a random 6-character alphanumeric code for project sharing.
+     * Format: ABC-123 (with hyphen for readability). Uniqueness is enforced when the
+     * code's document is created, not here.
      */
-    private boolean codeExists(String code) throws ExecutionException, InterruptedException {
-        Query query = firestore.collection(PROJECTS_COLLECTION)
-                .whereEqualTo("code", code)
-                .limit(1);
-        
-        ApiFuture<QuerySnapshot> querySnapshot = query.get();
-        return !querySnapshot.get().isEmpty();
+    private static String generateCode() {
+        StringBuilder sb = new StringBuilder(CODE_LENGTH);
+        for (int i = 0; i < CODE_LENGTH; i++) {
+            sb.append(CODE_CHARS.charAt(random.nextInt(CODE_CHARS.length())));
+        }
+        return sb.substring(0, 3) + "-" + sb.substring(3);
     }
 
     /**
@@ -74,51 +65,76 @@ public class ProjectService {
      */
     public Project createProject(String name, String ownerId, String workspacePath) 
             throws ExecutionException, InterruptedException {
-        String code = generateUniqueCode();
-        Project project = new Project(name, code, ownerId, workspacePath);
-        
-        // Create project document in Firestore
-        DocumentReference docRef = firestore.collection(PROJECTS_COLLECTION).document();
-        project.setId(docRef.getId());
-        
-        // Convert to map for Firestore
-        Map<String, Object> projectData = new HashMap<>();
-        projectData.put("name", project.getName());
-        projectData.put("code", project.getCode());
-        projectData.put("ownerId", project.getOwnerId());
-        projectData.put("memberIds", project.getMemberIds());
-        projectData.put("workspacePath", project.getWorkspacePath());
-        projectData.put("createdAt", project.getCreatedAt());
-        projectData.put("updatedAt", project.getUpdatedAt());
-        
-        ApiFuture<WriteResult> result = docRef.set(projectData);
-        result.get(); // Wait for completion
-        
-        // Add owner as a member
-        addMember(project.getId(), ownerId, 
-                UserSession.getInstance().getCurrentUser().getUsername(), 
-                ProjectMember.Role.OWNER);
-        
-        System.out.println("Project created: " + project);
-        return project;
+        String ownerName = UserSession.getInstance().getCurrentUser().getUsername();
+        BackendDocRef docRef = backend.collection(PROJECTS_COLLECTION).document();
+        
+        // The project, its owner and its code go out in one batch. Creating the code's
+        // document fails if another project holds the code, and then nothing is written.
+        for (int attempt = 1; ; attempt++) {
+            Project project = new Project(name, generateCode(), ownerId, workspacePath);
+            project.setId(docRef.getId());
+            
+            Map<String, Object> projectData = new HashMap<>();
+            projectData.put("name", project.getName());
+            projectData.put("code", project.getCode());
+            projectData.put("ownerId", project.getOwnerId());
+            projectData.put("memberIds", project.getMemberIds());
+            projectData.put("workspacePath", project.getWorkspacePath());
+            projectData.put("createdAt", project.getCreatedAt());
+            projectData.put("updatedAt", project.getUpdatedAt());
+            
+            BackendBatch batch = backend.batch();
+            batch.create(backend.collection(CODES_COLLECTION).document(project.getCode()), codeData(project.getId()));
+            batch.set(docRef, projectData);
+            batch.set(docRef.collection(MEMBERS_SUBCOLLECTION).document(ownerId),
+                    memberData(new ProjectMember(ownerId, ownerName, ProjectMember.Role.OWNER)));
+            
+            try {
+                batch.commit().get();
+            } catch (ExecutionException e) {
+                if ("ALREADY_EXISTS".equals(BackendException.codeOf(e)) && attempt < MAX_CODE_ATTEMPTS) {
+                    System.out.println("Share code " + project.getCode() + " is taken, trying another");
+                    continue;
+                }
+                throw e;
+            }
+            
+            cache.invalidate(ProjectCache.userProjectsKey(ownerId));
+            System.out.println("Project created: " + project);
+            return project;
+        }
+    }
+    
+    private static Map<String, Object> codeData(String projectId) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("projectId", projectId);
+        data.put("createdAt", BackendValue.serverTimestamp());
+        return data;
     }
 
     /**
-     * Get a project by its ID.
+     * Get a project by its ID. Served from the project cache when fresh.
      * 
      * @param projectId The project document ID
      * @return Project if found, null otherwise
      */
     public Project getProject(String projectId) throws ExecutionException, InterruptedException {
-        DocumentReference docRef = firestore.collection(PROJECTS_COLLECTION).document(projectId);
-        ApiFuture<DocumentSnapshot> future = docRef.get();
-        DocumentSnapshot document = future.get();
-        
-        if (!document.exists()) {
-            return null;
-        }
-        
-        return documentToProject(document);
+        BackendDoc document = cache.get(ProjectCache.projectKey(projectId), ProjectCache.PROJECT_TTL_MS,
+                () -> existing(backend.collection(PROJECTS_COLLECTION).document(projectId).get()));
+        return document != null ? documentToProject(document) : null;
+    }
+    
+    /**
+     * Read a project straight from the backend, for read-modify-write, and refresh the cache.
+     */
+    private Project loadProject(String projectId) throws ExecutionException, InterruptedException {
+        cache.invalidate(ProjectCache.projectKey(projectId));
+        return getProject(projectId);
+    }
+    
+    /** The document, or null if it does not exist, so misses are not cached. */
+    private static ApiFuture<BackendDoc> existing(ApiFuture<BackendDoc> document) {
+        return ApiFutures.transform(document, doc -> doc.exists() ? doc : null, MoreExecutors.directExecutor());
     }
     
     /**
@@ -128,18 +144,48 @@ public class ProjectService {
      * @return Project if found, null otherwise
      */
     public Project findProjectByCode(String code) throws ExecutionException, InterruptedException {
-        Query query = firestore.collection(PROJECTS_COLLECTION)
-                .whereEqualTo("code", code)
-                .limit(1);
-        
-        ApiFuture<QuerySnapshot> querySnapshot = query.get();
-        List<QueryDocumentSnapshot> documents = querySnapshot.get().getDocuments();
-        
-        if (documents.isEmpty()) {
+        String projectId = findProjectIdByCode(code);
+        if (projectId == null) {
             return null;
         }
         
-        return documentToProject(documents.get(0));
+        Project project = getProject(projectId);
+        if (project == null) {
+            cache.invalidate(ProjectCache.codeKey(code)); // Deleted since the code was looked up
+        }
+        return project != null && !project.isDeleting() ? project : null;
+    }
+    
+    /**
+     * Resolve a share code to a project ID with a direct read of its code document;
+     * codes never change, so the answer is cached.
+     */
+    private String findProjectIdByCode(String code) throws ExecutionException, InterruptedException {
+        return cache.get(ProjectCache.codeKey(code), ProjectCache.CODE_TTL_MS, () -> ApiFutures.transformAsync(
+                backend.collection(CODES_COLLECTION).document(code).get(),
+                codeDoc -> codeDoc.exists()
+                        ? ApiFutures.immediateFuture(codeDoc.getString("projectId"))
+                        : findLegacyProjectIdByCode(code),
+                MoreExecutors.directExecutor()));
+    }
+    
+    /**
+     * Projects created before code documents existed are found by querying their code
+     * field. Their code document is added on the way, so the code is reserved and the
+     * next lookup is a direct read.
+     */
+    private ApiFuture<String> findLegacyProjectIdByCode(String code) {
+        BackendQuery query = backend.collection(PROJECTS_COLLECTION)
+                .whereEqualTo("code", code)
+                .limit(1);
+        return ApiFutures.transform(query.get(), snapshot -> {
+            if (snapshot.isEmpty()) {
+                return null;
+            }
+            String projectId = snapshot.getDocuments().get(0).getId();
+            backend.collection(CODES_COLLECTION).document(code).create(codeData(projectId));
+            return projectId;
+        }, MoreExecutors.directExecutor());
     }
 
     /**
@@ -152,12 +198,18 @@ public class ProjectService {
      */
     public Project joinProject(String code, String userId, String username) 
             throws ExecutionException, InterruptedException {
-        Project project = findProjectByCode(code);
+        // The member list is rewritten below, so it must come from a fresh read
+        String projectId = findProjectIdByCode(code);
+        Project project = projectId != null ? loadProject(projectId) : null;
         
         if (project == null) {
             System.err.println("Project not found with code: " + code);
             return null;
         }
+        if (project.isDeleting()) {
+            System.err.println("Project is being deleted: " + projectId);
+            return null;
+        }
         
         // Check if user is already a member
         if (project.isMember(userId)) {
@@ -171,6 +223,7 @@ public class ProjectService {
         
         // Add member document
         addMember(project.getId(), userId, username, ProjectMember.Role.EDITOR);
+        cache.invalidate(ProjectCache.userProjectsKey(userId));
         
         System.out.println("User " + username + " joined project: " + project.getName());
         return project;
@@ -183,11 +236,17 @@ public class ProjectService {
             throws ExecutionException, InterruptedException {
         ProjectMember member = new ProjectMember(userId, username, role);
         
-        DocumentReference memberDoc = firestore.collection(PROJECTS_COLLECTION)
+        BackendDocRef memberDoc = backend.collection(PROJECTS_COLLECTION)
                 .document(projectId)
                 .collection(MEMBERS_SUBCOLLECTION)
                 .document(userId);
         
+        ApiFuture<Void> result = memberDoc.set(memberData(member));
+        result.get();
+        cache.invalidate(ProjectCache.membersKey(projectId));
+    }
+    
+    private static Map<String, Object> memberData(ProjectMember member) {
         Map<String, Object> memberData = new HashMap<>();
         memberData.put("userId", member.getUserId());
         memberData.put("username", member.getUsername());
@@ -196,24 +255,23 @@ public class ProjectService {
         memberData.put("isOnline", member.isOnline());
         memberData.put("currentFile", member.getCurrentFile());
         memberData.put("cursorPosition", member.getCursorPosition());
-        
-        ApiFuture<WriteResult> result = memberDoc.set(memberData);
-        result.get();
+        return memberData;
     }
 
     /**
      * Get all projects where the user is a member.
      */
     public List<Project> getUserProjects(String userId) throws ExecutionException, InterruptedException {
-        Query query = firestore.collection(PROJECTS_COLLECTION)
-                .whereArrayContains("memberIds", userId);
-        
-        ApiFuture<QuerySnapshot> querySnapshot = query.get();
-        List<QueryDocumentSnapshot> documents = querySnapshot.get().getDocuments();
+        List<BackendDoc> documents = cache.get(ProjectCache.userProjectsKey(userId), ProjectCache.USER_PROJECTS_TTL_MS,
+                () -> ApiFutures.transform(
+                        backend.collection(PROJECTS_COLLECTION).whereArrayContains("memberIds", userId).get(),
+                        BackendQuerySnapshot::getDocuments, MoreExecutors.directExecutor()));
         
         List<Project> projects = new ArrayList<>();
-        for (QueryDocumentSnapshot doc : documents) {
-            projects.add(documentToProject(doc));
+        for (BackendDoc doc : documents) {
+            if (doc.get("deleting") == null) { // Half-deleted projects stay hidden
+                projects.add(documentToProject(doc));
+            }
         }
         
         return projects;
@@ -224,15 +282,13 @@ public class ProjectService {
      */
     public List<ProjectMember> getProjectMembers(String projectId) 
             throws ExecutionException, InterruptedException {
-        CollectionReference membersRef = firestore.collection(PROJECTS_COLLECTION)
-                .document(projectId)
-                .collection(MEMBERS_SUBCOLLECTION);
-        
-        ApiFuture<QuerySnapshot> querySnapshot = membersRef.get();
-        List<QueryDocumentSnapshot> documents = querySnapshot.get().getDocuments();
+        List<BackendDoc> documents = cache.get(ProjectCache.membersKey(projectId), ProjectCache.MEMBERS_TTL_MS,
+                () -> ApiFutures.transform(
+                        backend.collection(PROJECTS_COLLECTION).document(projectId).collection(MEMBERS_SUBCOLLECTION).get(),
+                        BackendQuerySnapshot::getDocuments, MoreExecutors.directExecutor()));
         
         List<ProjectMember> members = new ArrayList<>();
-        for (QueryDocumentSnapshot doc : documents) {
+        for (BackendDoc doc : documents) {
             members.add(documentToMember(doc));
         }
         
@@ -240,10 +296,10 @@ public class ProjectService {
     }
 
     /**
-     * Update project details in Firestore.
+     * Update project details.
      */
     public void updateProject(Project project) throws ExecutionException, InterruptedException {
-        DocumentReference docRef = firestore.collection(PROJECTS_COLLECTION)
+        BackendDocRef docRef = backend.collection(PROJECTS_COLLECTION)
                 .document(project.getId());
         
         Map<String, Object> updates = new HashMap<>();
@@ -252,8 +308,9 @@ public class ProjectService {
         updates.put("workspacePath", project.getWorkspacePath());
         updates.put("updatedAt", project.getUpdatedAt());
         
-        ApiFuture<WriteResult> result = docRef.update(updates);
+        ApiFuture<Void> result = docRef.update(updates);
         result.get();
+        cache.invalidate(ProjectCache.projectKey(project.getId()));
     }
 
     /**
@@ -261,7 +318,7 @@ public class ProjectService {
      */
     public void updateMemberPresence(String projectId, String userId, boolean isOnline, 
                                     String currentFile, int cursorPosition) {
-        DocumentReference memberDoc = firestore.collection(PROJECTS_COLLECTION)
+        BackendDocRef memberDoc = backend.collection(PROJECTS_COLLECTION)
                 .document(projectId)
                 .collection(MEMBERS_SUBCOLLECTION)
                 .document(userId);
@@ -272,48 +329,107 @@ public class ProjectService {
         updates.put("cursorPosition", cursorPosition);
         
         memberDoc.update(updates);
+        cache.invalidate(ProjectCache.membersKey(projectId));
     }
 
     /**
      * Delete a project (owner only).
      */
     public void deleteProject(String projectId) throws ExecutionException, InterruptedException {
-        // Delete all members first
-        CollectionReference membersRef = firestore.collection(PROJECTS_COLLECTION)
-                .document(projectId)
-                .collection(MEMBERS_SUBCOLLECTION);
+        deleteProject(projectId, null);
+    }
+
+    /**
+     * Delete a project and everything stored under it (owner only).
+     * The project is marked as being deleted first and removed last, so if this is
+     * interrupted it stays hidden and calling it again finishes the job.
+     * If the project is already being deleted here, this waits for that deletion instead.
+     *
+     * @param progress Told as documents are deleted, or null
+     */
+    public void deleteProject(String projectId, ProjectDeleter.Progress progress)
+            throws ExecutionException, InterruptedException {
+        CompletableFuture<Void> deletion = new CompletableFuture<>();
+        CompletableFuture<Void> running = deletions.putIfAbsent(projectId, deletion);
+        if (running != null) {
+            running.get();
+            return;
+        }
+        try {
+            deleteProjectTree(projectId, progress);
+            deletion.complete(null);
+        } catch (ExecutionException | InterruptedException | RuntimeException e) {
+            deletion.completeExceptionally(e);
+            throw e;
+        } finally {
+            deletions.remove(projectId, deletion);
+        }
+    }
+    
+    private void deleteProjectTree(String projectId, ProjectDeleter.Progress progress)
+            throws ExecutionException, InterruptedException {
+        Project project = loadProject(projectId);
+        BackendDocRef projectRef = backend.collection(PROJECTS_COLLECTION)
+                .document(projectId);
         
-        ApiFuture<QuerySnapshot> querySnapshot = membersRef.get();
-        List<QueryDocumentSnapshot> documents = querySnapshot.get().getDocuments();
+        if (project != null) {
+            Map<String, Object> marker = new HashMap<>();
+            marker.put("deleting", BackendValue.serverTimestamp());
+            projectRef.update(marker).get();
+            cache.invalidate(ProjectCache.projectKey(projectId));
+            cache.invalidatePrefix(ProjectCache.userProjectsKey(""));
+        }
+        
+        long deleted = new ProjectDeleter(backend, progress).deleteSubcollections(projectRef);
         
-        for (QueryDocumentSnapshot doc : documents) {
-            doc.getReference().delete().get();
+        // Delete the project document and free its share code together
+        BackendBatch batch = backend.batch();
+        batch.delete(projectRef);
+        if (project != null && project.getCode() != null) {
+            batch.delete(backend.collection(CODES_COLLECTION).document(project.getCode()));
+            cache.invalidate(ProjectCache.codeKey(project.getCode()));
         }
+        batch.commit().get();
         
-        // Delete project document
-        DocumentReference projectRef = firestore.collection(PROJECTS_COLLECTION)
-                .document(projectId);
-        ApiFuture<WriteResult> result = projectRef.delete();
-        result.get();
+        cache.invalidate(ProjectCache.projectKey(projectId));
+        cache.invalidate(ProjectCache.membersKey(projectId));
+        cache.invalidatePrefix(ProjectCache.userProjectsKey("")); // Every member's project list
         
-        System.out.println("Project deleted: " + projectId);
+        System.out.println("Project deleted: " + projectId + " (" + deleted + " documents under it)");
+    }
+
+    /**
+     * Finish deleting the user's projects whose deletion was interrupted.
+     * Deletions still running here are left to finish on their own.
+     */
+    public void resumeInterruptedDeletions(String ownerId) throws ExecutionException, InterruptedException {
+        List<BackendDoc> owned = backend.collection(PROJECTS_COLLECTION)
+                .whereEqualTo("ownerId", ownerId).get().get().getDocuments();
+        for (BackendDoc doc : owned) {
+            if (doc.get("deleting") != null && !deletions.containsKey(doc.getId())) {
+                System.out.println("Resuming deletion of project " + doc.getId());
+                deleteProject(doc.getId());
+            }
+        }
     }
 
-    // Helper methods to convert Firestore documents to objects
-    private Project documentToProject(DocumentSnapshot doc) {
+    // Helper methods to convert backend documents to objects
+    private Project documentToProject(BackendDoc doc) {
         Project project = new Project();
         project.setId(doc.getId());
         project.setName(doc.getString("name"));
         project.setCode(doc.getString("code"));
         project.setOwnerId(doc.getString("ownerId"));
-        project.setMemberIds((List<String>) doc.get("memberIds"));
+        List<String> memberIds = (List<String>) doc.get("memberIds");
+        project.setMemberIds(memberIds != null ? new ArrayList<>(memberIds) : null);
         project.setWorkspacePath(doc.getString("workspacePath"));
         project.setCreatedAt(doc.getDate("createdAt"));
         project.setUpdatedAt(doc.getDate("updatedAt"));
+        project.setDeleting(doc.get("deleting") != null);
         return project;
     }
 
-    private ProjectMember documentToMember(DocumentSnapshot doc) {
+    ProjectMember documentToMember(BackendDoc doc) {
         ProjectMember member = new ProjectMember();
         member.setUserId(doc.getString("userId"));
         member.setUsername(doc.getString("username"));
@@ -323,6 +439,8 @@ public class ProjectService {
         member.setCurrentFile(doc.getString("currentFile"));
         Long cursorPos = doc.getLong("cursorPosition");
         member.setCursorPosition(cursorPos != null ? cursorPos.intValue() : 0);
+        Long anchor = doc.getLong("selectionAnchor");
+        member.setSelectionAnchor(anchor != null ? anchor.intValue() : member.getCursorPosition());
         return member;
     }
 }
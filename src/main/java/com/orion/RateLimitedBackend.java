@@ -0,0 +1,502 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps one client's writes within the backend's quotas.
+ * Every commit is charged one token per write against a token bucket for each collection
+ * it writes to and one for each project, so a burst in one place cannot use up the
+ * budget of another. Commits that find a bucket empty wait, in priority order: file
+ * content, then history and notifications, then presence, then typing. Lower priorities
+ * also have to leave part of each bucket unused, so under pressure what is left goes
+ * to file content. A presence update that would wait behind another one for the same
+ * member is folded into it, and typing heartbeats are dropped; they expire on their own.
+ * Priorities never reorder writes to the same document: a commit touching a document
+ * that a waiting commit writes waits behind it.
+ *
+ * Reads, listeners and transactions pass straight through.
+ */
+public class RateLimitedBackend implements CollaborationBackend {
+    public static final String THROTTLE_WAIT = "write / throttle wait";
+    private static final String PROJECTS_COLLECTION = "projects";
+
+    /** Write classes, most important first. */
+    public enum Priority {
+        CONTENT(0.0), HISTORY(0.1), PRESENCE(0.3), TYPING(0.5);
+
+        private final double reserve; // Share of each bucket this class may not use
+
+        Priority(double reserve) {
+            this.reserve = reserve;
+        }
+    }
+
+    private static final Limit PROJECT_LIMIT = new Limit(500, 1000);
+    private static final Limit COLLECTION_LIMIT = new Limit(500, 1000);
+    private static final Map<String, Limit> COLLECTION_LIMITS = Map.of(
+            "members", new Limit(10, 20),
+            "typing", new Limit(5, 10),
+            "changeHistory", new Limit(50, 100),
+            "notifications", new Limit(10, 30));
+
+    private static final List<RateLimitedBackend> instances = new ArrayList<>();
+
+    /** Writes per second and burst size of a bucket. */
+    private static final class Limit {
+        final double rate;
+        final double capacity;
+
+        Limit(double rate, double capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+        }
+    }
+
+    private static final class TokenBucket {
+        final Limit limit;
+        double tokens;
+        long refilledAt;
+
+        TokenBucket(Limit limit, long now) {
+            this.limit = limit;
+            this.tokens = limit.capacity;
+            this.refilledAt = now;
+        }
+
+        void refill(long now) {
+            tokens = Math.min(limit.capacity, tokens + (now - refilledAt) * limit.rate / 1e9);
+            refilledAt = now;
+        }
+
+        /**
+         * Tokens still missing for the cost. A commit larger than the bucket only needs
+         * the bucket full and leaves it in debt.
+         */
+        double shortfall(int cost, Priority priority) {
+            double usable = limit.capacity * (1 - priority.reserve);
+            return Math.min(cost, usable) - (tokens - limit.capacity * priority.reserve);
+        }
+
+        long nanosUntil(int cost, Priority priority) {
+            return (long) Math.ceil(Math.max(0, shortfall(cost, priority)) * 1e9 / limit.rate);
+        }
+    }
+
+    /** A commit waiting for tokens. */
+    private static final class Pending implements Comparable<Pending> {
+        final Priority priority;
+        final long sequence;
+        final long queuedAt = System.nanoTime();
+        final SettableApiFuture<Void> result = SettableApiFuture.create();
+        final Set<String> paths; // Documents written; folding only ever writes the same one again
+        List<Write> writes;
+        Map<String, Integer> costs;
+
+        Pending(Priority priority, long sequence, List<Write> writes, Map<String, Integer> costs) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.writes = writes;
+            this.costs = costs;
+            this.paths = pathsOf(writes);
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final CollaborationBackend delegate;
+    private final Map<String, TokenBucket> buckets = new HashMap<>(); // Guarded by "this"
+    private final PriorityQueue<Pending> waiting = new PriorityQueue<>(); // Guarded by "this"
+    private long sequence; // Guarded by "this"
+    private boolean drainScheduled; // Guarded by "this"
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<Priority, LongAdder> immediate = counters();
+    private final Map<Priority, LongAdder> throttled = counters();
+    private final Map<Priority, LongAdder> coalesced = counters();
+    private final Map<Priority, LongAdder> dropped = counters();
+
+    public RateLimitedBackend(CollaborationBackend delegate) {
+        this.delegate = delegate;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "write-rate-limiter");
+            t.setDaemon(true);
+            return t;
+        });
+        synchronized (instances) {
+            instances.add(this);
+        }
+    }
+
+    private static Map<Priority, LongAdder> counters() {
+        Map<Priority, LongAdder> counters = new LinkedHashMap<>();
+        for (Priority priority : Priority.values()) {
+            counters.put(priority, new LongAdder());
+        }
+        return counters;
+    }
+
+    @Override
+    public ApiFuture<Void> commit(List<Write> writes) {
+        Priority priority = priorityOf(writes);
+        Map<String, Integer> costs = costsOf(writes);
+        synchronized (this) {
+            long now = System.nanoTime();
+            boolean allowed = !hasWaitingAhead(priority, costs) && !writesWaitingDocument(pathsOf(writes))
+                    && tryTake(costs, priority, now);
+            if (!allowed) {
+                return defer(writes, priority, costs, now);
+            }
+        }
+        immediate.get(priority).increment();
+        return delegate.commit(writes);
+    }
+
+    /**
+     * Queue a commit that has to wait, or fold or drop it if it is low priority.
+     * Called holding the lock.
+     */
+    private ApiFuture<Void> defer(List<Write> writes, Priority priority, Map<String, Integer> costs, long now) {
+        if (priority == Priority.PRESENCE || priority == Priority.TYPING) {
+            Pending same = waitingForSameDocument(writes);
+            if (same != null) {
+                same.writes = List.of(combine(same.writes.get(0), writes.get(0)));
+                coalesced.get(priority).increment();
+                return same.result;
+            }
+        }
+        if (priority == Priority.TYPING) {
+            dropped.get(priority).increment();
+            return ApiFutures.immediateFuture(null);
+        }
+
+        Pending pending = new Pending(priority, sequence++, writes, costs);
+        waiting.add(pending);
+        throttled.get(priority).increment();
+        scheduleDrain(now);
+        return pending.result;
+    }
+
+    /**
+     * Priority of a commit: that of its most important write.
+     */
+    static Priority priorityOf(List<Write> writes) {
+        Priority highest = Priority.TYPING;
+        for (Write write : writes) {
+            Priority priority = priorityOf(write);
+            if (priority.compareTo(highest) < 0) {
+                highest = priority;
+            }
+        }
+        return highest;
+    }
+
+    private static Priority priorityOf(Write write) {
+        switch (collectionId(write.getPath())) {
+            case "typing":
+                return Priority.TYPING;
+            case "members":
+                // Adding and removing members is not presence
+                return write.getType() == Write.Type.MERGE || write.getType() == Write.Type.UPDATE
+                        ? Priority.PRESENCE : Priority.CONTENT;
+            case "changeHistory":
+            case "notifications":
+                return Priority.HISTORY;
+            default:
+                return Priority.CONTENT;
+        }
+    }
+
+    /** Writes per bucket key: the collection of each document and the project it is under. */
+    private static Map<String, Integer> costsOf(List<Write> writes) {
+        Map<String, Integer> costs = new HashMap<>();
+        for (Write write : writes) {
+            String path = write.getPath();
+            costs.merge(path.substring(0, path.lastIndexOf('/')), 1, Integer::sum);
+            String[] segments = path.split("/");
+            if (segments.length > 2 && segments[0].equals(PROJECTS_COLLECTION)) {
+                costs.merge(segments[0] + "/" + segments[1], 1, Integer::sum);
+            }
+        }
+        return costs;
+    }
+
+    private static Set<String> pathsOf(List<Write> writes) {
+        Set<String> paths = new HashSet<>();
+        for (Write write : writes) {
+            paths.add(write.getPath());
+        }
+        return paths;
+    }
+
+    private static String collectionId(String documentPath) {
+        String[] segments = documentPath.split("/");
+        return segments.length >= 2 ? segments[segments.length - 2] : "";
+    }
+
+    private TokenBucket bucket(String key, long now) {
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            Limit limit = key.split("/").length == 2 && key.startsWith(PROJECTS_COLLECTION + "/")
+                    ? PROJECT_LIMIT
+                    : COLLECTION_LIMITS.getOrDefault(key.substring(key.lastIndexOf('/') + 1), COLLECTION_LIMIT);
+            bucket = new TokenBucket(limit, now);
+            buckets.put(key, bucket);
+        }
+        bucket.refill(now);
+        return bucket;
+    }
+
+    private boolean tryTake(Map<String, Integer> costs, Priority priority, long now) {
+        for (Map.Entry<String, Integer> cost : costs.entrySet()) {
+            if (bucket(cost.getKey(), now).shortfall(cost.getValue(), priority) > 0) {
+                return false;
+            }
+        }
+        for (Map.Entry<String, Integer> cost : costs.entrySet()) {
+            buckets.get(cost.getKey()).tokens -= cost.getValue();
+        }
+        return true;
+    }
+
+    /** Whether a commit at least as important already waits for one of the buckets. */
+    private boolean hasWaitingAhead(Priority priority, Map<String, Integer> costs) {
+        for (Pending pending : waiting) {
+            if (pending.priority.compareTo(priority) <= 0 && intersects(pending.costs.keySet(), costs.keySet())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Whether a waiting commit of any priority writes one of the documents. */
+    private boolean writesWaitingDocument(Set<String> paths) {
+        for (Pending pending : waiting) {
+            if (intersects(pending.paths, paths)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Whether a commit queued before this one, of any priority, still waits to write one of its documents. */
+    private boolean hasEarlierOnSameDocument(Pending pending) {
+        for (Pending other : waiting) {
+            if (other.sequence < pending.sequence && intersects(other.paths, pending.paths)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The waiting commit a single write can be folded into: the last one writing its
+     * document, if that is a lone write of it. Folding into an earlier one would move
+     * the write ahead of the commits queued after it.
+     */
+    private Pending waitingForSameDocument(List<Write> writes) {
+        if (writes.size() != 1) {
+            return null;
+        }
+        String path = writes.get(0).getPath();
+        Pending last = null;
+        for (Pending pending : waiting) {
+            if (pending.paths.contains(path) && (last == null || pending.sequence > last.sequence)) {
+                last = pending;
+            }
+        }
+        if (last != null && last.writes.size() == 1
+                && last.writes.get(0).getType() != Write.Type.DELETE
+                && writes.get(0).getType() != Write.Type.DELETE) {
+            return last;
+        }
+        return null;
+    }
+
+    /**
+     * One write with the effect of two in a row. A later set replaces the document;
+     * otherwise the later fields win.
+     */
+    private static Write combine(Write earlier, Write later) {
+        if (later.getType() == Write.Type.SET) {
+            return later;
+        }
+        Map<String, Object> data = new HashMap<>(earlier.getData());
+        data.putAll(later.getData());
+        return new Write(earlier.getType(), earlier.getPath(), data);
+    }
+
+    private void scheduleDrain(long now) {
+        if (drainScheduled || waiting.isEmpty()) {
+            return;
+        }
+        long delay = Long.MAX_VALUE;
+        for (Pending pending : waiting) {
+            if (hasEarlierOnSameDocument(pending)) {
+                continue; // Starts after the earlier commit, whatever its own tokens
+            }
+            long wait = 0;
+            for (Map.Entry<String, Integer> cost : pending.costs.entrySet()) {
+                wait = Math.max(wait, bucket(cost.getKey(), now).nanosUntil(cost.getValue(), pending.priority));
+            }
+            delay = Math.min(delay, wait);
+        }
+        drainScheduled = true;
+        scheduler.schedule(this::drain, Math.max(delay, TimeUnit.MILLISECONDS.toNanos(1)), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Start every waiting commit that now fits, most important first. A commit that
+     * does not fit holds back later ones sharing a bucket with it, and no commit starts
+     * before an earlier one writing the same document, so writes to the same place
+     * keep their order.
+     */
+    private void drain() {
+        List<Pending> ready = new ArrayList<>();
+        synchronized (this) {
+            drainScheduled = false;
+            long now = System.nanoTime();
+            Set<String> blocked = new HashSet<>();
+            List<Pending> ordered = new ArrayList<>(waiting);
+            ordered.sort(null);
+            for (Pending pending : ordered) {
+                if (hasEarlierOnSameDocument(pending)) {
+                    continue; // Follows the earlier commit; it claims no bucket meanwhile
+                }
+                if (!intersects(blocked, pending.costs.keySet()) && tryTake(pending.costs, pending.priority, now)) {
+                    waiting.remove(pending);
+                    ready.add(pending);
+                } else {
+                    blocked.addAll(pending.costs.keySet());
+                }
+            }
+            scheduleDrain(now);
+        }
+
+        for (Pending pending : ready) {
+            SyncMetrics.getInstance().recordSince(THROTTLE_WAIT, pending.queuedAt);
+            ApiFutures.addCallback(delegate.commit(pending.writes), new ApiFutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    pending.result.set(null);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    pending.result.setException(t);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+    }
+
+    private static boolean intersects(Set<String> a, Set<String> b) {
+        for (String key : b) {
+            if (a.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Commits per priority: sent at once, throttled, folded into a waiting one, dropped.
+     */
+    public String describe() {
+        int queued;
+        synchronized (this) {
+            queued = waiting.size();
+        }
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "Write limiter: %d waiting%n", queued));
+        for (Priority priority : Priority.values()) {
+            sb.append(String.format(Locale.ROOT, "  %-9s %d sent, %d throttled, %d coalesced, %d dropped%n",
+                    priority.name().toLowerCase(Locale.ROOT), immediate.get(priority).sum(),
+                    throttled.get(priority).sum(), coalesced.get(priority).sum(), dropped.get(priority).sum()));
+        }
+        return sb.toString();
+    }
+
+    /** {@link #describe()} for every limiter in use. */
+    public static String describeAll() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (instances) {
+            for (RateLimitedBackend instance : instances) {
+                sb.append(instance.describe());
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public ApiFuture<BackendDoc> get(String path) {
+        return delegate.get(path);
+    }
+
+    @Override
+    public ApiFuture<List<BackendDoc>> getAll(List<String> paths) {
+        return delegate.getAll(paths);
+    }
+
+    @Override
+    public ApiFuture<BackendQuerySnapshot> query(BackendQuery query) {
+        return delegate.query(query);
+    }
+
+    @Override
+    public Registration listen(BackendQuery query, SnapshotListener listener) {
+        return delegate.listen(query, listener);
+    }
+
+    @Override
+    public Registration listenDocument(String path, DocumentListener listener) {
+        return delegate.listenDocument(path, listener);
+    }
+
+    @Override
+    public <T> ApiFuture<T> runTransaction(TransactionFunction<T> function) {
+        return delegate.runTransaction(function);
+    }
+
+    @Override
+    public String newDocumentId() {
+        return delegate.newDocumentId();
+    }
+
+    /**
+     * Fail commits still waiting for tokens, then close the backend underneath.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        synchronized (this) {
+            for (Pending pending : waiting) {
+                pending.result.setException(new BackendException("CANCELLED", "Backend closed"));
+            }
+            waiting.clear();
+        }
+        synchronized (instances) {
+            instances.remove(this);
+        }
+        delegate.close();
+    }
+}
@@ -0,0 +1,387 @@
+package com.orion;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wire format of the LAN relay.
+ * Every frame is {@code [int length][byte type][int id][body]}, where the length counts
+ * everything after itself. Requests carry a client-chosen ID that the matching
+ * RESULT or ERROR echoes; listener events carry the ID of the LISTEN request.
+ * Query events carry only the changed documents, and clients keep the results.
+ * Values are tagged so documents keep their Firestore types end to end.
+ * A connection starts with a HELLO carrying the session code; the relay answers
+ * nothing else until the code checks out.
+ */
+final class RelayProtocol {
+    static final int DEFAULT_PORT = 47800;
+    static final int MAX_FRAME = 16 * 1024 * 1024;
+    static final int HEADER = 4 + 1 + 4;
+
+    // Client to relay
+    static final byte GET = 1;
+    static final byte GET_ALL = 2;
+    static final byte QUERY = 3;
+    static final byte COMMIT = 4;
+    static final byte LISTEN = 5;
+    static final byte LISTEN_DOC = 6;
+    static final byte UNLISTEN = 7;
+    static final byte TXN_COMMIT = 8;
+    static final byte HELLO = 9;
+
+    // Relay to client
+    static final byte RESULT = 20;
+    static final byte ERROR = 21;
+    static final byte EVENT = 22;
+    static final byte DOC_EVENT = 23;
+
+    private static final byte T_NULL = 0;
+    private static final byte T_FALSE = 1;
+    private static final byte T_TRUE = 2;
+    private static final byte T_LONG = 3;
+    private static final byte T_DOUBLE = 4;
+    private static final byte T_STRING = 5;
+    private static final byte T_TIMESTAMP = 6;
+    private static final byte T_BLOB = 7;
+    private static final byte T_LIST = 8;
+    private static final byte T_MAP = 9;
+    private static final byte T_REF = 10;
+    private static final byte T_SERVER_TIMESTAMP = 11;
+    private static final byte T_INCREMENT = 12;
+    private static final byte T_DELETE = 13;
+
+    private RelayProtocol() {
+    }
+
+    /**
+     * Builds one frame; the length prefix is filled in by {@link #toBuffer()}.
+     */
+    static final class FrameWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        FrameWriter(byte type, int id) {
+            try {
+                out.writeInt(0);
+                out.writeByte(type);
+                out.writeInt(id);
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // In-memory stream
+            }
+        }
+
+        ByteBuffer toBuffer() {
+            byte[] frame = bytes.toByteArray();
+            if (frame.length - 4 > MAX_FRAME) {
+                throw new BackendException("INVALID_ARGUMENT", "Relay frame too large: " + frame.length + " bytes");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            buffer.putInt(0, frame.length - 4);
+            return buffer;
+        }
+    }
+
+    /**
+     * A received frame, without its length prefix.
+     */
+    static final class Frame {
+        final byte type;
+        final int id;
+        final DataInputStream in;
+
+        Frame(byte[] payload) throws IOException {
+            in = new DataInputStream(new ByteArrayInputStream(payload));
+            type = in.readByte();
+            id = in.readInt();
+        }
+    }
+
+    // ---- Values ----
+
+    static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(T_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? T_TRUE : T_FALSE);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(T_LONG);
+            out.writeLong(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(T_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof String) {
+            out.writeByte(T_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof BackendTimestamp) {
+            out.writeByte(T_TIMESTAMP);
+            out.writeLong(((BackendTimestamp) value).getSeconds());
+            out.writeInt(((BackendTimestamp) value).getNanos());
+        } else if (value instanceof java.util.Date) {
+            writeValue(out, BackendTimestamp.of((java.util.Date) value));
+        } else if (value instanceof BackendBlob) {
+            byte[] bytes = ((BackendBlob) value).toBytes();
+            out.writeByte(T_BLOB);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(T_LIST);
+            out.writeInt(list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        } else if (value instanceof Map) {
+            out.writeByte(T_MAP);
+            writeMap(out, (Map<?, ?>) value);
+        } else if (value instanceof BackendDocRef) {
+            out.writeByte(T_REF);
+            writeString(out, ((BackendDocRef) value).getPath());
+        } else if (value instanceof BackendValue) {
+            BackendValue sentinel = (BackendValue) value;
+            switch (sentinel.getType()) {
+                case SERVER_TIMESTAMP:
+                    out.writeByte(T_SERVER_TIMESTAMP);
+                    break;
+                case INCREMENT:
+                    out.writeByte(T_INCREMENT);
+                    out.writeLong(sentinel.getOperand().longValue());
+                    break;
+                default:
+                    out.writeByte(T_DELETE);
+                    break;
+            }
+        } else if (value instanceof Enum) {
+            out.writeByte(T_STRING);
+            writeString(out, ((Enum<?>) value).name());
+        } else {
+            throw new BackendException("INVALID_ARGUMENT", "Unsupported value type " + value.getClass().getName());
+        }
+    }
+
+    static Object readValue(DataInputStream in, CollaborationBackend backend) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case T_NULL:
+                return null;
+            case T_FALSE:
+                return false;
+            case T_TRUE:
+                return true;
+            case T_LONG:
+                return in.readLong();
+            case T_DOUBLE:
+                return in.readDouble();
+            case T_STRING:
+                return readString(in);
+            case T_TIMESTAMP:
+                return BackendTimestamp.ofTimeSecondsAndNanos(in.readLong(), in.readInt());
+            case T_BLOB: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return BackendBlob.fromBytes(bytes);
+            }
+            case T_LIST: {
+                int size = in.readInt();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in, backend));
+                }
+                return list;
+            }
+            case T_MAP:
+                return readMap(in, backend);
+            case T_REF:
+                return backend.document(readString(in));
+            case T_SERVER_TIMESTAMP:
+                return BackendValue.serverTimestamp();
+            case T_INCREMENT:
+                return BackendValue.increment(in.readLong());
+            case T_DELETE:
+                return BackendValue.delete();
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    static void writeMap(DataOutputStream out, Map<?, ?> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeString(out, (String) entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    static Map<String, Object> readMap(DataInputStream in, CollaborationBackend backend) throws IOException {
+        int size = in.readInt();
+        Map<String, Object> map = new HashMap<>(Math.max(4, size * 2));
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            map.put(key, readValue(in, backend));
+        }
+        return map;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ---- Documents, queries and writes ----
+
+    static void writeDoc(DataOutputStream out, BackendDoc doc) throws IOException {
+        writeString(out, doc.getReference().getPath());
+        out.writeBoolean(doc.exists());
+        if (doc.exists()) {
+            writeMap(out, doc.getData());
+        }
+    }
+
+    static BackendDoc readDoc(DataInputStream in, CollaborationBackend backend) throws IOException {
+        String path = readString(in);
+        Map<String, Object> data = in.readBoolean() ? readMap(in, backend) : null;
+        return new BackendDoc(backend.document(path), data);
+    }
+
+    static void writeDocs(DataOutputStream out, List<BackendDoc> docs) throws IOException {
+        out.writeInt(docs.size());
+        for (BackendDoc doc : docs) {
+            writeDoc(out, doc);
+        }
+    }
+
+    static List<BackendDoc> readDocs(DataInputStream in, CollaborationBackend backend) throws IOException {
+        int size = in.readInt();
+        List<BackendDoc> docs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            docs.add(readDoc(in, backend));
+        }
+        return docs;
+    }
+
+    static void writeSnapshot(DataOutputStream out, BackendQuerySnapshot snapshot) throws IOException {
+        writeDocs(out, snapshot.getDocuments());
+        writeChanges(out, snapshot.getDocumentChanges());
+    }
+
+    static BackendQuerySnapshot readSnapshot(DataInputStream in, CollaborationBackend backend) throws IOException {
+        List<BackendDoc> docs = readDocs(in, backend);
+        return new BackendQuerySnapshot(docs, readChanges(in, backend));
+    }
+
+    static void writeChanges(DataOutputStream out, List<BackendQuerySnapshot.Change> changes) throws IOException {
+        out.writeInt(changes.size());
+        for (BackendQuerySnapshot.Change change : changes) {
+            out.writeByte(change.getType().ordinal());
+            writeDoc(out, change.getDocument());
+        }
+    }
+
+    static List<BackendQuerySnapshot.Change> readChanges(DataInputStream in, CollaborationBackend backend) throws IOException {
+        int size = in.readInt();
+        List<BackendQuerySnapshot.Change> changes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            BackendQuerySnapshot.Change.Type type = BackendQuerySnapshot.Change.Type.values()[in.readByte()];
+            changes.add(new BackendQuerySnapshot.Change(type, readDoc(in, backend)));
+        }
+        return changes;
+    }
+
+    static void writeQuery(DataOutputStream out, BackendQuery query) throws IOException {
+        writeString(out, query.getCollectionPath());
+        out.writeInt(query.getFilters().size());
+        for (BackendQuery.Filter filter : query.getFilters()) {
+            writeString(out, filter.getField());
+            out.writeByte(filter.getOp().ordinal());
+            writeValue(out, filter.getValue());
+        }
+        out.writeBoolean(query.getOrderField() != null);
+        if (query.getOrderField() != null) {
+            writeString(out, query.getOrderField());
+            out.writeByte(query.getDirection().ordinal());
+        }
+        out.writeInt(query.getLimit());
+        out.writeInt(query.getSelectedFields().size());
+        for (String field : query.getSelectedFields()) {
+            writeString(out, field);
+        }
+    }
+
+    static BackendQuery readQuery(DataInputStream in, CollaborationBackend backend) throws IOException {
+        BackendQuery query = backend.collection(readString(in));
+        int filters = in.readInt();
+        for (int i = 0; i < filters; i++) {
+            String field = readString(in);
+            BackendQuery.Filter.Op op = BackendQuery.Filter.Op.values()[in.readByte()];
+            Object value = readValue(in, backend);
+            switch (op) {
+                case EQUAL:
+                    query = query.whereEqualTo(field, value);
+                    break;
+                case ARRAY_CONTAINS:
+                    query = query.whereArrayContains(field, value);
+                    break;
+                case IN:
+                    query = query.whereIn(field, (List<?>) value);
+                    break;
+            }
+        }
+        if (in.readBoolean()) {
+            String field = readString(in);
+            query = query.orderBy(field, BackendQuery.Direction.values()[in.readByte()]);
+        }
+        int limit = in.readInt();
+        if (limit > 0) {
+            query = query.limit(limit);
+        }
+        int selected = in.readInt();
+        if (selected > 0) {
+            String[] fields = new String[selected];
+            for (int i = 0; i < selected; i++) {
+                fields[i] = readString(in);
+            }
+            query = query.select(fields);
+        }
+        return query;
+    }
+
+    static void writeWrites(DataOutputStream out, List<CollaborationBackend.Write> writes) throws IOException {
+        out.writeInt(writes.size());
+        for (CollaborationBackend.Write write : writes) {
+            out.writeByte(write.getType().ordinal());
+            writeString(out, write.getPath());
+            out.writeBoolean(write.getData() != null);
+            if (write.getData() != null) {
+                writeMap(out, write.getData());
+            }
+        }
+    }
+
+    static List<CollaborationBackend.Write> readWrites(DataInputStream in, CollaborationBackend backend) throws IOException {
+        int size = in.readInt();
+        List<CollaborationBackend.Write> writes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            CollaborationBackend.Write.Type type = CollaborationBackend.Write.Type.values()[in.readByte()];
+            String path = readString(in);
+            Map<String, Object> data = in.readBoolean() ? readMap(in, backend) : null;
+            writes.add(new CollaborationBackend.Write(type, path, data));
+        }
+        return writes;
+    }
+}
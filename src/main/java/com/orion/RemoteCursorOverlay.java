@@ -0,0 +1,270 @@
+package com.orion;
+
+import javafx.animation.AnimationTimer;
+import javafx.geometry.BoundingBox;
+import javafx.geometry.Bounds;
+import javafx.scene.Node;
+import javafx.scene.control.Label;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.ClosePath;
+import javafx.scene.shape.LineTo;
+import javafx.scene.shape.MoveTo;
+import javafx.scene.shape.Path;
+import javafx.scene.shape.PathElement;
+import javafx.scene.shape.Rectangle;
+import org.fxmisc.richtext.CodeArea;
+import org.fxmisc.richtext.model.PlainTextChange;
+import org.fxmisc.richtext.model.TwoDimensional;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Carets and selections of collaborators, drawn on a layer above the code area.
+ * The layer never touches the document or its style spans, so cursor traffic causes
+ * no re-highlighting or text layout. A presence update only marks that collaborator's
+ * cursor, scrolling and resizing mark all of them, and marked cursors are placed at
+ * most once per frame. Local edits shift the cursors after them until the next update.
+ * Must be used on the JavaFX thread.
+ */
+public class RemoteCursorOverlay extends Pane {
+    private static final Color[] COLORS = {
+            Color.web("#f92672"), Color.web("#a6e22e"), Color.web("#66d9ef"),
+            Color.web("#fd971f"), Color.web("#ae81ff"), Color.web("#e6db74")};
+    private static final double CARET_WIDTH = 2;
+    private static final double LINE_BREAK_WIDTH = 4; // Selected line breaks show as a sliver
+
+    /** One collaborator's caret, selection and name tag. */
+    private final class RemoteCursor {
+        final Rectangle caret = new Rectangle(CARET_WIDTH, 0);
+        final Path selection = new Path();
+        final Label name = new Label();
+        int position;
+        int anchor;
+
+        RemoteCursor(String userId, String username) {
+            Color color = COLORS[Math.floorMod(userId.hashCode(), COLORS.length)];
+            caret.setFill(color);
+            selection.setFill(color.deriveColor(0, 1, 1, 0.25));
+            selection.setStroke(null);
+            name.setText(username != null ? username : userId);
+            name.setStyle("-fx-font-size: 10px; -fx-padding: 0 3; -fx-text-fill: #1e1e1e; -fx-background-color: "
+                    + toWeb(color) + ";");
+            for (Node node : List.of(selection, caret, name)) {
+                node.setManaged(false);
+            }
+            getChildren().addAll(selection, caret, name);
+        }
+
+        void remove() {
+            getChildren().removeAll(selection, caret, name);
+        }
+    }
+
+    private final CodeArea codeArea;
+    private final Map<String, RemoteCursor> cursors = new HashMap<>();
+    private final Set<RemoteCursor> dirty = new LinkedHashSet<>();
+    private boolean scheduled;
+    private final AnimationTimer frame = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            stop();
+            scheduled = false;
+            placeDirty();
+        }
+    };
+
+    public RemoteCursorOverlay(CodeArea codeArea) {
+        this.codeArea = codeArea;
+        setMouseTransparent(true);
+        setPickOnBounds(false);
+
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(widthProperty());
+        clip.heightProperty().bind(heightProperty());
+        setClip(clip);
+
+        // Scrolling, resizing and relayout move every visible line
+        codeArea.viewportDirtyEvents().subscribe(e -> markAll());
+        codeArea.plainTextChanges().subscribe(this::shift);
+    }
+
+    /**
+     * Show or move a collaborator's cursor. Unchanged positions cost nothing.
+     *
+     * @param anchor Other end of the selection; the position if nothing is selected
+     */
+    public void show(String userId, String username, int position, int anchor) {
+        RemoteCursor cursor = cursors.get(userId);
+        if (cursor == null) {
+            cursor = new RemoteCursor(userId, username);
+            cursors.put(userId, cursor);
+        } else if (cursor.position == position && cursor.anchor == anchor) {
+            return;
+        }
+        cursor.position = position;
+        cursor.anchor = anchor;
+        mark(cursor);
+    }
+
+    /**
+     * Remove the cursors of everyone not in the set.
+     */
+    public void retainOnly(Set<String> userIds) {
+        Iterator<Map.Entry<String, RemoteCursor>> it = cursors.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, RemoteCursor> entry = it.next();
+            if (!userIds.contains(entry.getKey())) {
+                entry.getValue().remove();
+                dirty.remove(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        retainOnly(Set.of());
+    }
+
+    private void mark(RemoteCursor cursor) {
+        dirty.add(cursor);
+        if (!scheduled) {
+            scheduled = true;
+            frame.start();
+        }
+    }
+
+    private void markAll() {
+        cursors.values().forEach(this::mark);
+    }
+
+    /** Keep cursors on the same text while the local user edits before them. */
+    private void shift(PlainTextChange change) {
+        for (RemoteCursor cursor : cursors.values()) {
+            int position = shifted(cursor.position, change);
+            int anchor = shifted(cursor.anchor, change);
+            if (position != cursor.position || anchor != cursor.anchor) {
+                cursor.position = position;
+                cursor.anchor = anchor;
+                mark(cursor);
+            }
+        }
+    }
+
+    private static int shifted(int offset, PlainTextChange change) {
+        if (offset <= change.getPosition()) {
+            return offset;
+        }
+        if (offset < change.getRemovalEnd()) {
+            return change.getInsertionEnd(); // Inside removed text: move to the end of what replaced it
+        }
+        return offset + change.getNetLength();
+    }
+
+    private void placeDirty() {
+        for (RemoteCursor cursor : dirty) {
+            place(cursor);
+        }
+        dirty.clear();
+    }
+
+    private void place(RemoteCursor cursor) {
+        int length = codeArea.getLength();
+        int position = Math.max(0, Math.min(cursor.position, length));
+        int anchor = Math.max(0, Math.min(cursor.anchor, length));
+
+        Optional<Bounds> caret = caretBounds(position);
+        cursor.caret.setVisible(caret.isPresent());
+        cursor.name.setVisible(caret.isPresent());
+        if (caret.isPresent()) {
+            Bounds bounds = caret.get();
+            cursor.caret.relocate(bounds.getMinX(), bounds.getMinY());
+            cursor.caret.setHeight(bounds.getHeight());
+            cursor.name.applyCss();
+            cursor.name.autosize();
+            cursor.name.relocate(bounds.getMinX(), Math.max(0, bounds.getMinY() - cursor.name.getHeight()));
+        }
+
+        cursor.selection.getElements().setAll(selectionShape(Math.min(position, anchor), Math.max(position, anchor)));
+    }
+
+    /**
+     * Where a caret at the offset is drawn, in this layer's coordinates; empty while its
+     * line is scrolled out of view.
+     */
+    private Optional<Bounds> caretBounds(int offset) {
+        TwoDimensional.Position at = codeArea.offsetToPosition(offset, TwoDimensional.Bias.Forward);
+        int paragraph = at.getMajor();
+        Optional<Integer> visible = codeArea.allParToVisibleParIndex(paragraph);
+        if (visible.isEmpty()) {
+            return Optional.empty();
+        }
+        int column = at.getMinor();
+        int paragraphLength = codeArea.getParagraphLength(paragraph);
+        Optional<Bounds> character;
+        if (column < paragraphLength) {
+            character = codeArea.getCharacterBoundsOnScreen(offset, offset + 1)
+                    .map(b -> new BoundingBox(b.getMinX(), b.getMinY(), CARET_WIDTH, b.getHeight()));
+        } else if (column > 0) {
+            character = codeArea.getCharacterBoundsOnScreen(offset - 1, offset)
+                    .map(b -> new BoundingBox(b.getMaxX(), b.getMinY(), CARET_WIDTH, b.getHeight()));
+        } else {
+            // Empty line
+            Bounds line = codeArea.getVisibleParagraphBoundsOnScreen(visible.get());
+            character = Optional.of(new BoundingBox(line.getMinX(), line.getMinY(), CARET_WIDTH, line.getHeight()));
+        }
+        return character.map(this::screenToLocal);
+    }
+
+    /** One rectangle per visible line of the selection. */
+    private List<PathElement> selectionShape(int start, int end) {
+        List<PathElement> shape = new ArrayList<>();
+        if (start == end) {
+            return shape;
+        }
+        int first = codeArea.offsetToPosition(start, TwoDimensional.Bias.Forward).getMajor();
+        int last = codeArea.offsetToPosition(end, TwoDimensional.Bias.Backward).getMajor();
+        int visibleCount = codeArea.getVisibleParagraphs().size();
+        if (visibleCount == 0) {
+            return shape;
+        }
+        int from = Math.max(first, codeArea.visibleParToAllParIndex(0));
+        int to = Math.min(last, codeArea.visibleParToAllParIndex(visibleCount - 1));
+        for (int paragraph = from; paragraph <= to; paragraph++) {
+            int lineStart = codeArea.getAbsolutePosition(paragraph, 0);
+            int lineEnd = lineStart + codeArea.getParagraphLength(paragraph);
+            int selectedStart = Math.max(start, lineStart);
+            int selectedEnd = Math.min(end, lineEnd);
+            Optional<Bounds> bounds;
+            if (selectedStart < selectedEnd) {
+                bounds = codeArea.getCharacterBoundsOnScreen(selectedStart, selectedEnd).map(this::screenToLocal);
+            } else {
+                bounds = caretBounds(selectedStart);
+            }
+            if (bounds.isEmpty()) {
+                continue;
+            }
+            Bounds b = bounds.get();
+            double width = b.getWidth() + (end > lineEnd ? LINE_BREAK_WIDTH : 0);
+            shape.add(new MoveTo(b.getMinX(), b.getMinY()));
+            shape.add(new LineTo(b.getMinX() + width, b.getMinY()));
+            shape.add(new LineTo(b.getMinX() + width, b.getMaxY()));
+            shape.add(new LineTo(b.getMinX(), b.getMaxY()));
+            shape.add(new ClosePath());
+        }
+        return shape;
+    }
+
+    private static String toWeb(Color color) {
+        return String.format("#%02x%02x%02x",
+                (int) Math.round(color.getRed() * 255), (int) Math.round(color.getGreen() * 255),
+                (int) Math.round(color.getBlue() * 255));
+    }
+}
@@ -0,0 +1,415 @@
+package com.orion;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replicated growable array (RGA) sequence CRDT for character-level co-editing.
+ * Every character carries a unique Lamport ID and remembers which character it was
+ * typed after; deletes leave tombstones. Replicas that apply the same set of
+ * operations in any causal order end up with identical text.
+ *
+ * Not thread-safe: a replica is owned by one thread (the FX thread in the editor).
+ */
+public class SequenceCrdt {
+    /** Site of the characters that make up the shared base text. */
+    public static final String BASE_SITE = "";
+
+    private final String site;
+    private long clock;
+
+    // Document order including tombstones; index 0 is the head sentinel
+    private final List<Node> nodes = new ArrayList<>();
+    private final Map<Id, Node> index = new HashMap<>();
+
+    // Remote operations whose causal dependencies have not arrived yet
+    private final List<Op> waiting = new ArrayList<>();
+
+    public SequenceCrdt(String site, String baseText) {
+        this.site = site;
+        Node head = new Node(Id.HEAD, '\0');
+        head.deleted = true;
+        nodes.add(head);
+        index.put(Id.HEAD, head);
+
+        // Base characters get deterministic IDs so every replica seeded from the same text agrees
+        for (int i = 0; i < baseText.length(); i++) {
+            Node node = new Node(new Id(i + 1, BASE_SITE), baseText.charAt(i));
+            nodes.add(node);
+            index.put(node.id, node);
+        }
+        this.clock = baseText.length();
+    }
+
+    /**
+     * Restore a replica from {@link #encode()}, so it continues from a snapshot instead
+     * of replaying every operation since the base text.
+     */
+    public static SequenceCrdt decode(String site, String encoded) {
+        SequenceCrdt crdt = new SequenceCrdt(site, "");
+        int at = 0;
+        while (at < encoded.length()) {
+            int newline = encoded.indexOf('\n', at);
+            String[] header = encoded.substring(at, newline).split(" ");
+            long counter = Long.parseLong(header[0]);
+            boolean deleted = header[1].equals("1");
+            int siteLength = Integer.parseInt(header[2]);
+            int length = Integer.parseInt(header[3]);
+            at = newline + 1;
+            String runSite = encoded.substring(at, at + siteLength);
+            at += siteLength;
+            for (int i = 0; i < length; i++) {
+                // Tombstones keep their place and ID but not their character
+                Node node = new Node(new Id(counter + i, runSite), deleted ? '\0' : encoded.charAt(at + i));
+                node.deleted = deleted;
+                crdt.nodes.add(node);
+                crdt.index.put(node.id, node);
+            }
+            if (!deleted) {
+                at += length;
+            }
+            crdt.clock = Math.max(crdt.clock, counter + length - 1);
+        }
+        return crdt;
+    }
+
+    /**
+     * Every character and tombstone with its ID, in document order, as runs of
+     * consecutive IDs: {@code "<counter> <deleted> <site length> <length>\n<site><text>"}.
+     * Replicas restored from it accept the same operations as this one.
+     * Remote operations still waiting for their dependencies are not included.
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder(nodes.size() + 64);
+        int i = 1;
+        while (i < nodes.size()) {
+            Node first = nodes.get(i);
+            int end = i + 1;
+            while (end < nodes.size()) {
+                Node next = nodes.get(end);
+                if (next.deleted != first.deleted || !next.id.site.equals(first.id.site)
+                        || next.id.counter != first.id.counter + (end - i)) {
+                    break;
+                }
+                end++;
+            }
+            sb.append(first.id.counter).append(' ').append(first.deleted ? '1' : '0').append(' ')
+                    .append(first.id.site.length()).append(' ').append(end - i).append('\n')
+                    .append(first.id.site);
+            if (!first.deleted) {
+                for (int k = i; k < end; k++) {
+                    sb.append(nodes.get(k).value);
+                }
+            }
+            i = end;
+        }
+        return sb.toString();
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    /**
+     * Current visible text.
+     */
+    public String getText() {
+        StringBuilder sb = new StringBuilder(nodes.size());
+        for (Node node : nodes) {
+            if (!node.deleted) {
+                sb.append(node.value);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Turn a local edit of the visible text into operations and apply them.
+     *
+     * @return The operations to broadcast to other replicas
+     */
+    public List<Op> localEdit(int position, int removedLength, String inserted) {
+        List<Op> ops = new ArrayList<>();
+
+        if (removedLength > 0) {
+            int slot = slotOfVisible(position);
+            int remaining = removedLength;
+            for (int i = slot; i < nodes.size() && remaining > 0; i++) {
+                Node node = nodes.get(i);
+                if (!node.deleted) {
+                    node.deleted = true;
+                    ops.add(Op.delete(node.id));
+                    remaining--;
+                }
+            }
+        }
+
+        if (inserted != null && !inserted.isEmpty()) {
+            // Insert after the visible character just before the edit position
+            int slot = position == 0 ? 0 : slotOfVisible(position - 1);
+            Id after = nodes.get(slot).id;
+            long start = clock + 1;
+            List<Node> run = new ArrayList<>(inserted.length());
+            for (int i = 0; i < inserted.length(); i++) {
+                Node node = new Node(new Id(++clock, site), inserted.charAt(i));
+                run.add(node);
+                index.put(node.id, node);
+            }
+            // New IDs outrank everything this replica has seen, so nothing needs to be skipped
+            nodes.addAll(slot + 1, run);
+            ops.add(Op.insert(new Id(start, site), after, inserted));
+        }
+
+        return ops;
+    }
+
+    /**
+     * Apply operations from another replica.
+     *
+     * @return Edits of the visible text caused by the operations, in application order
+     */
+    public List<TextEdit> applyRemote(List<Op> ops) {
+        List<TextEdit> edits = new ArrayList<>();
+        waiting.addAll(ops);
+
+        // Keep applying until no waiting operation becomes ready
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            Set<Node> deletes = new HashSet<>();
+            Iterator<Op> it = waiting.iterator();
+            while (it.hasNext()) {
+                Op op = it.next();
+                if (op.type == Op.Type.DELETE) {
+                    Node node = index.get(op.id);
+                    if (node != null) {
+                        // Deletes are collected and resolved in one pass over the document
+                        deletes.add(node);
+                        it.remove();
+                        progress = true;
+                    }
+                } else if (index.containsKey(op.after)) {
+                    applyDeletes(deletes, edits);
+                    applyInsert(op, edits);
+                    it.remove();
+                    progress = true;
+                }
+            }
+            applyDeletes(deletes, edits);
+        }
+
+        return coalesce(edits);
+    }
+
+    /**
+     * Number of remote operations still waiting for their dependencies.
+     */
+    public int getWaitingCount() {
+        return waiting.size();
+    }
+
+    private void applyInsert(Op op, List<TextEdit> edits) {
+        if (index.containsKey(op.id)) {
+            return; // Already applied
+        }
+
+        clock = Math.max(clock, op.id.counter + op.text.length() - 1);
+
+        int slot = nodes.indexOf(index.get(op.after)) + 1;
+        int visible = 0;
+        for (int i = 1; i < slot; i++) {
+            if (!nodes.get(i).deleted) {
+                visible++;
+            }
+        }
+
+        for (int i = 0; i < op.text.length(); i++) {
+            Id id = new Id(op.id.counter + i, op.id.site);
+
+            // Skip concurrent inserts at the same spot that win the ordering, and their descendants
+            while (slot < nodes.size() && nodes.get(slot).id.compareTo(id) > 0) {
+                if (!nodes.get(slot).deleted) {
+                    visible++;
+                }
+                slot++;
+            }
+
+            Node node = new Node(id, op.text.charAt(i));
+            nodes.add(slot, node);
+            index.put(id, node);
+            edits.add(new TextEdit(visible, 0, String.valueOf(node.value)));
+
+            // The next character of the run follows this one
+            visible++;
+            slot++;
+        }
+    }
+
+    private void applyDeletes(Set<Node> targets, List<TextEdit> edits) {
+        if (targets.isEmpty()) {
+            return;
+        }
+        int visible = 0;
+        for (Node node : nodes) {
+            if (node.deleted) {
+                continue;
+            }
+            if (targets.contains(node)) {
+                node.deleted = true;
+                edits.add(new TextEdit(visible, 1, ""));
+            } else {
+                visible++;
+            }
+        }
+        targets.clear();
+    }
+
+    /**
+     * Merge runs of single-character edits into range edits.
+     */
+    private List<TextEdit> coalesce(List<TextEdit> edits) {
+        List<TextEdit> merged = new ArrayList<>();
+        for (TextEdit edit : edits) {
+            if (!merged.isEmpty()) {
+                TextEdit last = merged.get(merged.size() - 1);
+                boolean lastIsInsert = last.getRemovedLength() == 0;
+                boolean isInsert = edit.getRemovedLength() == 0;
+                if (lastIsInsert && isInsert
+                        && edit.getPosition() == last.getPosition() + last.getInserted().length()) {
+                    merged.set(merged.size() - 1,
+                            new TextEdit(last.getPosition(), 0, last.getInserted() + edit.getInserted()));
+                    continue;
+                }
+                if (!lastIsInsert && !isInsert && edit.getPosition() == last.getPosition()) {
+                    merged.set(merged.size() - 1,
+                            new TextEdit(last.getPosition(), last.getRemovedLength() + edit.getRemovedLength(), ""));
+                    continue;
+                }
+            }
+            merged.add(edit);
+        }
+        return merged;
+    }
+
+    /**
+     * Slot in the node list of the visible character at the given visible index,
+     * or the last slot when the index is past the end of the text.
+     */
+    private int slotOfVisible(int visibleIndex) {
+        int seen = -1;
+        for (int i = 1; i < nodes.size(); i++) {
+            if (!nodes.get(i).deleted && ++seen == visibleIndex) {
+                return i;
+            }
+        }
+        return nodes.size() - 1;
+    }
+
+    /**
+     * Lamport identifier of a character: counter first, site breaks ties.
+     */
+    public static final class Id implements Comparable<Id> {
+        static final Id HEAD = new Id(0, BASE_SITE);
+
+        final long counter;
+        final String site;
+
+        public Id(long counter, String site) {
+            this.counter = counter;
+            this.site = site;
+        }
+
+        public long getCounter() {
+            return counter;
+        }
+
+        public String getSite() {
+            return site;
+        }
+
+        @Override
+        public int compareTo(Id other) {
+            int byCounter = Long.compare(counter, other.counter);
+            return byCounter != 0 ? byCounter : site.compareTo(other.site);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Id)) {
+                return false;
+            }
+            Id other = (Id) o;
+            return counter == other.counter && site.equals(other.site);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(counter) * 31 + site.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return counter + "@" + site;
+        }
+    }
+
+    /**
+     * A replicated operation. An insert covers a run of characters typed in one go:
+     * the k-th character has counter {@code id.counter + k} and follows the one before it.
+     */
+    public static final class Op {
+        public enum Type { INSERT, DELETE }
+
+        final Type type;
+        final Id id;
+        final Id after;
+        final String text;
+
+        private Op(Type type, Id id, Id after, String text) {
+            this.type = type;
+            this.id = id;
+            this.after = after;
+            this.text = text;
+        }
+
+        public static Op insert(Id id, Id after, String text) {
+            return new Op(Type.INSERT, id, after, text);
+        }
+
+        public static Op delete(Id id) {
+            return new Op(Type.DELETE, id, null, null);
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public Id getId() {
+            return id;
+        }
+
+        public Id getAfter() {
+            return after;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    private static final class Node {
+        final Id id;
+        final char value;
+        boolean deleted;
+
+        Node(Id id, char value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+}
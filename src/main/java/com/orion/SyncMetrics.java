@@ -0,0 +1,279 @@
+package com.orion;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end sync latency for this instance.
+ * Outgoing saves and co-editing batches are stamped with a sync ID that increases for this
+ * client and a send time; each stage they pass is recorded against that send time:
+ * queued locally, acknowledged by the server, and applied by a collaborator. Remote apply
+ * compares the sender's clock with ours, so it includes any clock skew between machines.
+ *
+ * Every metric keeps a rolling histogram of the last five minutes and one since startup.
+ * A summary is appended to {@code ~/.orion/sync-metrics.csv} every few minutes and on exit.
+ */
+public class SyncMetrics {
+    public static final String SAVE_LOCAL_COMMIT = "save / local commit";
+    public static final String SAVE_SERVER_ACK = "save / server ack";
+    public static final String SAVE_REMOTE_APPLY = "save / remote apply";
+    public static final String COEDIT_SERVER_ACK = "co-edit / server ack";
+    public static final String COEDIT_REMOTE_APPLY = "co-edit / remote apply";
+
+    private static final long SLOT_MS = 10_000;
+    private static final int SLOTS = 30; // Rolling window: 30 slots of 10 seconds
+    private static final long EXPORT_INTERVAL_MINUTES = 5;
+    private static final Path EXPORT_FILE = Path.of(
+            System.getProperty("user.home"), ".orion", "sync-metrics.csv");
+
+    private static final SyncMetrics instance = new SyncMetrics();
+
+    private final String clientId = UUID.randomUUID().toString().substring(0, 8);
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>(); // Sorted for display
+    private final ScheduledExecutorService exporter;
+    private final Map<String, Long> exportedCounts = new ConcurrentHashMap<>();
+
+    private SyncMetrics() {
+        exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sync-metrics-export");
+            t.setDaemon(true);
+            return t;
+        });
+        exporter.scheduleAtFixedRate(this::exportIfChanged,
+                EXPORT_INTERVAL_MINUTES, EXPORT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    public static SyncMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * A new sync ID: this client's ID and a sequence number that only grows.
+     */
+    public String nextSyncId() {
+        return clientId + "-" + sequence.incrementAndGet();
+    }
+
+    /**
+     * Stamp for an outgoing write, stored in its document's {@code sync} field.
+     */
+    public Map<String, Object> stamp(String syncId, long sentAtMillis, String by) {
+        Map<String, Object> stamp = new HashMap<>();
+        stamp.put("id", syncId);
+        stamp.put("sentAt", sentAtMillis);
+        stamp.put("by", by);
+        return stamp;
+    }
+
+    /**
+     * Record the time since a received document's write was sent, if it carries a stamp.
+     */
+    public void recordApplied(String metric, BackendDoc doc) {
+        Long sentAt = doc.getLong("sync.sentAt");
+        if (sentAt != null) {
+            recordSinceSent(metric, sentAt, doc.getString("sync.by"));
+        }
+    }
+
+    /**
+     * Record a latency measured on this machine's monotonic clock.
+     */
+    public void recordSince(String metric, long startNanos) {
+        record(metric, (System.nanoTime() - startNanos) / 1_000);
+    }
+
+    /**
+     * Record the time since a wall-clock send time, possibly taken on another machine.
+     *
+     * @param source Sender, so slow peers show up as their own rows
+     */
+    public void recordSinceSent(String metric, long sentAtMillis, String source) {
+        long micros = Math.max(0, System.currentTimeMillis() - sentAtMillis) * 1_000;
+        record(metric, micros);
+        if (source != null) {
+            record(metric + " / " + source, micros);
+        }
+    }
+
+    public void record(String metric, long micros) {
+        metrics.computeIfAbsent(metric, m -> new Metric()).record(micros);
+    }
+
+    /**
+     * One summary line per metric and window.
+     */
+    public static class Summary {
+        private final String metric;
+        private final String window;
+        private final LatencyHistogram histogram;
+
+        Summary(String metric, String window, LatencyHistogram histogram) {
+            this.metric = metric;
+            this.window = window;
+            this.histogram = histogram;
+        }
+
+        public String getMetric() {
+            return metric;
+        }
+
+        public String getWindow() {
+            return window;
+        }
+
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        public double getPercentileMillis(double percentile) {
+            return histogram.getValueAtPercentile(percentile) / 1000.0;
+        }
+
+        public double getMaxMillis() {
+            return histogram.getMax() / 1000.0;
+        }
+
+        public double getMeanMillis() {
+            return histogram.getMean() / 1000.0;
+        }
+    }
+
+    /**
+     * Current summaries: the rolling window and the total for every metric.
+     */
+    public List<Summary> getSummaries() {
+        List<Summary> summaries = new ArrayList<>();
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            summaries.add(new Summary(entry.getKey(), "5m", entry.getValue().recent()));
+            summaries.add(new Summary(entry.getKey(), "total", entry.getValue().total.copy()));
+        }
+        return summaries;
+    }
+
+    /**
+     * Text table of the current summaries, for the diagnostics panel.
+     */
+    public String formatTable() {
+        StringBuilder table = new StringBuilder(String.format(Locale.ROOT, "%-40s %-6s %8s %9s %9s %9s %9s%n",
+                "Metric", "Window", "Count", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        for (Summary summary : getSummaries()) {
+            table.append(String.format(Locale.ROOT, "%-40s %-6s %8d %9.1f %9.1f %9.1f %9.1f%n",
+                    summary.getMetric(), summary.getWindow(), summary.getCount(),
+                    summary.getPercentileMillis(50), summary.getPercentileMillis(90),
+                    summary.getPercentileMillis(99), summary.getMaxMillis()));
+        }
+        return table.toString();
+    }
+
+    /**
+     * Append the current summaries to the metrics file.
+     *
+     * @return The file written to
+     */
+    public synchronized File export() throws IOException {
+        Files.createDirectories(EXPORT_FILE.getParent());
+        boolean header = !Files.exists(EXPORT_FILE);
+        StringBuilder lines = new StringBuilder();
+        if (header) {
+            lines.append("timestamp,client,metric,window,count,p50_ms,p90_ms,p99_ms,max_ms,mean_ms\n");
+        }
+        String now = Instant.now().toString();
+        for (Summary summary : getSummaries()) {
+            lines.append(String.format(Locale.ROOT, "%s,%s,\"%s\",%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f%n",
+                    now, clientId, summary.getMetric().replace("\"", "\"\""), summary.getWindow(),
+                    summary.getCount(), summary.getPercentileMillis(50), summary.getPercentileMillis(90),
+                    summary.getPercentileMillis(99), summary.getMaxMillis(), summary.getMeanMillis()));
+            if (summary.getWindow().equals("total")) {
+                exportedCounts.put(summary.getMetric(), summary.getCount());
+            }
+        }
+        Files.writeString(EXPORT_FILE, lines, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return EXPORT_FILE.toFile();
+    }
+
+    /**
+     * Export if anything was recorded since the last export; used periodically and on exit.
+     */
+    public void exportIfChanged() {
+        boolean changed = metrics.entrySet().stream().anyMatch(entry ->
+                entry.getValue().total.getCount() != exportedCounts.getOrDefault(entry.getKey(), 0L));
+        if (!changed) {
+            return;
+        }
+        try {
+            export();
+        } catch (IOException e) {
+            System.err.println("Failed to export sync metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public void reset() {
+        metrics.clear();
+        exportedCounts.clear();
+    }
+
+    /**
+     * One metric: a ring of per-slot histograms for the rolling window, and a running total.
+     */
+    private static class Metric {
+        private final LatencyHistogram total = new LatencyHistogram();
+        private final LatencyHistogram[] slots = new LatencyHistogram[SLOTS];
+        private final long[] slotStarts = new long[SLOTS];
+
+        Metric() {
+            for (int i = 0; i < SLOTS; i++) {
+                slots[i] = new LatencyHistogram();
+            }
+        }
+
+        synchronized void record(long micros) {
+            total.record(micros);
+            slot(System.currentTimeMillis()).record(micros);
+        }
+
+        /** The slot for a time, cleared first if it still holds an older period. */
+        private LatencyHistogram slot(long now) {
+            long start = now - now % SLOT_MS;
+            int index = (int) ((start / SLOT_MS) % SLOTS);
+            if (slotStarts[index] != start) {
+                slots[index].reset();
+                slotStarts[index] = start;
+            }
+            return slots[index];
+        }
+
+        synchronized LatencyHistogram recent() {
+            long now = System.currentTimeMillis();
+            long oldest = now - now % SLOT_MS - (SLOTS - 1) * SLOT_MS;
+            LatencyHistogram merged = new LatencyHistogram();
+            for (int i = 0; i < SLOTS; i++) {
+                if (slotStarts[i] >= oldest) {
+                    merged.add(slots[i]);
+                }
+            }
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.orion;
+
+import org.fxmisc.richtext.CodeArea;
+
+import java.util.List;
+
+/**
+ * A single range replacement in a text buffer: remove {@code removedLength}
+ * characters at {@code position} and insert {@code inserted} in their place.
+ */
+public class TextEdit {
+    private final int position;
+    private final int removedLength;
+    private final String inserted;
+
+    public TextEdit(int position, int removedLength, String inserted) {
+        this.position = position;
+        this.removedLength = removedLength;
+        this.inserted = inserted != null ? inserted : "";
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public int getRemovedLength() {
+        return removedLength;
+    }
+
+    public String getInserted() {
+        return inserted;
+    }
+
+    public int getEnd() {
+        return position + removedLength;
+    }
+
+    /**
+     * The single edit that turns {@code oldText} into {@code newText}, found by trimming
+     * their common prefix and suffix.
+     *
+     * @return The edit, or null if the texts are equal
+     */
+    public static TextEdit between(String oldText, String newText) {
+        if (oldText.equals(newText)) {
+            return null;
+        }
+        int prefix = 0;
+        int maxPrefix = Math.min(oldText.length(), newText.length());
+        while (prefix < maxPrefix && oldText.charAt(prefix) == newText.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        int maxSuffix = maxPrefix - prefix;
+        while (suffix < maxSuffix
+                && oldText.charAt(oldText.length() - 1 - suffix) == newText.charAt(newText.length() - 1 - suffix)) {
+            suffix++;
+        }
+        return new TextEdit(prefix, oldText.length() - prefix - suffix,
+                newText.substring(prefix, newText.length() - suffix));
+    }
+
+    /**
+     * Map an offset in the text before this edit to the text after it.
+     * Offsets up to the start of the edit stay put, offsets after it shift by the length
+     * change, and offsets inside the replaced range move to the end of the inserted text.
+     */
+    public int transform(int offset) {
+        if (offset <= position) {
+            return offset;
+        }
+        if (offset >= getEnd()) {
+            return offset + inserted.length() - removedLength;
+        }
+        return position + inserted.length();
+    }
+
+    /**
+     * Apply edits to the code area in order as targeted replacements, carrying the
+     * caret and selection through each one instead of letting them jump to the edit.
+     * Each edit's position refers to the text as left by the previous edits.
+     */
+    public static void applyTo(CodeArea codeArea, List<TextEdit> edits) {
+        if (edits.isEmpty()) {
+            return;
+        }
+
+        int anchor = codeArea.getAnchor();
+        int caret = codeArea.getCaretPosition();
+
+        for (TextEdit edit : edits) {
+            codeArea.replaceText(edit.getPosition(), edit.getEnd(), edit.getInserted());
+            anchor = edit.transform(anchor);
+            caret = edit.transform(caret);
+        }
+
+        int length = codeArea.getLength();
+        codeArea.selectRange(Math.min(anchor, length), Math.min(caret, length));
+    }
+
+    @Override
+    public String toString() {
+        return "TextEdit{" + position + ", -" + removedLength + ", +" + inserted.length() + "}";
+    }
+}
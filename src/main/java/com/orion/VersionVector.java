@@ -0,0 +1,112 @@
+package com.orion;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Saves of one file counted per author. Every save bumps its author's entry on the
+ * file document ({@code versions}) and records the vector its author had seen
+ * ({@code basedOn}), so a receiver can tell a save made on top of everything it knows
+ * from one made without some of it, i.e. a real conflict.
+ */
+public final class VersionVector {
+    public static final VersionVector EMPTY = new VersionVector(Map.of());
+
+    private final Map<String, Long> counts;
+
+    private VersionVector(Map<String, Long> counts) {
+        this.counts = Collections.unmodifiableMap(new TreeMap<>(counts));
+    }
+
+    /**
+     * Read a vector stored as a map field; anything else gives the empty vector.
+     */
+    public static VersionVector of(Object field) {
+        if (!(field instanceof Map)) {
+            return EMPTY;
+        }
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) field).entrySet()) {
+            if (entry.getValue() instanceof Number) {
+                counts.put(String.valueOf(entry.getKey()), ((Number) entry.getValue()).longValue());
+            }
+        }
+        return new VersionVector(counts);
+    }
+
+    /**
+     * Read a vector written by {@link #encode()}. Stored as a string, because merged
+     * writes would merge a map field into the previous save's vector.
+     */
+    public static VersionVector decode(String encoded) {
+        if (encoded == null || encoded.isEmpty()) {
+            return EMPTY;
+        }
+        Map<String, Long> counts = new TreeMap<>();
+        for (String entry : encoded.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            if (colon > 0) {
+                counts.put(entry.substring(0, colon), Long.parseLong(entry.substring(colon + 1)));
+            }
+        }
+        return new VersionVector(counts);
+    }
+
+    /** Author IDs and counts as {@code "a:3,b:1"}. */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(entry.getKey()).append(':').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    public long get(String author) {
+        return counts.getOrDefault(author, 0L);
+    }
+
+    /**
+     * Whether this vector has seen every save the other has.
+     */
+    public boolean dominates(VersionVector other) {
+        for (Map.Entry<String, Long> entry : other.counts.entrySet()) {
+            if (get(entry.getKey()) < entry.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** This vector plus one more save by the author. */
+    public VersionVector increment(String author) {
+        Map<String, Long> incremented = new TreeMap<>(counts);
+        incremented.merge(author, 1L, Long::sum);
+        return new VersionVector(incremented);
+    }
+
+    /** Every save seen by either vector. */
+    public VersionVector merge(VersionVector other) {
+        Map<String, Long> merged = new TreeMap<>(counts);
+        other.counts.forEach((author, count) -> merged.merge(author, count, Math::max));
+        return new VersionVector(merged);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof VersionVector && counts.equals(((VersionVector) o).counts);
+    }
+
+    @Override
+    public int hashCode() {
+        return counts.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "{" + encode() + "}";
+    }
+}
@@ -0,0 +1,479 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads an existing workspace folder into a new project, so collaborators who join
+ * find every file instead of only the ones saved since.
+ * The folder is walked with ignore rules (common build and tool folders, plus the
+ * root {@code .gitignore} and {@code .orionignore}); binary and oversized files are
+ * skipped. Files are uploaded in batches by a few workers at once.
+ *
+ * Each uploaded file gets its SQLite snapshot, and the import is recorded as pending
+ * until it finishes, so running it again after a failure skips files already uploaded.
+ */
+public class WorkspaceImporter {
+    static final long MAX_FILE_SIZE = 5 * 1024 * 1024;
+    private static final int MAX_WORKERS = 4;
+    private static final int MAX_FILES_PER_BATCH = 100;
+    private static final long MAX_BYTES_PER_BATCH = 4 * 1024 * 1024; // Well under the request size limit
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 1_000;
+
+    private static final List<String> DEFAULT_IGNORES = List.of(
+            ".git/", ".svn/", ".hg/", ".idea/", ".vscode/", ".gradle/", "node_modules/", "__pycache__/",
+            "target/", "build/", "out/", "bin/", "dist/",
+            ".DS_Store", "Thumbs.db", "*.class", "*.jar", "*.war", "*.pyc", "*.o", "*.so", "*.dll", "*.exe", "*.log");
+    private static final List<String> IGNORE_FILES = List.of(".gitignore", ".orionignore");
+
+    /**
+     * Told after every batch, on a worker thread.
+     */
+    public interface Progress {
+        void onProgress(Status status);
+    }
+
+    /**
+     * Counts so far; the last one is the result of the import.
+     */
+    public static final class Status {
+        private int filesTotal;
+        private long bytesTotal;
+        private int filesDone;
+        private long bytesDone;
+        private int uploaded;
+        private int alreadyUploaded;
+        private int binary;
+        private int tooLarge;
+        private long startedAt;
+        private long elapsedMillis;
+
+        public int getFilesTotal() {
+            return filesTotal;
+        }
+
+        public int getFilesDone() {
+            return filesDone;
+        }
+
+        public int getUploaded() {
+            return uploaded;
+        }
+
+        /** Uploaded by an earlier, interrupted run. */
+        public int getAlreadyUploaded() {
+            return alreadyUploaded;
+        }
+
+        public int getSkipped() {
+            return binary + tooLarge;
+        }
+
+        public double getBytesPerSecond() {
+            return elapsedMillis == 0 ? 0 : bytesDone * 1000.0 / elapsedMillis;
+        }
+
+        /** Estimated seconds left, or -1 before there is a rate to go by. */
+        public long getEtaSeconds() {
+            double rate = getBytesPerSecond();
+            return rate == 0 ? -1 : Math.round((bytesTotal - bytesDone) / rate);
+        }
+
+        @Override
+        public String toString() {
+            if (filesDone < filesTotal) {
+                return String.format(Locale.ROOT, "Importing: %d of %d files, %s of %s, %s/s%s",
+                        filesDone, filesTotal, formatBytes(bytesDone), formatBytes(bytesTotal),
+                        formatBytes((long) getBytesPerSecond()),
+                        getEtaSeconds() >= 0 ? ", about " + getEtaSeconds() + " s left" : "");
+            }
+            return String.format(Locale.ROOT, "Imported %d files (%s) in %.1f s; %d already uploaded, %d binary and %d too large skipped",
+                    uploaded, formatBytes(bytesDone), elapsedMillis / 1000.0, alreadyUploaded, binary, tooLarge);
+        }
+
+        private synchronized Status copy() {
+            Status copy = new Status();
+            copy.filesTotal = filesTotal;
+            copy.bytesTotal = bytesTotal;
+            copy.filesDone = filesDone;
+            copy.bytesDone = bytesDone;
+            copy.uploaded = uploaded;
+            copy.alreadyUploaded = alreadyUploaded;
+            copy.binary = binary;
+            copy.tooLarge = tooLarge;
+            copy.startedAt = startedAt;
+            copy.elapsedMillis = System.currentTimeMillis() - startedAt;
+            return copy;
+        }
+
+        private static String formatBytes(long bytes) {
+            if (bytes < 1024 * 1024) {
+                return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+            }
+            return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+        }
+    }
+
+    /** A file the walk found, with its path relative to the root. */
+    static final class Candidate {
+        final String path;
+        final Path file;
+        final long size;
+
+        Candidate(String path, Path file, long size) {
+            this.path = path;
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private final CollaborationBackend backend;
+    private final ChunkStore chunkStore;
+    private final String projectId;
+    private final String userId;
+    private final Path root;
+    private final Function<String, BackendDocRef> fileDocs;
+    private final Status status = new Status();
+    private final Map<String, String> hashes = new ConcurrentHashMap<>();
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    public WorkspaceImporter(CollaborationBackend backend, ChunkStore chunkStore, String projectId, String userId,
+                             File root, Function<String, BackendDocRef> fileDocs) {
+        this.backend = backend;
+        this.chunkStore = chunkStore;
+        this.projectId = projectId;
+        this.userId = userId;
+        this.root = root.toPath().toAbsolutePath().normalize();
+        this.fileDocs = fileDocs;
+    }
+
+    /**
+     * Import the folder. If this fails, the import stays pending and can simply be run again.
+     *
+     * @param progress Told after every batch, or null
+     */
+    public Status run(Progress progress) throws IOException, ExecutionException, InterruptedException {
+        DatabaseManager.startWorkspaceImport(projectId, root.toString());
+        status.startedAt = System.currentTimeMillis();
+
+        List<Candidate> candidates = new ArrayList<>();
+        for (Candidate candidate : walk(root)) {
+            if (candidate.size > MAX_FILE_SIZE) {
+                status.tooLarge++;
+                continue;
+            }
+            candidates.add(candidate);
+            status.filesTotal++;
+            status.bytesTotal += candidate.size;
+        }
+        System.out.println("Importing " + candidates.size() + " files into project " + projectId);
+
+        ExecutorService pool = Executors.newFixedThreadPool(MAX_WORKERS, r -> {
+            Thread t = new Thread(r, "workspace-import");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> batches = new ArrayList<>();
+            for (List<Candidate> batch : partition(candidates)) {
+                batches.add(pool.submit(() -> {
+                    if (!failed.get()) {
+                        uploadBatch(batch, progress);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> batch : batches) {
+                batch.get();
+            }
+        } catch (ExecutionException e) {
+            failed.set(true);
+            throw e.getCause() instanceof ExecutionException ? (ExecutionException) e.getCause() : e;
+        } finally {
+            pool.shutdownNow();
+        }
+
+        WorkspaceManifest.store(backend, backend.collection("projects").document(projectId), hashes);
+        DatabaseManager.finishWorkspaceImport(projectId);
+
+        Status result = status.copy();
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Files under the root that are not ignored, oversized ones included, in path order.
+     * Ignored folders are left unvisited.
+     */
+    static List<Candidate> walk(Path root) throws IOException {
+        IgnoreRules rules = IgnoreRules.load(root);
+        List<Candidate> candidates = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return !dir.equals(root) && rules.isIgnored(relativePath(root, dir), true)
+                        ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String path = relativePath(root, file);
+                if (attrs.isRegularFile() && !rules.isIgnored(path, false)) {
+                    candidates.add(new Candidate(path, file, attrs.size()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.err.println("Skipping unreadable " + file + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        candidates.sort((a, b) -> a.path.compareTo(b.path));
+        return candidates;
+    }
+
+    private static List<List<Candidate>> partition(List<Candidate> candidates) {
+        List<List<Candidate>> batches = new ArrayList<>();
+        List<Candidate> batch = new ArrayList<>();
+        long bytes = 0;
+        for (Candidate candidate : candidates) {
+            if (!batch.isEmpty() && (batch.size() == MAX_FILES_PER_BATCH || bytes + candidate.size > MAX_BYTES_PER_BATCH)) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                bytes = 0;
+            }
+            batch.add(candidate);
+            bytes += candidate.size;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * Read, hash and upload one batch; files whose snapshot already matches were uploaded
+     * by an earlier run and are only counted.
+     */
+    private void uploadBatch(List<Candidate> candidates, Progress progress)
+            throws ExecutionException, InterruptedException {
+        BackendDocRef projectDoc = backend.collection("projects").document(projectId);
+        BackendBatch batch = backend.batch();
+        List<ApiFuture<Void>> chunkUploads = new ArrayList<>();
+        Map<String, String> contents = new HashMap<>();
+        int alreadyUploaded = 0;
+        int binary = 0;
+
+        for (Candidate candidate : candidates) {
+            String content;
+            try {
+                content = readText(candidate.file);
+            } catch (IOException e) {
+                System.err.println("Skipping unreadable " + candidate.path + ": " + e.getMessage());
+                continue;
+            }
+            if (content == null) {
+                binary++;
+                continue;
+            }
+            String hash = ContentChunker.hash(content);
+            String snapshot = DatabaseManager.getFileSnapshot(projectId, candidate.path);
+            if (snapshot != null && ContentChunker.hash(snapshot).equals(hash)) {
+                hashes.put(candidate.path, hash);
+                alreadyUploaded++;
+                continue;
+            }
+
+            Map<String, Object> fileData = new HashMap<>();
+            fileData.put("path", candidate.path);
+            fileData.put("lastModifiedBy", userId);
+            fileData.put("lastModifiedAt", BackendValue.serverTimestamp());
+            CollaborationService.addVersion(fileData, userId, null);
+            chunkUploads.add(chunkStore.writeContent(projectDoc, content, fileData));
+            batch.merge(fileDocs.apply(candidate.path), fileData);
+            contents.put(candidate.path, content);
+            hashes.put(candidate.path, hash);
+        }
+
+        if (batch.size() > 0) {
+            commit(ApiFutures.allAsList(chunkUploads), batch);
+            for (Map.Entry<String, String> file : contents.entrySet()) {
+                DatabaseManager.saveFileSnapshot(projectId, file.getKey(), file.getValue());
+            }
+        }
+
+        Status snapshot;
+        synchronized (status) {
+            status.filesDone += candidates.size();
+            for (Candidate candidate : candidates) {
+                status.bytesDone += candidate.size;
+            }
+            status.uploaded += contents.size();
+            status.alreadyUploaded += alreadyUploaded;
+            status.binary += binary;
+            snapshot = status.copy();
+        }
+        if (progress != null) {
+            progress.onProgress(snapshot);
+        }
+    }
+
+    /** Commit once the chunks are stored, retrying a few times before giving up. */
+    private void commit(ApiFuture<?> chunkUploads, BackendBatch batch) throws ExecutionException, InterruptedException {
+        chunkUploads.get();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                batch.commit().get();
+                return;
+            } catch (ExecutionException e) {
+                if (attempt == MAX_ATTEMPTS || failed.get()) {
+                    failed.set(true);
+                    throw e;
+                }
+                System.err.println("Import batch failed, retrying: " + e.getCause().getMessage());
+                Thread.sleep(RETRY_DELAY_MS * attempt);
+            }
+        }
+    }
+
+    /** The file as UTF-8 text, or null if it is binary. */
+    static String readText(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        for (int i = 0; i < Math.min(bytes.length, 8192); i++) {
+            if (bytes[i] == 0) {
+                return null;
+            }
+        }
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    private static String relativePath(Path root, Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Ignore patterns in {@code .gitignore} syntax: globs with {@code *}, {@code **} and
+     * {@code ?}, a trailing {@code /} for folders only, a leading or inner {@code /} to
+     * anchor at the root, and {@code !} to take a path back. The last matching pattern wins.
+     */
+    static final class IgnoreRules {
+        private final List<Rule> rules = new ArrayList<>();
+
+        private static final class Rule {
+            final Pattern pattern;
+            final boolean negated;
+            final boolean directoryOnly;
+            final boolean anchored;
+
+            Rule(Pattern pattern, boolean negated, boolean directoryOnly, boolean anchored) {
+                this.pattern = pattern;
+                this.negated = negated;
+                this.directoryOnly = directoryOnly;
+                this.anchored = anchored;
+            }
+        }
+
+        static IgnoreRules load(Path root) throws IOException {
+            IgnoreRules rules = new IgnoreRules();
+            DEFAULT_IGNORES.forEach(rules::add);
+            for (String name : IGNORE_FILES) {
+                Path file = root.resolve(name);
+                if (Files.isRegularFile(file)) {
+                    Files.readAllLines(file, StandardCharsets.UTF_8).forEach(rules::add);
+                }
+            }
+            return rules;
+        }
+
+        void add(String line) {
+            String pattern = line.trim();
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                return;
+            }
+            boolean negated = pattern.startsWith("!");
+            if (negated) {
+                pattern = pattern.substring(1);
+            }
+            boolean directoryOnly = pattern.endsWith("/");
+            if (directoryOnly) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            boolean anchored = pattern.contains("/");
+            if (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            if (!pattern.isEmpty()) {
+                rules.add(new Rule(Pattern.compile(toRegex(pattern)), negated, directoryOnly, anchored));
+            }
+        }
+
+        boolean isIgnored(String path, boolean directory) {
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            boolean ignored = false;
+            for (Rule rule : rules) {
+                if ((!rule.directoryOnly || directory)
+                        && rule.pattern.matcher(rule.anchored ? path : name).matches()) {
+                    ignored = !rule.negated;
+                }
+            }
+            return ignored;
+        }
+
+        private static String toRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' && glob.startsWith("**/", i)) {
+                    regex.append("(.*/)?");
+                    i += 2;
+                } else if (c == '*' && glob.startsWith("**", i)) {
+                    regex.append(".*");
+                    i++;
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return regex.toString();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Merkle tree of a project's files: path to content hash, one node per directory.
+ * A directory's hash covers the names and hashes of its files and subdirectories,
+ * so two trees with the same root hash hold the same files, and a walk from the root
+ * only has to visit directories whose hashes differ.
+ *
+ * The remote copy lives in the project's {@code tree} subcollection, one document per
+ * directory with its {@code files} (name to content hash), {@code dirs} (names) and
+ * {@code deleted} (name to the content hash it was deleted at). Deletion tombstones are
+ * not part of any hash; they only tell a client missing a file from one that should
+ * remove it. Saves and deletions update the file's entries and bump the {@code version}
+ * of every directory above it in the same batch, without reading anything. A stored {@code hash} is only valid
+ * while its {@code hashVersion} matches {@code version}; {@link WorkspaceSync} fills in
+ * the hashes it had to work out on its way down.
+ */
+public class WorkspaceManifest {
+    static final String TREE_SUBCOLLECTION = "tree";
+    private static final int MAX_WRITES_PER_BATCH = 500;
+
+    /** One directory. */
+    public static final class Node {
+        private final String path;
+        private final Map<String, String> files = new TreeMap<>();
+        private final Map<String, Node> dirs = new TreeMap<>();
+        private String hash;
+
+        Node(String path) {
+            this.path = path;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /** File name to content hash. */
+        public Map<String, String> getFiles() {
+            return files;
+        }
+
+        public Map<String, Node> getDirs() {
+            return dirs;
+        }
+
+        public String getHash() {
+            if (hash == null) {
+                Map<String, String> childHashes = new TreeMap<>();
+                for (Map.Entry<String, Node> dir : dirs.entrySet()) {
+                    childHashes.put(dir.getKey(), dir.getValue().getHash());
+                }
+                hash = hashOf(files, childHashes);
+            }
+            return hash;
+        }
+    }
+
+    private final Node root = new Node("");
+    private final Map<String, Node> nodes = new HashMap<>();
+
+    private WorkspaceManifest() {
+        nodes.put("", root);
+    }
+
+    /**
+     * Build the tree for a set of files.
+     *
+     * @param hashes Relative path ("src/Main.java") to content hash
+     */
+    public static WorkspaceManifest of(Map<String, String> hashes) {
+        WorkspaceManifest manifest = new WorkspaceManifest();
+        for (Map.Entry<String, String> file : hashes.entrySet()) {
+            manifest.nodeFor(parentOf(file.getKey())).files.put(nameOf(file.getKey()), file.getValue());
+        }
+        return manifest;
+    }
+
+    public Node getRoot() {
+        return root;
+    }
+
+    /** The directory's node, or null if no file lies under it. */
+    public Node getNode(String dirPath) {
+        return nodes.get(dirPath);
+    }
+
+    /** Every directory, parents before children. */
+    public List<Node> getNodes() {
+        List<Node> all = new ArrayList<>();
+        collect(root, all);
+        return all;
+    }
+
+    private static void collect(Node node, List<Node> into) {
+        into.add(node);
+        for (Node child : node.dirs.values()) {
+            collect(child, into);
+        }
+    }
+
+    private Node nodeFor(String dirPath) {
+        Node node = nodes.get(dirPath);
+        if (node == null) {
+            node = new Node(dirPath);
+            nodes.put(dirPath, node);
+            nodeFor(parentOf(dirPath)).dirs.put(nameOf(dirPath), node);
+        }
+        return node;
+    }
+
+    /**
+     * Hash of a directory from its entries; the same on every client.
+     */
+    static String hashOf(Map<String, String> files, Map<String, String> dirHashes) {
+        StringBuilder entries = new StringBuilder();
+        for (Map.Entry<String, String> file : new TreeMap<>(files).entrySet()) {
+            entries.append("f\t").append(file.getKey()).append('\t').append(file.getValue()).append('\n');
+        }
+        for (Map.Entry<String, String> dir : new TreeMap<>(dirHashes).entrySet()) {
+            entries.append("d\t").append(dir.getKey()).append('\t').append(dir.getValue()).append('\n');
+        }
+        return ContentChunker.hash(entries.toString());
+    }
+
+    /**
+     * The remote node of a directory. Document IDs are derived from the path, since
+     * paths can hold characters IDs cannot.
+     */
+    static BackendDocRef nodeRef(BackendDocRef projectDoc, String dirPath) {
+        return projectDoc.collection(TREE_SUBCOLLECTION).document(ContentChunker.hash(dirPath).substring(0, 32));
+    }
+
+    /**
+     * Add a save of a file to the batch: its entry, and a new version for every
+     * directory above it so their stored hashes no longer count.
+     */
+    static void recordSave(BackendBatch batch, BackendDocRef projectDoc, String filePath, String contentHash) {
+        String name = nameOf(filePath);
+        String dir = parentOf(filePath);
+        Map<String, Object> data = nodeUpdate(dir, "files", entryOf(name, contentHash));
+        data.put("deleted", entryOf(name, BackendValue.delete()));
+        batch.merge(nodeRef(projectDoc, dir), data);
+        recordParents(batch, projectDoc, dir);
+    }
+
+    /**
+     * Add a deletion of a file to the batch: its entry is replaced by a tombstone, and
+     * the directories above it get a new version.
+     *
+     * @param contentHash Hash of the content the file had when it was deleted
+     */
+    static void recordDelete(BackendBatch batch, BackendDocRef projectDoc, String filePath, String contentHash) {
+        String name = nameOf(filePath);
+        String dir = parentOf(filePath);
+        Map<String, Object> data = nodeUpdate(dir, "files", entryOf(name, BackendValue.delete()));
+        data.put("deleted", entryOf(name, contentHash));
+        batch.merge(nodeRef(projectDoc, dir), data);
+        recordParents(batch, projectDoc, dir);
+    }
+
+    private static Map<String, Object> entryOf(String name, Object value) {
+        Map<String, Object> entry = new HashMap<>();
+        entry.put(name, value);
+        return entry;
+    }
+
+    private static void recordParents(BackendBatch batch, BackendDocRef projectDoc, String dir) {
+        while (!dir.isEmpty()) {
+            Map<String, Object> child = entryOf(nameOf(dir), true);
+            dir = parentOf(dir);
+            batch.merge(nodeRef(projectDoc, dir), nodeUpdate(dir, "dirs", child));
+        }
+    }
+
+    private static Map<String, Object> nodeUpdate(String dirPath, String field, Map<String, Object> entry) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("path", dirPath);
+        data.put(field, entry);
+        data.put("version", BackendValue.increment(1));
+        return data;
+    }
+
+    /**
+     * Write the whole tree for a set of files, merged into any nodes already there, and
+     * mark it complete. Completion is written last, so an interrupted store is redone.
+     * Hashes are left for the next {@link WorkspaceSync} to fill in.
+     */
+    static void store(CollaborationBackend backend, BackendDocRef projectDoc, Map<String, String> hashes)
+            throws ExecutionException, InterruptedException {
+        List<ApiFuture<Void>> commits = new ArrayList<>();
+        BackendBatch batch = backend.batch();
+        for (Node node : of(hashes).getNodes()) {
+            Map<String, Object> dirs = new HashMap<>();
+            for (String name : node.getDirs().keySet()) {
+                dirs.put(name, true);
+            }
+            Map<String, Object> data = new HashMap<>();
+            data.put("path", node.getPath());
+            data.put("files", new HashMap<>(node.getFiles()));
+            data.put("dirs", dirs);
+            batch.merge(nodeRef(projectDoc, node.getPath()), data);
+            if (batch.size() == MAX_WRITES_PER_BATCH) {
+                commits.add(batch.commit());
+                batch = backend.batch();
+            }
+        }
+        for (ApiFuture<Void> commit : commits) {
+            commit.get();
+        }
+        batch.merge(nodeRef(projectDoc, ""), Map.of("complete", true));
+        batch.commit().get();
+    }
+
+    static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
@@ -0,0 +1,486 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Brings a workspace folder and a project's files in line when the project is opened
+ * or joined.
+ * The local tree covers every file in the folder that a workspace import would take
+ * (see {@link WorkspaceImporter#walk}); it is compared with the remote
+ * {@link WorkspaceManifest} from the root down, reading one level of directories per
+ * round trip and skipping every directory whose hash matches. An unchanged project
+ * costs one read.
+ *
+ * Each differing file is settled against its snapshot, the last state both sides agreed
+ * on: files changed only remotely are downloaded, files changed only here are uploaded,
+ * and files changed on both sides are left alone and reported. A file the project does
+ * not have is deleted here only if the tree holds a tombstone for it and it is unchanged
+ * since the last sync; with a tombstone but local changes it is reported, and without
+ * one it is new here and uploaded. Files open in the editor are never written or deleted;
+ * the editor's own sync keeps them current.
+ */
+public class WorkspaceSync {
+    private static final int MAX_PARALLEL_DOWNLOADS = 8;
+    private static final int MAX_WRITES_PER_BATCH = 500;
+
+    /**
+     * Sends local content to the project, normally through the outbox.
+     */
+    public interface Uploader {
+        ApiFuture<Void> upload(String filePath, String content);
+    }
+
+    /**
+     * What a sync did.
+     */
+    public static final class Result {
+        private int reads;
+        private int downloaded;
+        private int uploaded;
+        private int deleted;
+        private final List<String> conflicts = new ArrayList<>();
+        private final List<String> skippedOpen = new ArrayList<>();
+
+        /** Documents read, including downloaded files. */
+        public int getReads() {
+            return reads;
+        }
+
+        public int getDownloaded() {
+            return downloaded;
+        }
+
+        /** Uploads queued in the outbox. */
+        public int getUploaded() {
+            return uploaded;
+        }
+
+        /** Local files removed because the project no longer has them. */
+        public int getDeleted() {
+            return deleted;
+        }
+
+        /** Files changed both here and remotely since the last sync; left untouched. */
+        public List<String> getConflicts() {
+            return conflicts;
+        }
+
+        /** Files changed or deleted remotely that were left alone because they are open. */
+        public List<String> getSkippedOpen() {
+            return skippedOpen;
+        }
+
+        @Override
+        public String toString() {
+            if (downloaded == 0 && uploaded == 0 && deleted == 0 && conflicts.isEmpty()) {
+                return String.format(Locale.ROOT, "Workspace up to date (%d reads)", reads);
+            }
+            return String.format(Locale.ROOT,
+                    "Workspace synced: %d downloaded, %d uploaded, %d deleted, %d conflicts (%d reads)",
+                    downloaded, uploaded, deleted, conflicts.size(), reads);
+        }
+    }
+
+    /** A directory node as read from the backend. */
+    private static final class RemoteNode {
+        final String path;
+        final BackendDocRef ref;
+        final long version;
+        final String storedHash; // Null unless still valid
+        final Map<String, String> files = new HashMap<>();
+        final Set<String> deleted = new HashSet<>(); // Tombstones of files deleted from the project
+        final List<String> dirNames = new ArrayList<>();
+        final Map<String, RemoteNode> children = new HashMap<>();
+        String hash;
+
+        RemoteNode(String path, BackendDoc doc) {
+            this.path = path;
+            this.ref = doc.getReference();
+            Long version = doc.getLong("version");
+            Long hashVersion = doc.getLong("hashVersion");
+            this.version = version != null ? version : 0;
+            this.storedHash = hashVersion != null && hashVersion == this.version ? doc.getString("hash") : null;
+            if (doc.get("files") instanceof Map) {
+                for (Map.Entry<?, ?> file : ((Map<?, ?>) doc.get("files")).entrySet()) {
+                    files.put((String) file.getKey(), (String) file.getValue());
+                }
+            }
+            if (doc.get("deleted") instanceof Map) {
+                for (Object name : ((Map<?, ?>) doc.get("deleted")).keySet()) {
+                    deleted.add((String) name);
+                }
+            }
+            if (doc.get("dirs") instanceof Map) {
+                for (Object name : ((Map<?, ?>) doc.get("dirs")).keySet()) {
+                    dirNames.add((String) name);
+                }
+            }
+        }
+
+        /** Hash of the node; works it out from the children if the stored one is stale. */
+        String hash() {
+            if (hash == null) {
+                if (storedHash != null) {
+                    hash = storedHash;
+                } else {
+                    Map<String, String> childHashes = new HashMap<>();
+                    for (Map.Entry<String, RemoteNode> child : children.entrySet()) {
+                        childHashes.put(child.getKey(), child.getValue().hash());
+                    }
+                    hash = WorkspaceManifest.hashOf(files, childHashes);
+                }
+            }
+            return hash;
+        }
+
+        String childPath(String name) {
+            return path.isEmpty() ? name : path + "/" + name;
+        }
+    }
+
+    private final CollaborationBackend backend;
+    private final ChunkStore chunkStore;
+    private final String projectId;
+    private final BackendDocRef projectDoc;
+    private final Path root;
+    private final Function<String, BackendDocRef> fileDocs;
+    private final Uploader uploader;
+    private final Predicate<String> isOpen;
+    private final Result result = new Result();
+
+    /**
+     * @param isOpen Whether a file is open in the editor; asked right before it would be written
+     */
+    public WorkspaceSync(CollaborationBackend backend, ChunkStore chunkStore, String projectId, File root,
+                         Function<String, BackendDocRef> fileDocs, Uploader uploader, Predicate<String> isOpen) {
+        this.backend = backend;
+        this.chunkStore = chunkStore;
+        this.projectId = projectId;
+        this.projectDoc = backend.collection("projects").document(projectId);
+        this.root = root.toPath().toAbsolutePath().normalize();
+        this.fileDocs = fileDocs;
+        this.uploader = uploader;
+        this.isOpen = isOpen;
+    }
+
+    public Result run() throws IOException, ExecutionException, InterruptedException {
+        Map<String, String> localHashes = new HashMap<>();
+        for (WorkspaceImporter.Candidate file : WorkspaceImporter.walk(root)) {
+            String content = file.size <= WorkspaceImporter.MAX_FILE_SIZE ? readLocal(file.path) : null;
+            if (content != null) {
+                localHashes.put(file.path, ContentChunker.hash(content));
+            }
+        }
+        WorkspaceManifest local = WorkspaceManifest.of(localHashes);
+
+        BackendDoc rootDoc = WorkspaceManifest.nodeRef(projectDoc, "").get().get();
+        result.reads++;
+        if (!Boolean.TRUE.equals(rootDoc.getBoolean("complete"))) {
+            buildRemoteTree();
+            rootDoc = WorkspaceManifest.nodeRef(projectDoc, "").get().get();
+            result.reads++;
+        }
+
+        RemoteNode remoteRoot = new RemoteNode("", rootDoc);
+        if (local.getRoot().getHash().equals(remoteRoot.storedHash)) {
+            return result;
+        }
+
+        Map<String, String> differing = new LinkedHashMap<>();
+        List<RemoteNode> visited = compare(remoteRoot, local, localHashes, differing);
+        storeHashes(visited);
+        transfer(differing, localHashes);
+        Set<String> tombstoned = new HashSet<>();
+        settleLocalOnly(localOnly(visited, localHashes, tombstoned), tombstoned, localHashes);
+
+        System.out.println(result + " for project " + projectId);
+        return result;
+    }
+
+    /**
+     * Walk down the remote tree a level at a time, collecting remote files whose hash
+     * differs from the local one.
+     *
+     * @return Every node visited
+     */
+    private List<RemoteNode> compare(RemoteNode remoteRoot, WorkspaceManifest local, Map<String, String> localHashes,
+                                     Map<String, String> differing) throws ExecutionException, InterruptedException {
+        List<RemoteNode> visited = new ArrayList<>();
+        List<RemoteNode> level = List.of(remoteRoot);
+        while (!level.isEmpty()) {
+            List<String> childPaths = new ArrayList<>();
+            List<String> docPaths = new ArrayList<>();
+            for (RemoteNode node : level) {
+                visited.add(node);
+                for (Map.Entry<String, String> file : node.files.entrySet()) {
+                    String path = node.childPath(file.getKey());
+                    if (!file.getValue().equals(localHashes.get(path))) {
+                        differing.put(path, file.getValue());
+                    }
+                }
+                for (String name : node.dirNames) {
+                    childPaths.add(node.childPath(name));
+                    docPaths.add(WorkspaceManifest.nodeRef(projectDoc, node.childPath(name)).getPath());
+                }
+            }
+
+            if (docPaths.isEmpty()) {
+                break;
+            }
+
+            // Every child is read, so a parent's hash can be worked out if it is stale
+            List<BackendDoc> childDocs = backend.getAll(docPaths).get();
+            result.reads += childDocs.size();
+
+            Map<String, RemoteNode> byPath = new HashMap<>();
+            for (RemoteNode node : level) {
+                byPath.put(node.path, node);
+            }
+            List<RemoteNode> next = new ArrayList<>();
+            for (int i = 0; i < childPaths.size(); i++) {
+                String path = childPaths.get(i);
+                RemoteNode child = new RemoteNode(path, childDocs.get(i));
+                byPath.get(WorkspaceManifest.parentOf(path)).children.put(WorkspaceManifest.nameOf(path), child);
+                WorkspaceManifest.Node localNode = local.getNode(path);
+                if (child.storedHash == null || localNode == null || !localNode.getHash().equals(child.storedHash)) {
+                    next.add(child);
+                }
+            }
+            level = next;
+        }
+        return visited;
+    }
+
+    /**
+     * Local files the project does not have. A file's directory was visited unless a
+     * directory above it matched the remote one, so the nearest visited directory
+     * tells whether the file, or the folder it is in, exists remotely.
+     *
+     * @param tombstoned Filled with the returned files the project recorded as deleted
+     */
+    private List<String> localOnly(List<RemoteNode> visited, Map<String, String> localHashes, Set<String> tombstoned) {
+        Map<String, RemoteNode> byPath = new HashMap<>();
+        for (RemoteNode node : visited) {
+            byPath.put(node.path, node);
+        }
+        List<String> missing = new ArrayList<>();
+        for (String path : localHashes.keySet()) {
+            String dir = WorkspaceManifest.parentOf(path);
+            String name = WorkspaceManifest.nameOf(path);
+            boolean isFile = true;
+            while (!byPath.containsKey(dir)) {
+                name = WorkspaceManifest.nameOf(dir);
+                dir = WorkspaceManifest.parentOf(dir);
+                isFile = false;
+            }
+            RemoteNode node = byPath.get(dir);
+            if (isFile ? !node.files.containsKey(name) : !node.dirNames.contains(name)) {
+                missing.add(path);
+                if (isFile && node.deleted.contains(name)) {
+                    tombstoned.add(path);
+                }
+            }
+        }
+        missing.sort(null);
+        return missing;
+    }
+
+    /**
+     * Delete files the project deleted, unless they changed here since the last sync;
+     * upload files that are new here. A snapshot alone proves nothing: opening a file
+     * records one before it was ever uploaded.
+     */
+    private void settleLocalOnly(List<String> paths, Set<String> tombstoned, Map<String, String> localHashes)
+            throws IOException {
+        for (String path : paths) {
+            if (!tombstoned.contains(path)) {
+                String content = readLocal(path);
+                if (content != null) {
+                    uploader.upload(path, content); // Queued; delivered when online
+                    result.uploaded++;
+                }
+                continue;
+            }
+            String snapshot = DatabaseManager.getFileSnapshot(projectId, path);
+            if (snapshot == null || !ContentChunker.hash(snapshot).equals(localHashes.get(path))) {
+                result.conflicts.add(path); // Changed here, deleted there
+            } else if (isOpen.test(path)) {
+                result.skippedOpen.add(path);
+            } else {
+                Files.deleteIfExists(resolve(path));
+                DatabaseManager.deleteFileSnapshot(projectId, path);
+                result.deleted++;
+            }
+        }
+    }
+
+    /**
+     * Save the hashes worked out for stale nodes. A node saved to since it was read has
+     * a newer version, so the hash written here does not count for it.
+     */
+    private void storeHashes(List<RemoteNode> visited) throws ExecutionException, InterruptedException {
+        List<ApiFuture<Void>> commits = new ArrayList<>();
+        BackendBatch batch = backend.batch();
+        for (RemoteNode node : visited) {
+            if (node.storedHash != null) {
+                continue;
+            }
+            Map<String, Object> data = new HashMap<>();
+            data.put("hash", node.hash());
+            data.put("hashVersion", node.version);
+            batch.merge(node.ref, data);
+            if (batch.size() == MAX_WRITES_PER_BATCH) {
+                commits.add(batch.commit());
+                batch = backend.batch();
+            }
+        }
+        if (batch.size() > 0) {
+            commits.add(batch.commit());
+        }
+        for (ApiFuture<Void> commit : commits) {
+            commit.get();
+        }
+    }
+
+    /**
+     * Fill in the tree for a project whose files were saved before it had one: one read
+     * of every file document, once per project.
+     */
+    private void buildRemoteTree() throws ExecutionException, InterruptedException {
+        List<BackendDoc> fileDocs = projectDoc.collection("files").get().get().getDocuments();
+        result.reads += fileDocs.size();
+
+        Map<String, String> hashes = new HashMap<>();
+        for (BackendDoc doc : fileDocs) {
+            String path = doc.getString("path");
+            String hash = doc.getString("contentHash");
+            if (hash == null) {
+                String content = chunkStore.readContent(doc).get();
+                hash = content != null ? ContentChunker.hash(content) : null;
+            }
+            if (path != null && hash != null) {
+                hashes.put(path, hash);
+            }
+        }
+        System.out.println("Building file tree for project " + projectId + " from " + hashes.size() + " files");
+
+        WorkspaceManifest.store(backend, projectDoc, hashes);
+    }
+
+    /**
+     * Download or upload each differing file, depending on which side changed since
+     * the last sync.
+     */
+    private void transfer(Map<String, String> differing, Map<String, String> localHashes)
+            throws ExecutionException, InterruptedException {
+        Map<String, Future<String>> downloads = new LinkedHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(MAX_PARALLEL_DOWNLOADS, r -> {
+            Thread t = new Thread(r, "workspace-sync");
+            t.setDaemon(true);
+            return t;
+        });
+
+        try {
+            for (Map.Entry<String, String> file : differing.entrySet()) {
+                String path = file.getKey();
+                String remoteHash = file.getValue();
+                if (resolve(path) == null) {
+                    System.err.println("Skipping file outside the workspace: " + path);
+                    continue;
+                }
+
+                String localContent = readLocal(path);
+                String localHash = localHashes.containsKey(path) ? localHashes.get(path)
+                        : localContent != null ? ContentChunker.hash(localContent) : null;
+                String snapshot = DatabaseManager.getFileSnapshot(projectId, path);
+                String snapshotHash = snapshot != null ? ContentChunker.hash(snapshot) : null;
+
+                if (localContent == null || (snapshotHash != null && snapshotHash.equals(localHash))) {
+                    if (isOpen.test(path)) {
+                        result.skippedOpen.add(path);
+                    } else {
+                        downloads.put(path, pool.submit(() -> download(path)));
+                    }
+                } else if (localHash.equals(remoteHash)) {
+                    DatabaseManager.saveFileSnapshot(projectId, path, localContent); // Already the same
+                } else if (remoteHash.equals(snapshotHash)) {
+                    uploader.upload(path, localContent); // Queued; delivered when online
+                    result.uploaded++;
+                } else {
+                    result.conflicts.add(path);
+                }
+            }
+
+            for (Map.Entry<String, Future<String>> download : downloads.entrySet()) {
+                String path = download.getKey();
+                String content = download.getValue().get();
+                if (content == null) {
+                    continue;
+                }
+                if (isOpen.test(path)) {
+                    result.skippedOpen.add(path); // Opened while it downloaded
+                    continue;
+                }
+                try {
+                    Path target = resolve(path);
+                    Files.createDirectories(target.getParent());
+                    Files.writeString(target, content, StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    System.err.println("Failed to write " + path + ": " + e.getMessage());
+                    continue;
+                }
+                DatabaseManager.saveFileSnapshot(projectId, path, content);
+                result.downloaded++;
+            }
+            result.reads += downloads.size();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** The file's remote content, or null if it has none. */
+    private String download(String path) throws ExecutionException, InterruptedException {
+        BackendDoc doc = fileDocs.apply(path).get().get();
+        return doc.exists() ? chunkStore.readContent(doc).get() : null;
+    }
+
+    /** The file's location in the workspace, or null if the path would leave it. */
+    private Path resolve(String path) {
+        Path target = root.resolve(path).normalize();
+        return target.startsWith(root) && !target.equals(root) ? target : null;
+    }
+
+    /** The file's text, or null if it is missing or not text. */
+    private String readLocal(String path) {
+        Path target = resolve(path);
+        if (target == null || !Files.isRegularFile(target)) {
+            return null;
+        }
+        try {
+            return WorkspaceImporter.readText(target);
+        } catch (IOException e) {
+            System.err.println("Failed to read " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
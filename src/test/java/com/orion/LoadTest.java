@@ -0,0 +1,365 @@
+package com.orion;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load test for collaboration: runs simulated collaborators against a backend and
+ * reports propagation latency, write volume and whether every replica converged.
+ *
+ * Usage: {@code java -cp <classpath> com.orion.LoadTest [--option value ...]}
+ * <pre>
+ *   --editors 8             simulated collaborators
+ *   --files 1               shared files; collaborators are spread across them
+ *   --seconds 30            how long everyone types
+ *   --keys-per-second 5     typing rate of each collaborator
+ *   --backend memory        "memory", or "relay" to go through a LAN relay on loopback
+ *   --latency-ms 0          delay the in-memory backend adds to every result and event
+ *   --save-interval-ms 5000
+ *   --history-interval-ms 15000
+ *   --settle-seconds 30     how long replicas may take to converge after typing stops
+ *   --seed 1
+ * </pre>
+ * Exits with status 1 if any file failed to converge. The local database lives in a
+ * temporary home directory, so queued writes never reach the developer's own.
+ */
+public class LoadTest {
+    private static final String PROJECT_ID = "load-test";
+    private static final String RELAY_CODE = "LOADTEST";
+
+    /**
+     * Latency samples and error counts shared by all collaborators.
+     */
+    static class Stats {
+        static final String PROPAGATION = "propagation";
+        static final String OPEN = "open";
+        static final String SAVE = "save";
+        static final String HISTORY_READ = "history read";
+
+        private final Map<String, Samples> samples = new ConcurrentHashMap<>();
+        private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+        private final Map<String, String> firstErrors = new ConcurrentHashMap<>();
+
+        void record(String metric, long nanos) {
+            samples.computeIfAbsent(metric, m -> new Samples()).add(nanos);
+        }
+
+        void error(String what, Throwable e) {
+            errors.computeIfAbsent(what, w -> new LongAdder()).increment();
+            firstErrors.putIfAbsent(what, String.valueOf(e.getMessage()));
+        }
+
+        long[] sorted(String metric) {
+            Samples s = samples.get(metric);
+            return s != null ? s.sorted() : new long[0];
+        }
+    }
+
+    private static class Samples {
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        synchronized void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        synchronized long[] sorted() {
+            long[] copy = Arrays.copyOf(values, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int editors = Integer.parseInt(options.getOrDefault("editors", "8"));
+        int files = Integer.parseInt(options.getOrDefault("files", "1"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "30"));
+        String backendKind = options.getOrDefault("backend", "memory");
+        long latencyMs = Long.parseLong(options.getOrDefault("latency-ms", "0"));
+        int settleSeconds = Integer.parseInt(options.getOrDefault("settle-seconds", "30"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+
+        SimulatedCollaborator.Profile profile = new SimulatedCollaborator.Profile();
+        profile.keysPerSecond = Double.parseDouble(options.getOrDefault("keys-per-second", "5"));
+        profile.saveIntervalMs = Long.parseLong(options.getOrDefault("save-interval-ms", "5000"));
+        profile.historyIntervalMs = Long.parseLong(options.getOrDefault("history-interval-ms", "15000"));
+
+        if (!backendKind.equals("memory") && !backendKind.equals("relay")) {
+            System.err.println("Unknown backend: " + backendKind + " (expected memory or relay)");
+            System.exit(2);
+        }
+        files = Math.max(1, Math.min(files, editors));
+
+        // Before anything reads user.home: every collaborator's outbox and baselines go here
+        System.setProperty("user.home", Files.createTempDirectory("orion-load-test").toString());
+        DatabaseManager.initialize();
+
+        System.out.printf("Load test: %d editors on %d file(s) for %ds, %.1f keys/s each, backend=%s, latency=%dms%n",
+                editors, files, seconds, profile.keysPerSecond, backendKind, latencyMs);
+
+        InMemoryBackend store = new InMemoryBackend(latencyMs);
+        MeteredBackend metered = new MeteredBackend(store); // Counts what reaches the store
+        LanRelayServer relay = backendKind.equals("relay")
+                ? new LanRelayServer(metered, 0, RELAY_CODE, "projects/" + PROJECT_ID) : null;
+        List<CollaborationBackend> connections = new ArrayList<>();
+        ExecutorService io = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "load-test-io");
+            t.setDaemon(true);
+            return t;
+        });
+        Stats stats = new Stats();
+
+        List<String> filePaths = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            filePaths.add("src/LoadTest" + i + ".java");
+        }
+        seedProject(store, editors);
+
+        // Everyone opens their file at once, racing to fix its co-editing base
+        List<SimulatedCollaborator> collaborators = new ArrayList<>();
+        List<CompletableFuture<Void>> opening = new ArrayList<>();
+        for (int i = 0; i < editors; i++) {
+            CollaborationBackend backend = relay != null ? connect(relay) : metered;
+            connections.add(backend);
+            String filePath = filePaths.get(i % files);
+            SimulatedCollaborator collaborator = new SimulatedCollaborator(
+                    backend, PROJECT_ID, "user" + i, filePath, profile, stats, io, seed * 7919 + i);
+            collaborators.add(collaborator);
+            opening.add(collaborator.open(initialText(filePath)));
+        }
+        CompletableFuture.allOf(opening.toArray(new CompletableFuture<?>[0])).get(60, TimeUnit.SECONDS);
+        reportLatency("Open (base transaction)", stats.sorted(Stats.OPEN));
+
+        long editingStarted = System.nanoTime();
+        collaborators.forEach(SimulatedCollaborator::startEditing);
+        Thread.sleep(seconds * 1000L);
+        CompletableFuture.allOf(collaborators.stream()
+                .map(SimulatedCollaborator::stopEditing).toArray(CompletableFuture<?>[]::new)).get(30, TimeUnit.SECONDS);
+        double editingSeconds = (System.nanoTime() - editingStarted) / 1e9;
+
+        // Wait for every replica to apply everyone else's operations
+        long settleStarted = System.nanoTime();
+        Map<String, Boolean> converged = new LinkedHashMap<>();
+        long deadline = settleStarted + TimeUnit.SECONDS.toNanos(settleSeconds);
+        do {
+            converged = checkConvergence(collaborators, filePaths, store, false);
+            if (!converged.containsValue(false) && pendingWrites(collaborators) == 0) {
+                break;
+            }
+            Thread.sleep(100);
+        } while (System.nanoTime() < deadline);
+        double settleMs = (System.nanoTime() - settleStarted) / 1e6;
+        converged = checkConvergence(collaborators, filePaths, store, true);
+
+        report(stats, metered, editingSeconds, editors);
+        System.out.printf("%nConvergence (settled in %.0f ms after typing stopped):%n", settleMs);
+        for (Map.Entry<String, Boolean> entry : converged.entrySet()) {
+            System.out.printf("  %-24s %s%n", entry.getKey(), entry.getValue() ? "OK" : "DIVERGED");
+        }
+        System.out.printf("Documents in store: %d, writes still queued: %d%n",
+                store.getDocumentCount(), pendingWrites(collaborators));
+
+        collaborators.forEach(SimulatedCollaborator::close);
+        for (CollaborationBackend connection : connections) {
+            if (connection != store) {
+                connection.close();
+            }
+        }
+        if (relay != null) {
+            relay.close();
+        }
+        store.close();
+        System.exit(converged.containsValue(false) ? 1 : 0);
+    }
+
+    private static int pendingWrites(List<SimulatedCollaborator> collaborators) {
+        return collaborators.stream().mapToInt(SimulatedCollaborator::getPendingWrites).sum();
+    }
+
+    private static CollaborationBackend connect(LanRelayServer relay) throws IOException {
+        return new LanRelayClient("127.0.0.1", relay.getPort(), RELAY_CODE);
+    }
+
+    /**
+     * Create the project and a member document for every collaborator, as joining does.
+     */
+    private static void seedProject(InMemoryBackend store, int editors) throws Exception {
+        BackendBatch batch = store.batch();
+        BackendDocRef projectDoc = store.collection("projects").document(PROJECT_ID);
+        List<String> memberIds = new ArrayList<>();
+        for (int i = 0; i < editors; i++) {
+            String userId = "user" + i;
+            memberIds.add(userId);
+
+            Map<String, Object> member = new HashMap<>();
+            member.put("userId", userId);
+            member.put("username", "sim-" + userId);
+            member.put("role", i == 0 ? "owner" : "editor");
+            member.put("isOnline", false);
+            member.put("currentFile", null);
+            member.put("cursorPosition", 0);
+            member.put("joinedAt", BackendValue.serverTimestamp());
+            batch.set(projectDoc.collection("members").document(userId), member);
+        }
+
+        Map<String, Object> project = new HashMap<>();
+        project.put("projectId", PROJECT_ID);
+        project.put("projectName", "Load test");
+        project.put("ownerId", "user0");
+        project.put("memberIds", memberIds);
+        project.put("createdAt", BackendValue.serverTimestamp());
+        batch.set(projectDoc, project);
+        batch.commit().get();
+    }
+
+    private static String initialText(String filePath) {
+        String name = filePath.substring(filePath.lastIndexOf('/') + 1, filePath.lastIndexOf('.'));
+        return "public class " + name + " {\n    public static void main(String[] args) {\n    }\n}\n";
+    }
+
+    /**
+     * For each file: every replica has no operations left waiting and shows the same text. With {@code verifyLog}, that text must also match a fresh replica
+     * rebuilt from the stored operation log.
+     */
+    private static Map<String, Boolean> checkConvergence(List<SimulatedCollaborator> collaborators,
+                                                         List<String> filePaths, InMemoryBackend store,
+                                                         boolean verifyLog) throws Exception {
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        for (String filePath : filePaths) {
+            List<SimulatedCollaborator.Replica> replicas = new ArrayList<>();
+            for (SimulatedCollaborator collaborator : collaborators) {
+                if (collaborator.getFilePath().equals(filePath)) {
+                    replicas.add(collaborator.replica().get(10, TimeUnit.SECONDS));
+                }
+            }
+
+            long totalSent = replicas.stream().mapToLong(r -> r.opsSent).sum();
+            String expected = replicas.get(0).text;
+            boolean ok = true;
+            for (SimulatedCollaborator.Replica replica : replicas) {
+                // Op counts are informational: a replica that rebuilt from a compacted base
+                // never sees the batches the base covers
+                ok &= replica.waiting == 0
+                        && replica.text.equals(replica.crdtText)
+                        && replica.text.equals(expected);
+            }
+
+            if (ok && verifyLog) {
+                String rebuilt = rebuildFromLog(store, filePath);
+                if (!expected.equals(rebuilt)) {
+                    System.err.println("Replicas of " + filePath + " agree but differ from the operation log");
+                    ok = false;
+                }
+            }
+            if (!ok && verifyLog) {
+                for (SimulatedCollaborator.Replica replica : replicas) {
+                    System.err.printf("  %s: sent %d, received %d of %d, waiting %d, %d chars%n",
+                            replica.userId, replica.opsSent, replica.opsReceived,
+                            totalSent - replica.opsSent, replica.waiting, replica.text.length());
+                }
+            }
+            result.put(filePath, ok);
+        }
+        return result;
+    }
+
+    private static String rebuildFromLog(InMemoryBackend store, String filePath) throws Exception {
+        BackendDocRef fileDoc = store.collection("projects").document(PROJECT_ID)
+                .collection("files").document(filePath.replace("/", "_"));
+        BackendDoc base = CoEditingLog.baseRef(fileDoc).get().get();
+        SequenceCrdt replica = SequenceCrdt.decode("verifier", new ChunkStore(store).readContent(base).get());
+
+        List<SequenceCrdt.Op> ops = new ArrayList<>();
+        for (BackendDoc batch : fileDoc.collection(CoEditingLog.OPS_SUBCOLLECTION).get().get().getDocuments()) {
+            ops.addAll(CoEditingLog.decodeOps(batch.get("ops")));
+        }
+        replica.applyRemote(ops);
+        return replica.getText();
+    }
+
+    private static void report(Stats stats, MeteredBackend metered, double editingSeconds, int editors) {
+        System.out.printf("%nOver %.1fs of editing:%n", editingSeconds);
+        reportLatency("Propagation (flush to remote apply)", stats.sorted(Stats.PROPAGATION));
+        reportLatency("Save", stats.sorted(Stats.SAVE));
+        reportLatency("History read", stats.sorted(Stats.HISTORY_READ));
+
+        // Documents written, by feature; op batches and saves count under "files"
+        System.out.printf("%nWrites:%n");
+        long total = 0;
+        for (MeteredBackend.Usage usage : metered.getUsage()) {
+            long count = usage.getWrites() + usage.getDeletes();
+            total += count;
+            System.out.printf("  %-16s %8d  %8.1f/s%n", usage.getFeature(), count, count / editingSeconds);
+        }
+        SyncMetrics.Summary opsWrites = coEditAcks();
+        System.out.printf("  %-16s %8d  %8.1f/s  (%.1f/s per editor)%n",
+                "total", total, total / editingSeconds, total / editingSeconds / editors);
+        if (opsWrites != null) {
+            System.out.printf("  %-38s n=%-7d p50 %7.2f  p90 %7.2f  p99 %7.2f  max %7.2f ms%n",
+                    "Ops write acknowledgement", opsWrites.getCount(), opsWrites.getPercentileMillis(50),
+                    opsWrites.getPercentileMillis(90), opsWrites.getPercentileMillis(99), opsWrites.getMaxMillis());
+        }
+
+        if (!stats.errors.isEmpty()) {
+            System.out.printf("%nErrors:%n");
+            stats.errors.forEach((what, count) -> System.out.printf("  %-16s %6d  first: %s%n",
+                    what, count.sum(), stats.firstErrors.get(what)));
+        }
+    }
+
+    /**
+     * Op batches are written by {@link CoEditingLog}, which records their acknowledgements
+     * in {@link SyncMetrics} rather than in {@link Stats}.
+     */
+    private static SyncMetrics.Summary coEditAcks() {
+        for (SyncMetrics.Summary summary : SyncMetrics.getInstance().getSummaries()) {
+            if (summary.getMetric().equals(SyncMetrics.COEDIT_SERVER_ACK) && summary.getWindow().equals("total")) {
+                return summary;
+            }
+        }
+        return null;
+    }
+
+    private static void reportLatency(String label, long[] sortedNanos) {
+        if (sortedNanos.length == 0) {
+            System.out.printf("  %-38s no samples%n", label);
+            return;
+        }
+        System.out.printf("  %-38s n=%-7d p50 %7.2f  p90 %7.2f  p99 %7.2f  max %7.2f ms%n", label, sortedNanos.length,
+                percentile(sortedNanos, 50), percentile(sortedNanos, 90),
+                percentile(sortedNanos, 99), sortedNanos[sortedNanos.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sortedNanos, double p) {
+        int index = (int) Math.ceil(p / 100 * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, Math.min(index, sortedNanos.length - 1))] / 1e6;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                System.err.println("Expected --option value, got: " + args[i]);
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+}
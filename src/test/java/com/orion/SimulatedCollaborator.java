@@ -0,0 +1,260 @@
+package com.orion;
+
+import com.google.api.core.ApiFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A headless collaborator for load testing.
+ * Drives the same document traffic as a user in the editor: opening a file for
+ * co-editing, typing and moving the caret, typing heartbeats, saves with history
+ * entries, and reading the file's history. Saves, presence and typing go through a
+ * {@link CollaborationService} of its own, so they take the editor's outbox path.
+ * The editor is replaced by a plain string replica, and a single thread stands in
+ * for the JavaFX thread.
+ */
+public class SimulatedCollaborator {
+    private static final String PROJECTS_COLLECTION = "projects";
+    private static final String FILES_SUBCOLLECTION = "files";
+
+    private static final String TYPED_CHARS = "abcdefghijklmnopqrstuvwxyz     (){};=.\n";
+
+    /**
+     * How a collaborator behaves.
+     */
+    public static class Profile {
+        double keysPerSecond = 5;
+        double caretJumpRate = 0.05; // Share of keystrokes that move the caret elsewhere instead
+        double deleteRate = 0.1;     // Share of keystrokes that are backspaces
+        long saveIntervalMs = 5_000;
+        long historyIntervalMs = 15_000;
+    }
+
+    private final String projectId;
+    private final String userId;
+    private final String username;
+    private final String filePath;
+    private final Profile profile;
+    private final LoadTest.Stats stats;
+    private final ExecutorService io; // Shared pool for blocking reads
+    private final Random random;
+    private final String site;
+
+    private final CollaborationService service;
+    private final ChangeHistoryService historyService;
+    private final ScheduledExecutorService thread; // Owns the replica; the editor's JavaFX thread
+    private final CoEditingLog log;
+
+    // Confined to "thread"
+    private String text = "";
+    private int caret = 0;
+    private long opsSent = 0;
+    private long opsReceived = 0;
+
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+
+    SimulatedCollaborator(CollaborationBackend backend, String projectId, String userId, String filePath,
+                          Profile profile, LoadTest.Stats stats, ExecutorService io, long seed) {
+        this.projectId = projectId;
+        this.userId = userId;
+        this.username = "sim-" + userId;
+        this.filePath = filePath;
+        this.profile = profile;
+        this.stats = stats;
+        this.io = io;
+        this.random = new Random(seed);
+        this.site = userId + "-" + Long.toString(seed & Long.MAX_VALUE, 36);
+
+        BackendDocRef fileDoc = backend.collection(PROJECTS_COLLECTION).document(projectId)
+                .collection(FILES_SUBCOLLECTION).document(filePath.replace("/", "_"));
+        this.service = new CollaborationService(backend, userId);
+        this.historyService = new ChangeHistoryService(backend);
+        this.thread = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sim-" + userId);
+            t.setDaemon(true);
+            return t;
+        });
+        this.log = new CoEditingLog(fileDoc, filePath, site, userId, new ChunkStore(backend), thread);
+    }
+
+    /**
+     * Open the file for co-editing through a {@link CoEditingLog}, as the editor does.
+     * Completes once the replica has the shared state.
+     */
+    CompletableFuture<Void> open(String localText) {
+        CompletableFuture<Void> opened = new CompletableFuture<>();
+        long started = System.nanoTime();
+
+        service.initializeProject(projectId, userId);
+        thread.execute(() -> log.open(localText, new CoEditingLog.Listener() {
+            @Override
+            public void onReady() {
+                stats.record(LoadTest.Stats.OPEN, System.nanoTime() - started);
+                text = log.getText();
+                service.loadFileIntoCache(filePath, text);
+                service.updateMyPresence(filePath, 0, 0);
+                opened.complete(null);
+            }
+
+            @Override
+            public void onRemote(List<TextEdit> edits, List<BackendDoc> batches) {
+                applyRemote(edits, batches);
+            }
+        }));
+
+        return opened;
+    }
+
+    private void applyRemote(List<TextEdit> edits, List<BackendDoc> batches) {
+        for (TextEdit edit : edits) {
+            text = text.substring(0, edit.getPosition()) + edit.getInserted() + text.substring(edit.getEnd());
+            caret = edit.transform(caret);
+        }
+
+        // Propagation is measured from the sender's flush to the edits landing here
+        long now = System.currentTimeMillis();
+        for (BackendDoc batch : batches) {
+            opsReceived += ((List<?>) batch.get("ops")).size();
+            Long sentAt = batch.getLong("sync.sentAt");
+            if (sentAt != null) {
+                stats.record(LoadTest.Stats.PROPAGATION, TimeUnit.MILLISECONDS.toNanos(now - sentAt));
+            }
+        }
+    }
+
+    /**
+     * Start typing, saving and reading history at the profile's rates.
+     */
+    void startEditing() {
+        long keyIntervalUs = (long) (1_000_000 / profile.keysPerSecond);
+        // Spread the first keystrokes so collaborators do not type in lockstep
+        schedule(this::keystroke, random.nextInt((int) Math.max(1, keyIntervalUs)), keyIntervalUs, TimeUnit.MICROSECONDS);
+        schedule(this::save, profile.saveIntervalMs, profile.saveIntervalMs, TimeUnit.MILLISECONDS);
+        schedule(this::readHistory, profile.historyIntervalMs, profile.historyIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void schedule(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        tasks.add(thread.scheduleAtFixedRate(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                stats.error("editor task", e); // A throwing periodic task would silently stop
+            }
+        }, initialDelay, period, unit));
+    }
+
+    private void keystroke() {
+        double roll = random.nextDouble();
+        if (roll < profile.caretJumpRate || text.isEmpty()) {
+            caret = random.nextInt(text.length() + 1);
+        } else if (roll < profile.caretJumpRate + profile.deleteRate) {
+            if (caret > 0) {
+                edit(caret - 1, 1, "");
+                caret--;
+            }
+        } else {
+            String typed = String.valueOf(TYPED_CHARS.charAt(random.nextInt(TYPED_CHARS.length())));
+            edit(caret, 0, typed);
+            caret++;
+            service.broadcastTyping(filePath, true);
+        }
+        service.updateMyPresence(filePath, caret, caret);
+    }
+
+    private void edit(int position, int removedLength, String inserted) {
+        opsSent += log.edit(position, removedLength, inserted).size();
+        text = text.substring(0, position) + inserted + text.substring(position + removedLength);
+    }
+
+    /**
+     * Save the current text as the editor does; the outbox sends it with its history entry.
+     */
+    private void save() {
+        long started = System.nanoTime();
+        ApiFuture<Void> delivered = service.updateFileContent(filePath, text, username);
+        delivered.addListener(() -> {
+            try {
+                delivered.get();
+                stats.record(LoadTest.Stats.SAVE, System.nanoTime() - started);
+            } catch (Exception e) {
+                stats.error("save", e);
+            }
+        }, Runnable::run);
+    }
+
+    private void readHistory() {
+        io.execute(() -> {
+            long started = System.nanoTime();
+            try {
+                historyService.getFileChangeHistory(projectId, filePath);
+                stats.record(LoadTest.Stats.HISTORY_READ, System.nanoTime() - started);
+            } catch (Exception e) {
+                stats.error("history", e);
+            }
+        });
+    }
+
+    /**
+     * Stop typing.
+     */
+    CompletableFuture<Void> stopEditing() {
+        return CompletableFuture.runAsync(() -> {
+            tasks.forEach(task -> task.cancel(false));
+            tasks.clear();
+        }, thread);
+    }
+
+    /**
+     * State of one replica, for checking convergence.
+     */
+    static class Replica {
+        String userId;
+        String text;     // As edited through the simulated editor
+        String crdtText; // As held by the CRDT; must match the editor
+        long opsSent;
+        long opsReceived;
+        int waiting;     // Remote operations still missing their dependencies
+    }
+
+    CompletableFuture<Replica> replica() {
+        return CompletableFuture.supplyAsync(() -> {
+            Replica replica = new Replica();
+            replica.userId = userId;
+            replica.text = text;
+            replica.crdtText = log.getText();
+            replica.opsSent = opsSent;
+            replica.opsReceived = opsReceived;
+            replica.waiting = log.getWaitingCount();
+            return replica;
+        }, thread);
+    }
+
+    /**
+     * Number of saves and presence updates still waiting in the outbox.
+     */
+    int getPendingWrites() {
+        return service.getPendingWrites();
+    }
+
+    void close() {
+        thread.execute(log::close);
+        service.shutdown();
+        thread.shutdownNow();
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+}